@@ -18,10 +18,13 @@ package com.hivemq.plugin.fileauthentication;
 
 import com.google.inject.Inject;
 import com.hivemq.plugin.fileauthentication.authentication.FileAuthenticator;
+import com.hivemq.plugin.fileauthentication.authentication.HotUsers;
+import com.hivemq.plugin.fileauthentication.callback.SessionTokenCallback;
 import com.hivemq.spi.PluginEntryPoint;
 import com.hivemq.spi.callback.registry.CallbackRegistry;
 
 import javax.annotation.PostConstruct;
+import java.util.Set;
 
 /**
  * Plugin Entry Point
@@ -32,7 +35,9 @@ import javax.annotation.PostConstruct;
 public class FileAuthMain extends PluginEntryPoint {
 
     private FileAuthenticator fileAuthenticator;
+    private HotUsers hotUsers;
     private CallbackRegistry callbackRegistry;
+    private Set<SessionTokenCallback> sessionTokenCallbacks;
 
     /**
      * Inject callback class and callback registry
@@ -41,19 +46,36 @@ public class FileAuthMain extends PluginEntryPoint {
      * because then it can be replaced in testing.
      *
      * @param fileAuthenticator implementation of OnAuthenticationCallback
+     * @param hotUsers          the most frequently authenticated users
      * @param callbackRegistry  callback registry
+     * @param sessionTokenCallbacks the callbacks bound in {@link FileAuthenticationModule}, which receive the
+     *                              session tokens
      */
     @Inject
-    public FileAuthMain(final FileAuthenticator fileAuthenticator, final CallbackRegistry callbackRegistry) {
+    public FileAuthMain(final FileAuthenticator fileAuthenticator, final HotUsers hotUsers,
+                        final CallbackRegistry callbackRegistry, final Set<SessionTokenCallback> sessionTokenCallbacks) {
         this.fileAuthenticator = fileAuthenticator;
+        this.hotUsers = hotUsers;
         this.callbackRegistry = callbackRegistry;
+        this.sessionTokenCallbacks = sessionTokenCallbacks;
     }
 
     /**
      * Add callback after injection took place.
+     * <p/>
+     * The credentials of the users, which were authenticated most frequently before the last stop, are prepared
+     * before, so they are ready when the clients reconnect. The optional warm-up also runs before, so the first
+     * logins are not verified by interpreted code. The session token callbacks are added before the first login.
      */
     @PostConstruct
     public void postConstruct() {
+        for (SessionTokenCallback sessionTokenCallback : sessionTokenCallbacks) {
+            fileAuthenticator.addSessionTokenCallback(sessionTokenCallback);
+        }
+        fileAuthenticator.preload(hotUsers.load());
+        fileAuthenticator.warmUp();
+        hotUsers.start();
+        callbackRegistry.addCallback(hotUsers);
         callbackRegistry.addCallback(fileAuthenticator);
     }
 }
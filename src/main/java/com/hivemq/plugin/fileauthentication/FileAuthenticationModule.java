@@ -16,10 +16,18 @@
 
 package com.hivemq.plugin.fileauthentication;
 
+import com.google.inject.multibindings.MapBinder;
+import com.google.inject.multibindings.Multibinder;
+import com.hivemq.plugin.fileauthentication.authentication.JasyptVerifierEngine;
+import com.hivemq.plugin.fileauthentication.authentication.NativeDigestEngine;
+import com.hivemq.plugin.fileauthentication.authentication.VerifierEngine;
+import com.hivemq.plugin.fileauthentication.callback.SessionTokenCallback;
 import com.hivemq.spi.HiveMQPluginModule;
 import com.hivemq.spi.PluginEntryPoint;
 import com.hivemq.spi.plugin.meta.Information;
 
+import java.util.ServiceLoader;
+
 /**
  * Plugin Configuration Class
  *
@@ -29,9 +37,34 @@ import com.hivemq.spi.plugin.meta.Information;
 public class FileAuthenticationModule extends HiveMQPluginModule {
 
 
+    /**
+     * Registers the {@link VerifierEngine}s by the name, which selects them in <code>passwordHashing.engine</code>,
+     * and the set of {@link SessionTokenCallback}s, which hand the session tokens to the clients. The
+     * {@link SessionTokenCallback}s are found with the {@link ServiceLoader}, or added with
+     * <code>sessionTokenCallbacks.addBinding().to(...)</code> in a module extending this one.
+     */
     @Override
     protected void configurePlugin() {
+        final MapBinder<String, VerifierEngine> engines = MapBinder.newMapBinder(binder(), String.class, VerifierEngine.class);
+        engines.addBinding("jasypt").to(JasyptVerifierEngine.class);
+        engines.addBinding("native").to(NativeDigestEngine.class);
+
+        final Multibinder<SessionTokenCallback> sessionTokenCallbacks = Multibinder.newSetBinder(binder(), SessionTokenCallback.class);
+        configureSessionTokenCallbacks(sessionTokenCallbacks);
+    }
 
+    /**
+     * Adds the {@link SessionTokenCallback}s, which hand the session tokens to the clients. These are the callbacks
+     * listed in <code>META-INF/services/com.hivemq.plugin.fileauthentication.callback.SessionTokenCallback</code>
+     * on the class path of the plugin, their members are injected like the ones of the other classes of the plugin.
+     * No session token is issued without a callback.
+     *
+     * @param sessionTokenCallbacks the set of callbacks
+     */
+    protected void configureSessionTokenCallbacks(final Multibinder<SessionTokenCallback> sessionTokenCallbacks) {
+        for (SessionTokenCallback callback : ServiceLoader.load(SessionTokenCallback.class, getClass().getClassLoader())) {
+            sessionTokenCallbacks.addBinding().toInstance(callback);
+        }
     }
 
     /**
@@ -0,0 +1,76 @@
+/*
+ * Copyright 2015 dc-square GmbH
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.hivemq.plugin.fileauthentication.authentication;
+
+import com.google.common.cache.Weigher;
+
+/**
+ * Weighers for the entries of the credential caches.
+ */
+enum CacheEntryWeigher implements Weigher<CredentialCacheKey, Object> {
+
+    /**
+     * Every entry weighs 1, so the maximum weight of the cache is the maximum number of entries.
+     */
+    ENTRIES {
+        @Override
+        public int weigh(final CredentialCacheKey key, final Object value) {
+            return 1;
+        }
+    },
+
+    /**
+     * The weight of an entry is the estimated number of bytes it retains on the heap, so the maximum weight of the
+     * cache is its maximum memory usage.
+     */
+    BYTES {
+        @Override
+        public int weigh(final CredentialCacheKey key, final Object value) {
+            return ENTRY_OVERHEAD
+                    + VALUE_SIZE
+                    + KEY_SIZE
+                    + STRING_SIZE + arraySize(key.getUsername().length() * 2)
+                    + arraySize(key.getFingerprint().length);
+        }
+    };
+
+    /**
+     * Estimated size of the entry of the cache itself, including its slot in the hash table
+     */
+    private static final int ENTRY_OVERHEAD = 96;
+
+    /**
+     * Size of a {@link CachedResult}, its result is a shared constant
+     */
+    private static final int VALUE_SIZE = 24;
+
+    /**
+     * Size of a {@link CredentialCacheKey} without the username and the fingerprint
+     */
+    private static final int KEY_SIZE = 24;
+
+    /**
+     * Size of a {@link String} without its character array
+     */
+    private static final int STRING_SIZE = 24;
+
+    private static final int ARRAY_HEADER = 16;
+
+    private static int arraySize(final int length) {
+        return (ARRAY_HEADER + length + 7) & ~7;
+    }
+}
@@ -0,0 +1,51 @@
+/*
+ * Copyright 2015 dc-square GmbH
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.hivemq.plugin.fileauthentication.authentication;
+
+/**
+ * Value of the credential caches.
+ * <p/>
+ * It keeps the time the result was cached, so an entry, which is moved into a resized cache, still expires after
+ * its original lifetime instead of starting a new one.
+ */
+final class CachedResult {
+
+    private final VerificationResult result;
+    private final long writeNanos;
+
+    /**
+     * @param result     the result of the verification
+     * @param writeNanos the time the result was cached, in {@link System#nanoTime()}
+     */
+    CachedResult(final VerificationResult result, final long writeNanos) {
+        this.result = result;
+        this.writeNanos = writeNanos;
+    }
+
+    VerificationResult getResult() {
+        return result;
+    }
+
+    /**
+     * @param nowNanos    the current time, in {@link System#nanoTime()}
+     * @param maxAgeNanos the lifetime of the entries of the cache
+     * @return true if the result was cached at least the lifetime ago
+     */
+    boolean isExpired(final long nowNanos, final long maxAgeNanos) {
+        return nowNanos - writeNanos >= maxAgeNanos;
+    }
+}
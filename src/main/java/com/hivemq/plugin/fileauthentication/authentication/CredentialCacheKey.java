@@ -0,0 +1,64 @@
+/*
+ * Copyright 2015 dc-square GmbH
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.hivemq.plugin.fileauthentication.authentication;
+
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+/**
+ * Key of the credential cache.
+ * <p/>
+ * It consists of the username and the {@link PasswordFingerprinter fingerprint} of the password, so the plaintext
+ * password is never stored in the cache.
+ */
+final class CredentialCacheKey {
+
+    private final String username;
+    private final byte[] fingerprint;
+    private final int hashCode;
+
+    CredentialCacheKey(final String username, final byte[] fingerprint) {
+        this.username = username;
+        this.fingerprint = fingerprint;
+        this.hashCode = 31 * username.hashCode() + Arrays.hashCode(fingerprint);
+    }
+
+    String getUsername() {
+        return username;
+    }
+
+    byte[] getFingerprint() {
+        return fingerprint;
+    }
+
+    @Override
+    public boolean equals(final Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+
+        final CredentialCacheKey that = (CredentialCacheKey) o;
+
+        return hashCode == that.hashCode
+                && username.equals(that.username)
+                && MessageDigest.isEqual(fingerprint, that.fingerprint);
+    }
+
+    @Override
+    public int hashCode() {
+        return hashCode;
+    }
+}
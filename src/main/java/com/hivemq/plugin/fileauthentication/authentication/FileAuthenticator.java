@@ -17,34 +17,80 @@
 package com.hivemq.plugin.fileauthentication.authentication;
 
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Objects;
 import com.google.common.base.Optional;
+import com.google.common.base.Supplier;
+import com.google.common.cache.Cache;
 import com.google.common.cache.CacheBuilder;
-import com.google.common.cache.CacheLoader;
-import com.google.common.cache.LoadingCache;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
+import com.google.common.collect.ConcurrentHashMultiset;
+import com.google.common.collect.Multiset;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
 import com.google.inject.Inject;
 import com.hivemq.plugin.fileauthentication.callback.CredentialChangeCallback;
+import com.hivemq.plugin.fileauthentication.callback.SessionTokenCallback;
 import com.hivemq.plugin.fileauthentication.configuration.Configuration;
+import com.hivemq.plugin.fileauthentication.configuration.DigestSettings;
+import com.hivemq.plugin.fileauthentication.configuration.EntryCompiler;
 import com.hivemq.plugin.fileauthentication.exception.PasswordFormatException;
+import com.hivemq.plugin.fileauthentication.metrics.AuthenticationMetrics;
 import com.hivemq.plugin.fileauthentication.util.HashSaltUtil;
+import com.hivemq.spi.annotations.Nullable;
 import com.hivemq.spi.callback.CallbackPriority;
+import com.hivemq.spi.callback.events.broker.OnBrokerStop;
 import com.hivemq.spi.callback.security.OnAuthenticationCallback;
 import com.hivemq.spi.security.ClientCredentialsData;
+import com.hivemq.spi.services.PluginExecutorService;
+import org.bouncycastle.util.encoders.Base64;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
+import java.lang.management.CompilationMXBean;
+import java.lang.management.ManagementFactory;
 import java.net.InetAddress;
-import java.util.concurrent.ExecutionException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * This class is a implementation of OnAuthenticationCallback.
  * It is responsible of verifying the provided username/password against the credential file.
+ * When HiveMQ stops, it releases what it holds outside of the plugin.
  *
  * @author Christian Goetz
  */
-public class FileAuthenticator implements OnAuthenticationCallback {
+public class FileAuthenticator implements OnAuthenticationCallback, OnBrokerStop {
 
     private static final Logger log = LoggerFactory.getLogger(FileAuthenticator.class);
+
+    private static final int MAX_SHRINK_SHIFT = 4;
+    private static final long HEAP_PRESSURE_RECOVERY_CHECK_SECONDS = 60;
+
+    /**
+     * Synthetic verifications between two checks whether the JIT compiler is still busy
+     */
+    private static final int WARM_UP_ROUND_SIZE = 50;
+
+    /**
+     * Rounds without new compilations, after which the warm-up is finished
+     */
+    private static final int WARM_UP_STABLE_ROUNDS = 3;
     private Configuration configurations;
 
     private boolean isHashed;
@@ -55,22 +101,98 @@ public class FileAuthenticator implements OnAuthenticationCallback {
     private int iterations;
     private int cachingTimeInSeconds;
     private int cacheSize;
+    private int negativeCachingTimeInSeconds;
+    private int negativeCacheSize;
+    private int negativeCacheMaxPerUsername;
+    private boolean refreshAheadEnabled;
+    private int refreshAheadTimeInSeconds;
+    private int refreshAheadConcurrency;
+    private int coalescingMaxWaitInMillis;
+    private long cacheMaxBytes;
+    private long negativeCacheMaxBytes;
+    private int heapPressureThreshold;
+    private int verificationThreads;
+    private int verificationQueueSize;
+    private long verificationTimeoutInMillis;
+    private boolean warmUpEnabled;
+    private long warmUpBudgetInMillis;
+    private volatile boolean rehashEnabled;
+    private volatile String rehashTarget;
+    private volatile boolean sessionTokenEnabled;
 
-    private LoadingCache<ClientCredentialWrapper, Boolean> cache;
+    private Cache<CredentialCacheKey, CachedResult> positiveCache;
+    private Cache<CredentialCacheKey, CachedResult> negativeCache;
+    private CacheStats previousPositiveCacheStats = new CacheStats(0, 0, 0, 0, 0, 0);
+    private CacheStats previousNegativeCacheStats = new CacheStats(0, 0, 0, 0, 0, 0);
+    private Multiset<String> negativeEntriesPerUsername;
+    private final VerifiedPasswordTable verifiedPasswords = new VerifiedPasswordTable();
+    private final InFlightVerifications inFlightVerifications = new InFlightVerifications();
+    private final VerificationPool verificationPool = new VerificationPool();
+    private final HeapPressureMonitor heapPressureMonitor = new HeapPressureMonitor(new Runnable() {
+        @Override
+        public void run() {
+            onHeapPressure();
+        }
+    });
     private PasswordComparator passwordComparator;
+    private PasswordFingerprinter passwordFingerprinter;
+    private PluginExecutorService pluginExecutorService;
+    private AuthenticationMetrics authenticationMetrics;
+    private HotUsers hotUsers;
+
+    /**
+     * Incremented whenever cached results become invalid, so a verification which started before can not store
+     * its outdated result.
+     */
+    private final AtomicLong credentialsGeneration = new AtomicLong();
+
+    private final Set<String> refreshingUsernames = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    private final AtomicInteger refreshesInFlight = new AtomicInteger();
+    private final AtomicLong refreshCount = new AtomicLong();
+    private final AtomicLong refreshFailureCount = new AtomicLong();
+
+    private final Set<String> rehashingUsernames = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    private final AtomicLong rehashCount = new AtomicLong();
+    private final AtomicLong rehashFailureCount = new AtomicLong();
+
+    private final SessionTokens sessionTokens = new SessionTokens();
+    private final List<SessionTokenCallback> sessionTokenCallbacks = new CopyOnWriteArrayList<>();
+    private final AtomicLong sessionTokensIssued = new AtomicLong();
+    private final AtomicLong sessionTokensAccepted = new AtomicLong();
+    private final AtomicBoolean missingSessionTokenCallbackLogged = new AtomicBoolean();
+
+    /**
+     * The limits of the caches are divided by 2 to the power of this value, while the heap is under pressure.
+     */
+    private int shrinkShift;
+    private final AtomicBoolean recoveryScheduled = new AtomicBoolean();
+    private final AtomicLong shrinkCount = new AtomicLong();
 
 
     /**
-     * The configuration and {@link PasswordComparator} is injected, using Guice.
+     * The configuration, {@link PasswordComparator}, {@link PasswordFingerprinter}, {@link PluginExecutorService},
+     * {@link AuthenticationMetrics} and {@link HotUsers} are injected, using Guice.
      *
-     * @param configurations     object, which holds all properties read from the specified configuration files in {@link com.hivemq.plugin.fileauthentication.FileAuthenticationModule}
-     * @param passwordComparator instance of the class {@link PasswordComparator}
+     * @param configurations        object, which holds all properties read from the specified configuration files in {@link com.hivemq.plugin.fileauthentication.FileAuthenticationModule}
+     * @param passwordComparator    instance of the class {@link PasswordComparator}
+     * @param passwordFingerprinter instance of the class {@link PasswordFingerprinter}, used to build the cache keys
+     * @param pluginExecutorService executor service used to refresh cache entries in the background
+     * @param authenticationMetrics metrics of the authentication and the caches
+     * @param hotUsers              tracks the most frequently authenticated users
      */
     @Inject
-    public FileAuthenticator(final Configuration configurations, PasswordComparator passwordComparator) {
+    public FileAuthenticator(final Configuration configurations, final PasswordComparator passwordComparator,
+                             final PasswordFingerprinter passwordFingerprinter,
+                             final PluginExecutorService pluginExecutorService,
+                             final AuthenticationMetrics authenticationMetrics,
+                             final HotUsers hotUsers) {
 
         this.configurations = configurations;
         this.passwordComparator = passwordComparator;
+        this.passwordFingerprinter = passwordFingerprinter;
+        this.pluginExecutorService = pluginExecutorService;
+        this.authenticationMetrics = authenticationMetrics;
+        this.hotUsers = hotUsers;
 
         loadConfig();
 
@@ -78,45 +200,307 @@ public class FileAuthenticator implements OnAuthenticationCallback {
             @Override
             public void restart() {
                 loadConfig();
+                configurations.getCredentialsConfiguration().recompile();
                 changeCache();
             }
+
+            @Override
+            public void cacheSettingsChanged() {
+                loadConfig();
+                resizeCache();
+                heapPressureMonitor.start(heapPressureThreshold);
+            }
+        });
+
+        configurations.getCredentialsConfiguration().setEntryCompiler(new EntryCompiler() {
+            @Override
+            public HashedSaltedPassword compile(final String entry) throws PasswordFormatException {
+                return parseEntry(entry);
+            }
+
+            @Override
+            public DigestSettings getDigestSettings() {
+                return new DigestSettings(isHashed, isSalted, isFirst, separationChar);
+            }
         });
 
         configurations.getCredentialsConfiguration().addCallback(new CredentialChangeCallback() {
             @Override
-            public void onCredentialChange() {
-                log.debug("Credential cache is invalidated");
-                cache.invalidateAll();
+            public void onCredentialChange(final Set<String> changedUsernames) {
+                invalidateUsers(changedUsernames);
             }
         });
 
         changeCache(); // to initialize Cache
+        heapPressureMonitor.start(heapPressureThreshold);
 
+        registerMetrics();
+    }
 
+    private void registerMetrics() {
+        authenticationMetrics.registerCacheStats("positive", new Supplier<CacheStats>() {
+            @Override
+            public CacheStats get() {
+                return getPositiveCacheStats();
+            }
+        });
+        authenticationMetrics.registerCacheStats("negative", new Supplier<CacheStats>() {
+            @Override
+            public CacheStats get() {
+                return getNegativeCacheStats();
+            }
+        });
+        authenticationMetrics.registerGauge(AuthenticationMetrics.VERIFIED_PASSWORDS_HITS, new Supplier<Long>() {
+            @Override
+            public Long get() {
+                return verifiedPasswords.hitCount();
+            }
+        });
+        authenticationMetrics.registerGauge(AuthenticationMetrics.VERIFIED_PASSWORDS_SIZE, new Supplier<Integer>() {
+            @Override
+            public Integer get() {
+                return verifiedPasswords.size();
+            }
+        });
+        authenticationMetrics.registerGauge(AuthenticationMetrics.COALESCING_SAVED, new Supplier<Long>() {
+            @Override
+            public Long get() {
+                return inFlightVerifications.savedCount();
+            }
+        });
+        authenticationMetrics.registerGauge(AuthenticationMetrics.COALESCING_TIMEOUTS, new Supplier<Long>() {
+            @Override
+            public Long get() {
+                return inFlightVerifications.timeoutCount();
+            }
+        });
+        authenticationMetrics.registerGauge(AuthenticationMetrics.HEAP_PRESSURE_SHRINKS, new Supplier<Long>() {
+            @Override
+            public Long get() {
+                return shrinkCount.get();
+            }
+        });
+        authenticationMetrics.registerGauge(AuthenticationMetrics.REFRESH_AHEAD_REFRESHES, new Supplier<Long>() {
+            @Override
+            public Long get() {
+                return refreshCount.get();
+            }
+        });
+        authenticationMetrics.registerGauge(AuthenticationMetrics.REFRESH_AHEAD_FAILURES, new Supplier<Long>() {
+            @Override
+            public Long get() {
+                return refreshFailureCount.get();
+            }
+        });
+        authenticationMetrics.registerGauge(AuthenticationMetrics.REHASH_REHASHES, new Supplier<Long>() {
+            @Override
+            public Long get() {
+                return rehashCount.get();
+            }
+        });
+        authenticationMetrics.registerGauge(AuthenticationMetrics.REHASH_FAILURES, new Supplier<Long>() {
+            @Override
+            public Long get() {
+                return rehashFailureCount.get();
+            }
+        });
+        authenticationMetrics.registerGauge(AuthenticationMetrics.SESSION_TOKENS_ISSUED, new Supplier<Long>() {
+            @Override
+            public Long get() {
+                return sessionTokensIssued.get();
+            }
+        });
+        authenticationMetrics.registerGauge(AuthenticationMetrics.SESSION_TOKENS_ACCEPTED, new Supplier<Long>() {
+            @Override
+            public Long get() {
+                return sessionTokensAccepted.get();
+            }
+        });
+        authenticationMetrics.registerGauge(AuthenticationMetrics.VERIFICATION_QUEUED, new Supplier<Integer>() {
+            @Override
+            public Integer get() {
+                return verificationPool.queuedCount();
+            }
+        });
+        authenticationMetrics.registerGauge(AuthenticationMetrics.VERIFICATION_REJECTED, new Supplier<Long>() {
+            @Override
+            public Long get() {
+                return verificationPool.rejectedCount();
+            }
+        });
+        authenticationMetrics.registerGauge(AuthenticationMetrics.VERIFICATION_TIMEOUTS, new Supplier<Long>() {
+            @Override
+            public Long get() {
+                return verificationPool.timeoutCount();
+            }
+        });
     }
 
 
     /**
-     * Can be used to change the settings on the cache after the properties were changed
+     * Can be used to change the settings on the caches after the properties were changed
      * Pls note that all entries will be removed as a consequence
+     * <p/>
+     * Successful and failed logins are kept in two separate caches, so a lot of failed logins can not evict the
+     * entries of successful logins.
      */
     private void changeCache() {
+        credentialsGeneration.incrementAndGet();
+        verifiedPasswords.clear();
+        inFlightVerifications.clear();
+        rebuildCaches(false);
+    }
 
-        this.cache = CacheBuilder.newBuilder()
+    /**
+     * Can be used to change the size and lifetime settings of the caches without losing the cached entries.
+     * The entries are moved into the new caches and keep the time they were cached, so they do not live longer than
+     * the new lifetime. Entries, which are older than the new lifetime, are dropped.
+     */
+    private void resizeCache() {
+        rebuildCaches(true);
+    }
+
+    private synchronized void rebuildCaches(final boolean keepEntries) {
+
+        final Cache<CredentialCacheKey, CachedResult> oldPositiveCache = this.positiveCache;
+        final Cache<CredentialCacheKey, CachedResult> oldNegativeCache = this.negativeCache;
+
+        verifiedPasswords.setMaxAge(cachingTimeInSeconds, TimeUnit.SECONDS);
+        inFlightVerifications.setMaxWait(coalescingMaxWaitInMillis, TimeUnit.MILLISECONDS);
+        verificationPool.configure(verificationThreads, verificationQueueSize, verificationTimeoutInMillis, TimeUnit.MILLISECONDS);
+
+        final Cache<CredentialCacheKey, CachedResult> newPositiveCache = CacheBuilder.newBuilder()
                 .expireAfterWrite(cachingTimeInSeconds, TimeUnit.SECONDS)
-                .maximumSize(cacheSize)
-                .build(
-                        new CacheLoader<ClientCredentialWrapper, Boolean>() {
-                            @Override
-                            public Boolean load(ClientCredentialWrapper wrap) throws Exception {
-                                return checkCredentialsForCaching(wrap);
-                            }
-                        });
-        
-        if (this.cache != null) {
-            log.info("Cache was changed to new settings: cacheTime:{}, cacheSize:{}", this.cachingTimeInSeconds, this.cacheSize);
+                .maximumWeight((cacheMaxBytes > 0 ? cacheMaxBytes : cacheSize) >> shrinkShift)
+                .weigher(cacheMaxBytes > 0 ? CacheEntryWeigher.BYTES : CacheEntryWeigher.ENTRIES)
+                .recordStats()
+                .build();
+
+        final Multiset<String> newNegativeEntriesPerUsername = ConcurrentHashMultiset.create();
+        final Cache<CredentialCacheKey, CachedResult> newNegativeCache = CacheBuilder.newBuilder()
+                .expireAfterWrite(negativeCachingTimeInSeconds, TimeUnit.SECONDS)
+                .maximumWeight((negativeCacheMaxBytes > 0 ? negativeCacheMaxBytes : negativeCacheSize) >> shrinkShift)
+                .weigher(negativeCacheMaxBytes > 0 ? CacheEntryWeigher.BYTES : CacheEntryWeigher.ENTRIES)
+                .recordStats()
+                .removalListener(new RemovalListener<CredentialCacheKey, CachedResult>() {
+                    @Override
+                    public void onRemoval(final RemovalNotification<CredentialCacheKey, CachedResult> notification) {
+                        newNegativeEntriesPerUsername.remove(notification.getKey().getUsername());
+                    }
+                })
+                .build();
+
+        if (keepEntries && oldPositiveCache != null) {
+            final long now = System.nanoTime();
+            final long maxAgeNanos = TimeUnit.SECONDS.toNanos(cachingTimeInSeconds);
+            for (Map.Entry<CredentialCacheKey, CachedResult> entry : oldPositiveCache.asMap().entrySet()) {
+                if (!entry.getValue().isExpired(now, maxAgeNanos)) {
+                    newPositiveCache.put(entry.getKey(), entry.getValue());
+                }
+            }
+            final long negativeMaxAgeNanos = TimeUnit.SECONDS.toNanos(negativeCachingTimeInSeconds);
+            for (Map.Entry<CredentialCacheKey, CachedResult> entry : oldNegativeCache.asMap().entrySet()) {
+                if (!entry.getValue().isExpired(now, negativeMaxAgeNanos)) {
+                    addToNegativeCache(newNegativeCache, newNegativeEntriesPerUsername, entry.getKey(), entry.getValue());
+                }
+            }
+        }
+
+        if (oldPositiveCache != null) {
+            // the statistics must not start from zero again, because they are published as metrics
+            previousPositiveCacheStats = previousPositiveCacheStats.plus(oldPositiveCache.stats());
+            previousNegativeCacheStats = previousNegativeCacheStats.plus(oldNegativeCache.stats());
+        }
+
+        this.positiveCache = newPositiveCache;
+        this.negativeEntriesPerUsername = newNegativeEntriesPerUsername;
+        this.negativeCache = newNegativeCache;
+
+        if (oldPositiveCache == null) {
+            log.info("Cache created with settings: cacheTime:{}, cacheSize:{}, negativeCacheTime:{}, negativeCacheSize:{}",
+                    this.cachingTimeInSeconds, this.cacheSize, this.negativeCachingTimeInSeconds, this.negativeCacheSize);
+        } else if (shrinkShift > 0) {
+            log.info("Cache was rebuilt with 1/{} of the configured size, because the heap is under pressure",
+                    1 << shrinkShift);
+        } else if (keepEntries) {
+            log.info("Cache was resized to new settings: cacheTime:{}, cacheSize:{}, negativeCacheTime:{}, negativeCacheSize:{}, kept {} entries",
+                    this.cachingTimeInSeconds, this.cacheSize, this.negativeCachingTimeInSeconds, this.negativeCacheSize,
+                    newPositiveCache.size() + newNegativeCache.size());
         } else {
-            log.info("Cache created with settings: cacheTime:{}, cacheSize:{}", this.cachingTimeInSeconds, this.cacheSize);
+            log.info("Cache was changed to new settings: cacheTime:{}, cacheSize:{}, negativeCacheTime:{}, negativeCacheSize:{}",
+                    this.cachingTimeInSeconds, this.cacheSize, this.negativeCachingTimeInSeconds, this.negativeCacheSize);
+        }
+    }
+
+
+    /**
+     * Drops the cached entries and divides the limits of the caches by 2, so the heap is left to HiveMQ.
+     * The verified passwords are kept, because they need little memory and save the hashing for all known users.
+     * The limits are restored as soon as the heap is not under pressure anymore.
+     */
+    @VisibleForTesting
+    synchronized void onHeapPressure() {
+        shrinkCount.incrementAndGet();
+        if (shrinkShift < MAX_SHRINK_SHIFT) {
+            shrinkShift++;
+        }
+        log.warn("The heap is under pressure, dropping the cached credentials and reducing the cache to 1/{} of its size",
+                1 << shrinkShift);
+        rebuildCaches(false);
+        scheduleRecovery();
+    }
+
+    private void scheduleRecovery() {
+        if (!recoveryScheduled.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            pluginExecutorService.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    recoveryScheduled.set(false);
+                    if (heapPressureMonitor.isUnderPressure()) {
+                        scheduleRecovery();
+                    } else {
+                        restoreCacheSize();
+                    }
+                }
+            }, HEAP_PRESSURE_RECOVERY_CHECK_SECONDS, TimeUnit.SECONDS);
+        } catch (RejectedExecutionException e) {
+            recoveryScheduled.set(false);
+            log.debug("Could not schedule the restore of the cache size", e);
+        }
+    }
+
+    private synchronized void restoreCacheSize() {
+        if (shrinkShift == 0) {
+            return;
+        }
+        shrinkShift = 0;
+        log.info("The heap is not under pressure anymore, restoring the configured cache size");
+        rebuildCaches(true);
+    }
+
+    /**
+     * Removes all cache entries of the given users, the entries of all other users are kept.
+     *
+     * @param usernames the users whose entries should be removed
+     */
+    private void invalidateUsers(final Set<String> usernames) {
+        credentialsGeneration.incrementAndGet();
+        verifiedPasswords.clear(usernames);
+        inFlightVerifications.clear(usernames);
+        invalidateUsers(positiveCache, usernames);
+        invalidateUsers(negativeCache, usernames);
+        log.debug("Credential cache is invalidated for {} user(s)", usernames.size());
+    }
+
+    private static void invalidateUsers(final Cache<CredentialCacheKey, ?> cache, final Set<String> usernames) {
+        final Iterator<CredentialCacheKey> iterator = cache.asMap().keySet().iterator();
+        while (iterator.hasNext()) {
+            if (usernames.contains(iterator.next().getUsername())) {
+                iterator.remove();
+            }
         }
     }
 
@@ -125,11 +509,34 @@ public class FileAuthenticator implements OnAuthenticationCallback {
         isHashed = configurations.isHashed();
         iterations = configurations.getHashingIterations();
         algorithm = configurations.getHashingAlgorithm();
+        passwordComparator.selectEngine(configurations.getHashingEngine());
+        if (isHashed) {
+            passwordComparator.selectProvider(configurations.getHashingProvider(), algorithm);
+        }
         separationChar = configurations.getSeparationChar();
         isSalted = configurations.isSalted();
         isFirst = configurations.isSaltFirst();
         cachingTimeInSeconds = configurations.getCachingTime();
         cacheSize = configurations.getCacheSize();
+        negativeCachingTimeInSeconds = configurations.getNegativeCachingTime();
+        negativeCacheSize = configurations.getNegativeCacheSize();
+        negativeCacheMaxPerUsername = configurations.getNegativeCacheMaxPerUsername();
+        refreshAheadEnabled = configurations.isRefreshAheadEnabled();
+        refreshAheadTimeInSeconds = configurations.getRefreshAheadTime();
+        refreshAheadConcurrency = configurations.getRefreshAheadConcurrency();
+        coalescingMaxWaitInMillis = configurations.getCoalescingMaxWait();
+        cacheMaxBytes = configurations.getCacheMaxBytes();
+        negativeCacheMaxBytes = configurations.getNegativeCacheMaxBytes();
+        heapPressureThreshold = configurations.getHeapPressureThreshold();
+        verificationThreads = configurations.getVerificationThreads();
+        verificationQueueSize = configurations.getVerificationQueueSize();
+        verificationTimeoutInMillis = configurations.getVerificationTimeout();
+        warmUpEnabled = configurations.isWarmUpEnabled();
+        warmUpBudgetInMillis = configurations.getWarmUpBudget();
+        rehashTarget = configurations.getRehashTarget();
+        rehashEnabled = configurations.isRehashEnabled() && isValidRehashTarget(rehashTarget);
+        sessionTokenEnabled = configurations.isSessionTokenEnabled();
+        sessionTokens.setLifetime(configurations.getSessionTokenLifetime(), TimeUnit.SECONDS);
 
         log.debug("File Authentication Configuration:");
         log.debug("hashed: {}", isHashed);
@@ -140,198 +547,673 @@ public class FileAuthenticator implements OnAuthenticationCallback {
         log.debug("separationChar: {}", separationChar);
         log.debug("cachingTimeInSeconds: {}", cachingTimeInSeconds);
         log.debug("cachingSize: {}", cacheSize);
+        log.debug("negativeCachingTimeInSeconds: {}", negativeCachingTimeInSeconds);
+        log.debug("negativeCacheSize: {}", negativeCacheSize);
+        log.debug("negativeCacheMaxPerUsername: {}", negativeCacheMaxPerUsername);
+        log.debug("refreshAheadEnabled: {}", refreshAheadEnabled);
+        log.debug("refreshAheadTimeInSeconds: {}", refreshAheadTimeInSeconds);
+        log.debug("refreshAheadConcurrency: {}", refreshAheadConcurrency);
+        log.debug("coalescingMaxWaitInMillis: {}", coalescingMaxWaitInMillis);
+        log.debug("verificationThreads: {}", verificationThreads);
+        log.debug("verificationQueueSize: {}", verificationQueueSize);
+        log.debug("verificationTimeoutInMillis: {}", verificationTimeoutInMillis);
+        log.debug("warmUpEnabled: {}", warmUpEnabled);
+        log.debug("warmUpBudgetInMillis: {}", warmUpBudgetInMillis);
+        log.debug("rehashEnabled: {}", rehashEnabled);
+        log.debug("rehashTarget: {}", rehashTarget);
+        log.debug("sessionTokenEnabled: {}", sessionTokenEnabled);
+        log.debug("sessionTokenLifetimeInMillis: {}", sessionTokens.getLifetimeInMillis());
+        log.debug("cacheMaxBytes: {}", cacheMaxBytes);
+        log.debug("negativeCacheMaxBytes: {}", negativeCacheMaxBytes);
+        log.debug("heapPressureThreshold: {}", heapPressureThreshold);
 
     }
 
 
     /**
      * Method which checks username/password from credential file against the provided username/password using a cache
+     * <p/>
+     * The cache key only consists of the username and a fingerprint of the password, so clients which connect with
+     * the same credentials share one cache entry, regardless of their IP address and client identifier.
+     * Successful logins are looked up in the table of verified passwords and the positive cache, failed logins in
+     * the negative cache.
      *
      * @param clientCredentialsData holds all data about the connecting client
      * @return true, if the credentials are ok, false otherwise.
      */
     @Override
     public Boolean checkCredentials(final ClientCredentialsData clientCredentialsData) {
-        try {
-            return this.cache.get(new ClientCredentialWrapper(clientCredentialsData));
-        } catch (ExecutionException e) {
-            log.error("Unable to load from Cache", e);
-            return false;
+        final long start = System.nanoTime();
+        final VerificationResult result = authenticate(clientCredentialsData);
+        authenticationMetrics.authenticated(result, System.nanoTime() - start);
+        if (result.isGranted()) {
+            hotUsers.recordLogin(clientCredentialsData.getUsername().get());
+            issueSessionToken(clientCredentialsData);
         }
+        return result.isGranted();
     }
 
     /**
-     * Method which checks username/password from credential file against the provided username/password, it is used by
-     * the load method of the cache, if entry is absent
+     * Adds a callback, which receives the session tokens issued after successful logins with a password.
+     * Tokens are only issued if session tokens are enabled and at least one callback was added. The plugin does not
+     * deliver the tokens to the clients itself, the callbacks bound in
+     * {@link com.hivemq.plugin.fileauthentication.FileAuthenticationModule} are added at startup.
      *
-     * @param clientCredentialsDataWrap holds all data about the connecting client
-     * @return true, if the credentials are ok, false otherwise
+     * @param callback the callback
      */
-    private Boolean checkCredentialsForCaching(final ClientCredentialWrapper clientCredentialsDataWrap) {
-        log.trace("Checking user name and password for client with IP {}, client identifier '{}' and username '{}'",
-                clientCredentialsDataWrap.getInetAddress().or(InetAddress.getLoopbackAddress()).getHostAddress(),
-                clientCredentialsDataWrap.getClientId(), clientCredentialsDataWrap.getUsername().or("NONE"));
-        final Optional<String> usernameOptional = clientCredentialsDataWrap.getUsername();
-        final Optional<String> passwordOptional = clientCredentialsDataWrap.getPassword();
+    public void addSessionTokenCallback(final SessionTokenCallback callback) {
+        if (callback == null) {
+            throw new NullPointerException("null is not allowed as Callback");
+        }
+        sessionTokenCallbacks.add(callback);
+    }
+
+    private VerificationResult authenticate(final ClientCredentialsData clientCredentialsData) {
+        final Optional<String> usernameOptional = clientCredentialsData.getUsername();
+        final Optional<String> passwordOptional = clientCredentialsData.getPassword();
 
         if (!usernameOptional.isPresent()) {
             log.debug("No username is present for client with IP {} and client identifier '{}'. Denying access.",
-                    clientCredentialsDataWrap.getInetAddress().or(InetAddress.getLoopbackAddress()).getHostAddress(),
-                    clientCredentialsDataWrap.getClientId());
+                    clientCredentialsData.getInetAddress().or(InetAddress.getLoopbackAddress()).getHostAddress(),
+                    clientCredentialsData.getClientId());
 
-            return false;
+            return VerificationResult.NO_USERNAME;
         }
 
         if (!passwordOptional.isPresent()) {
             log.debug("No password is present for client with IP {}, client identifier '{}' and username '{}'. Denying access.",
-                    clientCredentialsDataWrap.getInetAddress().or(InetAddress.getLoopbackAddress()).getHostAddress(),
-                    clientCredentialsDataWrap.getClientId(), clientCredentialsDataWrap.getUsername().or("NONE"));
+                    clientCredentialsData.getInetAddress().or(InetAddress.getLoopbackAddress()).getHostAddress(),
+                    clientCredentialsData.getClientId(), usernameOptional.get());
 
-            return false;
+            return VerificationResult.NO_PASSWORD;
         }
 
-        if (usernameOptional.isPresent() && passwordOptional.isPresent()) {
+        final String username = usernameOptional.get();
+        final String password = passwordOptional.get();
+        if (sessionTokenEnabled && SessionTokens.isToken(password)) {
+            if (verifySessionToken(clientCredentialsData, username, password)) {
+                return VerificationResult.GRANTED;
+            }
+            // a password may look like a token, so a token, which is not valid, is verified as password as well
+            final VerificationResult result = authenticateWithPassword(clientCredentialsData, username, password);
+            return result == VerificationResult.WRONG_PASSWORD ? VerificationResult.INVALID_TOKEN : result;
+        }
+        return authenticateWithPassword(clientCredentialsData, username, password);
+    }
 
-            final String username = usernameOptional.get();
-            final String password = passwordOptional.get();
+    private VerificationResult authenticateWithPassword(final ClientCredentialsData clientCredentialsData,
+                                                        final String username, final String password) {
+        final byte[] fingerprint = passwordFingerprinter.fingerprint(password);
 
-            final Optional<String> hashedPasswordOptional = Optional.fromNullable(configurations.getUser(username));
+        if (verifiedPasswords.isVerified(username, fingerprint)) {
+            refreshAhead(clientCredentialsData, username, password, fingerprint);
+            return VerificationResult.GRANTED;
+        }
 
-            if (!hashedPasswordOptional.isPresent()) {
-                log.debug("No password is present for username '{}' in the config file. Denying access.", username);
-                return false;
-            }
+        final CredentialCacheKey key = new CredentialCacheKey(username, fingerprint);
+        if (getCached(positiveCache, key, cachingTimeInSeconds) != null) {
+            return VerificationResult.GRANTED;
+        }
+        final VerificationResult cachedResult = getCached(negativeCache, key, negativeCachingTimeInSeconds);
+        if (cachedResult != null) {
+            return cachedResult;
+        }
 
-            final String hashedPassword = hashedPasswordOptional.get();
+        if (!inFlightVerifications.isEnabled()) {
+            return verifyAndCache(clientCredentialsData, key, password);
+        }
 
-            if (!isHashed) {
-                final boolean granted = passwordComparator.validatePlaintextPassword(hashedPassword, password);
-                log.debug("Plaintext password validation for client with IP {}, client identifier '{}' and username '{}' was {}.",
-                        clientCredentialsDataWrap.getInetAddress().or(InetAddress.getLoopbackAddress()).getHostAddress(),
-                        clientCredentialsDataWrap.getClientId(), username, granted ? "successful" : "not successful");
-                return granted;
+        final SettableFuture<VerificationResult> verification = SettableFuture.create();
+        final ListenableFuture<VerificationResult> runningVerification = inFlightVerifications.start(key, verification);
+        if (runningVerification != null) {
+            final VerificationResult sharedResult = inFlightVerifications.await(runningVerification);
+            if (sharedResult != null) {
+                return sharedResult;
             }
+            return verifyAndCache(clientCredentialsData, key, password);
+        }
 
-            if (!isSalted) {
-                final boolean granted = passwordComparator.validateHashedPassword(algorithm, password, hashedPassword, iterations);
-                log.debug("Hashed password validation (without salt) for client with IP {}, client identifier '{}' and username '{}' was {}.",
-                        clientCredentialsDataWrap.getInetAddress().or(InetAddress.getLoopbackAddress()).getHostAddress(),
-                        clientCredentialsDataWrap.getClientId(), username, granted ? "successful" : "not successful");
-                return granted;
-            }
+        VerificationResult result = null;
+        try {
+            result = verifyAndCache(clientCredentialsData, key, password);
+            return result;
+        } finally {
+            inFlightVerifications.finish(key, verification, result);
+        }
+    }
+
+    /**
+     * Verifies a session token, which the client provided as password. This only needs one HMAC, so it is neither
+     * cached nor executed on the verification pool. A token, which is not valid, is verified as password afterwards.
+     *
+     * @param clientCredentialsData holds all data about the connecting client
+     * @param username              username provided by the client
+     * @param token                 session token provided by the client as password
+     * @return true if the token is valid, false if it is not or the user is not present in the credential file
+     */
+    private boolean verifySessionToken(final ClientCredentialsData clientCredentialsData,
+                                       final String username, final String token) {
+        final String entry = configurations.getUser(username);
+        if (entry == null) {
+            return false;
+        }
+        final boolean granted = sessionTokens.verify(username, token, entry);
+        log.debug("Session token validation for client with IP {}, client identifier '{}' and username '{}' was {}.",
+                clientCredentialsData.getInetAddress().or(InetAddress.getLoopbackAddress()).getHostAddress(),
+                clientCredentialsData.getClientId(), username, granted ? "successful" : "not successful");
+        if (granted) {
+            sessionTokensAccepted.incrementAndGet();
+        }
+        return granted;
+    }
 
-            final HashedSaltedPassword hashedSaltedPassword;
+    /**
+     * Issues a session token after a successful login with a password and hands it to the
+     * {@link SessionTokenCallback}s. Logins with a session token do not get a new token, so every token expires at
+     * the latest one lifetime after the last login with the password.
+     *
+     * @param clientCredentialsData holds all data about the connecting client, which logged in
+     */
+    private void issueSessionToken(final ClientCredentialsData clientCredentialsData) {
+        final String password = clientCredentialsData.getPassword().get();
+        if (!sessionTokenEnabled || SessionTokens.isToken(password)) {
+            return;
+        }
+        if (sessionTokenCallbacks.isEmpty()) {
+            if (missingSessionTokenCallbackLogged.compareAndSet(false, true)) {
+                log.warn("Session tokens are enabled, but no session token callback was added, so no session token is issued");
+            }
+            return;
+        }
+        final String username = clientCredentialsData.getUsername().get();
+        final String entry = configurations.getUser(username);
+        if (entry == null) {
+            return;
+        }
+        final long expiry = sessionTokens.newExpiry();
+        final String token = sessionTokens.issue(username, entry, expiry);
+        sessionTokensIssued.incrementAndGet();
+        for (SessionTokenCallback callback : sessionTokenCallbacks) {
             try {
-                hashedSaltedPassword = getHashAndSalt(hashedPassword);
-            } catch (PasswordFormatException e) {
-                return false;
+                callback.onSessionToken(clientCredentialsData, token, expiry);
+            } catch (RuntimeException e) {
+                log.warn("Session token callback failed for user '{}'", username, e);
             }
+        }
+    }
 
-            final boolean granted = passwordComparator.validateHashedAndSaltedPassword(
-                    algorithm,
-                    password,
-                    hashedSaltedPassword.getHash(),
-                    iterations,
-                    hashedSaltedPassword.getSalt());
-
-            log.debug("Hashed password validation (with salt) for client with IP {}, client identifier '{}' and username '{}' was {}.",
-                    clientCredentialsDataWrap.getInetAddress().or(InetAddress.getLoopbackAddress()).getHostAddress(),
-                    clientCredentialsDataWrap.getClientId(), username, granted ? "successful" : "not successful");
-            return granted;
+    /**
+     * Verifies the credentials on the verification pool and stores the result in the caches, if the credentials did
+     * not change in the meantime. Results caused by an overloaded pool are not cached.
+     *
+     * @param clientCredentialsData holds all data about the connecting client
+     * @param key                   the cache key of the credentials
+     * @param password              password provided by the client
+     * @return the result of the verification
+     */
+    private VerificationResult verifyAndCache(final ClientCredentialsData clientCredentialsData,
+                                              final CredentialCacheKey key, final String password) {
+        final String username = key.getUsername();
+        final long generation = credentialsGeneration.get();
+        final VerificationResult result = verificationPool.verify(new Callable<VerificationResult>() {
+            @Override
+            public VerificationResult call() {
+                return verify(clientCredentialsData, username, password);
+            }
+        });
+        if (!result.isCacheable() || generation != credentialsGeneration.get()) {
+            return result;
+        }
+        if (result.isGranted()) {
+            verifiedPasswords.setVerified(username, key.getFingerprint());
+            positiveCache.put(key, new CachedResult(result, System.nanoTime()));
         } else {
-            return false;
+            addToNegativeCache(key, result);
         }
+        return result;
+    }
 
+    /**
+     * Verifies the credentials against the credential file and records the time needed for it.
+     *
+     * @param clientCredentialsData holds all data about the connecting client
+     * @param username              username provided by the client
+     * @param password              password provided by the client
+     * @return the result of the verification
+     */
+    private VerificationResult verify(final ClientCredentialsData clientCredentialsData,
+                                      final String username, final String password) {
+        final long start = System.nanoTime();
+        try {
+            return checkCredentialsForCaching(clientCredentialsData, username, password);
+        } finally {
+            authenticationMetrics.verified(System.nanoTime() - start);
+        }
     }
 
     /**
-     * Calls the {@link HashSaltUtil} to retrieve salt and hash from the property string
-     * <p/>
-     * It was extracted for being able to override it in the test cases.
+     * Verifies the credentials of a user again in the background, if refresh ahead is enabled and the verified
+     * password of the user expires soon. This way frequently used entries never expire and the clients of these users
+     * never have to wait for the hashing of their password.
      *
-     * @param hashedPassword string containing hash, salt and separator
-     * @return {@link HashedSaltedPassword} with hash and salt
-     * @throws PasswordFormatException thrown when the string is in an unsupported format
+     * @param clientCredentialsData holds all data about the connecting client
+     * @param username              username provided by the client
+     * @param password              password provided by the client
+     * @param fingerprint           fingerprint of the password
      */
-    @VisibleForTesting
-    HashedSaltedPassword getHashAndSalt(final String hashedPassword) throws PasswordFormatException {
-        return HashSaltUtil.retrieve(isFirst, separationChar, hashedPassword);
+    private void refreshAhead(final ClientCredentialsData clientCredentialsData, final String username,
+                              final String password, final byte[] fingerprint) {
+
+        if (!refreshAheadEnabled || !verifiedPasswords.expiresWithin(username, refreshAheadTimeInSeconds, TimeUnit.SECONDS)) {
+            return;
+        }
+        if (!refreshingUsernames.add(username)) {
+            return;
+        }
+        if (refreshesInFlight.incrementAndGet() > refreshAheadConcurrency) {
+            refreshesInFlight.decrementAndGet();
+            refreshingUsernames.remove(username);
+            return;
+        }
+
+        try {
+            pluginExecutorService.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        final long generation = credentialsGeneration.get();
+                        final VerificationResult result = verify(clientCredentialsData, username, password);
+                        if (generation == credentialsGeneration.get()) {
+                            final CredentialCacheKey key = new CredentialCacheKey(username, fingerprint);
+                            if (result.isGranted()) {
+                                verifiedPasswords.setVerified(username, fingerprint);
+                                positiveCache.put(key, new CachedResult(result, System.nanoTime()));
+                            } else {
+                                verifiedPasswords.clear(Collections.singleton(username));
+                                positiveCache.invalidate(key);
+                            }
+                        }
+                        refreshCount.incrementAndGet();
+                    } catch (Exception e) {
+                        refreshFailureCount.incrementAndGet();
+                        log.warn("Unable to refresh the cached credentials of user '{}'", username, e);
+                    } finally {
+                        refreshesInFlight.decrementAndGet();
+                        refreshingUsernames.remove(username);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            refreshFailureCount.incrementAndGet();
+            refreshesInFlight.decrementAndGet();
+            refreshingUsernames.remove(username);
+            log.debug("Unable to schedule the refresh of the cached credentials of user '{}'", username);
+        }
     }
 
     /**
-     * Priority of the callback implementation.
-     * This is important if more than one {@link OnAuthenticationCallback} implementations is available.
+     * @param cache         the positive or negative cache
+     * @param key           key of the login
+     * @param maxAgeSeconds the lifetime of the entries of the cache
+     * @return the cached result, or null if there is none or it is older than the lifetime, which is only possible
+     * for entries, which were moved into a resized cache
+     */
+    @Nullable
+    private static VerificationResult getCached(final Cache<CredentialCacheKey, CachedResult> cache,
+                                                final CredentialCacheKey key, final int maxAgeSeconds) {
+        final CachedResult cached = cache.getIfPresent(key);
+        if (cached == null) {
+            return null;
+        }
+        if (cached.isExpired(System.nanoTime(), TimeUnit.SECONDS.toNanos(maxAgeSeconds))) {
+            cache.invalidate(key);
+            return null;
+        }
+        return cached.getResult();
+    }
+
+    /**
+     * Adds a failed login to the negative cache, unless the username already reached the maximum amount of negative
+     * cache entries. This way a single username can not take over the negative cache.
      *
-     * @return priority.
+     * @param key    key of the failed login
+     * @param result the reason why the login failed
      */
-    @Override
-    public int priority() {
-        return CallbackPriority.HIGH;
+    private void addToNegativeCache(final CredentialCacheKey key, final VerificationResult result) {
+        addToNegativeCache(negativeCache, negativeEntriesPerUsername, key, new CachedResult(result, System.nanoTime()));
+    }
+
+    private void addToNegativeCache(final Cache<CredentialCacheKey, CachedResult> cache,
+                                    final Multiset<String> entriesPerUsername, final CredentialCacheKey key,
+                                    final CachedResult result) {
+        if (entriesPerUsername.count(key.getUsername()) >= negativeCacheMaxPerUsername) {
+            return;
+        }
+        entriesPerUsername.add(key.getUsername());
+        cache.put(key, result);
+    }
+
+    /**
+     * @return statistics of the cache for successful logins
+     */
+    public CacheStats getPositiveCacheStats() {
+        return previousPositiveCacheStats.plus(positiveCache.stats());
     }
 
+    /**
+     * @return the number of logins which were granted by the table of verified passwords
+     */
+    public long getVerifiedPasswordHitCount() {
+        return verifiedPasswords.hitCount();
+    }
+
+    /**
+     * @return the number of cached credentials which were refreshed in the background
+     */
+    public long getRefreshAheadCount() {
+        return refreshCount.get();
+    }
 
     /**
-     * this is a wrapper-class for the ClientCredential
-     * it is essentiell because the guave Cache used or caching needs a correct implemented version of equals and hasCode to work
+     * @return the number of background refreshes which failed
      */
-    private final static class ClientCredentialWrapper {
+    public long getRefreshAheadFailureCount() {
+        return refreshFailureCount.get();
+    }
 
+    /**
+     * @return the number of verifications which were saved, because concurrent logins with the same credentials
+     * shared one verification
+     */
+    public long getCoalescedVerificationCount() {
+        return inFlightVerifications.savedCount();
+    }
 
-        private final Optional<InetAddress> inetAddress;
-        private final Optional<String> password;
-        private final String clientId;
-        private final Optional<String> username;
+    /**
+     * @return statistics of the cache for failed logins
+     */
+    public CacheStats getNegativeCacheStats() {
+        return previousNegativeCacheStats.plus(negativeCache.stats());
+    }
 
+    /**
+     * Method which checks username/password from credential file against the provided username/password, it is used by
+     * the cache, if entry is absent
+     *
+     * @param clientCredentialsData holds all data about the connecting client
+     * @param username              username provided by the client
+     * @param password              password provided by the client
+     * @return the result of the verification
+     */
+    private VerificationResult checkCredentialsForCaching(final ClientCredentialsData clientCredentialsData,
+                                                          final String username, final String password) {
+        log.trace("Checking user name and password for client with IP {}, client identifier '{}' and username '{}'",
+                clientCredentialsData.getInetAddress().or(InetAddress.getLoopbackAddress()).getHostAddress(),
+                clientCredentialsData.getClientId(), username);
 
-        private ClientCredentialWrapper(ClientCredentialsData clientCredentialsData) {
-            inetAddress = clientCredentialsData.getInetAddress();
-            password = clientCredentialsData.getPassword();
-            clientId = clientCredentialsData.getClientId();
-            username = clientCredentialsData.getUsername();
+        final HashedSaltedPassword entry;
+        try {
+            entry = getParsedEntry(username);
+        } catch (PasswordFormatException e) {
+            // the wrong format was logged when the credential file was loaded, unless the entry was compiled now
+            log.debug("The entry of username '{}' in the credential file could not be parsed: {}", username, e.getMessage());
+            return VerificationResult.BAD_FORMAT;
         }
 
+        if (entry == null) {
+            log.debug("No password is present for username '{}' in the config file. Denying access.", username);
+            return VerificationResult.UNKNOWN_USER;
+        }
 
-        /**
-         * BEWARE equality is only based on Username and Password!
-         *
-         * @param o the object to be compared with
-         * @return true if username and password are equal AND both not null
-         */
-        @Override
-        public boolean equals(Object o) {
-            if (this == o) return true;
-            if (o == null || getClass() != o.getClass()) return false;
+        final VerificationResult result = validateEntry(clientCredentialsData, username, password, entry);
+        if (result.isGranted()) {
+            rehashIfOutdated(username, password, entry);
+        }
+        return result;
+    }
 
-            ClientCredentialWrapper that = (ClientCredentialWrapper) o;
+    /**
+     * Validates the password provided by the client against the parsed entry of the credential file.
+     *
+     * @param clientCredentialsData holds all data about the connecting client
+     * @param username              username provided by the client
+     * @param password              password provided by the client
+     * @param entry                 parsed entry of the user
+     * @return the result of the verification
+     */
+    private VerificationResult validateEntry(final ClientCredentialsData clientCredentialsData, final String username,
+                                             final String password, final HashedSaltedPassword entry) {
+        if (entry instanceof KdfHash) {
+            final boolean granted = passwordComparator.validateKdfPassword(password, (KdfHash) entry);
+            log.debug("{} password validation for client with IP {}, client identifier '{}' and username '{}' was {}.",
+                    ((KdfHash) entry).getType(),
+                    clientCredentialsData.getInetAddress().or(InetAddress.getLoopbackAddress()).getHostAddress(),
+                    clientCredentialsData.getClientId(), username, granted ? "successful" : "not successful");
+            return granted ? VerificationResult.GRANTED : VerificationResult.WRONG_PASSWORD;
+        }
 
-            if (!this.getUsername().isPresent()) return false;
-            if (!that.getUsername().isPresent()) return false;
-            if (!this.getPassword().isPresent()) return false;
-            if (!that.getPassword().isPresent()) return false;
+        if (!isHashed) {
+            final boolean granted = passwordComparator.validatePlaintextPassword(entry.getHash(), password);
+            log.debug("Plaintext password validation for client with IP {}, client identifier '{}' and username '{}' was {}.",
+                    clientCredentialsData.getInetAddress().or(InetAddress.getLoopbackAddress()).getHostAddress(),
+                    clientCredentialsData.getClientId(), username, granted ? "successful" : "not successful");
+            return granted ? VerificationResult.GRANTED : VerificationResult.WRONG_PASSWORD;
+        }
 
-            if (!this.getUsername().get().equals(that.getUsername().get()))
-                return false;
-            if (!this.getPassword().get().equals(that.getPassword().get()))
-                return false;
+        if (!isSalted) {
+            final boolean granted = passwordComparator.validateHashedEntry(algorithm, password, entry, iterations);
+            log.debug("Hashed password validation (without salt) for client with IP {}, client identifier '{}' and username '{}' was {}.",
+                    clientCredentialsData.getInetAddress().or(InetAddress.getLoopbackAddress()).getHostAddress(),
+                    clientCredentialsData.getClientId(), username, granted ? "successful" : "not successful");
+            return granted ? VerificationResult.GRANTED : VerificationResult.WRONG_PASSWORD;
+        }
 
-            return true;
+        final boolean granted = passwordComparator.validateHashedEntry(algorithm, password, entry, iterations);
+
+        log.debug("Hashed password validation (with salt) for client with IP {}, client identifier '{}' and username '{}' was {}.",
+                clientCredentialsData.getInetAddress().or(InetAddress.getLoopbackAddress()).getHostAddress(),
+                clientCredentialsData.getClientId(), username, granted ? "successful" : "not successful");
+        return granted ? VerificationResult.GRANTED : VerificationResult.WRONG_PASSWORD;
+
+    }
+
+    /**
+     * Returns the entry of the user in the credential file, split into hash and salt if salting is enabled.
+     * The entries are compiled by the {@link com.hivemq.plugin.fileauthentication.configuration.CredentialsConfiguration}
+     * when the credential file is loaded, so this is only a lookup. Entries stored off heap may be compiled on lookup.
+     *
+     * @param username the username
+     * @return the parsed entry, or null if the user is not present in the credential file
+     * @throws PasswordFormatException thrown when the entry is in an unsupported format
+     */
+    private HashedSaltedPassword getParsedEntry(final String username) throws PasswordFormatException {
+        return configurations.getCompiledEntry(username);
+    }
+
+    private HashedSaltedPassword parseEntry(final String entry) throws PasswordFormatException {
+        // entries which describe their hashing parameters themselves ignore the global settings
+        if (KdfHash.isKdfHash(entry)) {
+            return KdfHash.parse(entry);
+        }
+        if (!isHashed) {
+            return new HashedSaltedPassword(entry, null);
+        }
+        // the digest and salt are decoded once here instead of on every verification
+        final HashedSaltedPassword hashAndSalt = isSalted ? getHashAndSalt(entry) : new HashedSaltedPassword(entry, null);
+        return HashedSaltedPassword.decoded(hashAndSalt.getHash(), hashAndSalt.getSalt());
+    }
+
+    /**
+     * Queues the replacement of the entry of the user in the credential file in the background with a new entry, which uses the
+     * algorithm and parameters of the rehash target, if rehashing is enabled and the verified entry uses other
+     * parameters. The entry is only replaced if it is still the entry the password was verified against. Plaintext
+     * entries are never replaced.
+     *
+     * @param username username provided by the client
+     * @param password password provided by the client, which was verified
+     * @param entry    parsed entry of the user, which the password was verified against
+     */
+    private void rehashIfOutdated(final String username, final String password, final HashedSaltedPassword entry) {
+        final String target = rehashTarget;
+        if (!rehashEnabled || (entry instanceof KdfHash && ((KdfHash) entry).hasParameters(target))) {
+            return;
+        }
+        // plaintext entries are kept, replacing them would silently turn on hashing for these users
+        if (!(entry instanceof KdfHash) && !isHashed) {
+            return;
         }
+        if (!rehashingUsernames.add(username)) {
+            return;
+        }
+
+        try {
+            pluginExecutorService.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        final String currentEntry = configurations.getUser(username);
+                        if (currentEntry == null || !isSameEntry(parseEntry(currentEntry), entry)) {
+                            return;
+                        }
+                        final String newEntry = passwordComparator.hashKdfPassword(password, target);
+                        if (configurations.getCredentialsConfiguration().replaceEntry(username, currentEntry, newEntry)) {
+                            rehashCount.incrementAndGet();
+                            log.debug("Queued the rehashed entry of user '{}' with {} for the credential file", username, target);
+                        }
+                    } catch (PasswordFormatException | IOException | RuntimeException e) {
+                        rehashFailureCount.incrementAndGet();
+                        log.warn("Not able to rehash the entry of user '{}': {}", username, e.getMessage());
+                    } finally {
+                        rehashingUsernames.remove(username);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            rehashingUsernames.remove(username);
+        }
+    }
 
-        Optional<InetAddress> getInetAddress() {
-            return inetAddress;
+    /**
+     * Validates the rehash target once when the configuration is loaded, so an invalid target disables the
+     * rehashing with a single error instead of failing after every login.
+     *
+     * @param target the algorithm and parameters of rehashed entries
+     * @return true if new entries can be created with the target, otherwise false
+     */
+    private static boolean isValidRehashTarget(final String target) {
+        try {
+            KdfHash.template(target, new byte[16]);
+            return true;
+        } catch (PasswordFormatException e) {
+            log.error("The rehash target {} is not valid, rehashing is disabled: {}", target, e.getMessage());
+            return false;
         }
+    }
 
-        Optional<String> getPassword() {
-            return password;
+    private static boolean isSameEntry(final HashedSaltedPassword first, final HashedSaltedPassword second) {
+        // decoded entries are compared by their bytes, the hash of an entry read from the off heap records is
+        // encoded again and may differ in its padding from the text of the file
+        if (!(first instanceof KdfHash) && first.getHashBytes() != null && second.getHashBytes() != null) {
+            return Arrays.equals(first.getHashBytes(), second.getHashBytes()) && Objects.equal(first.getSalt(), second.getSalt());
         }
+        return Objects.equal(first.getHash(), second.getHash()) && Objects.equal(first.getSalt(), second.getSalt());
+    }
+
+    /**
+     * Prepares the entries of the given users in the credential file and logs how many of them are present.
+     * Users which are not present in the credential file are skipped. Off heap the entries are compiled once and
+     * kept on the heap, so the first logins of these users do not compile them, see
+     * {@link com.hivemq.plugin.fileauthentication.configuration.CredentialsConfiguration#preload(Collection)}.
+     *
+     * @param usernames the usernames
+     * @return the number of entries which are present
+     */
+    public int preload(final Collection<String> usernames) {
+        final int preloaded = configurations.getCredentialsConfiguration().preload(usernames);
+        log.info("Preloaded the credentials of {} frequently authenticated user(s)", preloaded);
+        return preloaded;
+    }
 
-        String getClientId() {
-            return clientId;
+    /**
+     * Runs synthetic verifications with the configured algorithm and iterations, if the warm-up is enabled, so the
+     * security provider is initialized and the hashing is compiled by the JIT before the first clients connect.
+     * The warm-up ends when the JIT did not compile anything for a few rounds or the time budget is used up.
+     *
+     * @return the number of synthetic verifications
+     */
+    public int warmUp() {
+        if (!warmUpEnabled || !isHashed) {
+            return 0;
         }
 
-        Optional<String> getUsername() {
-            return username;
+        final CompilationMXBean compilationMXBean = ManagementFactory.getCompilationMXBean();
+        final boolean compilationMonitored = compilationMXBean != null && compilationMXBean.isCompilationTimeMonitoringSupported();
+        // never matches, but is long enough for the salt and digest of every algorithm
+        final HashedSaltedPassword syntheticEntry = HashedSaltedPassword.decoded(
+                Base64.toBase64String(new byte[72]), isSalted ? "warm-up-salt" : null);
+
+        final long start = System.nanoTime();
+        final long deadline = start + TimeUnit.MILLISECONDS.toNanos(warmUpBudgetInMillis);
+        long compilationTime = -1;
+        int stableRounds = 0;
+        int verifications = 0;
+        try {
+            while (System.nanoTime() < deadline && stableRounds < WARM_UP_STABLE_ROUNDS) {
+                for (int i = 0; i < WARM_UP_ROUND_SIZE && System.nanoTime() < deadline; i++) {
+                    final String password = "warm-up-" + i;
+                    passwordFingerprinter.fingerprint(password);
+                    passwordComparator.validateHashedEntry(algorithm, password, syntheticEntry, iterations);
+                    verifications++;
+                }
+                if (compilationMonitored) {
+                    final long newCompilationTime = compilationMXBean.getTotalCompilationTime();
+                    stableRounds = newCompilationTime == compilationTime ? stableRounds + 1 : 0;
+                    compilationTime = newCompilationTime;
+                }
+            }
+        } catch (RuntimeException e) {
+            log.warn("Warm-up of the password verification failed: {}", e.getMessage());
         }
+
+        log.info("Warm-up of the password verification took {} ms ({} synthetic verifications)",
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), verifications);
+        return verifications;
+    }
+
+    /**
+     * Calls the {@link HashSaltUtil} to retrieve salt and hash from the property string
+     * <p/>
+     * It was extracted for being able to override it in the test cases.
+     *
+     * @param hashedPassword string containing hash, salt and separator
+     * @return {@link HashedSaltedPassword} with hash and salt
+     * @throws PasswordFormatException thrown when the string is in an unsupported format
+     */
+    @VisibleForTesting
+    HashedSaltedPassword getHashAndSalt(final String hashedPassword) throws PasswordFormatException {
+        return HashSaltUtil.retrieve(isFirst, separationChar, hashedPassword);
+    }
+
+    /**
+     * Resets the collection usage thresholds of the heap pools, which were set by the heap pressure monitor, and
+     * stops the verification threads, so they do not outlive the plugin.
+     */
+    @Override
+    public void onBrokerStop() {
+        heapPressureMonitor.stop();
+        verificationPool.shutdown();
+        passwordComparator.shutdown();
+    }
+
+    /**
+     * Priority of the callback implementation.
+     * This is important if more than one {@link OnAuthenticationCallback} implementations is available.
+     *
+     * @return priority.
+     */
+    @Override
+    public int priority() {
+        return CallbackPriority.HIGH;
     }
 
 
@@ -16,6 +16,12 @@
 
 package com.hivemq.plugin.fileauthentication.authentication;
 
+import com.google.common.base.Charsets;
+import com.hivemq.spi.annotations.Nullable;
+import org.bouncycastle.util.encoders.Base64;
+
+import java.util.Arrays;
+
 /**
  * Helper class, which holds hash and salt
  *
@@ -23,12 +29,57 @@ package com.hivemq.plugin.fileauthentication.authentication;
  */
 public class HashedSaltedPassword {
 
-    private String salt;
-    private String hash;
+    private final String salt;
+    private final String hash;
+    private final byte[] hashBytes;
+    private final byte[] saltBytes;
 
     public HashedSaltedPassword(String hash, String salt) {
+        this(hash, salt, null, null);
+    }
+
+    /**
+     * Creates a decoded entry, whose hash and salt strings are only created when they are asked for. Subclasses
+     * must override {@link #getHash()} and {@link #getSalt()}.
+     *
+     * @param hashBytes the decoded digest
+     * @param saltBytes the bytes of the salt, which are digested, or null if there is no salt
+     */
+    protected HashedSaltedPassword(final byte[] hashBytes, @Nullable final byte[] saltBytes) {
+        this(null, null, hashBytes, saltBytes);
+    }
+
+    HashedSaltedPassword(final String hash, final String salt, final byte[] hashBytes, final byte[] saltBytes) {
         this.hash = hash;
         this.salt = salt;
+        this.hashBytes = hashBytes;
+        this.saltBytes = saltBytes;
+    }
+
+    /**
+     * Creates the entry of an iterated digest, whose digest and salt are decoded once, so the verifications do not
+     * decode them again. Like jasypt, the salt is cut to as many bytes as it has characters. A digest or salt, which
+     * can not be decoded, is kept only as string and fails the verification.
+     *
+     * @param hash the Base64 encoded digest
+     * @param salt the salt, or null if the salt is part of the digest
+     * @return the entry
+     */
+    public static HashedSaltedPassword decoded(final String hash, @Nullable final String salt) {
+        byte[] hashBytes;
+        try {
+            hashBytes = Base64.decode(hash);
+        } catch (RuntimeException e) {
+            hashBytes = null;
+        }
+        byte[] saltBytes = null;
+        if (salt != null) {
+            final byte[] encodedSalt = salt.getBytes(Charsets.UTF_8);
+            if (encodedSalt.length >= salt.length()) {
+                saltBytes = Arrays.copyOf(encodedSalt, salt.length());
+            }
+        }
+        return new HashedSaltedPassword(hash, salt, hashBytes, saltBytes);
     }
 
     public String getHash() {
@@ -38,4 +89,20 @@ public class HashedSaltedPassword {
     public String getSalt() {
         return salt;
     }
+
+    /**
+     * @return the decoded digest, which must not be modified, or null if it was not decoded
+     */
+    @Nullable
+    public byte[] getHashBytes() {
+        return hashBytes;
+    }
+
+    /**
+     * @return the bytes of the salt, which are digested, or null if there is no salt or it was not decoded
+     */
+    @Nullable
+    public byte[] getSaltBytes() {
+        return saltBytes;
+    }
 }
\ No newline at end of file
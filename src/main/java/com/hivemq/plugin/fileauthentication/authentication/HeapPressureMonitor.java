@@ -0,0 +1,139 @@
+/*
+ * Copyright 2015 dc-square GmbH
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.hivemq.plugin.fileauthentication.authentication;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.ListenerNotFoundException;
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryNotificationInfo;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Notifies a listener when the heap of the JVM is under pressure.
+ * <p/>
+ * The collection usage threshold of the tenured heap pools is set to the configured percentage of their maximum
+ * size, so the JVM sends a notification when the heap is still filled above this percentage after a garbage
+ * collection. Thresholds which are already set, e.g. by HiveMQ, are never changed, but their notifications are
+ * handled as well. When the monitoring stops, only the thresholds, which are still the ones set by this monitor, are
+ * reset.
+ */
+class HeapPressureMonitor implements NotificationListener {
+
+    private static final Logger log = LoggerFactory.getLogger(HeapPressureMonitor.class);
+
+    private final Runnable listener;
+    private final List<MemoryPoolMXBean> monitoredPools = new ArrayList<>();
+    private final Map<MemoryPoolMXBean, Long> ownThresholds = new HashMap<>();
+    private int thresholdPercent;
+
+    /**
+     * @param listener is called on the notification thread of the JVM, when the heap is under pressure
+     */
+    HeapPressureMonitor(final Runnable listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Starts to monitor the heap, or changes the threshold if the heap is already monitored.
+     *
+     * @param thresholdPercent usage of the heap pools after a garbage collection in percent of their maximum size,
+     *                         which is considered as pressure. 0 stops the monitoring.
+     */
+    synchronized void start(final int thresholdPercent) {
+        if (thresholdPercent == this.thresholdPercent) {
+            return;
+        }
+        stop();
+        if (thresholdPercent <= 0) {
+            return;
+        }
+
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            // only the tenured pools support usage thresholds, the collection usage of the young pools is meaningless
+            if (pool.getType() != MemoryType.HEAP || !pool.isUsageThresholdSupported()
+                    || !pool.isCollectionUsageThresholdSupported()) {
+                continue;
+            }
+            final long max = pool.getUsage().getMax();
+            if (max <= 0) {
+                continue;
+            }
+            if (pool.getCollectionUsageThreshold() == 0) {
+                final long threshold = max / 100 * thresholdPercent;
+                pool.setCollectionUsageThreshold(threshold);
+                ownThresholds.put(pool, threshold);
+            }
+            monitoredPools.add(pool);
+        }
+
+        ((NotificationEmitter) ManagementFactory.getMemoryMXBean()).addNotificationListener(this, null, null);
+        this.thresholdPercent = thresholdPercent;
+        log.debug("Monitoring heap pools {} with a threshold of {}%", monitoredPools.size(), thresholdPercent);
+    }
+
+    /**
+     * Stops to monitor the heap and resets the thresholds which were set by this monitor and not changed since.
+     */
+    synchronized void stop() {
+        if (thresholdPercent == 0) {
+            return;
+        }
+        try {
+            ((NotificationEmitter) ManagementFactory.getMemoryMXBean()).removeNotificationListener(this);
+        } catch (ListenerNotFoundException e) {
+            log.trace("Heap pressure listener was not registered", e);
+        }
+        for (Map.Entry<MemoryPoolMXBean, Long> ownThreshold : ownThresholds.entrySet()) {
+            final MemoryPoolMXBean pool = ownThreshold.getKey();
+            if (pool.getCollectionUsageThreshold() == ownThreshold.getValue()) {
+                pool.setCollectionUsageThreshold(0);
+            }
+        }
+        ownThresholds.clear();
+        monitoredPools.clear();
+        thresholdPercent = 0;
+    }
+
+    /**
+     * @return true if one of the monitored pools was above its threshold after the last garbage collection
+     */
+    synchronized boolean isUnderPressure() {
+        for (MemoryPoolMXBean pool : monitoredPools) {
+            if (pool.getCollectionUsageThreshold() > 0 && pool.isCollectionUsageThresholdExceeded()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public void handleNotification(final Notification notification, final Object handback) {
+        if (MemoryNotificationInfo.MEMORY_COLLECTION_THRESHOLD_EXCEEDED.equals(notification.getType())) {
+            listener.run();
+        }
+    }
+}
@@ -0,0 +1,185 @@
+/*
+ * Copyright 2015 dc-square GmbH
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.hivemq.plugin.fileauthentication.authentication;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.ConcurrentHashMultiset;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Multiset;
+import com.google.common.collect.Multisets;
+import com.google.inject.Inject;
+import com.hivemq.plugin.fileauthentication.configuration.Configuration;
+import com.hivemq.spi.callback.CallbackPriority;
+import com.hivemq.spi.callback.events.broker.OnBrokerStop;
+import com.hivemq.spi.config.SystemInformation;
+import com.hivemq.spi.services.PluginExecutorService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.inject.Singleton;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps track of the most frequently authenticated users, so their credentials can be prepared right after a
+ * restart of HiveMQ, before the first wave of reconnecting clients arrives.
+ * <p/>
+ * The usernames are written to a file in the conf folder of HiveMQ periodically and when HiveMQ stops. The file
+ * contains one username per line, ordered by the number of successful logins. It never contains passwords.
+ */
+@Singleton
+public class HotUsers implements OnBrokerStop {
+
+    private static final Logger log = LoggerFactory.getLogger(HotUsers.class);
+
+    private final Configuration configuration;
+    private final SystemInformation systemInformation;
+    private final PluginExecutorService pluginExecutorService;
+    private final Multiset<String> loginsPerUsername = ConcurrentHashMultiset.create();
+
+    @Inject
+    public HotUsers(final Configuration configuration, final SystemInformation systemInformation,
+                    final PluginExecutorService pluginExecutorService) {
+        this.configuration = configuration;
+        this.systemInformation = systemInformation;
+        this.pluginExecutorService = pluginExecutorService;
+    }
+
+    /**
+     * Counts a successful login of the user. Only users of the credential file may be recorded, so the number of
+     * tracked usernames is limited by the credential file.
+     *
+     * @param username the username
+     */
+    public void recordLogin(final String username) {
+        loginsPerUsername.add(username);
+    }
+
+    /**
+     * Reads the usernames, which were the most frequently authenticated ones before the last stop of HiveMQ.
+     *
+     * @return the usernames, an empty list if the file does not exist or can not be read
+     */
+    public List<String> load() {
+        final File file = getFile();
+        if (!isEnabled() || !file.exists()) {
+            return ImmutableList.of();
+        }
+
+        final ImmutableList.Builder<String> usernames = ImmutableList.builder();
+        try {
+            for (String line : Files.readAllLines(file.toPath(), Charsets.UTF_8)) {
+                if (!line.isEmpty()) {
+                    usernames.add(line);
+                }
+            }
+        } catch (IOException e) {
+            log.warn("Could not read the hot users file {}: {}", file.getAbsolutePath(), e.getMessage());
+            log.debug("Original exception", e);
+            return ImmutableList.of();
+        }
+        return usernames.build();
+    }
+
+    /**
+     * Writes the most frequently authenticated usernames to the hot users file. The file is replaced atomically,
+     * so a crash while writing does not leave a truncated file behind.
+     */
+    public synchronized void persist() {
+        if (!isEnabled() || loginsPerUsername.isEmpty()) {
+            return;
+        }
+
+        final File file = getFile();
+        final File tempFile = new File(file.getParentFile(), file.getName() + ".tmp");
+        int written = 0;
+        try (BufferedWriter writer = Files.newBufferedWriter(tempFile.toPath(), Charsets.UTF_8)) {
+            for (String username : Multisets.copyHighestCountFirst(loginsPerUsername).elementSet()) {
+                if (written >= configuration.getHotUsersSize()) {
+                    break;
+                }
+                // usernames with line breaks can not be written to the file and would break the format
+                if (username.indexOf('\n') >= 0 || username.indexOf('\r') >= 0) {
+                    continue;
+                }
+                writer.write(username);
+                writer.newLine();
+                written++;
+            }
+        } catch (IOException e) {
+            log.warn("Could not write the hot users file {}: {}", tempFile.getAbsolutePath(), e.getMessage());
+            log.debug("Original exception", e);
+            return;
+        }
+
+        try {
+            Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            log.debug("Wrote {} hot users to {}", written, file.getAbsolutePath());
+        } catch (IOException e) {
+            log.warn("Could not replace the hot users file {}: {}", file.getAbsolutePath(), e.getMessage());
+            log.debug("Original exception", e);
+        }
+    }
+
+    /**
+     * Starts to write the hot users file periodically.
+     */
+    public void start() {
+        final int interval = configuration.getHotUsersPersistInterval();
+        if (!isEnabled() || interval <= 0) {
+            return;
+        }
+        try {
+            pluginExecutorService.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    persist();
+                }
+            }, interval, interval, TimeUnit.SECONDS);
+        } catch (RejectedExecutionException e) {
+            log.warn("Could not schedule the writing of the hot users file");
+            log.debug("Original exception", e);
+        }
+    }
+
+    /**
+     * Writes the hot users file when HiveMQ stops.
+     */
+    @Override
+    public void onBrokerStop() {
+        persist();
+    }
+
+    @Override
+    public int priority() {
+        return CallbackPriority.LOW;
+    }
+
+    private boolean isEnabled() {
+        return configuration.getHotUsersSize() > 0;
+    }
+
+    private File getFile() {
+        return new File(systemInformation.getConfigFolder(), configuration.getHotUsersFilename());
+    }
+}
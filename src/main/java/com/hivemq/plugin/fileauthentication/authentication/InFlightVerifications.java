@@ -0,0 +1,156 @@
+/*
+ * Copyright 2015 dc-square GmbH
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.hivemq.plugin.fileauthentication.authentication;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.hivemq.spi.annotations.Nullable;
+
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps track of the verifications which are currently running, so concurrent logins with the same credentials
+ * share one verification.
+ * <p/>
+ * The first login with a username and password becomes the leader and verifies the password. Logins with the same
+ * credentials arriving in the meantime are followers, which wait for the result of the leader instead of hashing
+ * the password again. Followers wait at most the configured time and verify the password on their own afterwards,
+ * so a slow leader can not block them forever. If the leader was rejected because the verification pool was
+ * overloaded or did not get its result in time, the followers verify the password on their own as well, because
+ * this says nothing about their credentials.
+ */
+class InFlightVerifications {
+
+    private final ConcurrentMap<CredentialCacheKey, ListenableFuture<VerificationResult>> verifications = new ConcurrentHashMap<>();
+    private final AtomicLong savedCount = new AtomicLong();
+    private final AtomicLong timeoutCount = new AtomicLong();
+    private volatile long maxWaitNanos;
+
+    /**
+     * @param maxWait  maximum time a follower waits for the result of the leader, 0 disables the coalescing
+     * @param timeUnit time unit of the max wait
+     */
+    void setMaxWait(final long maxWait, final TimeUnit timeUnit) {
+        this.maxWaitNanos = timeUnit.toNanos(maxWait);
+    }
+
+    /**
+     * @return true if concurrent verifications with the same credentials are coalesced, false otherwise
+     */
+    boolean isEnabled() {
+        return maxWaitNanos > 0;
+    }
+
+    /**
+     * Registers the verification of the caller, if no verification with the same credentials is running.
+     *
+     * @param key          the credentials
+     * @param verification future which is completed by the caller with the result of its verification
+     * @return the running verification if the caller is a follower, or null if the caller is the leader and has to
+     * call {@link #finish(CredentialCacheKey, SettableFuture, VerificationResult)}
+     */
+    @Nullable
+    ListenableFuture<VerificationResult> start(final CredentialCacheKey key,
+                                               final SettableFuture<VerificationResult> verification) {
+        return verifications.putIfAbsent(key, verification);
+    }
+
+    /**
+     * Publishes the result of the leader to its followers.
+     *
+     * @param key          the credentials
+     * @param verification the future which was registered by the leader
+     * @param result       the result of the verification, or null if the verification failed
+     */
+    void finish(final CredentialCacheKey key, final SettableFuture<VerificationResult> verification,
+                @Nullable final VerificationResult result) {
+        verifications.remove(key, verification);
+        if (result != null && result != VerificationResult.OVERLOADED && result != VerificationResult.TIMEOUT) {
+            verification.set(result);
+        } else {
+            verification.cancel(false);
+        }
+    }
+
+    /**
+     * Waits for the result of the leader.
+     *
+     * @param verification the running verification
+     * @return the result of the leader, or null if the follower has to verify the credentials on its own, because
+     * the leader failed, was overloaded or timed out
+     */
+    @Nullable
+    VerificationResult await(final ListenableFuture<VerificationResult> verification) {
+        try {
+            final VerificationResult result = verification.get(maxWaitNanos, TimeUnit.NANOSECONDS);
+            savedCount.incrementAndGet();
+            return result;
+        } catch (TimeoutException e) {
+            timeoutCount.incrementAndGet();
+            return null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException | RuntimeException e) {
+            // the leader failed, it already reported the reason
+            return null;
+        }
+    }
+
+    /**
+     * Running verifications of the given users are not joined by new logins anymore, because their result may be
+     * outdated.
+     *
+     * @param usernames the usernames
+     */
+    void clear(final Set<String> usernames) {
+        final Iterator<CredentialCacheKey> iterator = verifications.keySet().iterator();
+        while (iterator.hasNext()) {
+            if (usernames.contains(iterator.next().getUsername())) {
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * Running verifications are not joined by new logins anymore, because their result may be outdated.
+     */
+    void clear() {
+        verifications.clear();
+    }
+
+    /**
+     * @return number of verifications, which were saved because a follower got the result of a leader
+     */
+    long savedCount() {
+        return savedCount.get();
+    }
+
+    /**
+     * @return number of followers, which stopped waiting for the leader and verified the credentials on their own
+     */
+    long timeoutCount() {
+        return timeoutCount.get();
+    }
+}
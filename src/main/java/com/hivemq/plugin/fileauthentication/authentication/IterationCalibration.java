@@ -0,0 +1,248 @@
+/*
+ * Copyright 2015 dc-square GmbH
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.hivemq.plugin.fileauthentication.authentication;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.hivemq.plugin.fileauthentication.exception.PasswordFormatException;
+import org.bouncycastle.util.encoders.Base64;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Command line tool, which measures the cost of verifications on the host it runs on and prints for every algorithm
+ * the number of iterations, which keeps the 99th percentile of the verification time within a latency budget, and
+ * the number of cores needed to verify the given number of connects per second with these iterations.
+ * <p/>
+ * Usage: <code>java -cp file-auth-plugin.jar:bcprov.jar
+ * com.hivemq.plugin.fileauthentication.authentication.IterationCalibration LATENCY_MILLIS CONNECTS_PER_SECOND
+ * [ALGORITHM...]</code>
+ * <p/>
+ * Supported are all hash algorithms of <code>passwordHashing.algorithm</code> and <code>pbkdf2-sha1</code>,
+ * <code>pbkdf2-sha256</code> and <code>pbkdf2-sha512</code> for self-describing entries.
+ */
+public class IterationCalibration {
+
+    private static final List<String> DEFAULT_ALGORITHMS = Arrays.asList("SHA-256", "SHA-512", "pbkdf2-sha256", "pbkdf2-sha512");
+
+    /**
+     * Verifications, which are run before measuring, so the measured code is compiled
+     */
+    private static final int WARM_UP_SAMPLES = 500;
+    private static final int WARM_UP_ITERATIONS = 100;
+
+    /**
+     * Verifications measured to estimate the cost of one iteration
+     */
+    private static final int PROBE_SAMPLES = 200;
+
+    /**
+     * The iterations of the probe are doubled until one verification takes at least this time
+     */
+    private static final long PROBE_MIN_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    /**
+     * Maximum time spent on verifying the recommended iterations
+     */
+    private static final long CHECK_BUDGET_NANOS = TimeUnit.SECONDS.toNanos(3);
+
+    private static final int CHECK_MIN_SAMPLES = 5;
+
+    /**
+     * The iterations are corrected by the measured 99th percentile until it is within this fraction of the budget
+     */
+    private static final double TOLERANCE = 0.1;
+    private static final int MAX_REFINEMENTS = 3;
+    private static final int CHECK_MAX_SAMPLES = 100;
+
+    private final PasswordComparator passwordComparator;
+    private final String syntheticHash = Base64.toBase64String(new byte[72]);
+    private final byte[] syntheticSalt = new byte[16];
+
+    IterationCalibration(final PasswordComparator passwordComparator) {
+        this.passwordComparator = passwordComparator;
+    }
+
+    public static void main(final String[] args) throws Exception {
+        if (args.length < 2) {
+            System.err.println("Usage: IterationCalibration LATENCY_MILLIS CONNECTS_PER_SECOND [ALGORITHM...]");
+            System.exit(1);
+        }
+        final long latencyBudgetNanos = TimeUnit.MILLISECONDS.toNanos(Long.parseLong(args[0]));
+        final int connectsPerSecond = Integer.parseInt(args[1]);
+        final List<String> algorithms = args.length > 2
+                ? Arrays.asList(args).subList(2, args.length)
+                : DEFAULT_ALGORITHMS;
+
+        final PasswordComparator passwordComparator = new PasswordComparator();
+        passwordComparator.selectEngine("native");
+        final IterationCalibration calibration = new IterationCalibration(passwordComparator);
+
+        System.out.println(String.format(Locale.ENGLISH,
+                "Iterations for a p99 verification time of %d ms and %d connects per second, %d cores available",
+                TimeUnit.NANOSECONDS.toMillis(latencyBudgetNanos), connectsPerSecond, Runtime.getRuntime().availableProcessors()));
+        System.out.println(String.format(Locale.ENGLISH, "%-16s %12s %10s %10s %14s",
+                "algorithm", "iterations", "p99 ms", "mean ms", "cores needed"));
+        for (String algorithm : algorithms) {
+            final Result result = calibration.calibrate(algorithm, latencyBudgetNanos, connectsPerSecond);
+            System.out.println(String.format(Locale.ENGLISH, "%-16s %12d %10.2f %10.2f %14d",
+                    algorithm, result.getIterations(), result.getP99Nanos() / 1e6, result.getMeanNanos() / 1e6,
+                    result.getCoresNeeded()));
+        }
+    }
+
+    /**
+     * Measures the cost of one iteration of the algorithm, derives the iterations for the latency budget and
+     * corrects them until the measured 99th percentile with these iterations matches the budget.
+     *
+     * @param algorithm          hash algorithm or <code>pbkdf2-sha1</code>, <code>pbkdf2-sha256</code> or
+     *                           <code>pbkdf2-sha512</code>
+     * @param latencyBudgetNanos maximum 99th percentile of the verification time
+     * @param connectsPerSecond  number of verifications per second, which have to be possible
+     * @return the recommended iterations with their measured cost
+     * @throws PasswordFormatException if the algorithm is not supported
+     */
+    Result calibrate(final String algorithm, final long latencyBudgetNanos, final int connectsPerSecond)
+            throws PasswordFormatException {
+
+        sample(algorithm, WARM_UP_ITERATIONS, WARM_UP_SAMPLES);
+
+        int probeIterations = 1;
+        while (percentile(sample(algorithm, probeIterations, 5), 0.5) < PROBE_MIN_NANOS && probeIterations < (1 << 30)) {
+            probeIterations <<= 1;
+        }
+        final long[] probe = sample(algorithm, probeIterations, PROBE_SAMPLES);
+        int iterations = iterationsFor(latencyBudgetNanos, percentile(probe, 0.5), probeIterations);
+
+        long[] check = check(algorithm, iterations);
+        for (int i = 0; i < MAX_REFINEMENTS && !withinTolerance(percentile(check, 0.99), latencyBudgetNanos); i++) {
+            iterations = iterationsFor(latencyBudgetNanos, percentile(check, 0.99), iterations);
+            check = check(algorithm, iterations);
+        }
+        final long meanNanos = mean(check);
+        return new Result(iterations, percentile(check, 0.99), meanNanos, coresFor(connectsPerSecond, meanNanos));
+    }
+
+    private long[] check(final String algorithm, final int iterations) throws PasswordFormatException {
+        final long singleNanos = measure(algorithm, iterations);
+        final int samples = (int) Math.max(CHECK_MIN_SAMPLES, Math.min(CHECK_MAX_SAMPLES, CHECK_BUDGET_NANOS / Math.max(1, singleNanos)));
+        return sample(algorithm, iterations, samples);
+    }
+
+    private static boolean withinTolerance(final long p99Nanos, final long latencyBudgetNanos) {
+        return Math.abs(p99Nanos - latencyBudgetNanos) <= latencyBudgetNanos * TOLERANCE;
+    }
+
+    private long[] sample(final String algorithm, final int iterations, final int samples) throws PasswordFormatException {
+        final long[] nanos = new long[samples];
+        for (int i = 0; i < samples; i++) {
+            nanos[i] = measure(algorithm, iterations);
+        }
+        Arrays.sort(nanos);
+        return nanos;
+    }
+
+    /**
+     * @return the time of one verification with the given iterations in nanoseconds
+     */
+    private long measure(final String algorithm, final int iterations) throws PasswordFormatException {
+        if (algorithm.startsWith("pbkdf2-")) {
+            final KdfHash kdfHash = KdfHash.template("$" + algorithm + "$i=" + iterations, syntheticSalt);
+            final long start = System.nanoTime();
+            passwordComparator.validateKdfPassword("calibration", kdfHash);
+            return System.nanoTime() - start;
+        }
+        final long start = System.nanoTime();
+        passwordComparator.validateHashedPassword(algorithm, "calibration", syntheticHash, iterations);
+        return System.nanoTime() - start;
+    }
+
+    /**
+     * @param latencyBudgetNanos maximum verification time
+     * @param probeNanos         measured verification time of the probe
+     * @param probeIterations    iterations of the probe
+     * @return the iterations, which fit into the budget, at least 1
+     */
+    @VisibleForTesting
+    static int iterationsFor(final long latencyBudgetNanos, final long probeNanos, final int probeIterations) {
+        final double nanosPerIteration = (double) Math.max(1, probeNanos) / probeIterations;
+        return (int) Math.max(1, Math.min(Integer.MAX_VALUE, (long) (latencyBudgetNanos / nanosPerIteration)));
+    }
+
+    /**
+     * @return the number of cores, which are busy with verifications at the given rate, at least 1
+     */
+    @VisibleForTesting
+    static int coresFor(final int connectsPerSecond, final long meanNanos) {
+        return (int) Math.max(1, Math.ceil(connectsPerSecond * (double) meanNanos / TimeUnit.SECONDS.toNanos(1)));
+    }
+
+    /**
+     * @param sorted values in ascending order
+     * @return the value at the given percentile, using the nearest rank
+     */
+    @VisibleForTesting
+    static long percentile(final long[] sorted, final double percentile) {
+        final int rank = (int) Math.ceil(percentile * sorted.length);
+        return sorted[Math.max(0, Math.min(sorted.length - 1, rank - 1))];
+    }
+
+    private static long mean(final long[] values) {
+        long sum = 0;
+        for (long value : values) {
+            sum += value;
+        }
+        return values.length == 0 ? 0 : sum / values.length;
+    }
+
+    /**
+     * Recommended iterations of an algorithm with their measured cost.
+     */
+    static class Result {
+
+        private final int iterations;
+        private final long p99Nanos;
+        private final long meanNanos;
+        private final int coresNeeded;
+
+        Result(final int iterations, final long p99Nanos, final long meanNanos, final int coresNeeded) {
+            this.iterations = iterations;
+            this.p99Nanos = p99Nanos;
+            this.meanNanos = meanNanos;
+            this.coresNeeded = coresNeeded;
+        }
+
+        int getIterations() {
+            return iterations;
+        }
+
+        long getP99Nanos() {
+            return p99Nanos;
+        }
+
+        long getMeanNanos() {
+            return meanNanos;
+        }
+
+        int getCoresNeeded() {
+            return coresNeeded;
+        }
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright 2015 dc-square GmbH
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.hivemq.plugin.fileauthentication.authentication;
+
+import com.hivemq.spi.annotations.Nullable;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.jasypt.digest.config.SimpleDigesterConfig;
+import org.jasypt.salt.FixedStringSaltGenerator;
+import org.jasypt.util.password.ConfigurablePasswordEncryptor;
+
+import java.security.Provider;
+
+/**
+ * The default {@link VerifierEngine}, which verifies the passwords with jasypt and uses BouncyCastle, unless another
+ * security provider is selected.
+ */
+public class JasyptVerifierEngine implements VerifierEngine {
+
+    private final Provider defaultProvider = new BouncyCastleProvider();
+
+    private volatile Provider provider = defaultProvider;
+
+    @Override
+    public void setProvider(@Nullable final Provider provider) {
+        this.provider = provider == null ? defaultProvider : provider;
+    }
+
+    @Override
+    public boolean matches(final String algorithm, final String plainPassword, final String passwordHash,
+                           final int iterations, @Nullable final String salt) {
+        return getEncryptor(algorithm, iterations, salt).checkPassword(plainPassword, passwordHash);
+    }
+
+    @Override
+    public boolean matches(final String algorithm, final String plainPassword, final HashedSaltedPassword entry,
+                           final int iterations) {
+        return matches(algorithm, plainPassword, entry.getHash(), iterations, entry.getSalt());
+    }
+
+    /**
+     * This initializes the jasypt password encryptor with the correct parameters
+     *
+     * @param algorithm  used hash algorithm
+     * @param iterations iterations which should be used
+     * @param salt       salt which should be used
+     * @return jasypt password encrypter
+     */
+    private ConfigurablePasswordEncryptor getEncryptor(final String algorithm, final int iterations, final String salt) {
+        final ConfigurablePasswordEncryptor encryptor = new ConfigurablePasswordEncryptor();
+
+        final SimpleDigesterConfig config = new SimpleDigesterConfig();
+        config.setProvider(provider);
+        config.setAlgorithm(algorithm);
+        config.setIterations(iterations);
+
+        if (salt != null) {
+            final FixedStringSaltGenerator saltGenerator = new FixedStringSaltGenerator();
+            saltGenerator.setSalt(salt);
+            config.setSaltGenerator(saltGenerator);
+            config.setSaltSizeBytes(salt.length());
+        }
+
+        encryptor.setConfig(config);
+        return encryptor;
+    }
+}
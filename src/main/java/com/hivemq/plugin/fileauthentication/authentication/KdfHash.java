@@ -0,0 +1,366 @@
+/*
+ * Copyright 2015 dc-square GmbH
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.hivemq.plugin.fileauthentication.authentication;
+
+import com.hivemq.plugin.fileauthentication.exception.PasswordFormatException;
+import org.bouncycastle.util.encoders.Base64;
+
+import java.util.Arrays;
+
+/**
+ * Entry of the credential file, which describes its hashing parameters itself, so they can differ from the global
+ * hashing settings. Supported are:
+ * <ul>
+ * <li><code>$pbkdf2-sha1$i=ITERATIONS$SALT$HASH</code>, also with <code>pbkdf2-sha256</code> and
+ * <code>pbkdf2-sha512</code>, salt and hash are Base64 encoded</li>
+ * <li><code>$scrypt$ln=LOG2_N,r=BLOCK_SIZE,p=PARALLELIZATION$SALT$HASH</code>, salt and hash are Base64 encoded</li>
+ * <li><code>$2a$COST$SALT_AND_HASH</code>, also with <code>$2b$</code> and <code>$2y$</code>, the bcrypt format
+ * of OpenBSD</li>
+ * </ul>
+ */
+public class KdfHash extends HashedSaltedPassword {
+
+    /**
+     * Upper bound for the memory a single scrypt verification may use
+     */
+    private static final long MAX_SCRYPT_MEMORY_BYTES = 1L << 30;
+
+    /**
+     * Upper bound for the memory a single scrypt verification reads and writes over all its parallel lanes, which
+     * bounds its CPU time
+     */
+    private static final long MAX_SCRYPT_WORK_BYTES = 1L << 32;
+
+    private static final int MAX_SCRYPT_BLOCK_SIZE = 1024;
+    private static final int MAX_SCRYPT_PARALLELIZATION = 64;
+
+    /**
+     * Lower bound for the length of a stored hash, shorter hashes are too easy to collide with
+     */
+    private static final int MIN_HASH_LENGTH = 16;
+
+    private static final String BCRYPT_ALPHABET = "./ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789";
+
+    public enum Type {
+        PBKDF2_SHA1("$pbkdf2-sha1$"),
+        PBKDF2_SHA256("$pbkdf2-sha256$"),
+        PBKDF2_SHA512("$pbkdf2-sha512$"),
+        SCRYPT("$scrypt$"),
+        BCRYPT("$2a$", "$2b$", "$2y$");
+
+        private final String[] prefixes;
+
+        Type(final String... prefixes) {
+            this.prefixes = prefixes;
+        }
+
+        private static Type of(final String entry) {
+            for (Type type : values()) {
+                for (String prefix : type.prefixes) {
+                    if (entry.startsWith(prefix)) {
+                        return type;
+                    }
+                }
+            }
+            return null;
+        }
+    }
+
+    private final Type type;
+    private final int cost;
+    private final int blockSize;
+    private final int parallelization;
+
+    /**
+     * Creates an entry from its parameters, which were parsed before, without its text. Subclasses must override
+     * {@link #getHash()}, which returns the text of the entry.
+     */
+    protected KdfHash(final Type type, final int cost, final int blockSize, final int parallelization,
+                      final byte[] saltBytes, final byte[] hashBytes) {
+        this(null, type, cost, blockSize, parallelization, saltBytes, hashBytes);
+    }
+
+    private KdfHash(final String entry, final Type type, final int cost, final int blockSize, final int parallelization,
+                    final byte[] saltBytes, final byte[] hashBytes) {
+        super(entry, null, hashBytes, saltBytes);
+        this.type = type;
+        this.cost = cost;
+        this.blockSize = blockSize;
+        this.parallelization = parallelization;
+    }
+
+    /**
+     * @param entry entry of the credential file
+     * @return true if the entry describes its hashing parameters itself, false if the global settings apply
+     */
+    public static boolean isKdfHash(final String entry) {
+        return entry.startsWith("$argon2") || Type.of(entry) != null;
+    }
+
+    /**
+     * Parses an entry, which describes its hashing parameters itself.
+     *
+     * @param entry entry of the credential file
+     * @return the parsed entry
+     * @throws PasswordFormatException if the entry is not in one of the supported formats
+     */
+    public static KdfHash parse(final String entry) throws PasswordFormatException {
+        if (entry.startsWith("$argon2")) {
+            throw new PasswordFormatException("Argon2 is not supported by the BouncyCastle version provided by HiveMQ, please use bcrypt, scrypt or PBKDF2");
+        }
+        final Type type = Type.of(entry);
+        if (type == null) {
+            throw new PasswordFormatException("The format of the password in the credential file is not like expected!");
+        }
+
+        // "$type$parameters$salt$hash" split into "", "type", "parameters", "salt", "hash"
+        final String[] parts = entry.split("\\$", -1);
+        try {
+            switch (type) {
+                case BCRYPT:
+                    return parseBcrypt(entry, parts);
+                case SCRYPT:
+                    return parseScrypt(entry, parts);
+                default:
+                    return parsePbkdf2(entry, type, parts);
+            }
+        } catch (RuntimeException e) {
+            throw new PasswordFormatException("The " + type + " entry in the credential file is not like expected: " + e.getMessage());
+        }
+    }
+
+    private static KdfHash parsePbkdf2(final String entry, final Type type, final String[] parts) throws PasswordFormatException {
+        if (parts.length != 5 || !parts[2].startsWith("i=")) {
+            throw new PasswordFormatException("Expected $" + parts[1] + "$i=ITERATIONS$SALT$HASH");
+        }
+        final int iterations = Integer.parseInt(parts[2].substring(2));
+        if (iterations < 1) {
+            throw new PasswordFormatException("PBKDF2 needs at least 1 iteration");
+        }
+        return new KdfHash(entry, type, iterations, 0, 0, decodeBase64(parts[3]), decodeHash(parts[4]));
+    }
+
+    private static KdfHash parseScrypt(final String entry, final String[] parts) throws PasswordFormatException {
+        if (parts.length != 5) {
+            throw new PasswordFormatException("Expected $scrypt$ln=LOG2_N,r=BLOCK_SIZE,p=PARALLELIZATION$SALT$HASH");
+        }
+        int log2N = 0;
+        int blockSize = 0;
+        int parallelization = 0;
+        for (String parameter : parts[2].split(",")) {
+            final String[] keyValue = parameter.split("=", 2);
+            final int value = Integer.parseInt(keyValue[1]);
+            switch (keyValue[0]) {
+                case "ln":
+                    log2N = value;
+                    break;
+                case "r":
+                    blockSize = value;
+                    break;
+                case "p":
+                    parallelization = value;
+                    break;
+                default:
+                    throw new PasswordFormatException("Unknown scrypt parameter " + keyValue[0]);
+            }
+        }
+        if (log2N < 1 || log2N > 30 || blockSize < 1 || parallelization < 1) {
+            throw new PasswordFormatException("The scrypt parameters ln, r and p must be positive");
+        }
+        if (blockSize > MAX_SCRYPT_BLOCK_SIZE || parallelization > MAX_SCRYPT_PARALLELIZATION) {
+            throw new PasswordFormatException("The scrypt parameter r must be at most " + MAX_SCRYPT_BLOCK_SIZE
+                    + " and p at most " + MAX_SCRYPT_PARALLELIZATION);
+        }
+        final long memoryBytes = multiplyWithinLimit(128L * blockSize, 1L << log2N, MAX_SCRYPT_MEMORY_BYTES);
+        if (memoryBytes > MAX_SCRYPT_MEMORY_BYTES) {
+            throw new PasswordFormatException("The scrypt parameters need more than 1 GB of memory per login");
+        }
+        if (multiplyWithinLimit(memoryBytes, parallelization, MAX_SCRYPT_WORK_BYTES) > MAX_SCRYPT_WORK_BYTES) {
+            throw new PasswordFormatException("The scrypt parameters need more than 4 GB of memory accesses per login");
+        }
+        return new KdfHash(entry, Type.SCRYPT, 1 << log2N, blockSize, parallelization,
+                decodeBase64(parts[3]), decodeHash(parts[4]));
+    }
+
+    /**
+     * Multiplies two non-negative numbers without overflowing.
+     *
+     * @return the product, or a value above the limit if the product is above the limit
+     */
+    private static long multiplyWithinLimit(final long first, final long second, final long limit) {
+        if (first != 0 && second > limit / first) {
+            return limit + 1;
+        }
+        return first * second;
+    }
+
+    private static KdfHash parseBcrypt(final String entry, final String[] parts) throws PasswordFormatException {
+        // "$2a$10$" followed by 22 characters salt and 31 characters hash
+        if (parts.length != 4 || parts[2].length() != 2 || parts[3].length() != 53) {
+            throw new PasswordFormatException("Expected $2a$COST$SALT_AND_HASH");
+        }
+        final int cost = Integer.parseInt(parts[2]);
+        if (cost < 4 || cost > 31) {
+            throw new PasswordFormatException("The bcrypt cost must be between 4 and 31");
+        }
+        return new KdfHash(entry, Type.BCRYPT, cost, 0, 0,
+                decodeBcryptBase64(parts[3].substring(0, 22), 16), decodeBcryptBase64(parts[3].substring(22), 23));
+    }
+
+    /**
+     * Creates an entry with the parameters of the target, the given salt and an empty hash of the right length, so
+     * the parameters are validated before the expensive hashing.
+     *
+     * @param target the algorithm and parameters of an entry, without salt and hash, for example
+     *               <code>$pbkdf2-sha256$i=600000</code>, <code>$scrypt$ln=15,r=8,p=1</code> or <code>$2a$12</code>
+     * @param salt   the salt of the new entry
+     * @return the parsed entry
+     * @throws PasswordFormatException if the target is not in one of the supported formats
+     */
+    public static KdfHash template(final String target, final byte[] salt) throws PasswordFormatException {
+        final Type type = Type.of(target + "$");
+        if (type == null) {
+            throw new PasswordFormatException("Unsupported target " + target + ", please use bcrypt, scrypt or PBKDF2");
+        }
+        if (type == Type.BCRYPT) {
+            return parse(target + "$" + encodeBcryptBase64(salt) + encodeBcryptBase64(new byte[23]));
+        }
+        final int hashLength;
+        switch (type) {
+            case PBKDF2_SHA1:
+                hashLength = 20;
+                break;
+            case PBKDF2_SHA512:
+                hashLength = 64;
+                break;
+            default:
+                hashLength = 32;
+        }
+        return parse(target + "$" + Base64.toBase64String(salt) + "$" + Base64.toBase64String(new byte[hashLength]));
+    }
+
+    /**
+     * @param hash the hash of the password, at least as long as the hash of this entry
+     * @return the entry with the same parameters and salt, and the given hash
+     */
+    public String withHash(final byte[] hash) {
+        final String entry = getHash();
+        if (type == Type.BCRYPT) {
+            return entry.substring(0, entry.length() - 31) + encodeBcryptBase64(Arrays.copyOf(hash, 23));
+        }
+        return entry.substring(0, entry.lastIndexOf('$') + 1) + Base64.toBase64String(Arrays.copyOf(hash, getHashBytes().length));
+    }
+
+    /**
+     * @param target the algorithm and parameters, like passed to {@link #template(String, byte[])}
+     * @return true if this entry uses exactly these algorithm and parameters
+     */
+    public boolean hasParameters(final String target) {
+        return getHash().startsWith(target + "$");
+    }
+
+    private static byte[] decodeHash(final String encoded) throws PasswordFormatException {
+        final byte[] hash = decodeBase64(encoded);
+        if (hash.length < MIN_HASH_LENGTH) {
+            throw new PasswordFormatException("The hash must be at least " + MIN_HASH_LENGTH + " bytes long");
+        }
+        return hash;
+    }
+
+    private static byte[] decodeBase64(final String encoded) throws PasswordFormatException {
+        if (encoded.isEmpty()) {
+            throw new PasswordFormatException("Salt and hash must not be empty");
+        }
+        final StringBuilder padded = new StringBuilder(encoded);
+        while (padded.length() % 4 != 0) {
+            padded.append('=');
+        }
+        return Base64.decode(padded.toString());
+    }
+
+    /**
+     * Decodes the Base64 variant of bcrypt, which uses its own alphabet and no padding.
+     */
+    private static byte[] decodeBcryptBase64(final String encoded, final int length) throws PasswordFormatException {
+        final byte[] decoded = new byte[length];
+        int bits = 0;
+        int bitCount = 0;
+        int position = 0;
+        for (int i = 0; i < encoded.length() && position < length; i++) {
+            final int value = BCRYPT_ALPHABET.indexOf(encoded.charAt(i));
+            if (value < 0) {
+                throw new PasswordFormatException("Invalid character in bcrypt entry: " + encoded.charAt(i));
+            }
+            bits = (bits << 6) | value;
+            bitCount += 6;
+            if (bitCount >= 8) {
+                bitCount -= 8;
+                decoded[position++] = (byte) (bits >> bitCount);
+            }
+        }
+        if (position != length) {
+            throw new PasswordFormatException("bcrypt entry is too short");
+        }
+        return decoded;
+    }
+
+    /**
+     * Encodes with the Base64 variant of bcrypt, the inverse of {@link #decodeBcryptBase64(String, int)}.
+     */
+    private static String encodeBcryptBase64(final byte[] bytes) {
+        final StringBuilder encoded = new StringBuilder();
+        int bits = 0;
+        int bitCount = 0;
+        for (byte b : bytes) {
+            bits = (bits << 8) | (b & 0xff);
+            bitCount += 8;
+            while (bitCount >= 6) {
+                bitCount -= 6;
+                encoded.append(BCRYPT_ALPHABET.charAt((bits >> bitCount) & 0x3f));
+            }
+        }
+        if (bitCount > 0) {
+            encoded.append(BCRYPT_ALPHABET.charAt((bits << (6 - bitCount)) & 0x3f));
+        }
+        return encoded.toString();
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    /**
+     * @return the iterations of PBKDF2, the cost of bcrypt or N of scrypt
+     */
+    public int getCost() {
+        return cost;
+    }
+
+    /**
+     * @return r of scrypt
+     */
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    /**
+     * @return p of scrypt
+     */
+    public int getParallelization() {
+        return parallelization;
+    }
+}
@@ -0,0 +1,225 @@
+/*
+ * Copyright 2015 dc-square GmbH
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.hivemq.plugin.fileauthentication.authentication;
+
+import com.google.common.base.Charsets;
+import com.hivemq.spi.annotations.Nullable;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.Provider;
+import java.text.Normalizer;
+
+/**
+ * Verifies passwords with the iterated digest of jasypt, without setting up jasypt for every verification.
+ * <p/>
+ * The results are identical to {@link org.jasypt.util.password.ConfigurablePasswordEncryptor} with the
+ * configuration used by the {@link PasswordComparator}:
+ * <ul>
+ * <li>the password is normalized to NFC and encoded with UTF-8</li>
+ * <li>the salt is digested before the password, the digest is then digested again for every further iteration</li>
+ * <li>a salt from the credential file is cut to as many bytes as it has characters</li>
+ * <li>without a salt from the credential file, the first 8 bytes of the stored digest are the salt</li>
+ * </ul>
+ * Every thread reuses its own {@link MessageDigest} and output buffer, and the digests are compared in constant
+ * time as bytes instead of Base64 strings. Compiled entries are verified with their decoded digest and salt.
+ */
+public class NativeDigestEngine implements VerifierEngine {
+
+    /**
+     * Size of the random salt jasypt puts in front of the digest, if no salt is configured
+     */
+    private static final int DEFAULT_SALT_SIZE_BYTES = 8;
+
+    private volatile Provider provider;
+    private final Provider fallbackProvider;
+    private final ThreadLocal<DigestState> digestStates = new ThreadLocal<>();
+
+    /**
+     * Uses the providers of the JDK and BouncyCastle for algorithms, which are not available there.
+     */
+    public NativeDigestEngine() {
+        this(new BouncyCastleProvider());
+    }
+
+    /**
+     * @param fallbackProvider provider for algorithms, which are not available in the providers of the JDK
+     */
+    public NativeDigestEngine(final Provider fallbackProvider) {
+        this(null, fallbackProvider);
+    }
+
+    /**
+     * @param provider         provider to use, or null to use the providers of the JDK
+     * @param fallbackProvider provider for algorithms, which are not available in the given provider
+     */
+    public NativeDigestEngine(@Nullable final Provider provider, final Provider fallbackProvider) {
+        this.provider = provider;
+        this.fallbackProvider = fallbackProvider;
+    }
+
+    /**
+     * Sets the provider of the digests. The digest of every thread is created again with the next verification.
+     *
+     * @param provider provider to use, or null to use the providers of the JDK
+     */
+    @Override
+    public void setProvider(@Nullable final Provider provider) {
+        this.provider = provider;
+    }
+
+    @Override
+    public boolean matches(final String algorithm,
+                           final String plainPassword,
+                           final String passwordHash,
+                           final int iterations,
+                           final String salt) {
+        return matches(algorithm, plainPassword, HashedSaltedPassword.decoded(passwordHash, salt), iterations);
+    }
+
+    @Override
+    public boolean matches(final String algorithm,
+                           final String plainPassword,
+                           final HashedSaltedPassword entry,
+                           final int iterations) {
+        if (iterations < 1) {
+            throw new IllegalArgumentException("Number of hashing iterations must be at least 1");
+        }
+
+        // entries, which were not compiled, are decoded for this verification only
+        final HashedSaltedPassword decodedEntry = entry.getHashBytes() != null
+                ? entry
+                : HashedSaltedPassword.decoded(entry.getHash(), entry.getSalt());
+        final byte[] storedDigest = decodedEntry.getHashBytes();
+        final byte[] saltBytes = decodedEntry.getSaltBytes();
+        if (storedDigest == null || (decodedEntry.getSalt() != null && saltBytes == null)) {
+            return false;
+        }
+
+        final DigestState state = getDigestState(algorithm);
+        final MessageDigest messageDigest = state.messageDigest;
+        messageDigest.reset();
+
+        final int digestOffset;
+        if (saltBytes == null) {
+            if (storedDigest.length < DEFAULT_SALT_SIZE_BYTES) {
+                return false;
+            }
+            messageDigest.update(storedDigest, 0, DEFAULT_SALT_SIZE_BYTES);
+            digestOffset = DEFAULT_SALT_SIZE_BYTES;
+        } else {
+            messageDigest.update(saltBytes);
+            digestOffset = 0;
+        }
+
+        final String normalizedPassword = Normalizer.isNormalized(plainPassword, Normalizer.Form.NFC)
+                ? plainPassword
+                : Normalizer.normalize(plainPassword, Normalizer.Form.NFC);
+        messageDigest.update(normalizedPassword.getBytes(Charsets.UTF_8));
+
+        final byte[] digest = state.digest(iterations);
+        return isEqual(digest, storedDigest, digestOffset);
+    }
+
+    /**
+     * Compares the digest with a part of the stored digest in constant time.
+     */
+    private static boolean isEqual(final byte[] digest, final byte[] storedDigest, final int offset) {
+        if (storedDigest.length - offset != digest.length) {
+            return false;
+        }
+        int difference = 0;
+        for (int i = 0; i < digest.length; i++) {
+            difference |= digest[i] ^ storedDigest[offset + i];
+        }
+        return difference == 0;
+    }
+
+    private DigestState getDigestState(final String algorithm) {
+        final Provider currentProvider = provider;
+        DigestState state = digestStates.get();
+        if (state == null || !state.algorithm.equals(algorithm) || state.provider != currentProvider) {
+            state = new DigestState(algorithm, currentProvider, createMessageDigest(algorithm, currentProvider));
+            digestStates.set(state);
+        }
+        return state;
+    }
+
+    /**
+     * Unless a provider is given, the providers of the JDK are preferred, because they write the digest into the
+     * given buffer. The results do not depend on the provider.
+     */
+    private MessageDigest createMessageDigest(final String algorithm, final Provider provider) {
+        try {
+            return provider == null ? MessageDigest.getInstance(algorithm) : MessageDigest.getInstance(algorithm, provider);
+        } catch (NoSuchAlgorithmException e) {
+            try {
+                return MessageDigest.getInstance(algorithm, fallbackProvider);
+            } catch (NoSuchAlgorithmException e1) {
+                throw new IllegalArgumentException("Hash algorithm " + algorithm + " is not supported", e1);
+            }
+        }
+    }
+
+    /**
+     * The {@link MessageDigest} and the output buffer of one thread.
+     */
+    private static class DigestState {
+
+        private final String algorithm;
+        private final Provider provider;
+        private final MessageDigest messageDigest;
+        private final byte[] buffer;
+
+        private DigestState(final String algorithm, final Provider provider, final MessageDigest messageDigest) {
+            this.algorithm = algorithm;
+            this.provider = provider;
+            this.messageDigest = messageDigest;
+            this.buffer = new byte[messageDigest.getDigestLength()];
+        }
+
+        /**
+         * Completes the first iteration, whose input was already passed to the message digest, and runs the further
+         * iterations.
+         *
+         * @param iterations the number of iterations
+         * @return the digest, which is only valid until the next call
+         */
+        private byte[] digest(final int iterations) {
+            if (buffer.length == 0) {
+                // the provider does not know the length of its digests in advance
+                byte[] digest = messageDigest.digest();
+                for (int i = 1; i < iterations; i++) {
+                    digest = messageDigest.digest(digest);
+                }
+                return digest;
+            }
+            try {
+                messageDigest.digest(buffer, 0, buffer.length);
+                for (int i = 1; i < iterations; i++) {
+                    messageDigest.update(buffer, 0, buffer.length);
+                    messageDigest.digest(buffer, 0, buffer.length);
+                }
+            } catch (DigestException e) {
+                throw new IllegalStateException("Digest does not fit into the buffer", e);
+            }
+            return buffer;
+        }
+    }
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright 2015 dc-square GmbH
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.hivemq.plugin.fileauthentication.authentication;
+
+import com.hivemq.spi.annotations.Nullable;
+
+/**
+ * A password, which is checked against an entry of the credential file in a batch of the {@link PasswordComparator}.
+ */
+public class PasswordCheck {
+
+    private final HashedSaltedPassword entry;
+    private final String plainPassword;
+    private final String algorithm;
+    private final int iterations;
+
+    /**
+     * @param entry         parsed entry of the credential file, the hash holds the plaintext password if the algorithm
+     *                      is null
+     * @param plainPassword password to check
+     * @param algorithm     used hash algorithm, or null for a plaintext entry, ignored for a {@link KdfHash}
+     * @param iterations    iterations used during the hashing, ignored for a {@link KdfHash}
+     */
+    public PasswordCheck(final HashedSaltedPassword entry, final String plainPassword,
+                         @Nullable final String algorithm, final int iterations) {
+        this.entry = entry;
+        this.plainPassword = plainPassword;
+        this.algorithm = algorithm;
+        this.iterations = iterations;
+    }
+
+    public HashedSaltedPassword getEntry() {
+        return entry;
+    }
+
+    public String getPlainPassword() {
+        return plainPassword;
+    }
+
+    @Nullable
+    public String getAlgorithm() {
+        return algorithm;
+    }
+
+    public int getIterations() {
+        return iterations;
+    }
+
+    /**
+     * @return identifies the algorithm and parameters, checks with the same key reuse the same digest state
+     */
+    String groupKey() {
+        if (entry instanceof KdfHash) {
+            final KdfHash kdfHash = (KdfHash) entry;
+            return kdfHash.getType() + "/" + kdfHash.getCost() + "/" + kdfHash.getBlockSize() + "/" + kdfHash.getParallelization();
+        }
+        if (algorithm == null) {
+            return "plaintext";
+        }
+        return algorithm + "/" + iterations + (entry.getSalt() == null ? "" : "/salted");
+    }
+}
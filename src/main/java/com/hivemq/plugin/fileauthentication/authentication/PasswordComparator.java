@@ -16,10 +16,32 @@
 
 package com.hivemq.plugin.fileauthentication.authentication;
 
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableMap;
+import com.google.inject.Inject;
+import com.hivemq.plugin.fileauthentication.exception.PasswordFormatException;
+import org.bouncycastle.crypto.Digest;
+import org.bouncycastle.crypto.digests.SHA1Digest;
+import org.bouncycastle.crypto.digests.SHA256Digest;
+import org.bouncycastle.crypto.digests.SHA512Digest;
+import org.bouncycastle.crypto.generators.BCrypt;
+import org.bouncycastle.crypto.generators.PKCS5S2ParametersGenerator;
+import org.bouncycastle.crypto.generators.SCrypt;
+import org.bouncycastle.crypto.params.KeyParameter;
 import org.bouncycastle.jce.provider.BouncyCastleProvider;
-import org.jasypt.digest.config.SimpleDigesterConfig;
-import org.jasypt.salt.FixedStringSaltGenerator;
-import org.jasypt.util.password.ConfigurablePasswordEncryptor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.security.Provider;
+import java.security.SecureRandom;
+import java.security.Security;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 /**
  * In this class the provided password is validated against the password in the file
@@ -29,11 +51,112 @@ import org.jasypt.util.password.ConfigurablePasswordEncryptor;
  */
 public class PasswordComparator {
 
+    private static final Logger log = LoggerFactory.getLogger(PasswordComparator.class);
+
     /**
      * Using BouncyCastle as security provider
      */
     private final BouncyCastleProvider PROVIDER = new BouncyCastleProvider();
 
+    /**
+     * Name of the engine, which is used if no or an unknown engine is configured
+     */
+    static final String DEFAULT_ENGINE = "jasypt";
+
+    private final Map<String, VerifierEngine> engines;
+
+    private volatile VerifierEngine engine;
+
+    private String providerSelection;
+
+    /**
+     * Size of the random salt of new entries, which describe their hashing parameters themselves
+     */
+    private static final int KDF_SALT_BYTES = 16;
+
+    private final SecureRandom secureRandom = new SecureRandom();
+
+    /**
+     * Checks with fewer entries are not split further between the threads of a batch
+     */
+    private static final int BATCH_SEQUENTIAL_THRESHOLD = 4;
+
+    /**
+     * Verifies the batches on all cores, it is only created with the first batch and shut down with the plugin
+     */
+    private ForkJoinPool batchPool;
+
+    /**
+     * Creates a comparator with the engines, which are part of the plugin.
+     */
+    public PasswordComparator() {
+        this(ImmutableMap.<String, VerifierEngine>of(
+                DEFAULT_ENGINE, new JasyptVerifierEngine(),
+                "native", new NativeDigestEngine()));
+    }
+
+    /**
+     * @param engines the available engines by their name, registered in
+     *                {@link com.hivemq.plugin.fileauthentication.FileAuthenticationModule}
+     */
+    @Inject
+    public PasswordComparator(final Map<String, VerifierEngine> engines) {
+        if (!engines.containsKey(DEFAULT_ENGINE)) {
+            throw new IllegalArgumentException("The default engine " + DEFAULT_ENGINE + " is not registered");
+        }
+        this.engines = engines;
+        this.engine = engines.get(DEFAULT_ENGINE);
+    }
+
+    /**
+     * Selects the security provider for hashed passwords of all engines. The selection is only made again, if the
+     * setting or the algorithm changed.
+     *
+     * @param setting   <code>BC</code> for BouncyCastle, <code>auto</code> to benchmark all providers, which support the
+     *                  algorithm, and use the fastest one, or the name of an installed provider
+     * @param algorithm used hash algorithm
+     */
+    public synchronized void selectProvider(final String setting, final String algorithm) {
+        final String selection = setting + "/" + algorithm;
+        if (selection.equals(providerSelection)) {
+            return;
+        }
+        providerSelection = selection;
+
+        Provider selected = PROVIDER;
+        if ("auto".equals(setting)) {
+            selected = ProviderSelector.select(algorithm,
+                    ProviderSelector.candidates(algorithm, PROVIDER, Security.getProviders()));
+        } else if (setting != null && !PROVIDER.getName().equals(setting)) {
+            selected = Security.getProvider(setting);
+            if (selected == null || selected.getService("MessageDigest", algorithm) == null) {
+                log.warn("Security provider {} is not installed or does not support {}, using {}",
+                        setting, algorithm, PROVIDER.getName());
+                selected = PROVIDER;
+            }
+        }
+
+        for (VerifierEngine verifierEngine : engines.values()) {
+            verifierEngine.setProvider(selected);
+        }
+    }
+
+    /**
+     * Selects the engine for hashed passwords. All engines give identical results.
+     *
+     * @param name name of the engine, an unknown name selects the default engine
+     */
+    public void selectEngine(final String name) {
+        final VerifierEngine selected = engines.get(name);
+        if (selected == null) {
+            log.warn("Hashing engine {} is not available, using {}. Available engines: {}",
+                    name, DEFAULT_ENGINE, new TreeSet<>(engines.keySet()));
+            engine = engines.get(DEFAULT_ENGINE);
+            return;
+        }
+        engine = selected;
+    }
+
     /**
      * Validates a salted and hashed password
      *
@@ -50,9 +173,24 @@ public class PasswordComparator {
                                                    final int iterations,
                                                    final String salt) {
 
-        final ConfigurablePasswordEncryptor configurablePasswordEncryptor = getEncryptor(algorithm, iterations, salt);
+        return engine.matches(algorithm, plainPassword, passwordHash, iterations, salt);
+    }
 
-        return configurablePasswordEncryptor.checkPassword(plainPassword, passwordHash);
+    /**
+     * Validates a hashed and optionally salted password against a compiled entry, whose digest and salt were
+     * decoded when the credential file was loaded
+     *
+     * @param algorithm     used hash algorithm
+     * @param plainPassword plaintext password provided from the client
+     * @param entry         compiled entry of the credential file
+     * @param iterations    iterations used during the hashing
+     * @return true if the hashes match, otherwise false
+     */
+    public boolean validateHashedEntry(final String algorithm,
+                                       final String plainPassword,
+                                       final HashedSaltedPassword entry,
+                                       final int iterations) {
+        return engine.matches(algorithm, plainPassword, entry, iterations);
     }
 
     /**
@@ -73,42 +211,195 @@ public class PasswordComparator {
     }
 
     /**
-     * Validates a plaintext password
+     * Validates a password against an entry, which describes its hashing parameters itself
      *
-     * @param filePassword   plaintext password in the file
-     * @param clientPassword plaintext password provided by the client
+     * @param plainPassword plaintext password provided from the client
+     * @param kdfHash       parsed entry of the credential file
      * @return true if the hashes match, otherwise false
      */
-    public boolean validatePlaintextPassword(final String filePassword,
-                                             final String clientPassword) {
-        return filePassword.equals(clientPassword);
+    public boolean validateKdfPassword(final String plainPassword, final KdfHash kdfHash) {
+        return constantTimeEquals(kdfHash.getHashBytes(), derive(plainPassword, kdfHash));
     }
 
     /**
-     * This initializes the jasypt password encryptor with the correct parameters
+     * Hashes a password into a new entry, which describes its hashing parameters itself.
      *
-     * @param algorithm  used hash algorithm
-     * @param iterations iterations which should be used
-     * @param salt       salt which should be used
-     * @return jasypt password encrypter
+     * @param plainPassword the password
+     * @param target        algorithm and parameters of the new entry, for example <code>$pbkdf2-sha256$i=600000</code>
+     * @return the new entry with a random salt
+     * @throws PasswordFormatException if the target is not in one of the supported formats
      */
-    private ConfigurablePasswordEncryptor getEncryptor(final String algorithm, final int iterations, final String salt) {
-        final ConfigurablePasswordEncryptor encryptor = new ConfigurablePasswordEncryptor();
+    public String hashKdfPassword(final String plainPassword, final String target) throws PasswordFormatException {
+        final byte[] salt = new byte[KDF_SALT_BYTES];
+        secureRandom.nextBytes(salt);
+        final KdfHash template = KdfHash.template(target, salt);
+        return template.withHash(derive(plainPassword, template));
+    }
+
+    /**
+     * Hashes the password with the algorithm, parameters and salt of the entry.
+     */
+    private static byte[] derive(final String plainPassword, final KdfHash kdfHash) {
+        final byte[] password = plainPassword.getBytes(Charsets.UTF_8);
+        final int length = kdfHash.getHashBytes().length;
+        switch (kdfHash.getType()) {
+            case PBKDF2_SHA1:
+                return pbkdf2(new SHA1Digest(), password, kdfHash, length);
+            case PBKDF2_SHA256:
+                return pbkdf2(new SHA256Digest(), password, kdfHash, length);
+            case PBKDF2_SHA512:
+                return pbkdf2(new SHA512Digest(), password, kdfHash, length);
+            case SCRYPT:
+                return SCrypt.generate(password, kdfHash.getSaltBytes(), kdfHash.getCost(),
+                        kdfHash.getBlockSize(), kdfHash.getParallelization(), length);
+            case BCRYPT:
+                return BCrypt.generate(bcryptKey(password), kdfHash.getSaltBytes(), kdfHash.getCost());
+            default:
+                throw new IllegalArgumentException("Unsupported type " + kdfHash.getType());
+        }
+    }
 
-        final SimpleDigesterConfig config = new SimpleDigesterConfig();
-        config.setProvider(PROVIDER);
-        config.setAlgorithm(algorithm);
-        config.setIterations(iterations);
+    private static byte[] pbkdf2(final Digest digest, final byte[] password, final KdfHash kdfHash, final int length) {
+        final PKCS5S2ParametersGenerator generator = new PKCS5S2ParametersGenerator(digest);
+        generator.init(password, kdfHash.getSaltBytes(), kdfHash.getCost());
+        return ((KeyParameter) generator.generateDerivedParameters(length * 8)).getKey();
+    }
 
-        if (salt != null) {
-            final FixedStringSaltGenerator saltGenerator = new FixedStringSaltGenerator();
-            saltGenerator.setSalt(salt);
-            config.setSaltGenerator(saltGenerator);
-            config.setSaltSizeBytes(salt.length());
+    /**
+     * bcrypt uses the zero terminated password, truncated to 72 bytes
+     */
+    private static byte[] bcryptKey(final byte[] password) {
+        final byte[] key = new byte[Math.min(password.length + 1, 72)];
+        System.arraycopy(password, 0, key, 0, Math.min(password.length, key.length));
+        return key;
+    }
+
+    /**
+     * Compares the expected hash with the beginning of the actual hash, without leaking the position of the
+     * first difference through the timing.
+     */
+    private static boolean constantTimeEquals(final byte[] expected, final byte[] actual) {
+        if (actual.length < expected.length) {
+            return false;
+        }
+        int difference = 0;
+        for (int i = 0; i < expected.length; i++) {
+            difference |= expected[i] ^ actual[i];
         }
+        return difference == 0;
+    }
 
-        encryptor.setConfig(config);
-        return encryptor;
+    /**
+     * Validates many passwords at once, for example after a lot of clients reconnect at the same time or to check a
+     * list of passwords against the credential file.
+     * <p/>
+     * The checks are grouped by their algorithm and parameters, so every thread verifies checks with the same digest
+     * state one after another, and the groups are spread over all cores.
+     *
+     * @param checks the passwords and entries to check
+     * @return for every check, in the same order, true if the password matches its entry, otherwise false
+     */
+    public boolean[] validateAll(final List<PasswordCheck> checks) {
+        final Map<String, List<Integer>> groups = new LinkedHashMap<>();
+        for (int i = 0; i < checks.size(); i++) {
+            final String groupKey = checks.get(i).groupKey();
+            List<Integer> group = groups.get(groupKey);
+            if (group == null) {
+                group = new ArrayList<>();
+                groups.put(groupKey, group);
+            }
+            group.add(i);
+        }
+
+        final int[] order = new int[checks.size()];
+        int position = 0;
+        for (List<Integer> group : groups.values()) {
+            for (Integer index : group) {
+                order[position++] = index;
+            }
+        }
+
+        final boolean[] results = new boolean[checks.size()];
+        batchPool().invoke(new BatchTask(checks, order, results, 0, order.length));
+        return results;
+    }
+
+    private synchronized ForkJoinPool batchPool() {
+        if (batchPool == null) {
+            batchPool = new ForkJoinPool();
+        }
+        return batchPool;
+    }
+
+    /**
+     * Stops the threads, which verify the batches, when the plugin stops. Running batches still finish, a later
+     * batch starts new threads.
+     */
+    public synchronized void shutdown() {
+        if (batchPool != null) {
+            batchPool.shutdown();
+            batchPool = null;
+        }
+    }
+
+    /**
+     * Validates a single check of a batch.
+     */
+    private boolean validate(final PasswordCheck check) {
+        final HashedSaltedPassword entry = check.getEntry();
+        if (entry instanceof KdfHash) {
+            return validateKdfPassword(check.getPlainPassword(), (KdfHash) entry);
+        }
+        if (check.getAlgorithm() == null) {
+            return validatePlaintextPassword(entry.getHash(), check.getPlainPassword());
+        }
+        return validateHashedEntry(check.getAlgorithm(), check.getPlainPassword(), entry, check.getIterations());
+    }
+
+    /**
+     * Validates a range of the grouped checks of a batch, large ranges are split in halves.
+     */
+    private class BatchTask extends RecursiveAction {
+
+        private final List<PasswordCheck> checks;
+        private final int[] order;
+        private final boolean[] results;
+        private final int from;
+        private final int to;
+
+        private BatchTask(final List<PasswordCheck> checks, final int[] order, final boolean[] results,
+                          final int from, final int to) {
+            this.checks = checks;
+            this.order = order;
+            this.results = results;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= BATCH_SEQUENTIAL_THRESHOLD) {
+                for (int i = from; i < to; i++) {
+                    results[order[i]] = validate(checks.get(order[i]));
+                }
+                return;
+            }
+            final int middle = (from + to) >>> 1;
+            invokeAll(new BatchTask(checks, order, results, from, middle),
+                    new BatchTask(checks, order, results, middle, to));
+        }
+    }
+
+    /**
+     * Validates a plaintext password
+     *
+     * @param filePassword   plaintext password in the file
+     * @param clientPassword plaintext password provided by the client
+     * @return true if the hashes match, otherwise false
+     */
+    public boolean validatePlaintextPassword(final String filePassword,
+                                             final String clientPassword) {
+        return filePassword.equals(clientPassword);
     }
 
 }
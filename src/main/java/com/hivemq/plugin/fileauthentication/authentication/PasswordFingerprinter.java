@@ -0,0 +1,70 @@
+/*
+ * Copyright 2015 dc-square GmbH
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.hivemq.plugin.fileauthentication.authentication;
+
+import com.google.common.base.Charsets;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import javax.inject.Singleton;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+
+/**
+ * Creates keyed fingerprints (HMAC-SHA256) of passwords.
+ * <p/>
+ * The key is generated randomly when the plugin starts and never leaves the process, so a fingerprint can be kept in
+ * memory instead of the plaintext password without being usable for an offline attack.
+ */
+@Singleton
+public class PasswordFingerprinter {
+
+    private static final String ALGORITHM = "HmacSHA256";
+
+    private static final int KEY_SIZE_BYTES = 32;
+
+    private final SecretKeySpec key;
+
+    private final ThreadLocal<Mac> macs = new ThreadLocal<Mac>() {
+        @Override
+        protected Mac initialValue() {
+            try {
+                final Mac mac = Mac.getInstance(ALGORITHM);
+                mac.init(key);
+                return mac;
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException(ALGORITHM + " is not available", e);
+            }
+        }
+    };
+
+    public PasswordFingerprinter() {
+        final byte[] keyBytes = new byte[KEY_SIZE_BYTES];
+        new SecureRandom().nextBytes(keyBytes);
+        this.key = new SecretKeySpec(keyBytes, ALGORITHM);
+    }
+
+    /**
+     * Calculates the fingerprint of a password.
+     *
+     * @param password plaintext password provided from the client
+     * @return keyed fingerprint of the password
+     */
+    public byte[] fingerprint(final String password) {
+        return macs.get().doFinal(password.getBytes(Charsets.UTF_8));
+    }
+}
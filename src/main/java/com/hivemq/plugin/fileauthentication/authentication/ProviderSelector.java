@@ -0,0 +1,130 @@
+/*
+ * Copyright 2015 dc-square GmbH
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.hivemq.plugin.fileauthentication.authentication;
+
+import com.google.common.base.Charsets;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.Provider;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Selects the fastest security provider for a hash algorithm with a short benchmark of the iterated digest.
+ * <p/>
+ * The first candidate is the reference: candidates, which give different digests than the reference, are never
+ * selected.
+ */
+class ProviderSelector {
+
+    private static final Logger log = LoggerFactory.getLogger(ProviderSelector.class);
+
+    /**
+     * Digests per provider, before the measurement starts
+     */
+    private static final int WARM_UP_DIGESTS = 20000;
+
+    /**
+     * Digests per provider, which are measured
+     */
+    private static final int MEASURED_DIGESTS = 50000;
+
+    private static final byte[] INPUT = "file-authentication-benchmark".getBytes(Charsets.UTF_8);
+
+    private ProviderSelector() {
+    }
+
+    /**
+     * @param algorithm the hash algorithm
+     * @param reference provider, which is always a candidate and whose digests are the reference
+     * @param providers further providers, which are candidates if they support the algorithm
+     * @return the candidates, starting with the reference
+     */
+    static List<Provider> candidates(final String algorithm, final Provider reference, final Provider... providers) {
+        final List<Provider> candidates = new ArrayList<>();
+        candidates.add(reference);
+        for (Provider provider : providers) {
+            if (!provider.getName().equals(reference.getName()) && provider.getService("MessageDigest", algorithm) != null) {
+                candidates.add(provider);
+            }
+        }
+        return candidates;
+    }
+
+    /**
+     * @param algorithm  the hash algorithm
+     * @param candidates the providers to compare, the first one is the reference
+     * @return the fastest provider, which gives the same digests as the reference
+     */
+    static Provider select(final String algorithm, final List<Provider> candidates) {
+        return select(algorithm, candidates, WARM_UP_DIGESTS, MEASURED_DIGESTS);
+    }
+
+    static Provider select(final String algorithm, final List<Provider> candidates,
+                           final int warmUpDigests, final int measuredDigests) {
+        byte[] reference = null;
+        Provider fastest = candidates.get(0);
+        long fastestNanos = Long.MAX_VALUE;
+
+        for (Provider candidate : candidates) {
+            final MessageDigest messageDigest;
+            try {
+                messageDigest = MessageDigest.getInstance(algorithm, candidate);
+            } catch (NoSuchAlgorithmException e) {
+                log.debug("Security provider {} does not support {}", candidate.getName(), algorithm);
+                continue;
+            }
+
+            digest(messageDigest, warmUpDigests);
+            final long start = System.nanoTime();
+            final byte[] digest = digest(messageDigest, measuredDigests);
+            final long nanos = Math.max(1, System.nanoTime() - start);
+
+            if (reference == null) {
+                reference = digest;
+            } else if (!Arrays.equals(reference, digest)) {
+                log.warn("Security provider {} calculates different {} digests than {}, it is not used",
+                        candidate.getName(), algorithm, candidates.get(0).getName());
+                continue;
+            }
+
+            log.info("Security provider {} calculates {} {} digests per second", candidate.getName(),
+                    String.format(Locale.ENGLISH, "%,d", measuredDigests * 1000000000L / nanos), algorithm);
+            if (nanos < fastestNanos) {
+                fastest = candidate;
+                fastestNanos = nanos;
+            }
+        }
+
+        log.info("Using security provider {} for {}", fastest.getName(), algorithm);
+        return fastest;
+    }
+
+    private static byte[] digest(final MessageDigest messageDigest, final int digests) {
+        messageDigest.reset();
+        byte[] digest = messageDigest.digest(INPUT);
+        for (int i = 1; i < digests; i++) {
+            digest = messageDigest.digest(digest);
+        }
+        return digest;
+    }
+}
@@ -0,0 +1,182 @@
+/*
+ * Copyright 2015 dc-square GmbH
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.hivemq.plugin.fileauthentication.authentication;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Charsets;
+import org.bouncycastle.util.encoders.Base64;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Issues and verifies short-lived session tokens, which clients can present instead of their password.
+ * <p/>
+ * A token has the format <code>$session$[expiry]$[key generation]$[HMAC]</code>. The HMAC covers the username, the
+ * expiry and the entry of the user in the credential file, so a token is only valid for the user it was issued to and
+ * becomes invalid as soon as the entry of the user changes.
+ * <p/>
+ * The keys are generated randomly on this node and never leave it. A new key is used for every lifetime of the
+ * tokens, tokens are accepted with the current and the previous key. Tokens of other nodes and of a previous start of
+ * the broker are therefore never valid.
+ */
+class SessionTokens {
+
+    static final String PREFIX = "$session$";
+
+    private static final String HMAC_ALGORITHM = "HmacSHA256";
+    private static final int KEY_LENGTH = 32;
+
+    private final SecureRandom random = new SecureRandom();
+    private final ConcurrentMap<Long, SecretKeySpec> keys = new ConcurrentHashMap<>();
+    private volatile long lifetimeInMillis = TimeUnit.MINUTES.toMillis(10);
+
+    /**
+     * @param password password provided by the client
+     * @return true if the password has the format of a session token
+     */
+    static boolean isToken(final String password) {
+        return password.startsWith(PREFIX);
+    }
+
+    /**
+     * Sets the lifetime of new tokens. All issued tokens become invalid if the lifetime changes.
+     *
+     * @param lifetime lifetime of the tokens
+     * @param unit     unit of the lifetime
+     */
+    void setLifetime(final long lifetime, final TimeUnit unit) {
+        final long newLifetimeInMillis = Math.max(1, unit.toMillis(lifetime));
+        if (newLifetimeInMillis != lifetimeInMillis) {
+            lifetimeInMillis = newLifetimeInMillis;
+            keys.clear();
+        }
+    }
+
+    long getLifetimeInMillis() {
+        return lifetimeInMillis;
+    }
+
+    /**
+     * @return the expiry of a token, which is issued now
+     */
+    long newExpiry() {
+        return currentTimeMillis() + lifetimeInMillis;
+    }
+
+    /**
+     * @param username username of the client
+     * @param entry    entry of the user in the credential file
+     * @param expiry   time in milliseconds since the epoch, after which the token is invalid
+     * @return a new token for the user
+     */
+    String issue(final String username, final String entry, final long expiry) {
+        final long generation = currentTimeMillis() / lifetimeInMillis;
+        final byte[] mac = mac(key(generation), username, entry, expiry);
+        return PREFIX + expiry + "$" + generation + "$" + Base64.toBase64String(mac);
+    }
+
+    /**
+     * @param username username provided by the client
+     * @param token    token provided by the client as password
+     * @param entry    current entry of the user in the credential file
+     * @return true if the token was issued by this node to the user, the entry did not change since then and the
+     * token did not expire
+     */
+    boolean verify(final String username, final String token, final String entry) {
+        final String[] parts = token.substring(PREFIX.length()).split("\\$", -1);
+        if (parts.length != 3) {
+            return false;
+        }
+        final long expiry;
+        final long generation;
+        final byte[] mac;
+        try {
+            expiry = Long.parseLong(parts[0]);
+            generation = Long.parseLong(parts[1]);
+            mac = Base64.decode(parts[2]);
+        } catch (RuntimeException e) {
+            return false;
+        }
+
+        final long now = currentTimeMillis();
+        final long currentGeneration = now / lifetimeInMillis;
+        if (expiry <= now || expiry > now + lifetimeInMillis
+                || generation < currentGeneration - 1 || generation > currentGeneration) {
+            return false;
+        }
+        final SecretKeySpec key = keys.get(generation);
+        return key != null && MessageDigest.isEqual(mac, mac(key, username, entry, expiry));
+    }
+
+    /**
+     * Returns the key of the given generation and creates it, if it does not exist yet. The keys of older
+     * generations than the previous one are removed, because tokens signed with them are expired.
+     */
+    private SecretKeySpec key(final long generation) {
+        final SecretKeySpec key = keys.get(generation);
+        if (key != null) {
+            return key;
+        }
+        final byte[] keyBytes = new byte[KEY_LENGTH];
+        random.nextBytes(keyBytes);
+        final SecretKeySpec newKey = new SecretKeySpec(keyBytes, HMAC_ALGORITHM);
+        final SecretKeySpec existingKey = keys.putIfAbsent(generation, newKey);
+
+        final Iterator<Long> iterator = keys.keySet().iterator();
+        while (iterator.hasNext()) {
+            if (iterator.next() < generation - 1) {
+                iterator.remove();
+            }
+        }
+        return existingKey != null ? existingKey : newKey;
+    }
+
+    private static byte[] mac(final SecretKeySpec key, final String username, final String entry, final long expiry) {
+        try {
+            final Mac mac = Mac.getInstance(HMAC_ALGORITHM);
+            mac.init(key);
+            // every field is prefixed with its length, so the fields can not be shifted into each other
+            update(mac, username.getBytes(Charsets.UTF_8));
+            update(mac, entry.getBytes(Charsets.UTF_8));
+            update(mac, Long.toString(expiry).getBytes(Charsets.UTF_8));
+            return mac.doFinal();
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(HMAC_ALGORITHM + " is not available", e);
+        }
+    }
+
+    private static void update(final Mac mac, final byte[] field) {
+        mac.update((byte) (field.length >>> 24));
+        mac.update((byte) (field.length >>> 16));
+        mac.update((byte) (field.length >>> 8));
+        mac.update((byte) field.length);
+        mac.update(field);
+    }
+
+    @VisibleForTesting
+    long currentTimeMillis() {
+        return System.currentTimeMillis();
+    }
+}
@@ -0,0 +1,161 @@
+/*
+ * Copyright 2015 dc-square GmbH
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.hivemq.plugin.fileauthentication.authentication;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs the verifications of passwords on a bounded pool of threads, so the expensive hashing does not block the
+ * threads of the broker, which call the authentication callback. The calling thread only waits for the result.
+ * <p/>
+ * If all threads are busy and the queue is full, the verification is rejected immediately instead of adding to the
+ * latency of all other logins. A login, which waits longer than the timeout, stops waiting.
+ */
+class VerificationPool {
+
+    private final AtomicLong rejectedCount = new AtomicLong();
+    private final AtomicLong timeoutCount = new AtomicLong();
+
+    private volatile ThreadPoolExecutor executor;
+    private volatile long timeoutNanos;
+    private int threads;
+    private int queueSize;
+
+    /**
+     * Applies the settings, a running pool is only replaced if the number of threads or the queue size changed.
+     * Verifications on a replaced pool still finish.
+     *
+     * @param threads   number of verification threads, 0 runs the verifications on the calling thread
+     * @param queueSize number of verifications which may wait for a thread
+     * @param timeout   maximum time a login waits for its verification
+     * @param timeUnit  time unit of the timeout
+     */
+    synchronized void configure(final int threads, final int queueSize, final long timeout, final TimeUnit timeUnit) {
+        this.timeoutNanos = timeUnit.toNanos(timeout);
+        if (executor != null && threads == this.threads && queueSize == this.queueSize) {
+            return;
+        }
+        this.threads = threads;
+        this.queueSize = queueSize;
+
+        final ThreadPoolExecutor previousExecutor = executor;
+        executor = threads > 0
+                ? new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(Math.max(1, queueSize)),
+                new ThreadFactoryBuilder().setNameFormat("file-authentication-verification-%d").setDaemon(true).build(),
+                new ThreadPoolExecutor.AbortPolicy())
+                : null;
+        if (previousExecutor != null) {
+            previousExecutor.shutdown();
+        }
+    }
+
+    /**
+     * Stops the threads of the pool, when the plugin stops. Queued verifications still finish, later ones run on the
+     * calling thread.
+     */
+    synchronized void shutdown() {
+        final ThreadPoolExecutor previousExecutor = executor;
+        executor = null;
+        if (previousExecutor != null) {
+            previousExecutor.shutdown();
+        }
+    }
+
+    /**
+     * Runs the verification on the pool and waits for its result.
+     *
+     * @param verification the verification
+     * @return the result of the verification, {@link VerificationResult#OVERLOADED} if the queue was full or
+     * {@link VerificationResult#TIMEOUT} if the verification did not finish in time
+     */
+    VerificationResult verify(final Callable<VerificationResult> verification) {
+        final ThreadPoolExecutor currentExecutor = executor;
+        if (currentExecutor == null) {
+            return call(verification);
+        }
+
+        final Future<VerificationResult> future;
+        try {
+            future = currentExecutor.submit(verification);
+        } catch (RejectedExecutionException e) {
+            rejectedCount.incrementAndGet();
+            return VerificationResult.OVERLOADED;
+        }
+
+        try {
+            return timeoutNanos > 0 ? future.get(timeoutNanos, TimeUnit.NANOSECONDS) : future.get();
+        } catch (TimeoutException e) {
+            // a verification, which did not start yet, is not needed anymore
+            future.cancel(false);
+            timeoutCount.incrementAndGet();
+            return VerificationResult.TIMEOUT;
+        } catch (InterruptedException e) {
+            future.cancel(false);
+            Thread.currentThread().interrupt();
+            return VerificationResult.TIMEOUT;
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new UncheckedExecutionException(e.getCause());
+        }
+    }
+
+    private static VerificationResult call(final Callable<VerificationResult> verification) {
+        try {
+            return verification.call();
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new UncheckedExecutionException(e);
+        }
+    }
+
+    /**
+     * @return number of verifications which are waiting for a thread
+     */
+    int queuedCount() {
+        final ThreadPoolExecutor currentExecutor = executor;
+        return currentExecutor == null ? 0 : currentExecutor.getQueue().size();
+    }
+
+    /**
+     * @return number of verifications, which were rejected because the queue was full
+     */
+    long rejectedCount() {
+        return rejectedCount.get();
+    }
+
+    /**
+     * @return number of logins, which stopped waiting for their verification
+     */
+    long timeoutCount() {
+        return timeoutCount.get();
+    }
+}
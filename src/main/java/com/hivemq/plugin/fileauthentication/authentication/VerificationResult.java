@@ -0,0 +1,90 @@
+/*
+ * Copyright 2015 dc-square GmbH
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.hivemq.plugin.fileauthentication.authentication;
+
+/**
+ * Result of the verification of the credentials of a client, including the reason if access was denied.
+ */
+public enum VerificationResult {
+
+    GRANTED("granted"),
+
+    /**
+     * The client did not provide a username.
+     */
+    NO_USERNAME("no-username"),
+
+    /**
+     * The client did not provide a password.
+     */
+    NO_PASSWORD("no-password"),
+
+    /**
+     * The username is not present in the credential file.
+     */
+    UNKNOWN_USER("unknown-user"),
+
+    /**
+     * The entry of the user in the credential file has a wrong format.
+     */
+    BAD_FORMAT("bad-format"),
+
+    /**
+     * The password does not match the entry in the credential file.
+     */
+    WRONG_PASSWORD("wrong-password"),
+
+    /**
+     * The session token provided as password is expired, was issued to another user or by another node, or the
+     * entry of the user changed since it was issued, and it is not the password of the user either.
+     */
+    INVALID_TOKEN("invalid-token"),
+
+    /**
+     * The queue of the verification threads was full, so the password was not verified.
+     */
+    OVERLOADED("overloaded"),
+
+    /**
+     * The verification did not finish in time.
+     */
+    TIMEOUT("timeout");
+
+    private final String reasonCode;
+
+    VerificationResult(final String reasonCode) {
+        this.reasonCode = reasonCode;
+    }
+
+    /**
+     * @return a stable identifier of the result, which can be used in metric names
+     */
+    public String getReasonCode() {
+        return reasonCode;
+    }
+
+    public boolean isGranted() {
+        return this == GRANTED;
+    }
+
+    /**
+     * @return false if the result only depends on the load of the broker and must not be cached, true otherwise
+     */
+    public boolean isCacheable() {
+        return this != OVERLOADED && this != TIMEOUT;
+    }
+}
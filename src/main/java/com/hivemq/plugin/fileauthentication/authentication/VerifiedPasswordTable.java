@@ -0,0 +1,134 @@
+/*
+ * Copyright 2015 dc-square GmbH
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.hivemq.plugin.fileauthentication.authentication;
+
+import java.security.MessageDigest;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Table with one slot per user of the credential file.
+ * <p/>
+ * After the password of a user was verified successfully, the slot of the user holds the
+ * {@link PasswordFingerprinter fingerprint} of this password. Further logins of the user only have to compare the
+ * fingerprints instead of hashing the password again. Because only successful logins get a slot, the table grows
+ * with the number of users in the credential file and not with the number of login attempts.
+ * <p/>
+ * The slot of a user has to be cleared when the entry of the user in the credential file changes.
+ */
+class VerifiedPasswordTable {
+
+    private final ConcurrentMap<String, Slot> slots = new ConcurrentHashMap<>();
+    private final AtomicLong hitCount = new AtomicLong();
+    private volatile long maxAgeNanos;
+
+    /**
+     * @param maxAge   maximum time a slot is valid after the password was verified
+     * @param timeUnit time unit of the max age
+     */
+    void setMaxAge(final long maxAge, final TimeUnit timeUnit) {
+        this.maxAgeNanos = timeUnit.toNanos(maxAge);
+    }
+
+    /**
+     * Checks if the given password fingerprint matches the verified fingerprint in the slot of the user.
+     *
+     * @param username    the username
+     * @param fingerprint fingerprint of the password provided by the client
+     * @return true if the password was already verified for this user, false otherwise
+     */
+    boolean isVerified(final String username, final byte[] fingerprint) {
+        final Slot slot = slots.get(username);
+        if (slot == null || System.nanoTime() - slot.verifiedAt >= maxAgeNanos) {
+            return false;
+        }
+        if (MessageDigest.isEqual(slot.fingerprint, fingerprint)) {
+            hitCount.incrementAndGet();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Checks if the slot of the user expires within the given time.
+     *
+     * @param username the username
+     * @param time     the time
+     * @param timeUnit time unit of the time
+     * @return true if the user has a slot which expires within the given time, false otherwise
+     */
+    boolean expiresWithin(final String username, final long time, final TimeUnit timeUnit) {
+        final Slot slot = slots.get(username);
+        return slot != null && System.nanoTime() - slot.verifiedAt >= maxAgeNanos - timeUnit.toNanos(time);
+    }
+
+    /**
+     * Stores the fingerprint of a successfully verified password in the slot of the user.
+     *
+     * @param username    the username
+     * @param fingerprint fingerprint of the verified password
+     */
+    void setVerified(final String username, final byte[] fingerprint) {
+        slots.put(username, new Slot(fingerprint, System.nanoTime()));
+    }
+
+    /**
+     * Clears the slots of the given users.
+     *
+     * @param usernames the users whose slots should be cleared
+     */
+    void clear(final Set<String> usernames) {
+        for (String username : usernames) {
+            slots.remove(username);
+        }
+    }
+
+    /**
+     * Clears all slots.
+     */
+    void clear() {
+        slots.clear();
+    }
+
+    /**
+     * @return the number of occupied slots
+     */
+    int size() {
+        return slots.size();
+    }
+
+    /**
+     * @return the number of logins which were granted by a slot
+     */
+    long hitCount() {
+        return hitCount.get();
+    }
+
+    private static final class Slot {
+
+        private final byte[] fingerprint;
+        private final long verifiedAt;
+
+        private Slot(final byte[] fingerprint, final long verifiedAt) {
+            this.fingerprint = fingerprint;
+            this.verifiedAt = verifiedAt;
+        }
+    }
+}
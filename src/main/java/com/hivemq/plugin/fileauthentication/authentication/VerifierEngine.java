@@ -0,0 +1,63 @@
+/*
+ * Copyright 2015 dc-square GmbH
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.hivemq.plugin.fileauthentication.authentication;
+
+import com.hivemq.spi.annotations.Nullable;
+
+import java.security.Provider;
+
+/**
+ * Verifies passwords against the iterated and optionally salted digests of the credential file.
+ * <p/>
+ * Engines are registered with Guice in {@link com.hivemq.plugin.fileauthentication.FileAuthenticationModule} under
+ * a name, the engine is selected with <code>passwordHashing.engine</code>. Every engine must accept the same
+ * credential files as the default engine <code>jasypt</code>.
+ */
+public interface VerifierEngine {
+
+    /**
+     * Sets the security provider selected with <code>passwordHashing.provider</code>.
+     *
+     * @param provider the selected provider, or null if no provider was selected and the engine should use its
+     *                 default provider
+     */
+    void setProvider(@Nullable Provider provider);
+
+    /**
+     * Checks a password against a digest from the credential file.
+     *
+     * @param algorithm     used hash algorithm
+     * @param plainPassword plaintext password provided from the client
+     * @param passwordHash  Base64 encoded digest read from the credential file
+     * @param iterations    iterations used during the hashing
+     * @param salt          salt read from the credential file, or null if the salt is part of the digest
+     * @return true if the digests match, otherwise false
+     */
+    boolean matches(String algorithm, String plainPassword, String passwordHash, int iterations, @Nullable String salt);
+
+    /**
+     * Checks a password against a compiled entry of the credential file, whose digest and salt may already be
+     * decoded, see {@link HashedSaltedPassword#decoded(String, String)}.
+     *
+     * @param algorithm     used hash algorithm
+     * @param plainPassword plaintext password provided from the client
+     * @param entry         the compiled entry, the salt is null if the salt is part of the digest
+     * @param iterations    iterations used during the hashing
+     * @return true if the digests match, otherwise false
+     */
+    boolean matches(String algorithm, String plainPassword, HashedSaltedPassword entry, int iterations);
+}
@@ -1,9 +1,16 @@
 package com.hivemq.plugin.fileauthentication.callback;
 
+import java.util.Set;
+
 /**
  * Callback to react to the change of the credentialInformation
  */
 public interface CredentialChangeCallback {
 
-    void onCredentialChange();
+    /**
+     * Called after a reload of the credentials file changed at least one entry.
+     *
+     * @param changedUsernames the usernames which were added, changed or removed
+     */
+    void onCredentialChange(Set<String> changedUsernames);
 }
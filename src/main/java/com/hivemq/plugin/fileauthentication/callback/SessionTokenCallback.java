@@ -0,0 +1,35 @@
+/*
+ * Copyright 2015 dc-square GmbH
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.hivemq.plugin.fileauthentication.callback;
+
+import com.hivemq.spi.security.ClientCredentialsData;
+
+/**
+ * Callback to hand out the session tokens, which are issued after a successful login with a password.
+ */
+public interface SessionTokenCallback {
+
+    /**
+     * Called after a successful login with a password, if session tokens are enabled.
+     * The client can present the token as password until it expires.
+     *
+     * @param clientCredentialsData the credentials of the client, which logged in
+     * @param token                 the new token
+     * @param expiry                time in milliseconds since the epoch, after which the token is invalid
+     */
+    void onSessionToken(ClientCredentialsData clientCredentialsData, String token, long expiry);
+}
@@ -18,11 +18,15 @@ package com.hivemq.plugin.fileauthentication.configuration;
 
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Optional;
+import com.hivemq.plugin.fileauthentication.authentication.HashedSaltedPassword;
 import com.hivemq.plugin.fileauthentication.callback.CredentialChangeCallback;
 import com.hivemq.plugin.fileauthentication.exception.ConfigurationFileNotFoundException;
+import com.hivemq.plugin.fileauthentication.exception.PasswordFormatException;
 import com.hivemq.spi.config.SystemInformation;
 import com.hivemq.spi.services.PluginExecutorService;
 import com.hivemq.spi.services.configuration.ValueChangedCallback;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import javax.annotation.PostConstruct;
 import javax.inject.Inject;
@@ -42,6 +46,8 @@ import java.util.concurrent.TimeUnit;
 @Singleton
 public class Configuration extends ReloadingPropertiesReader {
 
+    private static final Logger log = LoggerFactory.getLogger(Configuration.class);
+
     /**
      * Default cache size (in entries)
      */
@@ -57,6 +63,86 @@ public class Configuration extends ReloadingPropertiesReader {
      */
     private static final String DEFAULT_VALUE_CACHING_TIME = "600";
 
+    /**
+     * Default negative cache size (in entries)
+     */
+    private static final String DEFAULT_VALUE_NEGATIVE_CACHE_SIZE = "10000";
+
+    /**
+     * Default negative cache entry lifetime in seconds for failed login credentials
+     */
+    private static final String DEFAULT_VALUE_NEGATIVE_CACHING_TIME = "60";
+
+    /**
+     * Default for the maximum number of negative cache entries per username
+     */
+    private static final String DEFAULT_VALUE_NEGATIVE_CACHE_MAX_PER_USERNAME = "5";
+
+    /**
+     * Default time in seconds before the expiry of a cache entry in which it is refreshed in the background
+     */
+    private static final String DEFAULT_VALUE_REFRESH_AHEAD_TIME = "60";
+
+    /**
+     * Default for the maximum number of concurrent background refreshes
+     */
+    private static final String DEFAULT_VALUE_REFRESH_AHEAD_CONCURRENCY = "2";
+
+    /**
+     * Default for the maximum time in milliseconds a login waits for a running verification of the same credentials
+     */
+    private static final String DEFAULT_VALUE_COALESCING_MAX_WAIT = "5000";
+
+    /**
+     * Default for the maximum memory usage of the caches in bytes, 0 limits the caches by their number of entries
+     */
+    private static final String DEFAULT_VALUE_CACHE_MAX_BYTES = "0";
+
+    /**
+     * Default for the name of the file with the most frequently authenticated users
+     */
+    private static final String DEFAULT_VALUE_HOT_USERS_FILENAME = "fileAuthHotUsers.txt";
+
+    /**
+     * Default for the number of users which are written to the hot users file
+     */
+    private static final String DEFAULT_VALUE_HOT_USERS_SIZE = "1000";
+
+    /**
+     * Default for the interval in seconds in which the hot users file is written
+     */
+    private static final String DEFAULT_VALUE_HOT_USERS_PERSIST_INTERVAL = "600";
+
+    /**
+     * Default for the heap usage after a garbage collection in percent, from which on the caches are shrunk
+     */
+    private static final String DEFAULT_VALUE_HEAP_PRESSURE_THRESHOLD = "0";
+
+    /**
+     * Default for the number of logins which wait for a verification thread
+     */
+    private static final String DEFAULT_VALUE_VERIFICATION_QUEUE_SIZE = "1000";
+
+    /**
+     * Default for the maximum time in milliseconds a login waits for its verification
+     */
+    private static final String DEFAULT_VALUE_VERIFICATION_TIMEOUT = "10000";
+
+    /**
+     * Default for the maximum time in milliseconds the warm-up at startup may take
+     */
+    private static final String DEFAULT_VALUE_WARM_UP_BUDGET = "5000";
+
+    /**
+     * Default for the algorithm and parameters of rehashed entries
+     */
+    private static final String DEFAULT_VALUE_REHASH_TARGET = "$pbkdf2-sha256$i=600000";
+
+    /**
+     * Default for the lifetime in seconds of session tokens
+     */
+    private static final String DEFAULT_VALUE_SESSION_TOKEN_LIFETIME = "600";
+
     /**
      * Default for the number of Hashing Iterations
      */
@@ -68,6 +154,12 @@ public class Configuration extends ReloadingPropertiesReader {
     private RestartListener listener;
     private CredentialsConfiguration credentialsConfiguration;
 
+    /**
+     * refreshAhead.seconds and cachingTime.seconds, which were last warned about, so a limited refresh ahead time is
+     * only warned about once per change of the settings
+     */
+    private volatile String warnedRefreshAheadTime;
+
 
 
     @Inject
@@ -79,25 +171,59 @@ public class Configuration extends ReloadingPropertiesReader {
 
         init();
 
-        final ValueChangedCallback callback = new ValueChangedCallback() {
+        final ValueChangedCallback<String> restartCallback = new ValueChangedCallback<String>() {
             @Override
-            public void valueChanged(final Object newValue) {
+            public void valueChanged(final String newValue) {
                 if (listener != null) {
                     listener.restart();
                 }
             }
         };
 
-        addCallback("filename", callback);
-        addCallback("reloadCredentialsInterval.seconds", callback);
-        addCallback("passwordHashing.enabled", callback);
-        addCallback("passwordHashing.iterations", callback);
-        addCallback("passwordHashing.algorithm", callback);
-        addCallback("passwordHashingSalt.separationChar", callback);
-        addCallback("passwordHashingSalt.enabled", callback);
-        addCallback("passwordHashingSalt.isFirst", callback);
-        addCallback("cachingTime.seconds", callback);
-        addCallback("cacheSize", callback);
+        final ValueChangedCallback<String> cacheCallback = new ValueChangedCallback<String>() {
+            @Override
+            public void valueChanged(final String newValue) {
+                if (listener != null) {
+                    listener.cacheSettingsChanged();
+                }
+            }
+        };
+
+        // settings which affect the result of a verification
+        addCallback("filename", restartCallback);
+        addCallback("passwordHashing.enabled", restartCallback);
+        addCallback("passwordHashing.iterations", restartCallback);
+        addCallback("passwordHashing.algorithm", restartCallback);
+        addCallback("passwordHashingSalt.separationChar", restartCallback);
+        addCallback("passwordHashingSalt.enabled", restartCallback);
+        addCallback("passwordHashingSalt.isFirst", restartCallback);
+        addCallback("passwordHashing.engine", restartCallback);
+        addCallback("passwordHashing.provider", restartCallback);
+
+        // settings which only affect the size and lifetime of the cache entries
+        addCallback("cachingTime.seconds", cacheCallback);
+        addCallback("cacheSize", cacheCallback);
+        addCallback("negativeCache.seconds", cacheCallback);
+        addCallback("negativeCache.size", cacheCallback);
+        addCallback("negativeCache.maxPerUsername", cacheCallback);
+        addCallback("refreshAhead.enabled", cacheCallback);
+        addCallback("refreshAhead.seconds", cacheCallback);
+        addCallback("refreshAhead.concurrency", cacheCallback);
+        addCallback("coalescing.maxWait.millis", cacheCallback);
+        addCallback("cache.maxBytes", cacheCallback);
+        addCallback("negativeCache.maxBytes", cacheCallback);
+        addCallback("cache.heapPressureThreshold.percent", cacheCallback);
+
+        // settings which only affect where the verifications are executed
+        addCallback("verification.threads", cacheCallback);
+        addCallback("verification.queueSize", cacheCallback);
+        addCallback("verification.timeout.millis", cacheCallback);
+
+        // settings which only affect what happens after a successful login
+        addCallback("rehash.enabled", cacheCallback);
+        addCallback("rehash.target", cacheCallback);
+        addCallback("sessionToken.enabled", cacheCallback);
+        addCallback("sessionToken.lifetime.seconds", cacheCallback);
 
     }
 
@@ -107,6 +233,7 @@ public class Configuration extends ReloadingPropertiesReader {
         final Optional<String> filename = Optional.fromNullable(getCredentialsFilename());
         if (filename.isPresent() && new File(systemInformation.getConfigFolder(), filename.get()).exists()) {
             credentialsConfiguration = new CredentialsConfiguration(pluginExecutorService, getCredentialsFilename(), getReloadInterval(),systemInformation);
+            credentialsConfiguration.setOffHeap(isCredentialsOffHeap());
             credentialsConfiguration.init();
         } else {
             throw new ConfigurationFileNotFoundException("Credentials file " + filename.get() + " was not found in plugin folder:" + systemInformation.getConfigFolder().getAbsolutePath());
@@ -121,6 +248,10 @@ public class Configuration extends ReloadingPropertiesReader {
         return Integer.parseInt(properties.getProperty("reloadCredentialsInterval.seconds", DEFAULT_VALUE_RELOAD));
     }
 
+    public boolean isCredentialsOffHeap() {
+        return Boolean.parseBoolean(properties.getProperty("credentials.offHeap", "false"));
+    }
+
     public int getCachingTime() {
         return Integer.parseInt(properties.getProperty("cachingTime.seconds", DEFAULT_VALUE_CACHING_TIME));
     }
@@ -129,8 +260,128 @@ public class Configuration extends ReloadingPropertiesReader {
         return Integer.parseInt(properties.getProperty("cacheSize", DEFAULT_VALUE_CACHE_SIZE));
     }
 
+    public int getNegativeCachingTime() {
+        return Integer.parseInt(properties.getProperty("negativeCache.seconds", DEFAULT_VALUE_NEGATIVE_CACHING_TIME));
+    }
+
+    public int getNegativeCacheSize() {
+        return Integer.parseInt(properties.getProperty("negativeCache.size", DEFAULT_VALUE_NEGATIVE_CACHE_SIZE));
+    }
+
+    public int getNegativeCacheMaxPerUsername() {
+        return Integer.parseInt(properties.getProperty("negativeCache.maxPerUsername", DEFAULT_VALUE_NEGATIVE_CACHE_MAX_PER_USERNAME));
+    }
+
+    public boolean isRefreshAheadEnabled() {
+        return Boolean.parseBoolean(properties.getProperty("refreshAhead.enabled", "false"));
+    }
+
+    /**
+     * The refresh ahead window is limited to half of the caching time. A window as long as the caching time would
+     * refresh the credentials on every login and make the cache useless. The limit is warned about once, when the
+     * settings are loaded or changed, not on every call.
+     *
+     * @return the time in seconds before the expiry of a cached successful login, in which it is refreshed
+     */
+    public int getRefreshAheadTime() {
+        final int refreshAheadTime = Integer.parseInt(properties.getProperty("refreshAhead.seconds", DEFAULT_VALUE_REFRESH_AHEAD_TIME));
+        final int cachingTime = getCachingTime();
+        final int maxRefreshAheadTime = cachingTime / 2;
+        if (refreshAheadTime > maxRefreshAheadTime) {
+            final String settings = refreshAheadTime + "/" + cachingTime;
+            if (!settings.equals(warnedRefreshAheadTime)) {
+                warnedRefreshAheadTime = settings;
+                log.warn("refreshAhead.seconds ({}) must be at most half of cachingTime.seconds ({}), using {}",
+                        refreshAheadTime, cachingTime, maxRefreshAheadTime);
+            }
+            return maxRefreshAheadTime;
+        }
+        return refreshAheadTime;
+    }
+
+    public int getRefreshAheadConcurrency() {
+        return Integer.parseInt(properties.getProperty("refreshAhead.concurrency", DEFAULT_VALUE_REFRESH_AHEAD_CONCURRENCY));
+    }
+
+    public int getCoalescingMaxWait() {
+        return Integer.parseInt(properties.getProperty("coalescing.maxWait.millis", DEFAULT_VALUE_COALESCING_MAX_WAIT));
+    }
+
+    public long getCacheMaxBytes() {
+        return Long.parseLong(properties.getProperty("cache.maxBytes", DEFAULT_VALUE_CACHE_MAX_BYTES));
+    }
+
+    public long getNegativeCacheMaxBytes() {
+        return Long.parseLong(properties.getProperty("negativeCache.maxBytes", DEFAULT_VALUE_CACHE_MAX_BYTES));
+    }
+
+    public int getHeapPressureThreshold() {
+        return Integer.parseInt(properties.getProperty("cache.heapPressureThreshold.percent", DEFAULT_VALUE_HEAP_PRESSURE_THRESHOLD));
+    }
+
+    /**
+     * @return the number of threads which verify passwords, 0 verifies them on the thread of the login, defaults to
+     * the number of available processors
+     */
+    public int getVerificationThreads() {
+        final String threads = properties.getProperty("verification.threads");
+        return threads == null ? Runtime.getRuntime().availableProcessors() : Integer.parseInt(threads);
+    }
+
+    public int getVerificationQueueSize() {
+        return Integer.parseInt(properties.getProperty("verification.queueSize", DEFAULT_VALUE_VERIFICATION_QUEUE_SIZE));
+    }
+
+    public long getVerificationTimeout() {
+        return Long.parseLong(properties.getProperty("verification.timeout.millis", DEFAULT_VALUE_VERIFICATION_TIMEOUT));
+    }
+
+    public boolean isRehashEnabled() {
+        return Boolean.parseBoolean(properties.getProperty("rehash.enabled", "false"));
+    }
+
+    public String getRehashTarget() {
+        return properties.getProperty("rehash.target", DEFAULT_VALUE_REHASH_TARGET);
+    }
+
+    public boolean isSessionTokenEnabled() {
+        return Boolean.parseBoolean(properties.getProperty("sessionToken.enabled", "false"));
+    }
+
+    public long getSessionTokenLifetime() {
+        return Long.parseLong(properties.getProperty("sessionToken.lifetime.seconds", DEFAULT_VALUE_SESSION_TOKEN_LIFETIME));
+    }
+
+    public boolean isWarmUpEnabled() {
+        return Boolean.parseBoolean(properties.getProperty("warmUp.enabled", "false"));
+    }
+
+    public long getWarmUpBudget() {
+        return Long.parseLong(properties.getProperty("warmUp.budget.millis", DEFAULT_VALUE_WARM_UP_BUDGET));
+    }
+
+    public String getHotUsersFilename() {
+        return properties.getProperty("hotUsers.filename", DEFAULT_VALUE_HOT_USERS_FILENAME);
+    }
+
+    public int getHotUsersSize() {
+        return Integer.parseInt(properties.getProperty("hotUsers.size", DEFAULT_VALUE_HOT_USERS_SIZE));
+    }
+
+    public int getHotUsersPersistInterval() {
+        return Integer.parseInt(properties.getProperty("hotUsers.persistInterval.seconds", DEFAULT_VALUE_HOT_USERS_PERSIST_INTERVAL));
+    }
+
     public boolean isHashed() {
-        return Boolean.parseBoolean(properties.getProperty("passwordHashing.enabled", "true"));
+        return isHashed(properties);
+    }
+
+    public String getHashingEngine() {
+        return properties.getProperty("passwordHashing.engine", "jasypt");
+    }
+
+    public String getHashingProvider() {
+        return properties.getProperty("passwordHashing.provider", "BC");
     }
 
     public int getHashingIterations() {
@@ -142,14 +393,42 @@ public class Configuration extends ReloadingPropertiesReader {
     }
 
     public String getSeparationChar() {
-        return properties.getProperty("passwordHashingSalt.separationChar", "$");
+        return getSeparationChar(properties);
     }
 
     public boolean isSalted() {
-        return Boolean.parseBoolean(properties.getProperty("passwordHashingSalt.enabled", "true"));
+        return isSalted(properties);
     }
 
     public boolean isSaltFirst() {
+        return isSaltFirst(properties);
+    }
+
+    /**
+     * Reads the settings, which the digest entries of the credential file are parsed with, from the properties of
+     * a configuration file, which is not loaded by the plugin, for example by the {@link CredentialFileCompiler}.
+     *
+     * @param properties the properties of the configuration file
+     * @return the settings
+     */
+    static DigestSettings readDigestSettings(final Properties properties) {
+        return new DigestSettings(isHashed(properties), isSalted(properties), isSaltFirst(properties),
+                getSeparationChar(properties));
+    }
+
+    private static boolean isHashed(final Properties properties) {
+        return Boolean.parseBoolean(properties.getProperty("passwordHashing.enabled", "true"));
+    }
+
+    private static String getSeparationChar(final Properties properties) {
+        return properties.getProperty("passwordHashingSalt.separationChar", "$");
+    }
+
+    private static boolean isSalted(final Properties properties) {
+        return Boolean.parseBoolean(properties.getProperty("passwordHashingSalt.enabled", "true"));
+    }
+
+    private static boolean isSaltFirst(final Properties properties) {
         return Boolean.parseBoolean(properties.getProperty("passwordHashingSalt.isFirst", "true"));
     }
 
@@ -157,6 +436,10 @@ public class Configuration extends ReloadingPropertiesReader {
         return credentialsConfiguration.getUser(username);
     }
 
+    public HashedSaltedPassword getCompiledEntry(final String username) throws PasswordFormatException {
+        return credentialsConfiguration.getCompiledEntry(username);
+    }
+
     @Override
     public String getFilename() {
         return "fileAuthConfiguration.properties";
@@ -178,8 +461,17 @@ public class Configuration extends ReloadingPropertiesReader {
 
     public static interface RestartListener {
 
+        /**
+         * Called if a setting changed which affects the result of a verification. Cached results must be discarded.
+         */
         public void restart();
 
+        /**
+         * Called if a setting changed which only affects the size or lifetime of the cache entries. Cached results
+         * are still valid.
+         */
+        public void cacheSettingsChanged();
+
     }
 
     public CredentialsConfiguration getCredentialsConfiguration() {
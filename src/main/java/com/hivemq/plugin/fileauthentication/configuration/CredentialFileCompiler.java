@@ -0,0 +1,109 @@
+/*
+ * Copyright 2015 dc-square GmbH
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.hivemq.plugin.fileauthentication.configuration;
+
+import com.hivemq.spi.annotations.Nullable;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * Command line tool, which compiles a credential file in the .properties format into a compiled credential file.
+ * The plugin maps a compiled credential file into memory instead of parsing it and compiles its entries on lookup,
+ * so loading it takes the same time for any number of users. Entries, which describe their hashing parameters themselves, are stored decoded, so they
+ * are not parsed on login either. If the plugin configuration is given, all other hashed entries are stored decoded with
+ * its hashing settings too, the plugin only uses them while its settings are the same. The compiled file is written to a
+ * temporary file first and renamed atomically, so the plugin never maps a partially written file.
+ * <p/>
+ * Usage: <code>java -cp file-auth-plugin.jar:guava.jar:bcprov.jar
+ * com.hivemq.plugin.fileauthentication.configuration.CredentialFileCompiler CREDENTIALS_PROPERTIES COMPILED_FILE
+ * [PLUGIN_CONFIGURATION]</code>
+ */
+public class CredentialFileCompiler {
+
+    public static void main(final String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("Usage: CredentialFileCompiler CREDENTIALS_PROPERTIES COMPILED_FILE [PLUGIN_CONFIGURATION]");
+            System.exit(1);
+        }
+        DigestSettings settings = null;
+        if (args.length > 2) {
+            final Properties pluginConfiguration = new Properties();
+            try (FileReader reader = new FileReader(args[2])) {
+                pluginConfiguration.load(reader);
+            }
+            settings = Configuration.readDigestSettings(pluginConfiguration);
+        }
+        final OffHeapCredentialTable table = compile(new File(args[0]), new File(args[1]), settings);
+        for (Map.Entry<String, String> error : table.getErrors().entrySet()) {
+            System.err.println(String.format(Locale.ENGLISH, "The entry of user '%s' could not be parsed: %s",
+                    error.getKey(), error.getValue()));
+        }
+        System.out.println(String.format(Locale.ENGLISH, "Compiled the credentials of %d users into %s (%d bytes)",
+                table.size(), args[1], new File(args[1]).length()));
+    }
+
+    /**
+     * Compiles the credential file without hashing settings.
+     *
+     * @see #compile(File, File, DigestSettings)
+     */
+    static OffHeapCredentialTable compile(final File propertiesFile, final File compiledFile) throws IOException {
+        return compile(propertiesFile, compiledFile, null);
+    }
+
+    /**
+     * Compiles the credential file. The lines are copied into the compiled credentials while they are parsed, they
+     * are not collected on the heap.
+     *
+     * @param propertiesFile the credential file in the .properties format
+     * @param compiledFile   the compiled credential file, which is created or replaced
+     * @param settings       the hashing settings of the plugin, which the entries are decoded with, or null to only
+     *                       decode the entries with their own hashing parameters
+     * @return the compiled credentials
+     * @throws IOException if a file could not be read or written
+     */
+    static OffHeapCredentialTable compile(final File propertiesFile, final File compiledFile,
+                                          @Nullable final DigestSettings settings) throws IOException {
+        final OffHeapCredentialTable.Builder builder = new OffHeapCredentialTable.Builder(settings, OffHeapCredentialTable.NO_GENERATION,
+                propertiesFile.length());
+        final OffHeapCredentialTable table;
+        try (BufferedReader reader = new BufferedReader(new FileReader(propertiesFile))) {
+            PropertiesLineParser.parse(reader, new PropertiesLineParser.Handler() {
+                @Override
+                public void property(final String key, final String value, final int line) {
+                    builder.put(key, value, line);
+                }
+            });
+            table = builder.build();
+        } catch (IllegalArgumentException e) {
+            throw new IOException(e.getMessage());
+        }
+
+        final File tempFile = new File(compiledFile.getAbsoluteFile().getParentFile(), compiledFile.getName() + ".tmp");
+        table.writeTo(tempFile, settings);
+        Files.move(tempFile.toPath(), compiledFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return table;
+    }
+}
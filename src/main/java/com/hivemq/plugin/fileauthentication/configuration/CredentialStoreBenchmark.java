@@ -0,0 +1,186 @@
+/*
+ * Copyright 2015 dc-square GmbH
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.hivemq.plugin.fileauthentication.configuration;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Maps;
+import com.google.common.io.BaseEncoding;
+import com.hivemq.plugin.fileauthentication.authentication.HashedSaltedPassword;
+import com.hivemq.plugin.fileauthentication.exception.PasswordFormatException;
+
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Random;
+
+/**
+ * Command line tool, which stores synthetic credentials of the given number of users on the heap like the
+ * {@link CredentialsConfiguration} and in an {@link OffHeapCredentialTable}, and prints the bytes per user and the
+ * time per lookup of both stores. The entries have a salt of 16 bytes and a hash of 64 bytes, like salted SHA-512
+ * entries, and are compiled like with the default settings of the plugin.
+ * <p/>
+ * Usage: <code>java -Xmx4g -cp file-auth-plugin.jar:guava.jar:bcprov.jar
+ * com.hivemq.plugin.fileauthentication.configuration.CredentialStoreBenchmark USERS</code>
+ */
+public class CredentialStoreBenchmark {
+
+    private static final int LOOKUPS = 1_000_000;
+
+    /**
+     * Compiles the entries like the plugin with the default settings, the salt comes first
+     */
+    private static final DigestSettings COMPILER = new DigestSettings(true, true, true, "$");
+
+    private final int users;
+    private final BaseEncoding base64 = BaseEncoding.base64();
+
+    CredentialStoreBenchmark(final int users) {
+        this.users = users;
+    }
+
+    public static void main(final String[] args) throws PasswordFormatException {
+        if (args.length < 1) {
+            System.err.println("Usage: CredentialStoreBenchmark USERS");
+            System.exit(1);
+        }
+        final CredentialStoreBenchmark benchmark = new CredentialStoreBenchmark(Integer.parseInt(args[0]));
+
+        System.out.println(String.format(Locale.ENGLISH, "Credentials of %d users", benchmark.users));
+        System.out.println(String.format(Locale.ENGLISH, "%-10s %16s %18s %17s %10s",
+                "store", "heap bytes/user", "direct bytes/user", "total bytes/user", "lookup ns"));
+        benchmark.heapStore();
+        benchmark.offHeapStore();
+    }
+
+    /**
+     * Keeps the immutable copy of the properties and the compiled entries, like the {@link CredentialsConfiguration}
+     * on the heap. The loaded properties are not kept.
+     */
+    private void heapStore() throws PasswordFormatException {
+        final long before = usedHeap();
+        final Map<String, String> values = ImmutableMap.copyOf(Maps.fromProperties(generate()));
+        final Map<String, HashedSaltedPassword> compiledEntries = new HashMap<>();
+        for (Map.Entry<String, String> entry : values.entrySet()) {
+            compiledEntries.put(entry.getKey(), COMPILER.compile(entry.getValue()));
+        }
+        final long heapBytes = usedHeap() - before;
+
+        final long lookupNanos = measureLookups(values);
+        print("heap", heapBytes, 0, lookupNanos);
+        if (compiledEntries.size() != users) {
+            throw new IllegalStateException("Lost entries");
+        }
+    }
+
+    /**
+     * Builds the table with the compiled entries in its records, like the {@link CredentialsConfiguration} off heap.
+     * The direct memory is measured, so it includes the capacity the records were sized with.
+     */
+    private void offHeapStore() {
+        final long before = usedHeap();
+        final long directBefore = usedDirectMemory();
+        // the records are sized from the length the credential file would have, like when it is loaded
+        long fileLength = 0;
+        final Random lengthRandom = new Random(users);
+        for (int i = 0; i < users; i++) {
+            fileLength += ("user" + i).length() + entry(lengthRandom).length() + 2;
+        }
+        final OffHeapCredentialTable.Builder builder = new OffHeapCredentialTable.Builder(COMPILER, 0, fileLength);
+        final Random random = new Random(users);
+        for (int i = 0; i < users; i++) {
+            builder.put("user" + i, entry(random), i + 1);
+        }
+        final OffHeapCredentialTable table = builder.build();
+        final long heapBytes = usedHeap() - before;
+        final long directBytes = usedDirectMemory() - directBefore;
+
+        final long lookupNanos = measureLookups(table);
+        print("off-heap", heapBytes, directBytes, lookupNanos);
+        if (!table.getErrors().isEmpty()) {
+            throw new IllegalStateException("Entries could not be compiled: " + table.getErrors().size());
+        }
+    }
+
+    private Properties generate() {
+        final Random random = new Random(users);
+        final Properties properties = new Properties();
+        for (int i = 0; i < users; i++) {
+            properties.setProperty("user" + i, entry(random));
+        }
+        return properties;
+    }
+
+    private String entry(final Random random) {
+        final byte[] salt = new byte[16];
+        final byte[] hash = new byte[64];
+        random.nextBytes(salt);
+        random.nextBytes(hash);
+        return base64.encode(salt) + "$" + base64.encode(hash);
+    }
+
+    /**
+     * @return the average time of a lookup of a present username
+     */
+    private long measureLookups(final Map<String, String> store) {
+        final String[] usernames = new String[Math.min(users, 10_000)];
+        final Random random = new Random(0);
+        for (int i = 0; i < usernames.length; i++) {
+            usernames[i] = "user" + random.nextInt(users);
+        }
+
+        // the first round is not measured, so the lookups are compiled
+        lookup(store, usernames);
+        final long start = System.nanoTime();
+        lookup(store, usernames);
+        return (System.nanoTime() - start) / LOOKUPS;
+    }
+
+    private static void lookup(final Map<String, String> store, final String[] usernames) {
+        for (int i = 0; i < LOOKUPS; i++) {
+            if (!store.containsKey(usernames[i % usernames.length])) {
+                throw new IllegalStateException("Missing username " + usernames[i % usernames.length]);
+            }
+        }
+    }
+
+    private void print(final String store, final long heapBytes, final long directBytes, final long lookupNanos) {
+        System.out.println(String.format(Locale.ENGLISH, "%-10s %16d %18d %17d %10d", store,
+                Math.max(0, heapBytes) / users, directBytes / users, (Math.max(0, heapBytes) + directBytes) / users,
+                lookupNanos));
+    }
+
+    private static long usedDirectMemory() {
+        long used = 0;
+        for (BufferPoolMXBean bufferPool : ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class)) {
+            if ("direct".equals(bufferPool.getName())) {
+                used += bufferPool.getMemoryUsed();
+            }
+        }
+        return used;
+    }
+
+    private static long usedHeap() {
+        final Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
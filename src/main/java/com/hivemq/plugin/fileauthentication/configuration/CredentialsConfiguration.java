@@ -16,51 +16,807 @@
 
 package com.hivemq.plugin.fileauthentication.configuration;
 
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.MapDifference;
+import com.hivemq.plugin.fileauthentication.authentication.HashedSaltedPassword;
 import com.hivemq.plugin.fileauthentication.callback.CredentialChangeCallback;
+import com.hivemq.plugin.fileauthentication.exception.PasswordFormatException;
 import com.hivemq.spi.config.SystemInformation;
 import com.hivemq.spi.services.PluginExecutorService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import javax.inject.Inject;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.StringReader;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
 
 /**
  * @author Christian Götz
  */
 public class CredentialsConfiguration extends ReloadingPropertiesReader {
 
+    private static final Logger log = LoggerFactory.getLogger(CredentialsConfiguration.class);
+
+    private static final String JOURNAL_SEPARATOR = "\t";
+
+    /**
+     * The replacements are written at once if this many replacements are queued.
+     */
+    static final int MAX_PENDING_REPLACEMENTS = 1000;
+    private static final long FLUSH_DELAY_MILLIS = 1000;
+    private static final int MAX_REWRITE_ATTEMPTS = 3;
+
     private final String filename;
     private final int reloadSeconds;
     private final List<CredentialChangeCallback> callbacks;
-    private int previousCredentialsHash;
+    private final PluginExecutorService pluginExecutorService;
+    private final List<Replacement> pendingReplacements = new ArrayList<>();
+    private boolean flushScheduled;
+
+    private volatile boolean offHeap;
+    private volatile boolean compiledFile;
+    private volatile EntryCompiler entryCompiler;
+    /**
+     * Counts the changes of the entry compiler and its settings, off heap the records hold the entries compiled
+     * with the generation of their table
+     */
+    private volatile int generation;
+    private volatile CompiledEntries compiledEntries = new CompiledEntries(
+            Collections.<String, HashedSaltedPassword>emptyMap(), Collections.<String, String>emptyMap());
+    private volatile HotEntries hotEntries = new HotEntries(null, 0, Collections.<String>emptySet(),
+            Collections.<String, HashedSaltedPassword>emptyMap());
 
 
     @Inject
     public CredentialsConfiguration(final PluginExecutorService pluginExecutorService, final String filename, final int reloadSeconds, final SystemInformation systemInformation) {
         super(pluginExecutorService, systemInformation);
+        this.pluginExecutorService = pluginExecutorService;
         this.callbacks = new ArrayList<>();
         this.filename = filename;
         this.reloadSeconds = reloadSeconds;
     }
 
+    /**
+     * Stores the credentials in an {@link OffHeapCredentialTable} instead of the heap. The file is parsed line by
+     * line into the table and the decoded entries are stored in its records, so a lookup neither parses nor decodes
+     * the entry. Must be set before {@link #init()}.
+     *
+     * @param offHeap true to store the credentials in direct memory
+     */
+    public void setOffHeap(final boolean offHeap) {
+        this.offHeap = offHeap;
+    }
+
     public String getUser(final String username) {
+        final String pw = getValues().get(username);
+        if (pw == null || pw.isEmpty()) {
+            return null;
+        }
+        return pw;
+    }
+
+    /**
+     * Returns the entry of the user, as it was compiled when the credential file was loaded. Off heap the entry is
+     * read from its record, or compiled now if the record holds no entry compiled with the current settings.
+     *
+     * @param username the username
+     * @return the compiled entry, or null if the user is not present in the credential file
+     * @throws PasswordFormatException if the entry of the user could not be compiled, the message contains the line
+     */
+    public HashedSaltedPassword getCompiledEntry(final String username) throws PasswordFormatException {
+        final Map<String, String> values = getValues();
+        if (values instanceof OffHeapCredentialTable) {
+            final OffHeapCredentialTable table = (OffHeapCredentialTable) values;
+            final int currentGeneration = generation;
+            final String error = table.getGeneration() == currentGeneration ? table.getErrors().get(username) : null;
+            if (error != null) {
+                throw new PasswordFormatException(error);
+            }
+            final HotEntries hot = hotEntries;
+            if (hot.table == table && hot.generation == currentGeneration) {
+                final HashedSaltedPassword entry = hot.entries.get(username);
+                if (entry != null) {
+                    return entry;
+                }
+            }
+            return table.getCompiled(username, currentGeneration, entryCompiler);
+        }
+
+        final CompiledEntries current = compiledEntries;
+        final HashedSaltedPassword entry = current.entries.get(username);
+        if (entry != null) {
+            return entry;
+        }
+        final String error = current.errors.get(username);
+        if (error != null) {
+            throw new PasswordFormatException(error);
+        }
+        return null;
+    }
+
+    /**
+     * Prepares the entries of the given users, for example of the most frequently authenticated users before the
+     * last stop. On the heap all entries are already compiled. Off heap the entries of these users are compiled
+     * once and kept on the heap, so they are not compiled on every lookup, if their records do not hold them
+     * decoded. They are compiled again for the same users when the file is reloaded or the settings change.
+     *
+     * @param usernames the usernames, users which are not present in the credential file are skipped
+     * @return the number of users, which are present in the credential file
+     */
+    public synchronized int preload(final Collection<String> usernames) {
+        final Map<String, String> values = getValues();
+        if (!(values instanceof OffHeapCredentialTable)) {
+            final CompiledEntries current = compiledEntries;
+            int preloaded = 0;
+            for (String username : usernames) {
+                if (current.entries.containsKey(username)) {
+                    preloaded++;
+                }
+            }
+            return preloaded;
+        }
+
+        final OffHeapCredentialTable table = (OffHeapCredentialTable) values;
+        final int currentGeneration = generation;
+        final Map<String, HashedSaltedPassword> entries = new HashMap<>();
+        for (String username : usernames) {
+            try {
+                final HashedSaltedPassword entry = table.getCompiled(username, currentGeneration, entryCompiler);
+                if (entry != null) {
+                    entries.put(username, entry);
+                }
+            } catch (PasswordFormatException e) {
+                log.debug("Entry of user '{}' could not be preloaded: {}", username, e.getMessage());
+            }
+        }
+        hotEntries = new HotEntries(table, currentGeneration, ImmutableSet.copyOf(usernames), entries);
+        return entries.size();
+    }
+
+    /**
+     * Compiles the entries of the preloaded users again with the current table and settings.
+     */
+    private void preloadAgain() {
+        final Set<String> usernames = hotEntries.usernames;
+        if (!usernames.isEmpty()) {
+            preload(usernames);
+        }
+    }
+
+    /**
+     * Sets the compiler of the entries and compiles the entries with it, see {@link #recompile()}.
+     *
+     * @param entryCompiler the compiler, which knows the format of the entries
+     */
+    public void setEntryCompiler(final EntryCompiler entryCompiler) {
+        this.entryCompiler = entryCompiler;
+        recompile();
+    }
+
+    /**
+     * Compiles all entries again, for example after the format of the entries changed.
+     * Entries with a wrong format are logged with their line.
+     * <p/>
+     * Off heap nothing is compiled here, so neither the start nor a change of the settings waits for millions of
+     * entries. The entries are compiled on lookup, until the file is read into a new table in the background, whose
+     * records hold the entries compiled with the current settings. A compiled credential file is mapped again in
+     * the background, its decoded digest entries are only used if they were compiled with the current settings,
+     * otherwise they are compiled on lookup.
+     */
+    public synchronized void recompile() {
+        generation++;
+        final Map<String, String> values = getValues();
+        if (!(values instanceof OffHeapCredentialTable)) {
+            compile(values, new CompiledEntries(Collections.<String, HashedSaltedPassword>emptyMap(),
+                    Collections.<String, String>emptyMap()));
+            return;
+        }
+        preloadAgain();
+        try {
+            pluginExecutorService.execute(new Runnable() {
+                @Override
+                public void run() {
+                    forceReload();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            log.debug("Not able to compile the off heap credentials, they are compiled on lookup", e);
+        }
+    }
+
+    /**
+     * Compiles the changed entries and keeps the compiled entries of all other users. The new entries are built
+     * aside and replace the previous entries at once.
+     *
+     * @param changedEntries the changed entries by username, null for removed users
+     * @param base           the compiled entries, which are kept for unchanged users
+     */
+    private void compile(final Map<String, String> changedEntries, final CompiledEntries base) {
+        final EntryCompiler compiler = entryCompiler;
+        if (compiler == null) {
+            return;
+        }
+
+        final Map<String, HashedSaltedPassword> entries = new HashMap<>(base.entries);
+        final Map<String, String> errors = new HashMap<>(base.errors);
+        final Map<String, String> newErrors = new LinkedHashMap<>();
+        for (Map.Entry<String, String> changedEntry : changedEntries.entrySet()) {
+            final String username = changedEntry.getKey();
+            entries.remove(username);
+            errors.remove(username);
+            final String entry = changedEntry.getValue();
+            if (entry == null || entry.isEmpty()) {
+                continue;
+            }
+            try {
+                final HashedSaltedPassword compiledEntry = compiler.compile(entry);
+                if (compiledEntry != null) {
+                    entries.put(username, compiledEntry);
+                }
+            } catch (PasswordFormatException e) {
+                newErrors.put(username, e.getMessage());
+            }
+        }
 
-        String pw = properties.getProperty(username);
-        if ((pw == null) || (pw.equals(""))) {
+        if (!newErrors.isEmpty()) {
+            final Map<String, Integer> lines = findLines(newErrors.keySet());
+            for (Map.Entry<String, String> newError : newErrors.entrySet()) {
+                final Integer line = lines.get(newError.getKey());
+                log.warn("The entry of user '{}' in line {} of credential file {} could not be parsed: {}",
+                        newError.getKey(), line == null ? "?" : line, getFile().getAbsolutePath(), newError.getValue());
+                errors.put(newError.getKey(), "Line " + (line == null ? "?" : line) + ": " + newError.getValue());
+            }
+        }
+
+        compiledEntries = new CompiledEntries(entries, errors);
+        log.debug("Compiled {} credential entries, {} entries with a wrong format", changedEntries.size(), newErrors.size());
+    }
+
+    /**
+     * Finds the lines of the given users in the credential file. If a user is present in several lines, the last
+     * line is returned, because it is the one which is used.
+     *
+     * @param usernames the usernames
+     * @return the line numbers, starting with 1, by username
+     */
+    private Map<String, Integer> findLines(final Set<String> usernames) {
+        final Map<String, Integer> lines = new HashMap<>();
+        try {
+            final List<String> fileLines = Files.readAllLines(getFile().toPath(), Charset.defaultCharset());
+            int i = 0;
+            while (i < fileLines.size()) {
+                final int firstLine = i;
+                final StringBuilder logicalLine = new StringBuilder(fileLines.get(i));
+                while (endsWithContinuation(fileLines.get(i)) && i + 1 < fileLines.size()) {
+                    i++;
+                    logicalLine.append('\n').append(fileLines.get(i));
+                }
+                i++;
+                final Properties lineProperties = new Properties();
+                lineProperties.load(new StringReader(logicalLine.toString()));
+                for (String username : lineProperties.stringPropertyNames()) {
+                    if (usernames.contains(username)) {
+                        lines.put(username, firstLine + 1);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            log.debug("Not able to find the lines of the entries with a wrong format", e);
+        }
+        return lines;
+    }
+
+
+    /**
+     * Maps the credential file into memory, if it was compiled with {@link CredentialFileCompiler}. Only the header
+     * of the file is read. Otherwise the lines of the file are copied into an {@link OffHeapCredentialTable} while
+     * they are parsed, if the credentials are stored off heap.
+     */
+    @Override
+    protected Map<String, String> readValues(final File file) throws IOException {
+        compiledFile = OffHeapCredentialTable.isCompiled(file);
+        if (compiledFile) {
+            final EntryCompiler compiler = entryCompiler;
+            final OffHeapCredentialTable table = OffHeapCredentialTable.map(file,
+                    compiler == null ? null : compiler.getDigestSettings(), generation);
+            log.debug("Mapped the compiled credentials of {} user(s) from {}", table.size(), file.getAbsolutePath());
+            return table;
+        }
+        if (!offHeap) {
+            return null;
+        }
+
+        final Map<String, String> previousValues = getValues();
+        final Map<String, String> previousErrors = previousValues instanceof OffHeapCredentialTable
+                ? ((OffHeapCredentialTable) previousValues).getErrors() : Collections.<String, String>emptyMap();
+        final OffHeapCredentialTable.Builder builder = new OffHeapCredentialTable.Builder(entryCompiler, generation, file.length());
+        final OffHeapCredentialTable table;
+        try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
+            PropertiesLineParser.parse(reader, new PropertiesLineParser.Handler() {
+                @Override
+                public void property(final String key, final String value, final int line) {
+                    builder.put(key, value, line);
+                }
+            });
+            table = builder.build();
+        } catch (IllegalArgumentException e) {
+            log.error("Not able to store the credentials off heap, they are stored on the heap: {}", e.getMessage());
             return null;
         }
-        return properties.getProperty(username);
+
+        // errors, which were already logged by the previous load, are not logged again
+        for (Map.Entry<String, String> error : table.getErrors().entrySet()) {
+            if (!error.getValue().equals(previousErrors.get(error.getKey()))) {
+                log.warn("The entry of user '{}' in credential file {} could not be parsed: {}",
+                        error.getKey(), file.getAbsolutePath(), error.getValue());
+            }
+        }
+        log.debug("Stored the credentials of {} user(s) in {} bytes off heap", table.size(), table.sizeInBytes());
+        return table;
+    }
+
+    /**
+     * @return true if the credentials are not stored on the heap, so their compiled entries are not kept either,
+     * the records hold them
+     */
+    private boolean isOffHeap() {
+        return getValues() instanceof OffHeapCredentialTable;
+    }
+
+    /**
+     * The loaded properties are never kept, the credentials are only read from their immutable copy, so they are not
+     * kept twice on the heap and no lookup locks the synchronized {@link Properties}.
+     */
+    @Override
+    protected boolean isRetainingProperties() {
+        return false;
+    }
+
+    /**
+     * Compares the records of the tables before and after the reload by their hashes and bytes, if both are stored
+     * off heap, so the credentials are not copied onto the heap to find the changed users. Compiled credential files
+     * with the same checksum are not compared at all.
+     */
+    @Override
+    void afterReload(final Map<String, String> oldValues, final Map<String, String> newValues) {
+        if (newValues instanceof OffHeapCredentialTable) {
+            preloadAgain();
+        }
+        if (oldValues instanceof OffHeapCredentialTable && newValues instanceof OffHeapCredentialTable) {
+            final OffHeapCredentialTable oldTable = (OffHeapCredentialTable) oldValues;
+            final OffHeapCredentialTable newTable = (OffHeapCredentialTable) newValues;
+            if (newTable.getChecksum() != OffHeapCredentialTable.UNKNOWN_CHECKSUM
+                    && newTable.getChecksum() == oldTable.getChecksum()) {
+                return;
+            }
+            notifyCallbacks(newTable.changedUsernames(oldTable));
+        } else {
+            super.afterReload(oldValues, newValues);
+        }
+    }
+
+    /**
+     * Compiles the entries, which were added or changed by the reload, and notifies the
+     * {@link CredentialChangeCallback}s with the usernames whose entries were added, changed or removed.
+     * The callbacks are not called if no entry changed.
+     *
+     * @param difference the difference between the credentials before and after the reload
+     */
+    @Override
+    void afterReload(final MapDifference<String, String> difference) {
+        if (difference.areEqual()) {
+            return;
+        }
+
+        final Map<String, String> changedEntries = new HashMap<>();
+        for (Map.Entry<String, MapDifference.ValueDifference<String>> entry : difference.entriesDiffering().entrySet()) {
+            changedEntries.put(entry.getKey(), entry.getValue().rightValue());
+        }
+        changedEntries.putAll(difference.entriesOnlyOnRight());
+        for (String username : difference.entriesOnlyOnLeft().keySet()) {
+            changedEntries.put(username, null);
+        }
+        synchronized (this) {
+            // off heap the records hold the compiled entries
+            if (!isOffHeap()) {
+                compile(changedEntries, compiledEntries);
+            }
+        }
+
+        notifyCallbacks(ImmutableSet.<String>builder()
+                .addAll(difference.entriesDiffering().keySet())
+                .addAll(difference.entriesOnlyOnLeft().keySet())
+                .addAll(difference.entriesOnlyOnRight().keySet())
+                .build());
+    }
+
+    private void notifyCallbacks(final Set<String> changedUsernames) {
+        if (changedUsernames.isEmpty()) {
+            return;
+        }
+        log.debug("Credentials of {} user(s) changed", changedUsernames.size());
+
+        for (CredentialChangeCallback credentialChangeCallback : callbacks) {
+            credentialChangeCallback.onCredentialChange(changedUsernames);
+        }
     }
 
+    /**
+     * Compiled credential files store the checksum of their content in their header, so they are not read
+     * completely to tell whether they changed.
+     */
+    @Override
+    protected long readStoredChecksum(final File file) throws IOException {
+        return OffHeapCredentialTable.readChecksum(file);
+    }
 
+    /**
+     * Loads the credential file and applies the replacements of the journal, which did not reach the credential file
+     * before the last stop.
+     */
     @Override
-    void afterReload() {
-        if (this.hashCode() != previousCredentialsHash) {
-            for (CredentialChangeCallback credentialChangeCallback : callbacks) {
-                credentialChangeCallback.onCredentialChange();
+    public void init() {
+        super.init();
+        if (compiledFile) {
+            return;
+        }
+        try {
+            replayJournal();
+        } catch (IOException e) {
+            log.error("Not able to replay the journal of credential file {}: {}", getFile().getAbsolutePath(), e.getMessage());
+        }
+    }
+
+    /**
+     * Queues the replacement of the entry of a user in the credential file. The replacement is appended to a journal
+     * first, the queued replacements are then written together by {@link #flushReplacements()} shortly after, or at
+     * once if {@link #MAX_PENDING_REPLACEMENTS} are queued. An entry is only replaced if it was not changed in the
+     * meantime.
+     *
+     * @param username the username
+     * @param oldEntry the expected current entry of the user
+     * @param newEntry the new entry of the user
+     * @return true if the replacement was queued, false if the entry changed in the meantime, a replacement of the
+     * user is already queued or the entry can not be replaced, like all entries of compiled credential files
+     * @throws IOException if the journal could not be written
+     */
+    public synchronized boolean replaceEntry(final String username, final String oldEntry, final String newEntry) throws IOException {
+        if (compiledFile) {
+            return false;
+        }
+        // the new entry is written into the credential file as it is, so it must not contain escapes or line breaks
+        if (newEntry.contains("\\") || newEntry.contains("\n") || newEntry.contains("\r")) {
+            return false;
+        }
+        if (!oldEntry.equals(getUser(username))) {
+            return false;
+        }
+        for (Replacement pending : pendingReplacements) {
+            if (pending.username.equals(username)) {
+                return false;
+            }
+        }
+
+        try (BufferedWriter journal = Files.newBufferedWriter(getJournalFile().toPath(), Charsets.ISO_8859_1,
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
+            journal.write(escapeJournal(username) + JOURNAL_SEPARATOR + escapeJournal(oldEntry) + JOURNAL_SEPARATOR
+                    + escapeJournal(newEntry) + "\n");
+        }
+        pendingReplacements.add(new Replacement(username, oldEntry, newEntry));
+
+        if (pendingReplacements.size() >= MAX_PENDING_REPLACEMENTS) {
+            flushReplacements();
+        } else if (!flushScheduled) {
+            flushScheduled = true;
+            pluginExecutorService.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        flushReplacements();
+                    } catch (IOException e) {
+                        log.error("Not able to write the replaced entries to credential file {}: {}",
+                                getFile().getAbsolutePath(), e.getMessage());
+                    }
+                }
+            }, FLUSH_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+        }
+        return true;
+    }
+
+    /**
+     * Writes all queued replacements to the credential file at once. The credential file is read once, written to a
+     * unique temporary file and atomically renamed, so readers, like other HiveMQ nodes sharing the file, never see a
+     * partially written file. If the credential file was changed while the replacements were applied, for example by
+     * an administrator, it is read again, so the change is not reverted. Afterwards the file is reloaded like after any
+     * other change and the journal is truncated.
+     *
+     * @return the number of replaced entries
+     * @throws IOException if the credential file could not be written, the replacements stay queued in this case
+     */
+    public synchronized int flushReplacements() throws IOException {
+        flushScheduled = false;
+        if (pendingReplacements.isEmpty()) {
+            return 0;
+        }
+        final List<Replacement> replacements = new ArrayList<>(pendingReplacements);
+
+        for (int attempt = 0; attempt < MAX_REWRITE_ATTEMPTS; attempt++) {
+            final int replaced = rewrite(replacements);
+            if (replaced < 0) {
+                log.debug("Credential file {} changed while the entries were replaced, replacing them again",
+                        getFile().getAbsolutePath());
+                continue;
+            }
+            pendingReplacements.clear();
+            if (replaced > 0) {
+                log.info("Replaced the entries of {} user(s) in credential file {}", replaced, getFile().getAbsolutePath());
+                reload();
+            }
+            truncateJournal();
+            return replaced;
+        }
+        throw new IOException("Credential file " + getFile().getAbsolutePath() + " changed on every attempt to replace entries");
+    }
+
+    /**
+     * Queues all replacements of the journal and writes them. Replacements whose old entry is no longer present in
+     * the credential file are dropped.
+     */
+    private void replayJournal() throws IOException {
+        final File journalFile = getJournalFile();
+        if (!journalFile.exists()) {
+            return;
+        }
+        synchronized (this) {
+            for (String line : Files.readAllLines(journalFile.toPath(), Charsets.ISO_8859_1)) {
+                final String[] replacement = line.split(JOURNAL_SEPARATOR, -1);
+                if (replacement.length != 3) {
+                    continue;
+                }
+                try {
+                    pendingReplacements.add(new Replacement(unescapeJournal(replacement[0]),
+                            unescapeJournal(replacement[1]), unescapeJournal(replacement[2])));
+                } catch (IllegalArgumentException e) {
+                    log.warn("Skipped a malformed line of the journal of credential file {}", getFile().getAbsolutePath());
+                }
+            }
+            final int replayed = flushReplacements();
+            if (replayed > 0) {
+                log.info("Applied the replacements of the entries of {} user(s) from the journal", replayed);
+            }
+        }
+    }
+
+    /**
+     * Writes the credential file with the new entries, all other lines are kept as they are, including their line
+     * terminators. The replacements are applied in their order, so a later replacement of the same user expects the
+     * new entry of the earlier one.
+     *
+     * @return the number of replaced entries, -1 if the credential file changed while it was rewritten
+     */
+    private int rewrite(final List<Replacement> replacements) throws IOException {
+        final File file = getFile();
+        final long length = file.length();
+        final long lastModified = file.lastModified();
+        final byte[] content = Files.readAllBytes(file.toPath());
+        final long checksum = checksum(content);
+
+        final List<String> lines = new ArrayList<>();
+        final List<String> terminators = new ArrayList<>();
+        splitLines(new String(content, Charset.defaultCharset()), lines, terminators);
+
+        final Set<String> usernames = new HashSet<>();
+        for (Replacement replacement : replacements) {
+            usernames.add(replacement.username);
+        }
+        final Map<String, Integer> linesOfUsers = new HashMap<>();
+        boolean continuation = false;
+        for (int i = 0; i < lines.size(); i++) {
+            final String line = lines.get(i);
+            final boolean previousContinues = continuation;
+            continuation = endsWithContinuation(line);
+            if (previousContinues) {
+                continue;
+            }
+            final Properties lineProperties = new Properties();
+            lineProperties.load(new StringReader(line));
+            for (String username : lineProperties.stringPropertyNames()) {
+                if (usernames.contains(username)) {
+                    // values spanning several lines are not replaced
+                    linesOfUsers.put(username, continuation ? -1 : i);
+                }
+            }
+        }
+
+        int replaced = 0;
+        for (Replacement replacement : replacements) {
+            final Integer lineOfUser = linesOfUsers.get(replacement.username);
+            if (lineOfUser == null || lineOfUser < 0) {
+                continue;
+            }
+            final String line = lines.get(lineOfUser);
+            final Properties lineProperties = new Properties();
+            lineProperties.load(new StringReader(line));
+            if (!replacement.oldEntry.equals(lineProperties.getProperty(replacement.username))) {
+                continue;
+            }
+            lines.set(lineOfUser, line.substring(0, valueStart(line)) + replacement.newEntry);
+            replaced++;
+        }
+        if (replaced == 0) {
+            return 0;
+        }
+
+        final Path tempFile = Files.createTempFile(file.getAbsoluteFile().getParentFile().toPath(), file.getName() + ".", ".tmp");
+        try {
+            try (FileOutputStream outputStream = new FileOutputStream(tempFile.toFile());
+                 BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(outputStream, Charset.defaultCharset()))) {
+                for (int i = 0; i < lines.size(); i++) {
+                    writer.write(lines.get(i));
+                    writer.write(terminators.get(i));
+                }
+                writer.flush();
+                outputStream.getFD().sync();
+            }
+            if (file.length() != length || file.lastModified() != lastModified
+                    || checksum(Files.readAllBytes(file.toPath())) != checksum) {
+                return -1;
+            }
+            Files.move(tempFile, file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tempFile);
+        }
+        return replaced;
+    }
+
+    /**
+     * Splits the text into its lines and their terminators, which are <code>\n</code>, <code>\r\n</code>,
+     * <code>\r</code> or empty for a last line without terminator.
+     */
+    private static void splitLines(final String text, final List<String> lines, final List<String> terminators) {
+        int start = 0;
+        while (start < text.length()) {
+            int end = start;
+            while (end < text.length() && text.charAt(end) != '\n' && text.charAt(end) != '\r') {
+                end++;
             }
+            int next = end;
+            if (next < text.length() && text.charAt(next) == '\r') {
+                next++;
+            }
+            if (next < text.length() && text.charAt(next) == '\n') {
+                next++;
+            }
+            lines.add(text.substring(start, end));
+            terminators.add(text.substring(end, next));
+            start = next;
         }
-        this.previousCredentialsHash = this.hashCode();
+    }
+
+    private void truncateJournal() throws IOException {
+        final File journalFile = getJournalFile();
+        if (journalFile.exists()) {
+            Files.newOutputStream(journalFile.toPath(), StandardOpenOption.TRUNCATE_EXISTING).close();
+        }
+    }
+
+    private static long checksum(final byte[] content) {
+        final CRC32 crc = new CRC32();
+        crc.update(content, 0, content.length);
+        return crc.getValue();
+    }
+
+    /**
+     * @return the index of the first character of the value in a line of a .properties file
+     */
+    private static int valueStart(final String line) {
+        int index = 0;
+        while (index < line.length() && isWhitespace(line.charAt(index))) {
+            index++;
+        }
+        boolean escaped = false;
+        while (index < line.length()) {
+            final char c = line.charAt(index);
+            if (escaped) {
+                escaped = false;
+            } else if (c == '\\') {
+                escaped = true;
+            } else if (c == '=' || c == ':' || isWhitespace(c)) {
+                break;
+            }
+            index++;
+        }
+        while (index < line.length() && isWhitespace(line.charAt(index))) {
+            index++;
+        }
+        if (index < line.length() && (line.charAt(index) == '=' || line.charAt(index) == ':')) {
+            index++;
+        }
+        while (index < line.length() && isWhitespace(line.charAt(index))) {
+            index++;
+        }
+        return index;
+    }
+
+    private static boolean isWhitespace(final char c) {
+        return c == ' ' || c == '\t' || c == '\f';
+    }
+
+    private static boolean endsWithContinuation(final String line) {
+        int backslashes = 0;
+        for (int i = line.length() - 1; i >= 0 && line.charAt(i) == '\\'; i--) {
+            backslashes++;
+        }
+        return backslashes % 2 == 1;
+    }
+
+    /**
+     * Escapes a field of the journal like {@link Properties#store(java.io.Writer, String)} does, so the journal is
+     * written in ISO-8859-1 and a field never contains the separator or a line break.
+     */
+    private static String escapeJournal(final String value) {
+        final StringBuilder escaped = new StringBuilder(value.length());
+        for (int i = 0; i < value.length(); i++) {
+            final char c = value.charAt(i);
+            switch (c) {
+                case '\\':
+                    escaped.append("\\\\");
+                    break;
+                case '\t':
+                    escaped.append("\\t");
+                    break;
+                case '\n':
+                    escaped.append("\\n");
+                    break;
+                case '\r':
+                    escaped.append("\\r");
+                    break;
+                case '\f':
+                    escaped.append("\\f");
+                    break;
+                default:
+                    if (c < 0x20 || c > 0x7e) {
+                        escaped.append(String.format("\\u%04X", (int) c));
+                    } else {
+                        escaped.append(c);
+                    }
+            }
+        }
+        return escaped.toString();
+    }
+
+    private static String unescapeJournal(final String value) {
+        return PropertiesLineParser.unescape(value, 0, value.length());
+    }
+
+    private File getJournalFile() {
+        final File file = getFile();
+        return new File(file.getParentFile(), file.getName() + ".journal");
     }
 
     /**
@@ -96,10 +852,60 @@ public class CredentialsConfiguration extends ReloadingPropertiesReader {
 
         int result = filename != null ? filename.hashCode() : 0;
         result = 31 * result + reloadSeconds;
-        result = 31 * result + properties.size();
-        //used because properties.hashcode doesnt change then properties change
-        result = 31 * result + (properties.toString().hashCode());
+        result = 31 * result + getValues().size();
+        // the checksum of the file changes with the credentials, without building a string of all entries
+        final long checksum = getChecksum();
+        result = 31 * result + (int) (checksum ^ (checksum >>> 32));
         return result;
     }
 
-}
\ No newline at end of file
+    /**
+     * A queued replacement of the entry of a user.
+     */
+    private static class Replacement {
+
+        private final String username;
+        private final String oldEntry;
+        private final String newEntry;
+
+        private Replacement(final String username, final String oldEntry, final String newEntry) {
+            this.username = username;
+            this.oldEntry = oldEntry;
+            this.newEntry = newEntry;
+        }
+    }
+
+    /**
+     * The compiled entries and the errors of the entries, which could not be compiled, of one load of the file.
+     */
+    private static class CompiledEntries {
+
+        private final Map<String, HashedSaltedPassword> entries;
+        private final Map<String, String> errors;
+
+        private CompiledEntries(final Map<String, HashedSaltedPassword> entries, final Map<String, String> errors) {
+            this.entries = entries;
+            this.errors = errors;
+        }
+    }
+
+    /**
+     * The entries of the preloaded users, compiled from one off heap table with one generation of the settings.
+     */
+    private static class HotEntries {
+
+        private final OffHeapCredentialTable table;
+        private final int generation;
+        private final Set<String> usernames;
+        private final Map<String, HashedSaltedPassword> entries;
+
+        private HotEntries(final OffHeapCredentialTable table, final int generation, final Set<String> usernames,
+                           final Map<String, HashedSaltedPassword> entries) {
+            this.table = table;
+            this.generation = generation;
+            this.usernames = usernames;
+            this.entries = entries;
+        }
+    }
+
+}
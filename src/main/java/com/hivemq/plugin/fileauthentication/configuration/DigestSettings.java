@@ -0,0 +1,105 @@
+/*
+ * Copyright 2015 dc-square GmbH
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.hivemq.plugin.fileauthentication.configuration;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Objects;
+import com.google.common.hash.Hashing;
+import com.hivemq.plugin.fileauthentication.authentication.HashedSaltedPassword;
+import com.hivemq.plugin.fileauthentication.authentication.KdfHash;
+import com.hivemq.plugin.fileauthentication.exception.PasswordFormatException;
+import com.hivemq.plugin.fileauthentication.util.HashSaltUtil;
+
+/**
+ * The settings, which the digest entries of the credential file are parsed with. Entries, which describe their
+ * hashing parameters themselves, do not depend on them.
+ * <p/>
+ * A compiled credential file stores the fingerprint of the settings its digest entries were compiled with, so the
+ * plugin only uses them with the same settings.
+ */
+public final class DigestSettings implements EntryCompiler {
+
+    private final boolean hashed;
+    private final boolean salted;
+    private final boolean saltFirst;
+    private final String separator;
+
+    /**
+     * @param hashed    true if the entries are digests, false if they are plaintext passwords
+     * @param salted    true if the entries contain a salt
+     * @param saltFirst true if the salt comes before the digest
+     * @param separator the separator of the salt and the digest
+     */
+    public DigestSettings(final boolean hashed, final boolean salted, final boolean saltFirst, final String separator) {
+        this.hashed = hashed;
+        this.salted = salted;
+        this.saltFirst = saltFirst;
+        this.separator = separator;
+    }
+
+    /**
+     * Parses the entry like the plugin does with these settings. The digest and the salt are decoded.
+     */
+    @Override
+    public HashedSaltedPassword compile(final String entry) throws PasswordFormatException {
+        if (KdfHash.isKdfHash(entry)) {
+            return KdfHash.parse(entry);
+        }
+        if (!hashed) {
+            return new HashedSaltedPassword(entry, null);
+        }
+        final HashedSaltedPassword hashAndSalt = salted
+                ? HashSaltUtil.retrieve(saltFirst, separator, entry) : new HashedSaltedPassword(entry, null);
+        return HashedSaltedPassword.decoded(hashAndSalt.getHash(), hashAndSalt.getSalt());
+    }
+
+    @Override
+    public DigestSettings getDigestSettings() {
+        return this;
+    }
+
+    /**
+     * @return a hash of the settings, which is never 0, so 0 can stand for no settings
+     */
+    long fingerprint() {
+        final long fingerprint = Hashing.murmur3_128().hashString(toString(), Charsets.UTF_8).asLong();
+        return fingerprint == 0 ? 1 : fingerprint;
+    }
+
+    @Override
+    public boolean equals(final Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof DigestSettings)) {
+            return false;
+        }
+        final DigestSettings other = (DigestSettings) o;
+        return hashed == other.hashed && salted == other.salted && saltFirst == other.saltFirst
+                && Objects.equal(separator, other.separator);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hashCode(hashed, salted, saltFirst, separator);
+    }
+
+    @Override
+    public String toString() {
+        return "hashed=" + hashed + ", salted=" + salted + ", saltFirst=" + saltFirst + ", separator=" + separator;
+    }
+}
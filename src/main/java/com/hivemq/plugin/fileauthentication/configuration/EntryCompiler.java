@@ -0,0 +1,41 @@
+/*
+ * Copyright 2015 dc-square GmbH
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.hivemq.plugin.fileauthentication.configuration;
+
+import com.hivemq.plugin.fileauthentication.authentication.HashedSaltedPassword;
+import com.hivemq.plugin.fileauthentication.exception.PasswordFormatException;
+import com.hivemq.spi.annotations.Nullable;
+
+/**
+ * Compiles the entries of the credential file, when the file is loaded.
+ */
+public interface EntryCompiler {
+
+    /**
+     * @param entry the entry of a user in the credential file
+     * @return the parsed entry
+     * @throws PasswordFormatException if the entry is not in the configured format
+     */
+    HashedSaltedPassword compile(String entry) throws PasswordFormatException;
+
+    /**
+     * @return the settings, which the digest entries are compiled with, or null if they are not known. The digest
+     * entries of a compiled credential file are only used, if the file was compiled with the same settings.
+     */
+    @Nullable
+    DigestSettings getDigestSettings();
+}
@@ -0,0 +1,978 @@
+/*
+ * Copyright 2015 dc-square GmbH
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.hivemq.plugin.fileauthentication.configuration;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableMap;
+import com.hivemq.plugin.fileauthentication.authentication.HashedSaltedPassword;
+import com.hivemq.plugin.fileauthentication.authentication.KdfHash;
+import com.hivemq.plugin.fileauthentication.exception.PasswordFormatException;
+import com.hivemq.spi.annotations.Nullable;
+import org.bouncycastle.util.encoders.Base64;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+/**
+ * Immutable map of usernames to their entries in the credential file, which is stored in direct memory instead of
+ * the heap, so millions of users neither need gigabytes of heap nor prolong the garbage collections of the broker.
+ * <p/>
+ * The records are packed one after another into one buffer:
+ * <code>[hash: int][username length: int][coder: byte][username][entry hash: int][entry length: int]
+ * [entry as UTF-8][kind: byte][compiled entry]</code>. Usernames with only ISO-8859-1 characters are stored with one
+ * byte per character, all others with two. The compiled entry holds the decoded bytes of the entry, so a lookup
+ * neither parses nor decodes the entry:
+ * <ul>
+ * <li>{@link #DIGEST}: <code>[digest length: int][digest][salt length: int, -1 without salt][salt as UTF-8]
+ * [digested salt length: int]</code>, only valid for the settings it was compiled with</li>
+ * <li>{@link #KDF}: <code>[type: byte][cost: int][block size: int][parallelization: int][salt length: int][salt]
+ * [hash length: int][hash]</code></li>
+ * <li>{@link #NONE}: nothing, the entry is compiled on lookup</li>
+ * </ul>
+ * The index is an open addressing hash table with linear probing, whose slots contain the position of the record
+ * plus 1.
+ * <p/>
+ * Looking up a username does not allocate anything, only the returned entry is created.
+ * <p/>
+ * A table can be written to a compiled credential file with {@link #writeTo(File)} and read again with
+ * {@link #map(File)}, which maps the file into memory instead of reading it. The file consists of a header
+ * <code>[magic: int][version: int][size: int][slots: int][records length: int][settings: long][checksum: int]</code>,
+ * the slots of the index and the records. The settings are the fingerprint of the {@link DigestSettings}, which the
+ * digest entries were compiled with, 0 if they were not compiled. The checksum is the CRC32 of the header from the
+ * size to the settings, the index and the records, so it changes with the content of the file. All numbers are big
+ * endian. A mapped file must be replaced by renaming another file over it, not by
+ * writing into it.
+ * <p/>
+ * The records of a mapped file are bounds checked when they are read, a damaged record is an error of its user.
+ */
+class OffHeapCredentialTable extends AbstractMap<String, String> {
+
+    /**
+     * First bytes of a compiled credential file. The first byte is not printable, so it is never confused with a
+     * .properties file
+     */
+    static final int MAGIC = 0x89464143;
+    private static final int VERSION = 4;
+    private static final int HEADER_LENGTH = 5 * 4 + 8 + 4;
+
+    /**
+     * The bytes of the header, which are covered by the checksum: the size, the slots, the records length and the
+     * settings
+     */
+    private static final int CHECKED_HEADER_START = 2 * 4;
+    private static final int CHECKED_HEADER_END = 5 * 4 + 8;
+
+    /**
+     * Checksum of a table, which was not read from a compiled credential file
+     */
+    static final long UNKNOWN_CHECKSUM = -1;
+
+    /**
+     * Generation of a table, whose digest entries are not valid for any settings
+     */
+    static final int NO_GENERATION = -1;
+
+    private static final byte LATIN1 = 0;
+    private static final byte UTF16 = 1;
+
+    private static final byte NONE = 0;
+    private static final byte DIGEST = 1;
+    private static final byte KDF = 2;
+
+    /**
+     * Header of a record: hash, username length, coder, entry hash, entry length and kind of the compiled entry
+     */
+    private static final int RECORD_OVERHEAD = 4 + 4 + 1 + 4 + 4 + 1;
+
+    private static final int MAX_RECORDS_LENGTH = Integer.MAX_VALUE - 1;
+
+    private final ByteBuffer records;
+    private final ByteBuffer indexBytes;
+    private final IntBuffer index;
+    private final int mask;
+    private final int size;
+    private final int generation;
+    private final Map<String, String> errors;
+    private final long checksum;
+
+    private Set<Entry<String, String>> entrySet;
+
+    private OffHeapCredentialTable(final ByteBuffer records, final ByteBuffer indexBytes, final int size,
+                                   final int generation, final Map<String, String> errors, final long checksum) {
+        this.records = records;
+        this.indexBytes = indexBytes;
+        this.index = indexBytes.asIntBuffer();
+        this.mask = index.capacity() - 1;
+        this.size = size;
+        this.generation = generation;
+        this.errors = errors;
+        this.checksum = checksum;
+    }
+
+    /**
+     * Copies the given entries into direct memory. Only the entries, which describe their hashing parameters
+     * themselves, are compiled.
+     *
+     * @param entries the entries by username
+     * @return the table
+     * @throws IllegalArgumentException if the entries need more than 2 GB
+     */
+    static OffHeapCredentialTable copyOf(final Map<String, String> entries) {
+        final Builder builder = new Builder(null, NO_GENERATION);
+        for (Entry<String, String> entry : entries.entrySet()) {
+            builder.put(entry.getKey(), entry.getValue(), 0);
+        }
+        return builder.build();
+    }
+
+    /**
+     * @param file the file
+     * @return true if the file starts like a compiled credential file
+     * @throws IOException if the file could not be read
+     */
+    static boolean isCompiled(final File file) throws IOException {
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r")) {
+            return randomAccessFile.length() >= HEADER_LENGTH && randomAccessFile.readInt() == MAGIC;
+        }
+    }
+
+    /**
+     * Reads the checksum from the header of a compiled credential file, without reading the rest of the file.
+     *
+     * @param file the file
+     * @return the checksum, or {@link #UNKNOWN_CHECKSUM} if the file is no compiled credential file of this version
+     * @throws IOException if the file could not be read
+     */
+    static long readChecksum(final File file) throws IOException {
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r")) {
+            if (randomAccessFile.length() < HEADER_LENGTH || randomAccessFile.readInt() != MAGIC
+                    || randomAccessFile.readInt() != VERSION) {
+                return UNKNOWN_CHECKSUM;
+            }
+            randomAccessFile.seek(CHECKED_HEADER_END);
+            return randomAccessFile.readInt() & 0xffffffffL;
+        }
+    }
+
+    /**
+     * Maps a compiled credential file into memory, whose digest entries are not used.
+     *
+     * @see #map(File, DigestSettings, int)
+     */
+    static OffHeapCredentialTable map(final File file) throws IOException {
+        return map(file, null, NO_GENERATION);
+    }
+
+    /**
+     * Maps a compiled credential file into memory. The index and the records are read once to verify the checksum,
+     * the lookups read them from the mapped file. The digest entries of the file are only used, if they were
+     * compiled with the given settings.
+     *
+     * @param file       the compiled credential file
+     * @param settings   the current settings of the digest entries, or null if they are not known
+     * @param generation the generation of the current settings
+     * @return the table backed by the file
+     * @throws IOException if the file could not be mapped, its header does not match its length, its checksum does
+     *                     not match or its index points outside of the records
+     */
+    static OffHeapCredentialTable map(final File file, @Nullable final DigestSettings settings, final int generation)
+            throws IOException {
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r")) {
+            final FileChannel channel = randomAccessFile.getChannel();
+            final ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_LENGTH);
+            final int magic = header.getInt();
+            final int version = header.getInt();
+            final int size = header.getInt();
+            final int slots = header.getInt();
+            final int recordsLength = header.getInt();
+            final long settingsFingerprint = header.getLong();
+            final int checksum = header.getInt();
+            if (magic != MAGIC) {
+                throw new IOException("Not a compiled credential file");
+            }
+            if (version != VERSION) {
+                throw new IOException("Unsupported version " + version + " of the compiled credential file, please compile it again");
+            }
+            if (slots < 2 || Integer.bitCount(slots) != 1 || size < 0 || size >= slots || recordsLength < 0
+                    || channel.size() != HEADER_LENGTH + 4L * slots + recordsLength) {
+                throw new IOException("The header of the compiled credential file does not match its length");
+            }
+            // the mappings stay valid after the channel is closed
+            final ByteBuffer indexBytes = channel.map(FileChannel.MapMode.READ_ONLY, HEADER_LENGTH, 4L * slots);
+            final ByteBuffer records = channel.map(FileChannel.MapMode.READ_ONLY, HEADER_LENGTH + 4L * slots, recordsLength);
+            if (checksum(header, indexBytes, records) != checksum) {
+                throw new IOException("The checksum of the compiled credential file does not match, it is damaged");
+            }
+            final IntBuffer index = indexBytes.asIntBuffer();
+            for (int slot = 0; slot < slots; slot++) {
+                if (index.get(slot) < 0 || index.get(slot) > recordsLength) {
+                    throw new IOException("The index of the compiled credential file points outside of its records");
+                }
+            }
+            final boolean sameSettings = settings != null && settings.fingerprint() == settingsFingerprint;
+            return new OffHeapCredentialTable(records, indexBytes, size, sameSettings ? generation : NO_GENERATION,
+                    ImmutableMap.<String, String>of(), checksum & 0xffffffffL);
+        }
+    }
+
+    /**
+     * Writes the table as compiled credential file, whose digest entries are not used.
+     *
+     * @see #writeTo(File, DigestSettings)
+     */
+    void writeTo(final File file) throws IOException {
+        writeTo(file, null);
+    }
+
+    /**
+     * Writes the table as compiled credential file, which can be mapped with {@link #map(File, DigestSettings, int)}.
+     *
+     * @param file     the file, which is created or overwritten
+     * @param settings the settings, which the digest entries of the table were compiled with, or null if they are
+     *                 not valid for any settings
+     * @throws IOException if the file could not be written
+     */
+    void writeTo(final File file, @Nullable final DigestSettings settings) throws IOException {
+        final ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+        header.putInt(MAGIC).putInt(VERSION).putInt(size).putInt(index.capacity()).putInt(records.capacity());
+        header.putLong(settings == null ? 0 : settings.fingerprint());
+        header.putInt(checksum(header, indexBytes, records));
+        header.flip();
+        final ByteBuffer indexToWrite = indexBytes.duplicate();
+        indexToWrite.clear();
+        final ByteBuffer recordsToWrite = records.duplicate();
+        recordsToWrite.clear();
+
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw")) {
+            randomAccessFile.setLength(0);
+            final FileChannel channel = randomAccessFile.getChannel();
+            for (ByteBuffer buffer : new ByteBuffer[]{header, indexToWrite, recordsToWrite}) {
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+            }
+            channel.force(true);
+        }
+    }
+
+    /**
+     * @return the CRC32 of the checked part of the header, the index and the records
+     */
+    static int checksum(final ByteBuffer header, final ByteBuffer indexBytes, final ByteBuffer records) {
+        final CRC32 crc32 = new CRC32();
+        final byte[] buffer = new byte[64 * 1024];
+        for (ByteBuffer bytes : new ByteBuffer[]{header, indexBytes, records}) {
+            final ByteBuffer source = bytes.duplicate();
+            source.clear();
+            if (bytes == header) {
+                source.limit(CHECKED_HEADER_END).position(CHECKED_HEADER_START);
+            }
+            while (source.hasRemaining()) {
+                final int length = Math.min(buffer.length, source.remaining());
+                source.get(buffer, 0, length);
+                crc32.update(buffer, 0, length);
+            }
+        }
+        return (int) crc32.getValue();
+    }
+
+    /**
+     * Returns the entry of the user, or null if the user is not present or its record is damaged.
+     */
+    @Override
+    public String get(final Object key) {
+        if (!(key instanceof String)) {
+            return null;
+        }
+        final int position = find((String) key);
+        return position < 0 || recordEnd(records, position) < 0 ? null : readEntry(position);
+    }
+
+    @Override
+    public boolean containsKey(final Object key) {
+        return key instanceof String && find((String) key) >= 0;
+    }
+
+    /**
+     * Returns the compiled entry of the user, which is read from the bytes of its record. Entries without a compiled
+     * entry, and digest entries, which were compiled for other settings, are compiled with the given compiler.
+     *
+     * @param username   the username
+     * @param generation the generation of the current settings
+     * @param compiler   the compiler of the current settings, or null if there is none yet
+     * @return the compiled entry, or null if the user is not present, its entry is empty or it can not be compiled
+     * without compiler
+     * @throws PasswordFormatException if the compiler failed or the record of the user is damaged
+     */
+    @Nullable
+    HashedSaltedPassword getCompiled(final String username, final int generation, @Nullable final EntryCompiler compiler)
+            throws PasswordFormatException {
+        final int position = find(username);
+        if (position < 0) {
+            return null;
+        }
+        if (recordEnd(records, position) < 0) {
+            throw new PasswordFormatException("The record of the user in the compiled credential file is damaged");
+        }
+        final int entryPosition = entryPosition(records, position);
+        final int entryLength = records.getInt(entryPosition + 4);
+        if (entryLength == 0) {
+            return null;
+        }
+        final int kindPosition = entryPosition + 8 + entryLength;
+        final byte kind = records.get(kindPosition);
+        if (kind == KDF && records.get(kindPosition + 1) >= 0 && records.get(kindPosition + 1) < KdfHash.Type.values().length) {
+            return new RecordKdfHash(position, kindPosition + 1);
+        }
+        if (kind == DIGEST && generation == this.generation) {
+            return readDigest(kindPosition + 1);
+        }
+        return compiler == null ? null : compiler.compile(readEntry(position));
+    }
+
+    /**
+     * Compares the records with the records of the previous table, first by the hashes of their usernames and
+     * entries and then by their bytes. Only the changed usernames are read onto the heap.
+     *
+     * @param previous the table of the previous load
+     * @return the usernames, which were added, removed or whose entries changed
+     */
+    Set<String> changedUsernames(final OffHeapCredentialTable previous) {
+        final Set<String> changed = new HashSet<>();
+        // the walks stop at a damaged record, whose length is not known
+        for (int position = 0; recordEnd(records, position) >= 0; position = recordEnd(records, position)) {
+            final int previousPosition = previous.find(records, position);
+            if (previousPosition < 0 || recordEnd(previous.records, previousPosition) < 0
+                    || !sameEntry(records, position, previous.records, previousPosition)) {
+                changed.add(readUsername(position));
+            }
+        }
+        for (int position = 0; recordEnd(previous.records, position) >= 0; position = recordEnd(previous.records, position)) {
+            if (find(previous.records, position) < 0) {
+                changed.add(previous.readUsername(position));
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * @return the generation of the settings, which the digest entries were compiled with
+     */
+    int getGeneration() {
+        return generation;
+    }
+
+    /**
+     * @return the checksum of the compiled credential file, which changes with its content, or
+     * {@link #UNKNOWN_CHECKSUM} if the table was not read from a compiled credential file
+     */
+    long getChecksum() {
+        return checksum;
+    }
+
+    /**
+     * @return the errors of the entries, which could not be compiled when the table was built, by username
+     */
+    Map<String, String> getErrors() {
+        return errors;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return the bytes of direct or mapped memory used by the records and the index
+     */
+    long sizeInBytes() {
+        return records.capacity() + (long) indexBytes.capacity();
+    }
+
+    @Override
+    public Set<Entry<String, String>> entrySet() {
+        if (entrySet == null) {
+            entrySet = new AbstractSet<Entry<String, String>>() {
+                @Override
+                public Iterator<Entry<String, String>> iterator() {
+                    return new RecordIterator();
+                }
+
+                @Override
+                public int size() {
+                    return size;
+                }
+            };
+        }
+        return entrySet;
+    }
+
+    /**
+     * @return the position of the record of the username, or -1 if the username is not present
+     */
+    private int find(final String username) {
+        final int hash = username.hashCode();
+        int slot = spread(hash) & mask;
+        // bounded, so a damaged compiled file without empty slots can not loop forever
+        for (int probes = 0; probes <= mask; probes++) {
+            final int position = index.get(slot) - 1;
+            if (position < 0) {
+                return -1;
+            }
+            if (hasUsername(records, position) && records.getInt(position) == hash
+                    && usernameEquals(records, position, username)) {
+                return position;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    /**
+     * @return the position of the record with the same username as the record of the other table, or -1 if the
+     * username is not present
+     */
+    private int find(final ByteBuffer other, final int otherPosition) {
+        final int hash = other.getInt(otherPosition);
+        int slot = spread(hash) & mask;
+        for (int probes = 0; probes <= mask; probes++) {
+            final int position = index.get(slot) - 1;
+            if (position < 0) {
+                return -1;
+            }
+            if (hasUsername(records, position) && records.getInt(position) == hash
+                    && sameBytes(records, position + 4, other, otherPosition + 4,
+                    entryPosition(records, position) - position - 4, entryPosition(other, otherPosition) - otherPosition - 4)) {
+                return position;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    /**
+     * @return true if the records of the same username have the same entry
+     */
+    private static boolean sameEntry(final ByteBuffer records, final int position, final ByteBuffer other,
+                                     final int otherPosition) {
+        final int entryPosition = entryPosition(records, position);
+        final int otherEntryPosition = entryPosition(other, otherPosition);
+        // the entry hash and length are compared first
+        return sameBytes(records, entryPosition, other, otherEntryPosition,
+                8 + records.getInt(entryPosition + 4), 8 + other.getInt(otherEntryPosition + 4));
+    }
+
+    private static boolean sameBytes(final ByteBuffer records, final int position, final ByteBuffer other,
+                                     final int otherPosition, final int length, final int otherLength) {
+        if (length != otherLength) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (records.get(position + i) != other.get(otherPosition + i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private String readEntry(final int position) {
+        final int entryPosition = entryPosition(records, position);
+        return new String(readBytes(entryPosition + 8, records.getInt(entryPosition + 4)), Charsets.UTF_8);
+    }
+
+    private byte[] readBytes(final int position, final int length) {
+        final ByteBuffer source = records.duplicate();
+        source.position(position);
+        final byte[] bytes = new byte[length];
+        source.get(bytes);
+        return bytes;
+    }
+
+    private HashedSaltedPassword readDigest(final int position) {
+        final int digestLength = records.getInt(position);
+        final byte[] digest = readBytes(position + 4, digestLength);
+        final int saltLength = records.getInt(position + 4 + digestLength);
+        if (saltLength < 0) {
+            return new RecordDigest(digest, null, null);
+        }
+        final byte[] salt = readBytes(position + 8 + digestLength, saltLength);
+        final int digestedSaltLength = records.getInt(position + 8 + digestLength + saltLength);
+        return new RecordDigest(digest, salt, digestedSaltLength == saltLength ? salt : readBytes(position + 8 + digestLength, digestedSaltLength));
+    }
+
+    private static boolean usernameEquals(final ByteBuffer records, final int position, final String username) {
+        final int length = records.getInt(position + 4);
+        if (length != username.length()) {
+            return false;
+        }
+        final int start = position + 9;
+        if (records.get(position + 8) == LATIN1) {
+            for (int i = 0; i < length; i++) {
+                if ((char) (records.get(start + i) & 0xff) != username.charAt(i)) {
+                    return false;
+                }
+            }
+        } else {
+            for (int i = 0; i < length; i++) {
+                if (records.getChar(start + 2 * i) != username.charAt(i)) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    private String readUsername(final int position) {
+        final int length = records.getInt(position + 4);
+        final int start = position + 9;
+        final char[] chars = new char[length];
+        final boolean latin1 = records.get(position + 8) == LATIN1;
+        for (int i = 0; i < length; i++) {
+            chars[i] = latin1 ? (char) (records.get(start + i) & 0xff) : records.getChar(start + 2 * i);
+        }
+        return new String(chars);
+    }
+
+    /**
+     * @return the position of the entry hash of the record
+     */
+    private static int entryPosition(final ByteBuffer records, final int position) {
+        final int length = records.getInt(position + 4);
+        return position + 9 + (records.get(position + 8) == LATIN1 ? length : 2 * length);
+    }
+
+    /**
+     * @return true if the username and the entry header of the record at the position are inside of the records
+     */
+    private static boolean hasUsername(final ByteBuffer records, final int position) {
+        if (position < 0 || position > records.capacity() - 9) {
+            return false;
+        }
+        final long length = records.getInt(position + 4);
+        final byte coder = records.get(position + 8);
+        if (length < 0 || (coder != LATIN1 && coder != UTF16)) {
+            return false;
+        }
+        return position + 9 + (coder == LATIN1 ? length : 2 * length) + 8 <= records.capacity();
+    }
+
+    /**
+     * @return the position after the record, or -1 if the record is damaged and does not fit into the records
+     */
+    private static int recordEnd(final ByteBuffer records, final int position) {
+        if (!hasUsername(records, position)) {
+            return -1;
+        }
+        final int capacity = records.capacity();
+        final int entryPosition = entryPosition(records, position);
+        final long kindPosition = entryPosition + 8L + records.getInt(entryPosition + 4);
+        if (records.getInt(entryPosition + 4) < 0 || kindPosition >= capacity) {
+            return -1;
+        }
+        long end = kindPosition + 1;
+        switch (records.get((int) kindPosition)) {
+            case NONE:
+                return (int) end;
+            case DIGEST:
+                if (end + 4 > capacity || records.getInt((int) end) < 0) {
+                    return -1;
+                }
+                end += 4 + records.getInt((int) end);
+                if (end + 4 > capacity || records.getInt((int) end) < -1) {
+                    return -1;
+                }
+                final int saltLength = Math.max(0, records.getInt((int) end));
+                end += 4 + saltLength;
+                if (end + 4 > capacity || records.getInt((int) end) < 0 || records.getInt((int) end) > saltLength) {
+                    return -1;
+                }
+                return (int) (end + 4);
+            case KDF:
+                end += 1 + 3 * 4;
+                for (int field = 0; field < 2; field++) {
+                    if (end + 4 > capacity || records.getInt((int) end) < 0) {
+                        return -1;
+                    }
+                    end += 4 + records.getInt((int) end);
+                }
+                return end <= capacity ? (int) end : -1;
+            default:
+                return -1;
+        }
+    }
+
+    private static int usernameBytes(final String username) {
+        return isLatin1(username) ? username.length() : 2 * username.length();
+    }
+
+    private static boolean isLatin1(final String value) {
+        for (int i = 0; i < value.length(); i++) {
+            if (value.charAt(i) > 0xff) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Spreads the higher bits of the hash into the lower bits, which select the slot.
+     */
+    private static int spread(final int hash) {
+        final int h = hash * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * @return the number of slots of an index for the given number of users, at most half of the slots are used,
+     * so the probes stay short
+     */
+    private static int slots(final int users) {
+        return Integer.highestOneBit(Math.max(2, users) * 2 - 1) << 1;
+    }
+
+    /**
+     * Builds a table from the entries of a credential file, which are added one by one while the file is parsed, so
+     * they are never collected on the heap. Each entry is compiled while it is added. A username, which is added
+     * again, replaces the previous entry, like in a .properties file.
+     * <p/>
+     * The records are sized from the length of the credential file, so they are rarely copied while the file is
+     * parsed. The table uses the records and the index of the builder as they are, unless entries were replaced.
+     */
+    static class Builder {
+
+        private static final int MIN_RECORDS_LENGTH = 64 * 1024;
+
+        @Nullable
+        private final EntryCompiler compiler;
+        private final int generation;
+        private final Map<String, String> errors = new HashMap<>();
+
+        private ByteBuffer records;
+        private ByteBuffer indexBytes = ByteBuffer.allocateDirect(slots(0) * 4);
+        private IntBuffer index = indexBytes.asIntBuffer();
+        private int size;
+        private int replaced;
+
+        /**
+         * @param compiler   the compiler of the current settings, or null to compile only the entries, which
+         *                   describe their hashing parameters themselves
+         * @param generation the generation of the current settings
+         */
+        Builder(@Nullable final EntryCompiler compiler, final int generation) {
+            this(compiler, generation, 0);
+        }
+
+        /**
+         * @param compiler   the compiler of the current settings, or null to compile only the entries, which
+         *                   describe their hashing parameters themselves
+         * @param generation the generation of the current settings
+         * @param fileLength the length of the credential file in bytes, 0 if it is not known
+         */
+        Builder(@Nullable final EntryCompiler compiler, final int generation, final long fileLength) {
+            this.compiler = compiler;
+            this.generation = generation;
+            // the decoded digests and salts of compiled entries take about as many bytes as their lines
+            final long expectedLength = compiler != null ? 2 * fileLength : fileLength + fileLength / 4;
+            this.records = ByteBuffer.allocateDirect((int) Math.min(MAX_RECORDS_LENGTH,
+                    Math.max(MIN_RECORDS_LENGTH, expectedLength)));
+        }
+
+        /**
+         * @param username the username
+         * @param entry    the entry of the user
+         * @param line     the line of the user in the credential file, for the errors
+         * @throws IllegalArgumentException if the entries need more than 2 GB
+         */
+        void put(final String username, final String entry, final int line) {
+            errors.remove(username);
+            HashedSaltedPassword compiled = null;
+            if (!entry.isEmpty() && (compiler != null || KdfHash.isKdfHash(entry))) {
+                try {
+                    compiled = compiler != null ? compiler.compile(entry) : KdfHash.parse(entry);
+                } catch (PasswordFormatException e) {
+                    errors.put(username, "Line " + line + ": " + e.getMessage());
+                }
+            }
+
+            final byte[] entryBytes = entry.getBytes(Charsets.UTF_8);
+            final byte kind = kind(compiled);
+            final byte[] salt = kind == DIGEST && compiled.getSalt() != null ? compiled.getSalt().getBytes(Charsets.UTF_8) : null;
+            long length = RECORD_OVERHEAD + usernameBytes(username) + entryBytes.length;
+            if (kind == DIGEST) {
+                length += 4 + compiled.getHashBytes().length + 4 + (salt == null ? 0 : salt.length) + 4;
+            } else if (kind == KDF) {
+                length += 1 + 3 * 4 + 4 + compiled.getSaltBytes().length + 4 + compiled.getHashBytes().length;
+            }
+            ensureCapacity(length);
+
+            final int position = records.position();
+            final boolean latin1 = isLatin1(username);
+            records.putInt(username.hashCode());
+            records.putInt(username.length());
+            records.put(latin1 ? LATIN1 : UTF16);
+            for (int i = 0; i < username.length(); i++) {
+                if (latin1) {
+                    records.put((byte) username.charAt(i));
+                } else {
+                    records.putChar(username.charAt(i));
+                }
+            }
+            records.putInt(entry.hashCode());
+            records.putInt(entryBytes.length);
+            records.put(entryBytes);
+            records.put(kind);
+            if (kind == DIGEST) {
+                records.putInt(compiled.getHashBytes().length).put(compiled.getHashBytes());
+                if (salt == null) {
+                    records.putInt(-1);
+                    records.putInt(0);
+                } else {
+                    records.putInt(salt.length).put(salt);
+                    records.putInt(compiled.getSaltBytes().length);
+                }
+            } else if (kind == KDF) {
+                final KdfHash kdfHash = (KdfHash) compiled;
+                records.put((byte) kdfHash.getType().ordinal());
+                records.putInt(kdfHash.getCost()).putInt(kdfHash.getBlockSize()).putInt(kdfHash.getParallelization());
+                records.putInt(kdfHash.getSaltBytes().length).put(kdfHash.getSaltBytes());
+                records.putInt(kdfHash.getHashBytes().length).put(kdfHash.getHashBytes());
+            }
+
+            if (2 * (size + 1) > index.capacity()) {
+                indexBytes = reindex(records, index, slots(size + 1), -1);
+                index = indexBytes.asIntBuffer();
+            }
+            if (insert(records, index, position, username)) {
+                replaced++;
+            } else {
+                size++;
+            }
+        }
+
+        /**
+         * Builds the table over the written part of the records. Only if entries were replaced, the records are
+         * copied into a buffer of their length without the records of the replaced entries.
+         *
+         * @return the table
+         */
+        OffHeapCredentialTable build() {
+            final int length = records.position();
+            final ByteBuffer source = records.duplicate();
+            source.flip();
+            if (replaced == 0) {
+                return new OffHeapCredentialTable(source.slice(), indexBytes, size, generation,
+                        ImmutableMap.copyOf(errors), UNKNOWN_CHECKSUM);
+            }
+
+            int liveLength = 0;
+            for (int position = 0; position < length; position = recordEnd(records, position)) {
+                if (isLive(position)) {
+                    liveLength += recordEnd(records, position) - position;
+                }
+            }
+            final ByteBuffer packed = ByteBuffer.allocateDirect(liveLength);
+            for (int position = 0; position < length; position = recordEnd(records, position)) {
+                if (isLive(position)) {
+                    source.limit(recordEnd(records, position)).position(position);
+                    packed.put(source);
+                }
+            }
+            return new OffHeapCredentialTable(packed, reindex(packed, null, slots(size), packed.position()), size,
+                    generation, ImmutableMap.copyOf(errors), UNKNOWN_CHECKSUM);
+        }
+
+        private boolean isLive(final int position) {
+            final int mask = index.capacity() - 1;
+            int slot = spread(records.getInt(position)) & mask;
+            while (index.get(slot) != 0) {
+                if (index.get(slot) == position + 1) {
+                    return true;
+                }
+                slot = (slot + 1) & mask;
+            }
+            return false;
+        }
+
+        private void ensureCapacity(final long length) {
+            final long needed = records.position() + length;
+            if (needed > MAX_RECORDS_LENGTH) {
+                throw new IllegalArgumentException("The credentials need more than 2 GB");
+            }
+            if (needed > records.capacity()) {
+                // grows by half, the records were sized for the file already
+                final ByteBuffer grown = ByteBuffer.allocateDirect((int) Math.min(MAX_RECORDS_LENGTH,
+                        Math.max(needed, records.capacity() + records.capacity() / 2L)));
+                records.flip();
+                grown.put(records);
+                records = grown;
+            }
+        }
+
+        private static byte kind(@Nullable final HashedSaltedPassword compiled) {
+            if (compiled instanceof KdfHash) {
+                return KDF;
+            }
+            if (compiled != null && compiled.getHashBytes() != null
+                    && (compiled.getSalt() == null || compiled.getSaltBytes() != null)) {
+                return DIGEST;
+            }
+            return NONE;
+        }
+
+        /**
+         * Inserts the record into the index.
+         *
+         * @return true if the record replaced the record of the same username
+         */
+        private static boolean insert(final ByteBuffer records, final IntBuffer index, final int position,
+                                      final String username) {
+            final int mask = index.capacity() - 1;
+            int slot = spread(username.hashCode()) & mask;
+            while (index.get(slot) != 0) {
+                final int existing = index.get(slot) - 1;
+                if (records.getInt(existing) == username.hashCode() && usernameEquals(records, existing, username)) {
+                    index.put(slot, position + 1);
+                    return true;
+                }
+                slot = (slot + 1) & mask;
+            }
+            index.put(slot, position + 1);
+            return false;
+        }
+
+        /**
+         * Builds an index with the given number of slots, either from the records of the given index or from all
+         * records up to the given length.
+         */
+        private static ByteBuffer reindex(final ByteBuffer records, @Nullable final IntBuffer previous, final int slots,
+                                          final int length) {
+            final ByteBuffer indexBytes = ByteBuffer.allocateDirect(slots * 4);
+            final IntBuffer index = indexBytes.asIntBuffer();
+            final int mask = slots - 1;
+            if (previous != null) {
+                for (int i = 0; i < previous.capacity(); i++) {
+                    if (previous.get(i) != 0) {
+                        put(records, index, mask, previous.get(i) - 1);
+                    }
+                }
+            } else {
+                for (int position = 0; position < length; position = recordEnd(records, position)) {
+                    put(records, index, mask, position);
+                }
+            }
+            return indexBytes;
+        }
+
+        private static void put(final ByteBuffer records, final IntBuffer index, final int mask, final int position) {
+            int slot = spread(records.getInt(position)) & mask;
+            while (index.get(slot) != 0) {
+                slot = (slot + 1) & mask;
+            }
+            index.put(slot, position + 1);
+        }
+    }
+
+    /**
+     * Compiled digest entry, whose Base64 encoded digest and salt are only created for the engines, which need them.
+     */
+    private static class RecordDigest extends HashedSaltedPassword {
+
+        @Nullable
+        private final byte[] salt;
+
+        private RecordDigest(final byte[] hashBytes, @Nullable final byte[] salt, @Nullable final byte[] saltBytes) {
+            super(hashBytes, saltBytes);
+            this.salt = salt;
+        }
+
+        @Override
+        public String getHash() {
+            return Base64.toBase64String(getHashBytes());
+        }
+
+        @Override
+        public String getSalt() {
+            return salt == null ? null : new String(salt, Charsets.UTF_8);
+        }
+    }
+
+    /**
+     * Compiled entry with its own hashing parameters, whose text is only read from the record when it is asked for.
+     */
+    private class RecordKdfHash extends KdfHash {
+
+        private final int position;
+
+        private RecordKdfHash(final int position, final int compiledPosition) {
+            super(KdfHash.Type.values()[records.get(compiledPosition)], records.getInt(compiledPosition + 1),
+                    records.getInt(compiledPosition + 5), records.getInt(compiledPosition + 9),
+                    readBytes(compiledPosition + 17, records.getInt(compiledPosition + 13)),
+                    readBytes(compiledPosition + 21 + records.getInt(compiledPosition + 13),
+                            records.getInt(compiledPosition + 17 + records.getInt(compiledPosition + 13))));
+            this.position = position;
+        }
+
+        @Override
+        public String getHash() {
+            return readEntry(position);
+        }
+    }
+
+    /**
+     * Iterates over the records in the order they were written.
+     */
+    private class RecordIterator implements Iterator<Entry<String, String>> {
+
+        private int position;
+        private int remaining = size;
+
+        @Override
+        public boolean hasNext() {
+            // stops at a damaged record, whose length is not known
+            return remaining > 0 && recordEnd(records, position) >= 0;
+        }
+
+        @Override
+        public Entry<String, String> next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            final Entry<String, String> entry = new SimpleImmutableEntry<>(readUsername(position), readEntry(position));
+            position = recordEnd(records, position);
+            remaining--;
+            return entry;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
@@ -0,0 +1,181 @@
+/*
+ * Copyright 2015 dc-square GmbH
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.hivemq.plugin.fileauthentication.configuration;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+
+/**
+ * Parses a file in the .properties format like {@link java.util.Properties#load(java.io.Reader)}, but hands every
+ * key and value with its line to a handler instead of collecting them in a {@link java.util.Properties}, so the
+ * values can be copied where they are stored without keeping all of them on the heap. Keys, which are present in
+ * several lines, are handed over for every line.
+ */
+class PropertiesLineParser {
+
+    /**
+     * Receives the keys and values in the order of the file.
+     */
+    interface Handler {
+
+        /**
+         * @param key   the key
+         * @param value the value
+         * @param line  the first line of the key and value, starting with 1
+         */
+        void property(String key, String value, int line);
+    }
+
+    private PropertiesLineParser() {
+    }
+
+    /**
+     * @param reader  the reader of the file
+     * @param handler the handler of the keys and values
+     * @throws IOException if the file could not be read or contains a malformed \\uxxxx escape
+     */
+    static void parse(final BufferedReader reader, final Handler handler) throws IOException {
+        final StringBuilder logicalLine = new StringBuilder();
+        int lineNumber = 0;
+        String line;
+        while ((line = reader.readLine()) != null) {
+            lineNumber++;
+            final int firstLine = lineNumber;
+            final int start = skipWhitespace(line, 0);
+            if (start == line.length() || line.charAt(start) == '#' || line.charAt(start) == '!') {
+                continue;
+            }
+            logicalLine.setLength(0);
+            logicalLine.append(line, start, line.length());
+            // the leading whitespace of continuation lines is dropped, they are never comments
+            while (endsWithContinuation(logicalLine)) {
+                logicalLine.setLength(logicalLine.length() - 1);
+                final String next = reader.readLine();
+                if (next == null) {
+                    break;
+                }
+                lineNumber++;
+                logicalLine.append(next, skipWhitespace(next, 0), next.length());
+            }
+            try {
+                parseLine(logicalLine, firstLine, handler);
+            } catch (IllegalArgumentException e) {
+                throw new IOException("Line " + firstLine + ": " + e.getMessage());
+            }
+        }
+    }
+
+    private static void parseLine(final CharSequence line, final int lineNumber, final Handler handler) {
+        final int length = line.length();
+        int keyEnd = 0;
+        int valueStart = length;
+        boolean hasSeparator = false;
+        boolean precedingBackslash = false;
+        while (keyEnd < length) {
+            final char c = line.charAt(keyEnd);
+            if ((c == '=' || c == ':') && !precedingBackslash) {
+                valueStart = keyEnd + 1;
+                hasSeparator = true;
+                break;
+            }
+            if (isWhitespace(c) && !precedingBackslash) {
+                valueStart = keyEnd + 1;
+                break;
+            }
+            precedingBackslash = c == '\\' && !precedingBackslash;
+            keyEnd++;
+        }
+        while (valueStart < length) {
+            final char c = line.charAt(valueStart);
+            if (!isWhitespace(c)) {
+                if (hasSeparator || (c != '=' && c != ':')) {
+                    break;
+                }
+                hasSeparator = true;
+            }
+            valueStart++;
+        }
+        handler.property(unescape(line, 0, keyEnd), unescape(line, valueStart, length), lineNumber);
+    }
+
+    /**
+     * Replaces the escapes of the .properties format, like {@link java.util.Properties} does.
+     *
+     * @throws IllegalArgumentException if the text contains a malformed \\uxxxx escape
+     */
+    static String unescape(final CharSequence line, final int start, final int end) {
+        int i = start;
+        while (i < end && line.charAt(i) != '\\') {
+            i++;
+        }
+        if (i == end) {
+            return line.subSequence(start, end).toString();
+        }
+        final StringBuilder unescaped = new StringBuilder(end - start);
+        unescaped.append(line, start, i);
+        while (i < end) {
+            char c = line.charAt(i++);
+            if (c == '\\' && i < end) {
+                c = line.charAt(i++);
+                if (c == 'u') {
+                    if (i + 4 > end) {
+                        throw new IllegalArgumentException("Malformed \\uxxxx encoding.");
+                    }
+                    int value = 0;
+                    for (int digit = 0; digit < 4; digit++) {
+                        final int digitValue = Character.digit(line.charAt(i++), 16);
+                        if (digitValue < 0) {
+                            throw new IllegalArgumentException("Malformed \\uxxxx encoding.");
+                        }
+                        value = (value << 4) | digitValue;
+                    }
+                    c = (char) value;
+                } else if (c == 't') {
+                    c = '\t';
+                } else if (c == 'r') {
+                    c = '\r';
+                } else if (c == 'n') {
+                    c = '\n';
+                } else if (c == 'f') {
+                    c = '\f';
+                }
+            }
+            unescaped.append(c);
+        }
+        return unescaped.toString();
+    }
+
+    private static int skipWhitespace(final String line, final int start) {
+        int i = start;
+        while (i < line.length() && isWhitespace(line.charAt(i))) {
+            i++;
+        }
+        return i;
+    }
+
+    private static boolean endsWithContinuation(final CharSequence line) {
+        int backslashes = 0;
+        for (int i = line.length() - 1; i >= 0 && line.charAt(i) == '\\'; i--) {
+            backslashes++;
+        }
+        return backslashes % 2 == 1;
+    }
+
+    private static boolean isWhitespace(final char c) {
+        return c == ' ' || c == '\t' || c == '\f';
+    }
+}
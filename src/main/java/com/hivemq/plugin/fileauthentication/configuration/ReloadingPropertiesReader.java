@@ -16,6 +16,7 @@
 
 package com.hivemq.plugin.fileauthentication.configuration;
 
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Lists;
 import com.google.common.collect.MapDifference;
 import com.google.common.collect.Maps;
@@ -27,12 +28,15 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileReader;
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
 
 /**
  * @author Christoph Schäbel
@@ -41,11 +45,29 @@ public abstract class ReloadingPropertiesReader {
 
     private static final Logger log = LoggerFactory.getLogger(Configuration.class);
 
+    /**
+     * Some file systems store the modification time in seconds, so a file modified within this time after it was
+     * read may still have the same modification time
+     */
+    private static final long MODIFICATION_TIME_RESOLUTION_MILLIS = 2000;
+
+    /**
+     * CRC32 checksums are never negative
+     */
+    protected static final long UNKNOWN_CHECKSUM = -1;
+
     private final PluginExecutorService pluginExecutorService;
     private final SystemInformation systemInformation;
-    protected Properties properties;
+    protected volatile Properties properties;
+
+    /**
+     * Immutable copy of the properties, which is built aside on every load and replaced at once, so readers never
+     * wait for a lock and always see the values of one load
+     */
+    private volatile Map<String, String> values = ImmutableMap.of();
     protected Map<String, List<ValueChangedCallback<String>>> callbacks = Maps.newHashMap();
     private File file;
+    private volatile Fingerprint fingerprint;
 
     public ReloadingPropertiesReader(final PluginExecutorService pluginExecutorService, final SystemInformation systemInformation) {
         this.pluginExecutorService = pluginExecutorService;
@@ -57,10 +79,24 @@ public abstract class ReloadingPropertiesReader {
         this.file = new File(systemInformation.getConfigFolder(), getFilename());
 
         try {
-            properties = new Properties();
-            properties.load(new FileReader(file));
+            // the file is not read completely by readValues, so its checksum is only computed when it changes
+            final Fingerprint unread = new Fingerprint(file.length(), file.lastModified(), readStoredChecksum(file), System.currentTimeMillis());
+            final Map<String, String> readValues = readValues(file);
+            if (readValues != null) {
+                publishValues(readValues);
+                fingerprint = unread;
+            } else {
+                final Fingerprint current = takeFingerprint();
+                final Properties props = new Properties();
+                try (FileReader fileReader = new FileReader(file)) {
+                    props.load(fileReader);
+                }
+                publish(props);
+                fingerprint = current;
+            }
         } catch (IOException e) {
             log.error("Not able to load configuration file {}", file.getAbsolutePath());
+            publish(new Properties());
         }
 
         pluginExecutorService.scheduleAtFixedRate(new Runnable() {
@@ -78,18 +114,49 @@ public abstract class ReloadingPropertiesReader {
     public abstract int getReloadIntervalinSeconds();
 
     /**
-     * Reloads the specified .properties file
+     * Reloads the specified .properties file, if its length, modification time or checksum changed since the last
+     * load. The checksum is only computed if the length and the modification time do not tell that the file is
+     * unchanged. Reloads are serialized, so the scheduled reload and a reload after a change of the file do not
+     * publish the values out of order.
      */
-    public void reload() {
+    public synchronized void reload() {
+        reload(false);
+    }
 
-        Map<String, String> oldValues = getCurrentValues();
+    /**
+     * Reads the file again, even if it did not change, for example because its values are stored differently now.
+     */
+    protected synchronized void forceReload() {
+        reload(true);
+    }
+
+    private void reload(final boolean force) {
+
+        final Map<String, String> oldValues = values;
         try {
-            final FileReader fileReader = new FileReader(file);
-            replaceProperties(fileReader);
+            final Fingerprint previous = fingerprint;
+            final long length = file.length();
+            final long lastModified = file.lastModified();
+            if (!force && previous != null && previous.length == length && previous.lastModified == lastModified
+                    && lastModified < previous.takenAt - MODIFICATION_TIME_RESOLUTION_MILLIS) {
+                return;
+            }
+            final Fingerprint current = takeFingerprint();
+            if (!force && previous != null && previous.length == current.length && previous.checksum == current.checksum) {
+                fingerprint = current;
+                return;
+            }
 
-            Map<String, String> newValues = getCurrentValues();
-            logChanges(oldValues, newValues);
-            afterReload();
+            final Map<String, String> readValues = readValues(file);
+            if (readValues != null) {
+                publishValues(readValues);
+            } else {
+                replaceProperties(new FileReader(file));
+            }
+
+            fingerprint = current;
+
+            afterReload(oldValues, values);
 
         } catch (IOException e) {
             log.debug("Not able to reload configuration file {}", this.file.getAbsolutePath());
@@ -97,11 +164,26 @@ public abstract class ReloadingPropertiesReader {
     }
 
 
+    /**
+     * Compares the values before and after the reload, logs the changes and calls the callbacks of the changed
+     * properties. Can be overwritten to compare values, which are not stored on the heap, without copying them.
+     *
+     * @param oldValues the values before the reload
+     * @param newValues the values after the reload
+     */
+    void afterReload(final Map<String, String> oldValues, final Map<String, String> newValues) {
+        final MapDifference<String, String> difference = Maps.difference(oldValues, newValues);
+        logChanges(difference);
+        afterReload(difference);
+    }
+
     /**
      * can be overwritten to perform operations after the reload of the properties file
      * it is not abstract to not force implementing it in extended classes
+     *
+     * @param difference the difference between the properties before and after the reload
      */
-    void afterReload() {
+    void afterReload(final MapDifference<String, String> difference) {
 
     }
 
@@ -109,7 +191,7 @@ public abstract class ReloadingPropertiesReader {
         try {
             final Properties props = new Properties();
             props.load(fileReader);
-            properties = props;
+            publish(props);
         } finally {
             fileReader.close();
         }
@@ -124,16 +206,68 @@ public abstract class ReloadingPropertiesReader {
         callbacks.get(propertyName).add(changedCallback);
     }
 
-    private Map<String, String> getCurrentValues() {
-        Map<String, String> values = Maps.newHashMap();
-        for (String key : properties.stringPropertyNames()) {
-            values.put(key, properties.getProperty(key));
+    /**
+     * Can be overwritten to read files in another format than .properties.
+     *
+     * @param file the file to read
+     * @return the immutable values of the file, or null to load the file as .properties
+     * @throws IOException if the file could not be read
+     */
+    protected Map<String, String> readValues(final File file) throws IOException {
+        return null;
+    }
+
+    /**
+     * Replaces the values with values, which were not loaded from a .properties file.
+     */
+    private void publishValues(final Map<String, String> readValues) {
+        values = readValues;
+        properties = new Properties();
+    }
+
+    /**
+     * Replaces the properties and their immutable copy with the newly loaded properties.
+     */
+    private void publish(final Properties props) {
+        values = snapshot(props);
+        properties = isRetainingProperties() ? props : new Properties();
+    }
+
+    /**
+     * Can be overwritten to drop the loaded properties once they are copied, so they are not kept twice.
+     * {@link #getProperties()} is empty then.
+     *
+     * @return true if the loaded properties are kept besides their copy
+     */
+    protected boolean isRetainingProperties() {
+        return true;
+    }
+
+    /**
+     * Copies the newly loaded properties. Can be overwritten to store the values differently, the copy must not
+     * change afterwards.
+     *
+     * @param props the newly loaded properties
+     * @return an immutable copy of the properties
+     */
+    @NotNull
+    protected Map<String, String> snapshot(final Properties props) {
+        final ImmutableMap.Builder<String, String> builder = ImmutableMap.builder();
+        for (String key : props.stringPropertyNames()) {
+            builder.put(key, props.getProperty(key));
         }
+        return builder.build();
+    }
+
+    /**
+     * @return an immutable copy of the properties of the last load, which can be read without locking
+     */
+    @NotNull
+    protected Map<String, String> getValues() {
         return values;
     }
 
-    private void logChanges(final Map<String, String> oldValues, final Map<String, String> newValues) {
-        final MapDifference<String, String> difference = Maps.difference(oldValues, newValues);
+    private void logChanges(final MapDifference<String, String> difference) {
 
         for (Map.Entry<String, MapDifference.ValueDifference<String>> stringValueDifferenceEntry : difference.entriesDiffering().entrySet()) {
             log.debug("Plugin configuration {} changed from {} to {}",
@@ -167,10 +301,75 @@ public abstract class ReloadingPropertiesReader {
         }
     }
 
+    /**
+     * Can be overwritten for files, which store the checksum of their content, so the file is not read completely
+     * to tell whether it changed.
+     *
+     * @param file the file
+     * @return the checksum stored in the file, or {@link #UNKNOWN_CHECKSUM} to compute the checksum of the file
+     * @throws IOException if the file could not be read
+     */
+    protected long readStoredChecksum(final File file) throws IOException {
+        return UNKNOWN_CHECKSUM;
+    }
+
+    /**
+     * Reads the file with a fixed buffer to compute its checksum, so the file is not kept in memory.
+     */
+    private Fingerprint takeFingerprint() throws IOException {
+        final long takenAt = System.currentTimeMillis();
+        final long length = file.length();
+        final long lastModified = file.lastModified();
+        final long storedChecksum = readStoredChecksum(file);
+        if (storedChecksum >= 0) {
+            return new Fingerprint(length, lastModified, storedChecksum, takenAt);
+        }
+        final CRC32 crc32 = new CRC32();
+        final byte[] buffer = new byte[64 * 1024];
+        try (InputStream inputStream = new FileInputStream(file)) {
+            int read;
+            while ((read = inputStream.read(buffer)) != -1) {
+                crc32.update(buffer, 0, read);
+            }
+        }
+        return new Fingerprint(length, lastModified, crc32.getValue(), takenAt);
+    }
+
+    /**
+     * @return the checksum of the file at its last load, negative if it is not known
+     */
+    protected long getChecksum() {
+        final Fingerprint current = fingerprint;
+        return current == null ? UNKNOWN_CHECKSUM : current.checksum;
+    }
+
+    /**
+     * @return the .properties file, available after {@link #init()}
+     */
+    protected File getFile() {
+        return file;
+    }
+
     @NotNull
     public Properties getProperties() {
         return properties;
     }
 
-
+    /**
+     * Length, modification time and checksum of the file at the time it was loaded.
+     */
+    private static class Fingerprint {
+
+        private final long length;
+        private final long lastModified;
+        private final long checksum;
+        private final long takenAt;
+
+        private Fingerprint(final long length, final long lastModified, final long checksum, final long takenAt) {
+            this.length = length;
+            this.lastModified = lastModified;
+            this.checksum = checksum;
+            this.takenAt = takenAt;
+        }
+    }
 }
@@ -0,0 +1,160 @@
+/*
+ * Copyright 2015 dc-square GmbH
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.hivemq.plugin.fileauthentication.metrics;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Metric;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import com.google.common.base.Supplier;
+import com.google.common.cache.CacheStats;
+import com.hivemq.plugin.fileauthentication.authentication.VerificationResult;
+import com.hivemq.spi.services.MetricService;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Publishes the metrics of the plugin in the metric registry of HiveMQ.
+ * <p/>
+ * All metric names start with {@value #PREFIX} and must not be changed, because dashboards are built on them.
+ */
+@Singleton
+public class AuthenticationMetrics {
+
+    public static final String PREFIX = "file-authentication";
+
+    public static final String AUTHENTICATION_TIME = PREFIX + ".authentication.time";
+    public static final String GRANTED = PREFIX + ".authentication.granted";
+    public static final String DENIED = PREFIX + ".authentication.denied";
+    public static final String VERIFICATION_TIME = PREFIX + ".verification.time";
+    public static final String CACHE = PREFIX + ".cache";
+
+    public static final String VERIFIED_PASSWORDS_HITS = CACHE + ".verified-passwords.hits";
+    public static final String VERIFIED_PASSWORDS_SIZE = CACHE + ".verified-passwords.size";
+    public static final String COALESCING_SAVED = PREFIX + ".coalescing.saved";
+    public static final String COALESCING_TIMEOUTS = PREFIX + ".coalescing.timeouts";
+    public static final String HEAP_PRESSURE_SHRINKS = CACHE + ".heap-pressure.shrinks";
+    public static final String REFRESH_AHEAD_REFRESHES = CACHE + ".refresh-ahead.refreshes";
+    public static final String REFRESH_AHEAD_FAILURES = CACHE + ".refresh-ahead.failures";
+    public static final String REHASH_REHASHES = PREFIX + ".rehash.rehashes";
+    public static final String REHASH_FAILURES = PREFIX + ".rehash.failures";
+    public static final String SESSION_TOKENS_ISSUED = PREFIX + ".session-tokens.issued";
+    public static final String SESSION_TOKENS_ACCEPTED = PREFIX + ".session-tokens.accepted";
+    public static final String VERIFICATION_QUEUED = PREFIX + ".verification.queued";
+    public static final String VERIFICATION_REJECTED = PREFIX + ".verification.rejected";
+    public static final String VERIFICATION_TIMEOUTS = PREFIX + ".verification.timeouts";
+
+    private final MetricRegistry metricRegistry;
+    private final Timer authenticationTime;
+    private final Timer verificationTime;
+    private final Counter granted;
+    private final Counter denied;
+    private final Map<VerificationResult, Counter> deniedByReason = new EnumMap<>(VerificationResult.class);
+
+    @Inject
+    public AuthenticationMetrics(final MetricService metricService) {
+        this.metricRegistry = metricService.getMetricRegistry();
+
+        this.authenticationTime = register(AUTHENTICATION_TIME, new Timer());
+        this.verificationTime = register(VERIFICATION_TIME, new Timer());
+        this.granted = register(GRANTED, new Counter());
+        this.denied = register(DENIED, new Counter());
+        for (VerificationResult result : VerificationResult.values()) {
+            if (!result.isGranted()) {
+                deniedByReason.put(result, register(DENIED + "." + result.getReasonCode(), new Counter()));
+            }
+        }
+    }
+
+    /**
+     * Records the result of an authentication.
+     *
+     * @param result      result of the authentication
+     * @param timeInNanos time needed for the authentication, including cache lookups
+     */
+    public void authenticated(final VerificationResult result, final long timeInNanos) {
+        authenticationTime.update(timeInNanos, TimeUnit.NANOSECONDS);
+        if (result.isGranted()) {
+            granted.inc();
+        } else {
+            denied.inc();
+            deniedByReason.get(result).inc();
+        }
+    }
+
+    /**
+     * Records the time needed to verify a password which was not cached, this is the load time of the cache.
+     *
+     * @param timeInNanos time needed for the verification
+     */
+    public void verified(final long timeInNanos) {
+        verificationTime.update(timeInNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Registers hits, misses and evictions of a cache.
+     *
+     * @param cacheName name of the cache in the metric names
+     * @param stats     supplier for the current statistics of the cache
+     */
+    public void registerCacheStats(final String cacheName, final Supplier<CacheStats> stats) {
+        final String prefix = CACHE + "." + cacheName;
+        register(prefix + ".hits", new Gauge<Long>() {
+            @Override
+            public Long getValue() {
+                return stats.get().hitCount();
+            }
+        });
+        register(prefix + ".misses", new Gauge<Long>() {
+            @Override
+            public Long getValue() {
+                return stats.get().missCount();
+            }
+        });
+        register(prefix + ".evictions", new Gauge<Long>() {
+            @Override
+            public Long getValue() {
+                return stats.get().evictionCount();
+            }
+        });
+    }
+
+    /**
+     * Registers a gauge.
+     *
+     * @param name  name of the gauge, one of the constants of this class
+     * @param value supplier for the current value
+     */
+    public void registerGauge(final String name, final Supplier<? extends Number> value) {
+        register(name, new Gauge<Number>() {
+            @Override
+            public Number getValue() {
+                return value.get();
+            }
+        });
+    }
+
+    private <T extends Metric> T register(final String name, final T metric) {
+        metricRegistry.remove(name);
+        return metricRegistry.register(name, metric);
+    }
+}
@@ -16,13 +16,23 @@
 
 package com.hivemq.plugin.fileauthentication;
 
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
 import com.hivemq.plugin.fileauthentication.authentication.FileAuthenticator;
+import com.hivemq.plugin.fileauthentication.authentication.HotUsers;
+import com.hivemq.plugin.fileauthentication.callback.SessionTokenCallback;
 import com.hivemq.spi.callback.registry.CallbackRegistry;
 import org.junit.Before;
 import org.junit.Test;
+import org.mockito.InOrder;
 import org.mockito.Mock;
 
+import java.util.Collections;
+
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
 import static org.mockito.MockitoAnnotations.initMocks;
 
 /**
@@ -36,6 +46,9 @@ public class FileAuthMainTest {
     @Mock
     FileAuthenticator fileAuthenticator;
 
+    @Mock
+    HotUsers hotUsers;
+
     @Before
     public void setUp() throws Exception {
         initMocks(this);
@@ -44,9 +57,39 @@ public class FileAuthMainTest {
     @Test
     public void test_callback_is_added() throws Exception {
 
-        FileAuthMain fileAuthMain = new FileAuthMain(fileAuthenticator, callbackRegistry);
+        FileAuthMain fileAuthMain = new FileAuthMain(fileAuthenticator, hotUsers, callbackRegistry, Collections.<SessionTokenCallback>emptySet());
         fileAuthMain.postConstruct();
 
         verify(callbackRegistry).addCallback(fileAuthenticator);
     }
+
+    @Test
+    public void test_hot_users_are_preloaded_and_warm_up_runs_before_callback_is_added() throws Exception {
+
+        when(hotUsers.load()).thenReturn(ImmutableList.of("user"));
+
+        FileAuthMain fileAuthMain = new FileAuthMain(fileAuthenticator, hotUsers, callbackRegistry, Collections.<SessionTokenCallback>emptySet());
+        fileAuthMain.postConstruct();
+
+        final InOrder inOrder = inOrder(fileAuthenticator, callbackRegistry);
+        inOrder.verify(fileAuthenticator).preload(ImmutableList.of("user"));
+        inOrder.verify(fileAuthenticator).warmUp();
+        inOrder.verify(callbackRegistry).addCallback(fileAuthenticator);
+        verify(callbackRegistry).addCallback(hotUsers);
+        verify(hotUsers).start();
+    }
+
+    @Test
+    public void test_session_token_callbacks_are_added_before_callback_is_added() throws Exception {
+
+        final SessionTokenCallback sessionTokenCallback = mock(SessionTokenCallback.class);
+
+        FileAuthMain fileAuthMain = new FileAuthMain(fileAuthenticator, hotUsers, callbackRegistry,
+                ImmutableSet.of(sessionTokenCallback));
+        fileAuthMain.postConstruct();
+
+        final InOrder inOrder = inOrder(fileAuthenticator, callbackRegistry);
+        inOrder.verify(fileAuthenticator).addSessionTokenCallback(sessionTokenCallback);
+        inOrder.verify(callbackRegistry).addCallback(fileAuthenticator);
+    }
 }
@@ -0,0 +1,45 @@
+/*
+ * Copyright 2015 dc-square GmbH
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.hivemq.plugin.fileauthentication.authentication;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class CacheEntryWeigherTest {
+
+    private final PasswordFingerprinter passwordFingerprinter = new PasswordFingerprinter();
+
+    @Test
+    public void test_entries_weigh_one() throws Exception {
+        final CredentialCacheKey key = new CredentialCacheKey("user", passwordFingerprinter.fingerprint("password"));
+
+        assertEquals(1, CacheEntryWeigher.ENTRIES.weigh(key, Boolean.TRUE));
+    }
+
+    @Test
+    public void test_bytes_grow_with_username() throws Exception {
+        final byte[] fingerprint = passwordFingerprinter.fingerprint("password");
+        final int shortUsername = CacheEntryWeigher.BYTES.weigh(new CredentialCacheKey("user", fingerprint), Boolean.TRUE);
+        final int longUsername = CacheEntryWeigher.BYTES.weigh(new CredentialCacheKey(new String(new char[1000]), fingerprint), Boolean.TRUE);
+
+        assertTrue(shortUsername > 100);
+        assertTrue(longUsername >= shortUsername + 2000 - 8);
+        assertEquals(0, shortUsername % 8);
+    }
+}
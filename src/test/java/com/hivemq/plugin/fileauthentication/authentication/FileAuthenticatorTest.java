@@ -16,20 +16,47 @@
 
 package com.hivemq.plugin.fileauthentication.authentication;
 
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
 import com.google.common.net.InetAddresses;
+import com.hivemq.plugin.fileauthentication.callback.CredentialChangeCallback;
+import com.hivemq.plugin.fileauthentication.callback.SessionTokenCallback;
 import com.hivemq.plugin.fileauthentication.configuration.Configuration;
 import com.hivemq.plugin.fileauthentication.configuration.CredentialsConfiguration;
+import com.hivemq.plugin.fileauthentication.configuration.EntryCompiler;
 import com.hivemq.plugin.fileauthentication.exception.PasswordFormatException;
+import com.hivemq.plugin.fileauthentication.metrics.AuthenticationMetrics;
 import com.hivemq.spi.security.ClientCredentialsData;
+import com.hivemq.spi.services.PluginExecutorService;
 import com.google.common.base.Optional;
 import org.junit.Before;
 import org.junit.Test;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 
 import java.net.InetAddress;
-
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.any;
+import static org.mockito.Mockito.anyInt;
+import static org.mockito.Mockito.anyLong;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.refEq;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 import static org.mockito.MockitoAnnotations.initMocks;
 
@@ -51,11 +78,40 @@ public class FileAuthenticatorTest {
     @Mock
     CredentialsConfiguration credentialsConfiguration;
 
+    @Mock
+    PluginExecutorService pluginExecutorService;
+
+    @Mock
+    AuthenticationMetrics authenticationMetrics;
+
+    @Mock
+    HotUsers hotUsers;
+
+    PasswordFingerprinter passwordFingerprinter = new PasswordFingerprinter();
+
+
+    private EntryCompiler entryCompiler;
 
     @Before
     public void setUp() throws Exception {
         initMocks(this);
         when(configuration.getCredentialsConfiguration()).thenReturn(credentialsConfiguration);
+
+        // compiles the entries like the credentials configuration, but only when they are looked up
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(final InvocationOnMock invocation) throws Throwable {
+                entryCompiler = (EntryCompiler) invocation.getArguments()[0];
+                return null;
+            }
+        }).when(credentialsConfiguration).setEntryCompiler(any(EntryCompiler.class));
+        when(configuration.getCompiledEntry(any(String.class))).thenAnswer(new Answer<HashedSaltedPassword>() {
+            @Override
+            public HashedSaltedPassword answer(final InvocationOnMock invocation) throws Throwable {
+                final String entry = configuration.getUser((String) invocation.getArguments()[0]);
+                return entry == null || entry.isEmpty() ? null : entryCompiler.compile(entry);
+            }
+        });
     }
 
     @Test
@@ -64,10 +120,11 @@ public class FileAuthenticatorTest {
         when(clientCredentialsData.getUsername()).thenReturn(Optional.<String>absent());
         when(clientCredentialsData.getPassword()).thenReturn(Optional.of("password"));
         when(clientCredentialsData.getInetAddress()).thenReturn(Optional.of(InetAddress.getLoopbackAddress()));
-        fileAuthenticator = new FileAuthenticator(configuration, passwordComparator);
+        fileAuthenticator = new FileAuthenticator(configuration, passwordComparator, passwordFingerprinter, pluginExecutorService, authenticationMetrics, hotUsers);
         final Boolean isAuthenticated = fileAuthenticator.checkCredentials(clientCredentialsData);
 
         assertFalse(isAuthenticated);
+        verify(authenticationMetrics).authenticated(eq(VerificationResult.NO_USERNAME), anyLong());
     }
 
     @Test
@@ -78,7 +135,7 @@ public class FileAuthenticatorTest {
         when(clientCredentialsData.getInetAddress()).thenReturn(Optional.of(InetAddress.getLoopbackAddress()));
 
 
-        fileAuthenticator = new FileAuthenticator(configuration, passwordComparator);
+        fileAuthenticator = new FileAuthenticator(configuration, passwordComparator, passwordFingerprinter, pluginExecutorService, authenticationMetrics, hotUsers);
         final Boolean isAuthenticated = fileAuthenticator.checkCredentials(clientCredentialsData);
 
         assertFalse(isAuthenticated);
@@ -95,7 +152,7 @@ public class FileAuthenticatorTest {
 
         when(configuration.getUser(providedUsername)).thenReturn(null);
 
-        fileAuthenticator = new FileAuthenticator(configuration, passwordComparator);
+        fileAuthenticator = new FileAuthenticator(configuration, passwordComparator, passwordFingerprinter, pluginExecutorService, authenticationMetrics, hotUsers);
         final Boolean isAuthenticated = fileAuthenticator.checkCredentials(clientCredentialsData);
 
         assertFalse(isAuthenticated);
@@ -117,7 +174,7 @@ public class FileAuthenticatorTest {
 
         when(passwordComparator.validatePlaintextPassword(filePassword, providedPassword)).thenReturn(true);
 
-        fileAuthenticator = new FileAuthenticator(configuration, passwordComparator);
+        fileAuthenticator = new FileAuthenticator(configuration, passwordComparator, passwordFingerprinter, pluginExecutorService, authenticationMetrics, hotUsers);
         final Boolean isAuthenticated = fileAuthenticator.checkCredentials(clientCredentialsData);
 
         assertTrue(isAuthenticated);
@@ -139,10 +196,48 @@ public class FileAuthenticatorTest {
 
         when(passwordComparator.validatePlaintextPassword(filePassword, providedPassword)).thenReturn(false);
 
-        fileAuthenticator = new FileAuthenticator(configuration, passwordComparator);
+        fileAuthenticator = new FileAuthenticator(configuration, passwordComparator, passwordFingerprinter, pluginExecutorService, authenticationMetrics, hotUsers);
+        final Boolean isAuthenticated = fileAuthenticator.checkCredentials(clientCredentialsData);
+
+        assertFalse(isAuthenticated);
+    }
+
+    @Test
+    public void test_self_describing_entry_ignores_global_settings() throws Exception {
+
+        final String providedUsername = "user";
+        when(clientCredentialsData.getUsername()).thenReturn(Optional.of(providedUsername));
+        final String providedPassword = "password";
+        when(clientCredentialsData.getPassword()).thenReturn(Optional.of(providedPassword));
+        when(clientCredentialsData.getInetAddress()).thenReturn(Optional.of(InetAddress.getLoopbackAddress()));
+
+        when(configuration.getUser(providedUsername)).thenReturn("$2a$06$a0DqbFLfZFPxWUvya0Dqb.E1tEwpajqalta700/ehKH/RBezOsw4G");
+        when(configuration.isHashed()).thenReturn(false);
+
+        when(passwordComparator.validateKdfPassword(eq(providedPassword), any(KdfHash.class))).thenReturn(true);
+
+        fileAuthenticator = new FileAuthenticator(configuration, passwordComparator, passwordFingerprinter, pluginExecutorService, authenticationMetrics, hotUsers);
+        final Boolean isAuthenticated = fileAuthenticator.checkCredentials(clientCredentialsData);
+
+        assertTrue(isAuthenticated);
+        verify(passwordComparator, never()).validatePlaintextPassword(any(String.class), any(String.class));
+    }
+
+    @Test
+    public void test_unsupported_self_describing_entry_is_denied() throws Exception {
+
+        final String providedUsername = "user";
+        when(clientCredentialsData.getUsername()).thenReturn(Optional.of(providedUsername));
+        when(clientCredentialsData.getPassword()).thenReturn(Optional.of("password"));
+        when(clientCredentialsData.getInetAddress()).thenReturn(Optional.of(InetAddress.getLoopbackAddress()));
+
+        when(configuration.getUser(providedUsername)).thenReturn("$argon2id$v=19$m=65536,t=3,p=4$c2FsdA$aGFzaGhhc2hoYXNoaGFzaA");
+
+        fileAuthenticator = new FileAuthenticator(configuration, passwordComparator, passwordFingerprinter, pluginExecutorService, authenticationMetrics, hotUsers);
         final Boolean isAuthenticated = fileAuthenticator.checkCredentials(clientCredentialsData);
 
         assertFalse(isAuthenticated);
+        verify(authenticationMetrics).authenticated(eq(VerificationResult.BAD_FORMAT), anyLong());
     }
 
     @Test
@@ -164,11 +259,11 @@ public class FileAuthenticatorTest {
         final int iterations = 1000000;
         when(configuration.getHashingIterations()).thenReturn(iterations);
 
-        fileAuthenticator = new FileAuthenticator(configuration, passwordComparator);
-        when(passwordComparator.validateHashedPassword(algorithm, providedPassword, filePassword, iterations)).thenReturn(true);
+        fileAuthenticator = new FileAuthenticator(configuration, passwordComparator, passwordFingerprinter, pluginExecutorService, authenticationMetrics, hotUsers);
+        when(passwordComparator.validateHashedEntry(eq(algorithm), eq(providedPassword), any(HashedSaltedPassword.class), eq(iterations))).thenReturn(true);
 
 
-        FileAuthenticator fileAuthenticator = new FileAuthenticator(configuration, passwordComparator);
+        FileAuthenticator fileAuthenticator = new FileAuthenticator(configuration, passwordComparator, passwordFingerprinter, pluginExecutorService, authenticationMetrics, hotUsers);
         final Boolean isAuthenticated = fileAuthenticator.checkCredentials(clientCredentialsData);
 
         assertTrue(isAuthenticated);
@@ -193,11 +288,11 @@ public class FileAuthenticatorTest {
         final int iterations = 1000000;
         when(configuration.getHashingIterations()).thenReturn(iterations);
 
-        fileAuthenticator = new FileAuthenticator(configuration, passwordComparator);
-        when(passwordComparator.validateHashedPassword(algorithm, providedPassword, filePassword, iterations)).thenReturn(false);
+        fileAuthenticator = new FileAuthenticator(configuration, passwordComparator, passwordFingerprinter, pluginExecutorService, authenticationMetrics, hotUsers);
+        when(passwordComparator.validateHashedEntry(eq(algorithm), eq(providedPassword), any(HashedSaltedPassword.class), eq(iterations))).thenReturn(false);
 
 
-        FileAuthenticator fileAuthenticator = new FileAuthenticator(configuration, passwordComparator);
+        FileAuthenticator fileAuthenticator = new FileAuthenticator(configuration, passwordComparator, passwordFingerprinter, pluginExecutorService, authenticationMetrics, hotUsers);
         final Boolean isAuthenticated = fileAuthenticator.checkCredentials(clientCredentialsData);
 
         assertFalse(isAuthenticated);
@@ -227,8 +322,8 @@ public class FileAuthenticatorTest {
         final String hash = "hash";
         HashedSaltedPassword abc = new HashedSaltedPassword(hash, salt);
 
-        fileAuthenticator = new FileAuthenticator(configuration, passwordComparator);
-        when(passwordComparator.validateHashedAndSaltedPassword(algorithm, providedPassword, hash, iterations, salt)).thenReturn(true);
+        fileAuthenticator = new FileAuthenticator(configuration, passwordComparator, passwordFingerprinter, pluginExecutorService, authenticationMetrics, hotUsers);
+        when(passwordComparator.validateHashedEntry(eq(algorithm), eq(providedPassword), refEq(abc, "hashBytes", "saltBytes"), eq(iterations))).thenReturn(true);
 
 
         FileAuthenticatorForTest fileAuthenticator = new FileAuthenticatorForTest(configuration, passwordComparator, abc);
@@ -261,8 +356,8 @@ public class FileAuthenticatorTest {
         final String hash = "hash";
         HashedSaltedPassword abc = new HashedSaltedPassword(hash, salt);
 
-        fileAuthenticator = new FileAuthenticator(configuration, passwordComparator);
-        when(passwordComparator.validateHashedAndSaltedPassword(algorithm, providedPassword, hash, iterations, salt)).thenReturn(false);
+        fileAuthenticator = new FileAuthenticator(configuration, passwordComparator, passwordFingerprinter, pluginExecutorService, authenticationMetrics, hotUsers);
+        when(passwordComparator.validateHashedEntry(eq(algorithm), eq(providedPassword), refEq(abc, "hashBytes", "saltBytes"), eq(iterations))).thenReturn(false);
 
 
         FileAuthenticatorForTest fileAuthenticator = new FileAuthenticatorForTest(configuration, passwordComparator, abc);
@@ -295,8 +390,8 @@ public class FileAuthenticatorTest {
         final String hash = "hash";
         HashedSaltedPassword abc = new HashedSaltedPassword(hash, salt);
 
-        fileAuthenticator = new FileAuthenticator(configuration, passwordComparator);
-        when(passwordComparator.validateHashedAndSaltedPassword(algorithm, providedPassword, hash, iterations, salt)).thenReturn(true);
+        fileAuthenticator = new FileAuthenticator(configuration, passwordComparator, passwordFingerprinter, pluginExecutorService, authenticationMetrics, hotUsers);
+        when(passwordComparator.validateHashedEntry(eq(algorithm), eq(providedPassword), refEq(abc, "hashBytes", "saltBytes"), eq(iterations))).thenReturn(true);
 
 
         FileAuthenticatorForTest2 fileAuthenticator = new FileAuthenticatorForTest2(configuration, passwordComparator, abc);
@@ -305,12 +400,723 @@ public class FileAuthenticatorTest {
         assertFalse(isAuthenticated);
     }
 
+    @Test
+    public void test_repeated_login_is_served_from_cache() throws Exception {
+
+        final String providedUsername = "user";
+        when(clientCredentialsData.getUsername()).thenReturn(Optional.of(providedUsername));
+        final String providedPassword = "password";
+        when(clientCredentialsData.getPassword()).thenReturn(Optional.of(providedPassword));
+        when(clientCredentialsData.getInetAddress()).thenReturn(Optional.of(InetAddress.getLoopbackAddress()));
+
+        final String filePassword = "hash";
+        when(configuration.getUser(providedUsername)).thenReturn(filePassword);
+        when(configuration.isSalted()).thenReturn(false);
+        when(configuration.isHashed()).thenReturn(true);
+        final String algorithm = "SHA-512";
+        when(configuration.getHashingAlgorithm()).thenReturn(algorithm);
+        final int iterations = 1000000;
+        when(configuration.getHashingIterations()).thenReturn(iterations);
+        when(configuration.getCacheSize()).thenReturn(100);
+        when(configuration.getCachingTime()).thenReturn(600);
+
+        when(passwordComparator.validateHashedEntry(eq(algorithm), eq(providedPassword), any(HashedSaltedPassword.class), eq(iterations))).thenReturn(true);
+
+        fileAuthenticator = new FileAuthenticator(configuration, passwordComparator, passwordFingerprinter, pluginExecutorService, authenticationMetrics, hotUsers);
+
+        assertTrue(fileAuthenticator.checkCredentials(clientCredentialsData));
+        assertTrue(fileAuthenticator.checkCredentials(clientCredentialsData));
+        assertTrue(fileAuthenticator.checkCredentials(clientCredentialsData));
+
+        verify(passwordComparator, times(1)).validateHashedEntry(eq(algorithm), eq(providedPassword), any(HashedSaltedPassword.class), eq(iterations));
+    }
+
+    @Test
+    public void test_cache_is_shared_between_clients_with_same_credentials() throws Exception {
+
+        final String providedUsername = "user";
+        final String providedPassword = "password";
+        when(clientCredentialsData.getUsername()).thenReturn(Optional.of(providedUsername));
+        when(clientCredentialsData.getPassword()).thenReturn(Optional.of(providedPassword));
+        when(clientCredentialsData.getClientId()).thenReturn("client1");
+        when(clientCredentialsData.getInetAddress()).thenReturn(Optional.of(InetAddress.getLoopbackAddress()));
+
+        final ClientCredentialsData otherClientCredentialsData = mock(ClientCredentialsData.class);
+        when(otherClientCredentialsData.getUsername()).thenReturn(Optional.of(providedUsername));
+        when(otherClientCredentialsData.getPassword()).thenReturn(Optional.of(providedPassword));
+        when(otherClientCredentialsData.getClientId()).thenReturn("client2");
+        when(otherClientCredentialsData.getInetAddress()).thenReturn(Optional.of(InetAddresses.forString("10.0.0.1")));
+
+        final String filePassword = "password";
+        when(configuration.getUser(providedUsername)).thenReturn(filePassword);
+        when(configuration.isHashed()).thenReturn(false);
+        when(configuration.getCacheSize()).thenReturn(100);
+        when(configuration.getCachingTime()).thenReturn(600);
+
+        when(passwordComparator.validatePlaintextPassword(filePassword, providedPassword)).thenReturn(true);
+
+        fileAuthenticator = new FileAuthenticator(configuration, passwordComparator, passwordFingerprinter, pluginExecutorService, authenticationMetrics, hotUsers);
+
+        assertTrue(fileAuthenticator.checkCredentials(clientCredentialsData));
+        assertTrue(fileAuthenticator.checkCredentials(otherClientCredentialsData));
+
+        verify(passwordComparator, times(1)).validatePlaintextPassword(filePassword, providedPassword);
+    }
+
+    @Test
+    public void test_different_password_is_not_served_from_cache() throws Exception {
+
+        final String providedUsername = "user";
+        when(clientCredentialsData.getUsername()).thenReturn(Optional.of(providedUsername));
+        when(clientCredentialsData.getPassword()).thenReturn(Optional.of("password"), Optional.of("wrong"));
+        when(clientCredentialsData.getInetAddress()).thenReturn(Optional.of(InetAddress.getLoopbackAddress()));
+
+        final String filePassword = "password";
+        when(configuration.getUser(providedUsername)).thenReturn(filePassword);
+        when(configuration.isHashed()).thenReturn(false);
+        when(configuration.getCacheSize()).thenReturn(100);
+        when(configuration.getCachingTime()).thenReturn(600);
+
+        when(passwordComparator.validatePlaintextPassword(filePassword, "password")).thenReturn(true);
+        when(passwordComparator.validatePlaintextPassword(filePassword, "wrong")).thenReturn(false);
+
+        fileAuthenticator = new FileAuthenticator(configuration, passwordComparator, passwordFingerprinter, pluginExecutorService, authenticationMetrics, hotUsers);
+
+        assertTrue(fileAuthenticator.checkCredentials(clientCredentialsData));
+        assertFalse(fileAuthenticator.checkCredentials(clientCredentialsData));
+
+        verify(passwordComparator, times(1)).validatePlaintextPassword(filePassword, "password");
+        verify(passwordComparator, times(1)).validatePlaintextPassword(filePassword, "wrong");
+    }
+
+    @Test
+    public void test_credential_change_only_invalidates_changed_users() throws Exception {
+
+        final String providedUsername = "user";
+        final String providedPassword = "password";
+        when(clientCredentialsData.getUsername()).thenReturn(Optional.of(providedUsername));
+        when(clientCredentialsData.getPassword()).thenReturn(Optional.of(providedPassword));
+        when(clientCredentialsData.getInetAddress()).thenReturn(Optional.of(InetAddress.getLoopbackAddress()));
+
+        final String filePassword = "password";
+        when(configuration.getUser(providedUsername)).thenReturn(filePassword);
+        when(configuration.isHashed()).thenReturn(false);
+        when(configuration.getCacheSize()).thenReturn(100);
+        when(configuration.getCachingTime()).thenReturn(600);
+
+        when(passwordComparator.validatePlaintextPassword(filePassword, providedPassword)).thenReturn(true);
+
+        fileAuthenticator = new FileAuthenticator(configuration, passwordComparator, passwordFingerprinter, pluginExecutorService, authenticationMetrics, hotUsers);
+
+        final ArgumentCaptor<CredentialChangeCallback> callbackCaptor = ArgumentCaptor.forClass(CredentialChangeCallback.class);
+        verify(credentialsConfiguration).addCallback(callbackCaptor.capture());
+        final CredentialChangeCallback credentialChangeCallback = callbackCaptor.getValue();
+
+        assertTrue(fileAuthenticator.checkCredentials(clientCredentialsData));
+
+        credentialChangeCallback.onCredentialChange(ImmutableSet.of("otherUser"));
+        assertTrue(fileAuthenticator.checkCredentials(clientCredentialsData));
+        verify(passwordComparator, times(1)).validatePlaintextPassword(filePassword, providedPassword);
+
+        credentialChangeCallback.onCredentialChange(ImmutableSet.of(providedUsername));
+        assertTrue(fileAuthenticator.checkCredentials(clientCredentialsData));
+        verify(passwordComparator, times(2)).validatePlaintextPassword(filePassword, providedPassword);
+    }
+
+    @Test
+    public void test_failed_logins_do_not_evict_successful_logins() throws Exception {
+
+        final String providedUsername = "user";
+        when(clientCredentialsData.getUsername()).thenReturn(Optional.of(providedUsername));
+        when(clientCredentialsData.getPassword()).thenReturn(Optional.of("password"));
+        when(clientCredentialsData.getInetAddress()).thenReturn(Optional.of(InetAddress.getLoopbackAddress()));
+
+        final String filePassword = "password";
+        when(configuration.getUser(providedUsername)).thenReturn(filePassword);
+        when(configuration.isHashed()).thenReturn(false);
+        when(configuration.getCacheSize()).thenReturn(1);
+        when(configuration.getCachingTime()).thenReturn(600);
+        when(configuration.getNegativeCacheSize()).thenReturn(1);
+        when(configuration.getNegativeCachingTime()).thenReturn(600);
+        when(configuration.getNegativeCacheMaxPerUsername()).thenReturn(100);
+
+        when(passwordComparator.validatePlaintextPassword(filePassword, "password")).thenReturn(true);
+
+        fileAuthenticator = new FileAuthenticator(configuration, passwordComparator, passwordFingerprinter, pluginExecutorService, authenticationMetrics, hotUsers);
+
+        assertTrue(fileAuthenticator.checkCredentials(clientCredentialsData));
+
+        final ClientCredentialsData attackerCredentialsData = mock(ClientCredentialsData.class);
+        when(attackerCredentialsData.getUsername()).thenReturn(Optional.of(providedUsername));
+        when(attackerCredentialsData.getInetAddress()).thenReturn(Optional.of(InetAddress.getLoopbackAddress()));
+        for (int i = 0; i < 100; i++) {
+            when(attackerCredentialsData.getPassword()).thenReturn(Optional.of("wrong" + i));
+            assertFalse(fileAuthenticator.checkCredentials(attackerCredentialsData));
+        }
+
+        assertTrue(fileAuthenticator.checkCredentials(clientCredentialsData));
+        verify(passwordComparator, times(1)).validatePlaintextPassword(filePassword, "password");
+        assertEquals(1, fileAuthenticator.getVerifiedPasswordHitCount());
+    }
+
+    @Test
+    public void test_negative_cache_entries_are_limited_per_username() throws Exception {
+
+        final String providedUsername = "user";
+        when(clientCredentialsData.getUsername()).thenReturn(Optional.of(providedUsername));
+        when(clientCredentialsData.getPassword()).thenReturn(
+                Optional.of("wrong1"), Optional.of("wrong2"), Optional.of("wrong3"),
+                Optional.of("wrong1"), Optional.of("wrong2"), Optional.of("wrong3"));
+        when(clientCredentialsData.getInetAddress()).thenReturn(Optional.of(InetAddress.getLoopbackAddress()));
+
+        when(configuration.getUser(providedUsername)).thenReturn("password");
+        when(configuration.isHashed()).thenReturn(false);
+        when(configuration.getNegativeCacheSize()).thenReturn(100);
+        when(configuration.getNegativeCachingTime()).thenReturn(600);
+        when(configuration.getNegativeCacheMaxPerUsername()).thenReturn(2);
+
+        fileAuthenticator = new FileAuthenticator(configuration, passwordComparator, passwordFingerprinter, pluginExecutorService, authenticationMetrics, hotUsers);
+
+        for (int i = 0; i < 6; i++) {
+            assertFalse(fileAuthenticator.checkCredentials(clientCredentialsData));
+        }
+
+        verify(passwordComparator, times(1)).validatePlaintextPassword("password", "wrong1");
+        verify(passwordComparator, times(1)).validatePlaintextPassword("password", "wrong2");
+        verify(passwordComparator, times(2)).validatePlaintextPassword("password", "wrong3");
+        assertEquals(2, fileAuthenticator.getNegativeCacheStats().hitCount());
+    }
+
+    @Test
+    public void test_cached_denial_keeps_reason() throws Exception {
+
+        final String providedUsername = "user";
+        when(clientCredentialsData.getUsername()).thenReturn(Optional.of(providedUsername));
+        when(clientCredentialsData.getPassword()).thenReturn(Optional.of("password"));
+        when(clientCredentialsData.getInetAddress()).thenReturn(Optional.of(InetAddress.getLoopbackAddress()));
+
+        when(configuration.getUser(providedUsername)).thenReturn(null);
+        when(configuration.getNegativeCacheSize()).thenReturn(100);
+        when(configuration.getNegativeCachingTime()).thenReturn(600);
+        when(configuration.getNegativeCacheMaxPerUsername()).thenReturn(5);
+
+        fileAuthenticator = new FileAuthenticator(configuration, passwordComparator, passwordFingerprinter, pluginExecutorService, authenticationMetrics, hotUsers);
+
+        assertFalse(fileAuthenticator.checkCredentials(clientCredentialsData));
+        assertFalse(fileAuthenticator.checkCredentials(clientCredentialsData));
+
+        verify(configuration, times(1)).getUser(providedUsername);
+        verify(authenticationMetrics, times(1)).verified(anyLong());
+        verify(authenticationMetrics, times(2)).authenticated(eq(VerificationResult.UNKNOWN_USER), anyLong());
+    }
+
+    @Test
+    public void test_verified_password_survives_eviction_from_cache() throws Exception {
+
+        when(clientCredentialsData.getUsername()).thenReturn(
+                Optional.of("user1"), Optional.of("user2"), Optional.of("user1"), Optional.of("user2"));
+        when(clientCredentialsData.getPassword()).thenReturn(Optional.of("password"));
+        when(clientCredentialsData.getInetAddress()).thenReturn(Optional.of(InetAddress.getLoopbackAddress()));
+
+        when(configuration.getUser("user1")).thenReturn("password");
+        when(configuration.getUser("user2")).thenReturn("password");
+        when(configuration.isHashed()).thenReturn(false);
+        when(configuration.getCacheSize()).thenReturn(1);
+        when(configuration.getCachingTime()).thenReturn(600);
+
+        when(passwordComparator.validatePlaintextPassword("password", "password")).thenReturn(true);
+
+        fileAuthenticator = new FileAuthenticator(configuration, passwordComparator, passwordFingerprinter, pluginExecutorService, authenticationMetrics, hotUsers);
+
+        for (int i = 0; i < 4; i++) {
+            assertTrue(fileAuthenticator.checkCredentials(clientCredentialsData));
+        }
+
+        verify(passwordComparator, times(2)).validatePlaintextPassword("password", "password");
+        assertEquals(2, fileAuthenticator.getVerifiedPasswordHitCount());
+    }
+
+    @Test
+    public void test_cache_settings_change_keeps_entries() throws Exception {
+
+        final String providedUsername = "user";
+        when(clientCredentialsData.getUsername()).thenReturn(Optional.of(providedUsername));
+        when(clientCredentialsData.getPassword()).thenReturn(Optional.of("wrong"));
+        when(clientCredentialsData.getInetAddress()).thenReturn(Optional.of(InetAddress.getLoopbackAddress()));
+
+        when(configuration.getUser(providedUsername)).thenReturn("password");
+        when(configuration.isHashed()).thenReturn(false);
+        when(configuration.getNegativeCacheSize()).thenReturn(100);
+        when(configuration.getNegativeCachingTime()).thenReturn(600);
+        when(configuration.getNegativeCacheMaxPerUsername()).thenReturn(5);
+
+        fileAuthenticator = new FileAuthenticator(configuration, passwordComparator, passwordFingerprinter, pluginExecutorService, authenticationMetrics, hotUsers);
+
+        final ArgumentCaptor<Configuration.RestartListener> listenerCaptor = ArgumentCaptor.forClass(Configuration.RestartListener.class);
+        verify(configuration).setRestartListener(listenerCaptor.capture());
+        final Configuration.RestartListener restartListener = listenerCaptor.getValue();
+
+        assertFalse(fileAuthenticator.checkCredentials(clientCredentialsData));
+
+        when(configuration.getNegativeCacheSize()).thenReturn(50);
+        restartListener.cacheSettingsChanged();
+
+        assertFalse(fileAuthenticator.checkCredentials(clientCredentialsData));
+        verify(passwordComparator, times(1)).validatePlaintextPassword("password", "wrong");
+        assertEquals(1, fileAuthenticator.getNegativeCacheStats().hitCount());
+        assertEquals(1, fileAuthenticator.getNegativeCacheStats().missCount());
+    }
+
+    @Test
+    public void test_cache_settings_change_keeps_write_time_of_entries() throws Exception {
+
+        final String providedUsername = "user";
+        when(clientCredentialsData.getUsername()).thenReturn(Optional.of(providedUsername));
+        when(clientCredentialsData.getPassword()).thenReturn(Optional.of("wrong"));
+        when(clientCredentialsData.getInetAddress()).thenReturn(Optional.of(InetAddress.getLoopbackAddress()));
+
+        when(configuration.getUser(providedUsername)).thenReturn("password");
+        when(configuration.isHashed()).thenReturn(false);
+        when(configuration.getNegativeCacheSize()).thenReturn(100);
+        when(configuration.getNegativeCachingTime()).thenReturn(600);
+        when(configuration.getNegativeCacheMaxPerUsername()).thenReturn(5);
+
+        fileAuthenticator = new FileAuthenticator(configuration, passwordComparator, passwordFingerprinter, pluginExecutorService, authenticationMetrics, hotUsers);
+
+        final ArgumentCaptor<Configuration.RestartListener> listenerCaptor = ArgumentCaptor.forClass(Configuration.RestartListener.class);
+        verify(configuration).setRestartListener(listenerCaptor.capture());
+        final Configuration.RestartListener restartListener = listenerCaptor.getValue();
+
+        assertFalse(fileAuthenticator.checkCredentials(clientCredentialsData));
+        Thread.sleep(1100);
+
+        // the entry is already older than the new lifetime
+        when(configuration.getNegativeCachingTime()).thenReturn(1);
+        restartListener.cacheSettingsChanged();
+
+        assertFalse(fileAuthenticator.checkCredentials(clientCredentialsData));
+        verify(passwordComparator, times(2)).validatePlaintextPassword("password", "wrong");
+    }
+
+    @Test
+    public void test_verification_settings_change_resets_cache() throws Exception {
+
+        final String providedUsername = "user";
+        when(clientCredentialsData.getUsername()).thenReturn(Optional.of(providedUsername));
+        when(clientCredentialsData.getPassword()).thenReturn(Optional.of("password"));
+        when(clientCredentialsData.getInetAddress()).thenReturn(Optional.of(InetAddress.getLoopbackAddress()));
+
+        when(configuration.getUser(providedUsername)).thenReturn("password");
+        when(configuration.isHashed()).thenReturn(false);
+        when(configuration.getCacheSize()).thenReturn(100);
+        when(configuration.getCachingTime()).thenReturn(600);
+        when(passwordComparator.validatePlaintextPassword("password", "password")).thenReturn(true);
+
+        fileAuthenticator = new FileAuthenticator(configuration, passwordComparator, passwordFingerprinter, pluginExecutorService, authenticationMetrics, hotUsers);
+
+        final ArgumentCaptor<Configuration.RestartListener> listenerCaptor = ArgumentCaptor.forClass(Configuration.RestartListener.class);
+        verify(configuration).setRestartListener(listenerCaptor.capture());
+        final Configuration.RestartListener restartListener = listenerCaptor.getValue();
+
+        assertTrue(fileAuthenticator.checkCredentials(clientCredentialsData));
+
+        restartListener.cacheSettingsChanged();
+        assertTrue(fileAuthenticator.checkCredentials(clientCredentialsData));
+        verify(passwordComparator, times(1)).validatePlaintextPassword("password", "password");
+
+        restartListener.restart();
+        assertTrue(fileAuthenticator.checkCredentials(clientCredentialsData));
+        verify(passwordComparator, times(2)).validatePlaintextPassword("password", "password");
+    }
+
+    @Test
+    public void test_refresh_ahead_verifies_expiring_entry_in_background() throws Exception {
+
+        final String providedUsername = "user";
+        when(clientCredentialsData.getUsername()).thenReturn(Optional.of(providedUsername));
+        when(clientCredentialsData.getPassword()).thenReturn(Optional.of("password"));
+        when(clientCredentialsData.getInetAddress()).thenReturn(Optional.of(InetAddress.getLoopbackAddress()));
+
+        when(configuration.getUser(providedUsername)).thenReturn("password");
+        when(configuration.isHashed()).thenReturn(false);
+        when(configuration.getCacheSize()).thenReturn(100);
+        when(configuration.getCachingTime()).thenReturn(600);
+        when(configuration.isRefreshAheadEnabled()).thenReturn(true);
+        when(configuration.getRefreshAheadTime()).thenReturn(600);
+        when(configuration.getRefreshAheadConcurrency()).thenReturn(1);
+        when(passwordComparator.validatePlaintextPassword("password", "password")).thenReturn(true);
+
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(final InvocationOnMock invocation) throws Throwable {
+                ((Runnable) invocation.getArguments()[0]).run();
+                return null;
+            }
+        }).when(pluginExecutorService).execute(any(Runnable.class));
+
+        fileAuthenticator = new FileAuthenticator(configuration, passwordComparator, passwordFingerprinter, pluginExecutorService, authenticationMetrics, hotUsers);
+
+        assertTrue(fileAuthenticator.checkCredentials(clientCredentialsData));
+        verify(pluginExecutorService, never()).execute(any(Runnable.class));
+
+        assertTrue(fileAuthenticator.checkCredentials(clientCredentialsData));
+        verify(pluginExecutorService, times(1)).execute(any(Runnable.class));
+        verify(passwordComparator, times(2)).validatePlaintextPassword("password", "password");
+        assertEquals(1, fileAuthenticator.getRefreshAheadCount());
+        assertEquals(0, fileAuthenticator.getRefreshAheadFailureCount());
+    }
+
+    @Test
+    public void test_refresh_ahead_disabled() throws Exception {
+
+        final String providedUsername = "user";
+        when(clientCredentialsData.getUsername()).thenReturn(Optional.of(providedUsername));
+        when(clientCredentialsData.getPassword()).thenReturn(Optional.of("password"));
+        when(clientCredentialsData.getInetAddress()).thenReturn(Optional.of(InetAddress.getLoopbackAddress()));
+
+        when(configuration.getUser(providedUsername)).thenReturn("password");
+        when(configuration.isHashed()).thenReturn(false);
+        when(configuration.getCacheSize()).thenReturn(100);
+        when(configuration.getCachingTime()).thenReturn(600);
+        when(configuration.isRefreshAheadEnabled()).thenReturn(false);
+        when(configuration.getRefreshAheadTime()).thenReturn(600);
+        when(configuration.getRefreshAheadConcurrency()).thenReturn(1);
+        when(passwordComparator.validatePlaintextPassword("password", "password")).thenReturn(true);
+
+        fileAuthenticator = new FileAuthenticator(configuration, passwordComparator, passwordFingerprinter, pluginExecutorService, authenticationMetrics, hotUsers);
+
+        assertTrue(fileAuthenticator.checkCredentials(clientCredentialsData));
+        assertTrue(fileAuthenticator.checkCredentials(clientCredentialsData));
+
+        verify(pluginExecutorService, never()).execute(any(Runnable.class));
+        assertEquals(0, fileAuthenticator.getRefreshAheadCount());
+    }
+
+    @Test
+    public void test_concurrent_logins_share_one_verification() throws Exception {
+
+        final String providedUsername = "user";
+        when(clientCredentialsData.getUsername()).thenReturn(Optional.of(providedUsername));
+        when(clientCredentialsData.getPassword()).thenReturn(Optional.of("password"));
+        when(clientCredentialsData.getInetAddress()).thenReturn(Optional.of(InetAddress.getLoopbackAddress()));
+
+        when(configuration.getUser(providedUsername)).thenReturn("password");
+        when(configuration.isHashed()).thenReturn(false);
+        when(configuration.getCacheSize()).thenReturn(100);
+        when(configuration.getCachingTime()).thenReturn(600);
+        when(configuration.getCoalescingMaxWait()).thenReturn(10000);
+
+        final CountDownLatch verificationStarted = new CountDownLatch(1);
+        final CountDownLatch releaseVerification = new CountDownLatch(1);
+        when(passwordComparator.validatePlaintextPassword("password", "password")).thenAnswer(new Answer<Boolean>() {
+            @Override
+            public Boolean answer(final InvocationOnMock invocation) throws Throwable {
+                verificationStarted.countDown();
+                releaseVerification.await();
+                return true;
+            }
+        });
+
+        fileAuthenticator = new FileAuthenticator(configuration, passwordComparator, passwordFingerprinter, pluginExecutorService, authenticationMetrics, hotUsers);
+
+        final ExecutorService executorService = Executors.newFixedThreadPool(2);
+        try {
+            final Callable<Boolean> login = new Callable<Boolean>() {
+                @Override
+                public Boolean call() throws Exception {
+                    return fileAuthenticator.checkCredentials(clientCredentialsData);
+                }
+            };
+            final Future<Boolean> leader = executorService.submit(login);
+            verificationStarted.await();
+            final Future<Boolean> follower = executorService.submit(login);
+            Thread.sleep(100);
+            releaseVerification.countDown();
+
+            assertTrue(leader.get());
+            assertTrue(follower.get());
+        } finally {
+            executorService.shutdownNow();
+        }
+
+        verify(passwordComparator, times(1)).validatePlaintextPassword("password", "password");
+    }
+
+    @Test
+    public void test_slow_verification_on_pool_is_denied_and_not_cached() throws Exception {
+
+        final String providedUsername = "user";
+        when(clientCredentialsData.getUsername()).thenReturn(Optional.of(providedUsername));
+        when(clientCredentialsData.getPassword()).thenReturn(Optional.of("password"));
+        when(clientCredentialsData.getInetAddress()).thenReturn(Optional.of(InetAddress.getLoopbackAddress()));
+
+        when(configuration.getUser(providedUsername)).thenReturn("password");
+        when(configuration.isHashed()).thenReturn(false);
+        when(configuration.getNegativeCacheSize()).thenReturn(100);
+        when(configuration.getNegativeCachingTime()).thenReturn(600);
+        when(configuration.getNegativeCacheMaxPerUsername()).thenReturn(5);
+        when(configuration.getVerificationThreads()).thenReturn(1);
+        when(configuration.getVerificationQueueSize()).thenReturn(1);
+        when(configuration.getVerificationTimeout()).thenReturn(50L);
+
+        final CountDownLatch releaseVerification = new CountDownLatch(1);
+        when(passwordComparator.validatePlaintextPassword("password", "password")).thenAnswer(new Answer<Boolean>() {
+            @Override
+            public Boolean answer(final InvocationOnMock invocation) throws Throwable {
+                releaseVerification.await();
+                return true;
+            }
+        });
+
+        fileAuthenticator = new FileAuthenticator(configuration, passwordComparator, passwordFingerprinter, pluginExecutorService, authenticationMetrics, hotUsers);
+
+        assertFalse(fileAuthenticator.checkCredentials(clientCredentialsData));
+        verify(authenticationMetrics).authenticated(eq(VerificationResult.TIMEOUT), anyLong());
+
+        releaseVerification.countDown();
+        assertTrue(fileAuthenticator.checkCredentials(clientCredentialsData));
+    }
+
+    @Test
+    public void test_outdated_entry_is_rehashed_after_login() throws Exception {
+
+        final String providedUsername = "user";
+        when(clientCredentialsData.getUsername()).thenReturn(Optional.of(providedUsername));
+        when(clientCredentialsData.getPassword()).thenReturn(Optional.of("password"));
+        when(clientCredentialsData.getInetAddress()).thenReturn(Optional.of(InetAddress.getLoopbackAddress()));
+
+        final String entry = "$2a$06$a0DqbFLfZFPxWUvya0Dqb.E1tEwpajqalta700/ehKH/RBezOsw4G";
+        when(configuration.getUser(providedUsername)).thenReturn(entry);
+        when(configuration.isRehashEnabled()).thenReturn(true);
+        when(configuration.getRehashTarget()).thenReturn("$2a$04");
+        when(passwordComparator.validateKdfPassword(eq("password"), any(KdfHash.class))).thenReturn(true);
+        when(passwordComparator.hashKdfPassword("password", "$2a$04")).thenReturn("$2a$04$new");
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(final InvocationOnMock invocation) throws Throwable {
+                ((Runnable) invocation.getArguments()[0]).run();
+                return null;
+            }
+        }).when(pluginExecutorService).execute(any(Runnable.class));
+
+        fileAuthenticator = new FileAuthenticator(configuration, passwordComparator, passwordFingerprinter, pluginExecutorService, authenticationMetrics, hotUsers);
+
+        assertTrue(fileAuthenticator.checkCredentials(clientCredentialsData));
+        verify(credentialsConfiguration).replaceEntry("user", entry, "$2a$04$new");
+    }
+
+    @Test
+    public void test_plaintext_entry_is_not_rehashed() throws Exception {
+
+        final String providedUsername = "user";
+        when(clientCredentialsData.getUsername()).thenReturn(Optional.of(providedUsername));
+        when(clientCredentialsData.getPassword()).thenReturn(Optional.of("password"));
+        when(clientCredentialsData.getInetAddress()).thenReturn(Optional.of(InetAddress.getLoopbackAddress()));
+
+        when(configuration.getUser(providedUsername)).thenReturn("password");
+        when(configuration.isHashed()).thenReturn(false);
+        when(configuration.isRehashEnabled()).thenReturn(true);
+        when(configuration.getRehashTarget()).thenReturn("$2a$04");
+        when(passwordComparator.validatePlaintextPassword("password", "password")).thenReturn(true);
+
+        fileAuthenticator = new FileAuthenticator(configuration, passwordComparator, passwordFingerprinter, pluginExecutorService, authenticationMetrics, hotUsers);
+
+        assertTrue(fileAuthenticator.checkCredentials(clientCredentialsData));
+        verify(pluginExecutorService, never()).execute(any(Runnable.class));
+    }
+
+    @Test
+    public void test_invalid_rehash_target_disables_rehashing() throws Exception {
+
+        final String providedUsername = "user";
+        when(clientCredentialsData.getUsername()).thenReturn(Optional.of(providedUsername));
+        when(clientCredentialsData.getPassword()).thenReturn(Optional.of("password"));
+        when(clientCredentialsData.getInetAddress()).thenReturn(Optional.of(InetAddress.getLoopbackAddress()));
+
+        when(configuration.getUser(providedUsername)).thenReturn("$2a$06$a0DqbFLfZFPxWUvya0Dqb.E1tEwpajqalta700/ehKH/RBezOsw4G");
+        when(configuration.isRehashEnabled()).thenReturn(true);
+        when(configuration.getRehashTarget()).thenReturn("$argon2id$v=19$m=65536,t=3,p=4");
+        when(passwordComparator.validateKdfPassword(eq("password"), any(KdfHash.class))).thenReturn(true);
+
+        fileAuthenticator = new FileAuthenticator(configuration, passwordComparator, passwordFingerprinter, pluginExecutorService, authenticationMetrics, hotUsers);
+
+        assertTrue(fileAuthenticator.checkCredentials(clientCredentialsData));
+        verify(pluginExecutorService, never()).execute(any(Runnable.class));
+    }
+
+    @Test
+    public void test_entry_with_target_parameters_is_not_rehashed() throws Exception {
+
+        final String providedUsername = "user";
+        when(clientCredentialsData.getUsername()).thenReturn(Optional.of(providedUsername));
+        when(clientCredentialsData.getPassword()).thenReturn(Optional.of("password"));
+        when(clientCredentialsData.getInetAddress()).thenReturn(Optional.of(InetAddress.getLoopbackAddress()));
+
+        when(configuration.getUser(providedUsername)).thenReturn("$2a$06$a0DqbFLfZFPxWUvya0Dqb.E1tEwpajqalta700/ehKH/RBezOsw4G");
+        when(configuration.isRehashEnabled()).thenReturn(true);
+        when(configuration.getRehashTarget()).thenReturn("$2a$06");
+        when(passwordComparator.validateKdfPassword(eq("password"), any(KdfHash.class))).thenReturn(true);
+
+        fileAuthenticator = new FileAuthenticator(configuration, passwordComparator, passwordFingerprinter, pluginExecutorService, authenticationMetrics, hotUsers);
+
+        assertTrue(fileAuthenticator.checkCredentials(clientCredentialsData));
+        verify(pluginExecutorService, never()).execute(any(Runnable.class));
+    }
+
+    @Test
+    public void test_session_token_is_issued_and_accepted_without_hashing() throws Exception {
+
+        final String providedUsername = "user";
+        when(clientCredentialsData.getUsername()).thenReturn(Optional.of(providedUsername));
+        when(clientCredentialsData.getPassword()).thenReturn(Optional.of("password"));
+        when(clientCredentialsData.getInetAddress()).thenReturn(Optional.of(InetAddress.getLoopbackAddress()));
+
+        when(configuration.getUser(providedUsername)).thenReturn("password");
+        when(configuration.isSessionTokenEnabled()).thenReturn(true);
+        when(configuration.getSessionTokenLifetime()).thenReturn(60L);
+        when(passwordComparator.validatePlaintextPassword("password", "password")).thenReturn(true);
+        final SessionTokenCallback callback = mock(SessionTokenCallback.class);
+
+        fileAuthenticator = new FileAuthenticator(configuration, passwordComparator, passwordFingerprinter, pluginExecutorService, authenticationMetrics, hotUsers);
+        fileAuthenticator.addSessionTokenCallback(callback);
+
+        assertTrue(fileAuthenticator.checkCredentials(clientCredentialsData));
+        final ArgumentCaptor<String> token = ArgumentCaptor.forClass(String.class);
+        verify(callback).onSessionToken(eq(clientCredentialsData), token.capture(), anyLong());
+
+        when(clientCredentialsData.getPassword()).thenReturn(Optional.of(token.getValue()));
+        assertTrue(fileAuthenticator.checkCredentials(clientCredentialsData));
+        verify(passwordComparator, times(1)).validatePlaintextPassword(any(String.class), any(String.class));
+        verify(callback, times(1)).onSessionToken(any(ClientCredentialsData.class), any(String.class), anyLong());
+
+        when(configuration.getUser(providedUsername)).thenReturn("changed");
+        assertFalse(fileAuthenticator.checkCredentials(clientCredentialsData));
+        verify(authenticationMetrics).authenticated(eq(VerificationResult.INVALID_TOKEN), anyLong());
+    }
+
+    @Test
+    public void test_session_token_is_a_password_if_disabled() throws Exception {
+
+        final String providedUsername = "user";
+        when(clientCredentialsData.getUsername()).thenReturn(Optional.of(providedUsername));
+        when(clientCredentialsData.getPassword()).thenReturn(Optional.of("$session$1$2$3"));
+        when(clientCredentialsData.getInetAddress()).thenReturn(Optional.of(InetAddress.getLoopbackAddress()));
+
+        when(configuration.getUser(providedUsername)).thenReturn("$session$1$2$3");
+        when(passwordComparator.validatePlaintextPassword("$session$1$2$3", "$session$1$2$3")).thenReturn(true);
+
+        fileAuthenticator = new FileAuthenticator(configuration, passwordComparator, passwordFingerprinter, pluginExecutorService, authenticationMetrics, hotUsers);
+
+        assertTrue(fileAuthenticator.checkCredentials(clientCredentialsData));
+    }
+
+    @Test
+    public void test_password_looking_like_a_token_is_verified_as_password() throws Exception {
+
+        final String providedUsername = "user";
+        when(clientCredentialsData.getUsername()).thenReturn(Optional.of(providedUsername));
+        when(clientCredentialsData.getPassword()).thenReturn(Optional.of("$session$1$2$3"));
+        when(clientCredentialsData.getInetAddress()).thenReturn(Optional.of(InetAddress.getLoopbackAddress()));
+
+        when(configuration.getUser(providedUsername)).thenReturn("$session$1$2$3");
+        when(configuration.isSessionTokenEnabled()).thenReturn(true);
+        when(configuration.getSessionTokenLifetime()).thenReturn(60L);
+        when(passwordComparator.validatePlaintextPassword("$session$1$2$3", "$session$1$2$3")).thenReturn(true);
+
+        fileAuthenticator = new FileAuthenticator(configuration, passwordComparator, passwordFingerprinter, pluginExecutorService, authenticationMetrics, hotUsers);
+
+        assertTrue(fileAuthenticator.checkCredentials(clientCredentialsData));
+    }
+
+    @Test
+    public void test_warm_up_is_disabled_by_default() throws Exception {
+
+        when(configuration.isHashed()).thenReturn(true);
+
+        fileAuthenticator = new FileAuthenticator(configuration, passwordComparator, passwordFingerprinter, pluginExecutorService, authenticationMetrics, hotUsers);
+
+        assertEquals(0, fileAuthenticator.warmUp());
+        verify(passwordComparator, never()).validateHashedEntry(any(String.class), any(String.class), any(HashedSaltedPassword.class), anyInt());
+    }
+
+    @Test
+    public void test_warm_up_verifies_with_configured_algorithm() throws Exception {
+
+        when(configuration.isHashed()).thenReturn(true);
+        when(configuration.getHashingAlgorithm()).thenReturn("SHA-512");
+        when(configuration.getHashingIterations()).thenReturn(10);
+        when(configuration.isWarmUpEnabled()).thenReturn(true);
+        when(configuration.getWarmUpBudget()).thenReturn(200L);
+
+        fileAuthenticator = new FileAuthenticator(configuration, passwordComparator, passwordFingerprinter, pluginExecutorService, authenticationMetrics, hotUsers);
+        final int verifications = fileAuthenticator.warmUp();
+
+        assertTrue(verifications > 0);
+        verify(passwordComparator, times(verifications)).validateHashedEntry(eq("SHA-512"), any(String.class), any(HashedSaltedPassword.class), eq(10));
+    }
+
+    @Test
+    public void test_heap_pressure_drops_cache_but_keeps_verified_passwords() throws Exception {
+
+        final String providedUsername = "user";
+        when(clientCredentialsData.getUsername()).thenReturn(Optional.of(providedUsername));
+        when(clientCredentialsData.getPassword()).thenReturn(Optional.of("password"));
+        when(clientCredentialsData.getInetAddress()).thenReturn(Optional.of(InetAddress.getLoopbackAddress()));
+
+        when(configuration.getUser(providedUsername)).thenReturn("password");
+        when(configuration.isHashed()).thenReturn(false);
+        when(configuration.getCacheSize()).thenReturn(100);
+        when(configuration.getCachingTime()).thenReturn(600);
+        when(passwordComparator.validatePlaintextPassword("password", "password")).thenReturn(true);
+
+        fileAuthenticator = new FileAuthenticator(configuration, passwordComparator, passwordFingerprinter, pluginExecutorService, authenticationMetrics, hotUsers);
+
+        assertTrue(fileAuthenticator.checkCredentials(clientCredentialsData));
+
+        fileAuthenticator.onHeapPressure();
+
+        assertTrue(fileAuthenticator.checkCredentials(clientCredentialsData));
+        verify(passwordComparator, times(1)).validatePlaintextPassword("password", "password");
+        assertEquals(1, fileAuthenticator.getVerifiedPasswordHitCount());
+        verify(pluginExecutorService, times(1)).schedule(any(Runnable.class), anyLong(), eq(TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void test_successful_logins_are_recorded_as_hot_users() throws Exception {
+
+        final String providedUsername = "user";
+        when(clientCredentialsData.getUsername()).thenReturn(Optional.of(providedUsername));
+        when(clientCredentialsData.getPassword()).thenReturn(Optional.of("password"), Optional.of("wrong"));
+        when(clientCredentialsData.getInetAddress()).thenReturn(Optional.of(InetAddress.getLoopbackAddress()));
+
+        when(configuration.getUser(providedUsername)).thenReturn("password");
+        when(configuration.isHashed()).thenReturn(false);
+        when(passwordComparator.validatePlaintextPassword("password", "password")).thenReturn(true);
+
+        fileAuthenticator = new FileAuthenticator(configuration, passwordComparator, passwordFingerprinter, pluginExecutorService, authenticationMetrics, hotUsers);
+
+        assertTrue(fileAuthenticator.checkCredentials(clientCredentialsData));
+        assertFalse(fileAuthenticator.checkCredentials(clientCredentialsData));
+
+        verify(hotUsers, times(1)).recordLogin(providedUsername);
+    }
+
+    @Test
+    public void test_preload_prepares_entries_of_credentials_configuration() throws Exception {
+
+        when(credentialsConfiguration.preload(ImmutableList.of("user", "unknown"))).thenReturn(1);
+
+        fileAuthenticator = new FileAuthenticator(configuration, passwordComparator, passwordFingerprinter, pluginExecutorService, authenticationMetrics, hotUsers);
+
+        assertEquals(1, fileAuthenticator.preload(ImmutableList.of("user", "unknown")));
+    }
+
     class FileAuthenticatorForTest extends FileAuthenticator {
 
         public HashedSaltedPassword hashedSaltedPassword;
 
         public FileAuthenticatorForTest(Configuration configurations, PasswordComparator passwordComparator, HashedSaltedPassword hashedSaltedPassword) {
-            super(configurations, passwordComparator);
+            super(configurations, passwordComparator, new PasswordFingerprinter(), pluginExecutorService, authenticationMetrics, hotUsers);
             this.hashedSaltedPassword = hashedSaltedPassword;
         }
 
@@ -325,7 +1131,7 @@ public class FileAuthenticatorTest {
         public HashedSaltedPassword hashedSaltedPassword;
 
         public FileAuthenticatorForTest2(Configuration configurations, PasswordComparator passwordComparator, HashedSaltedPassword hashedSaltedPassword) {
-            super(configurations, passwordComparator);
+            super(configurations, passwordComparator, new PasswordFingerprinter(), pluginExecutorService, authenticationMetrics, hotUsers);
             this.hashedSaltedPassword = hashedSaltedPassword;
         }
 
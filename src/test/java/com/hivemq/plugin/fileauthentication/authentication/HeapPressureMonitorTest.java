@@ -0,0 +1,104 @@
+/*
+ * Copyright 2015 dc-square GmbH
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.hivemq.plugin.fileauthentication.authentication;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.management.Notification;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryNotificationInfo;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+public class HeapPressureMonitorTest {
+
+    private AtomicInteger pressureCount;
+    private HeapPressureMonitor heapPressureMonitor;
+
+    @Before
+    public void setUp() throws Exception {
+        pressureCount = new AtomicInteger();
+        heapPressureMonitor = new HeapPressureMonitor(new Runnable() {
+            @Override
+            public void run() {
+                pressureCount.incrementAndGet();
+            }
+        });
+    }
+
+    @Test
+    public void test_collection_threshold_notification_calls_listener() throws Exception {
+        heapPressureMonitor.handleNotification(
+                new Notification(MemoryNotificationInfo.MEMORY_COLLECTION_THRESHOLD_EXCEEDED, this, 1), null);
+
+        assertEquals(1, pressureCount.get());
+    }
+
+    @Test
+    public void test_other_notifications_are_ignored() throws Exception {
+        heapPressureMonitor.handleNotification(
+                new Notification(MemoryNotificationInfo.MEMORY_THRESHOLD_EXCEEDED, this, 1), null);
+
+        assertEquals(0, pressureCount.get());
+    }
+
+    @Test
+    public void test_start_and_stop() throws Exception {
+        heapPressureMonitor.start(99);
+        assertFalse(heapPressureMonitor.isUnderPressure());
+        heapPressureMonitor.stop();
+        assertFalse(heapPressureMonitor.isUnderPressure());
+    }
+
+    @Test
+    public void test_thresholds_of_others_are_kept() throws Exception {
+        final MemoryPoolMXBean pool = tenuredPool();
+        if (pool == null) {
+            return;
+        }
+        try {
+            pool.setCollectionUsageThreshold(1);
+            heapPressureMonitor.start(99);
+            assertEquals(1, pool.getCollectionUsageThreshold());
+            heapPressureMonitor.stop();
+            assertEquals(1, pool.getCollectionUsageThreshold());
+
+            pool.setCollectionUsageThreshold(0);
+            heapPressureMonitor.start(99);
+            pool.setCollectionUsageThreshold(2);
+            heapPressureMonitor.stop();
+            assertEquals(2, pool.getCollectionUsageThreshold());
+        } finally {
+            pool.setCollectionUsageThreshold(0);
+        }
+    }
+
+    private static MemoryPoolMXBean tenuredPool() {
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP && pool.isCollectionUsageThresholdSupported()
+                    && pool.getUsage().getMax() > 0 && pool.getCollectionUsageThreshold() == 0) {
+                return pool;
+            }
+        }
+        return null;
+    }
+}
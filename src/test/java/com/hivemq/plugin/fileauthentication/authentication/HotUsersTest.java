@@ -0,0 +1,92 @@
+/*
+ * Copyright 2015 dc-square GmbH
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.hivemq.plugin.fileauthentication.authentication;
+
+import com.google.common.collect.ImmutableList;
+import com.hivemq.plugin.fileauthentication.configuration.Configuration;
+import com.hivemq.spi.config.SystemInformation;
+import com.hivemq.spi.services.PluginExecutorService;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.Mock;
+
+import java.io.File;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.when;
+import static org.mockito.MockitoAnnotations.initMocks;
+
+public class HotUsersTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Mock
+    Configuration configuration;
+
+    @Mock
+    SystemInformation systemInformation;
+
+    @Mock
+    PluginExecutorService pluginExecutorService;
+
+    HotUsers hotUsers;
+
+    @Before
+    public void setUp() throws Exception {
+        initMocks(this);
+        when(systemInformation.getConfigFolder()).thenReturn(temporaryFolder.getRoot());
+        when(configuration.getHotUsersFilename()).thenReturn("hotUsers.txt");
+        when(configuration.getHotUsersSize()).thenReturn(2);
+        hotUsers = new HotUsers(configuration, systemInformation, pluginExecutorService);
+    }
+
+    @Test
+    public void test_most_frequent_users_are_persisted_and_loaded() throws Exception {
+        hotUsers.recordLogin("rare");
+        hotUsers.recordLogin("frequent");
+        hotUsers.recordLogin("frequent");
+        hotUsers.recordLogin("frequent");
+        hotUsers.recordLogin("medium");
+        hotUsers.recordLogin("medium");
+
+        hotUsers.onBrokerStop();
+
+        assertEquals(ImmutableList.of("frequent", "medium"), hotUsers.load());
+        assertFalse(new File(temporaryFolder.getRoot(), "hotUsers.txt.tmp").exists());
+    }
+
+    @Test
+    public void test_missing_file_loads_no_users() throws Exception {
+        assertTrue(hotUsers.load().isEmpty());
+    }
+
+    @Test
+    public void test_disabled() throws Exception {
+        when(configuration.getHotUsersSize()).thenReturn(0);
+        hotUsers.recordLogin("user");
+
+        hotUsers.persist();
+
+        assertFalse(new File(temporaryFolder.getRoot(), "hotUsers.txt").exists());
+        assertTrue(hotUsers.load().isEmpty());
+    }
+}
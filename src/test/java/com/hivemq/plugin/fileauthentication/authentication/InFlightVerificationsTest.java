@@ -0,0 +1,114 @@
+/*
+ * Copyright 2015 dc-square GmbH
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.hivemq.plugin.fileauthentication.authentication;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class InFlightVerificationsTest {
+
+    private InFlightVerifications inFlightVerifications;
+    private CredentialCacheKey key;
+
+    @Before
+    public void setUp() throws Exception {
+        inFlightVerifications = new InFlightVerifications();
+        inFlightVerifications.setMaxWait(1, TimeUnit.SECONDS);
+        key = new CredentialCacheKey("user", new PasswordFingerprinter().fingerprint("password"));
+    }
+
+    @Test
+    public void test_follower_gets_result_of_leader() throws Exception {
+        final SettableFuture<VerificationResult> leader = SettableFuture.create();
+        assertNull(inFlightVerifications.start(key, leader));
+
+        final ListenableFuture<VerificationResult> running = inFlightVerifications.start(key, SettableFuture.<VerificationResult>create());
+        assertSame(leader, running);
+
+        inFlightVerifications.finish(key, leader, VerificationResult.GRANTED);
+
+        assertEquals(VerificationResult.GRANTED, inFlightVerifications.await(running));
+        assertEquals(1, inFlightVerifications.savedCount());
+        assertNull(inFlightVerifications.start(key, SettableFuture.<VerificationResult>create()));
+    }
+
+    @Test
+    public void test_follower_stops_waiting_after_max_wait() throws Exception {
+        inFlightVerifications.setMaxWait(10, TimeUnit.MILLISECONDS);
+        final SettableFuture<VerificationResult> leader = SettableFuture.create();
+        inFlightVerifications.start(key, leader);
+
+        assertNull(inFlightVerifications.await(leader));
+        assertEquals(0, inFlightVerifications.savedCount());
+        assertEquals(1, inFlightVerifications.timeoutCount());
+    }
+
+    @Test
+    public void test_failed_leader_releases_followers() throws Exception {
+        final SettableFuture<VerificationResult> leader = SettableFuture.create();
+        inFlightVerifications.start(key, leader);
+
+        inFlightVerifications.finish(key, leader, null);
+
+        assertNull(inFlightVerifications.await(leader));
+        assertEquals(0, inFlightVerifications.timeoutCount());
+    }
+
+    @Test
+    public void test_overloaded_or_timed_out_leader_is_not_shared() throws Exception {
+        for (VerificationResult result : new VerificationResult[]{VerificationResult.OVERLOADED, VerificationResult.TIMEOUT}) {
+            final SettableFuture<VerificationResult> leader = SettableFuture.create();
+            inFlightVerifications.start(key, leader);
+
+            inFlightVerifications.finish(key, leader, result);
+
+            assertNull(inFlightVerifications.await(leader));
+        }
+        assertEquals(0, inFlightVerifications.savedCount());
+    }
+
+    @Test
+    public void test_cleared_verification_is_not_joined() throws Exception {
+        final SettableFuture<VerificationResult> leader = SettableFuture.create();
+        inFlightVerifications.start(key, leader);
+
+        inFlightVerifications.clear(ImmutableSet.of("other"));
+        assertNotNull(inFlightVerifications.start(key, SettableFuture.<VerificationResult>create()));
+
+        inFlightVerifications.clear(ImmutableSet.of("user"));
+        assertNull(inFlightVerifications.start(key, SettableFuture.<VerificationResult>create()));
+    }
+
+    @Test
+    public void test_disabled() throws Exception {
+        assertTrue(inFlightVerifications.isEnabled());
+        inFlightVerifications.setMaxWait(0, TimeUnit.MILLISECONDS);
+        assertFalse(inFlightVerifications.isEnabled());
+    }
+}
@@ -0,0 +1,60 @@
+/*
+ * Copyright 2015 dc-square GmbH
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.hivemq.plugin.fileauthentication.authentication;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class IterationCalibrationTest {
+
+    @Test
+    public void test_iterations_scale_with_budget() throws Exception {
+        assertEquals(10000, IterationCalibration.iterationsFor(TimeUnit.MILLISECONDS.toNanos(10), TimeUnit.MILLISECONDS.toNanos(1), 1000));
+        assertEquals(1, IterationCalibration.iterationsFor(1, TimeUnit.MILLISECONDS.toNanos(1), 1000));
+    }
+
+    @Test
+    public void test_cores_cover_rate() throws Exception {
+        assertEquals(5, IterationCalibration.coresFor(1000, TimeUnit.MILLISECONDS.toNanos(5)));
+        assertEquals(1, IterationCalibration.coresFor(1, 1));
+    }
+
+    @Test
+    public void test_percentile_uses_nearest_rank() throws Exception {
+        final long[] sorted = new long[100];
+        for (int i = 0; i < sorted.length; i++) {
+            sorted[i] = i + 1;
+        }
+
+        assertEquals(99, IterationCalibration.percentile(sorted, 0.99));
+        assertEquals(7, IterationCalibration.percentile(new long[]{7}, 0.99));
+    }
+
+    @Test
+    public void test_calibrate_pbkdf2() throws Exception {
+        final IterationCalibration calibration = new IterationCalibration(new PasswordComparator());
+
+        final IterationCalibration.Result result = calibration.calibrate("pbkdf2-sha256", TimeUnit.MILLISECONDS.toNanos(5), 100);
+
+        assertTrue(result.getIterations() > 1);
+        assertTrue(result.getCoresNeeded() >= 1);
+    }
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright 2015 dc-square GmbH
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.hivemq.plugin.fileauthentication.authentication;
+
+import com.hivemq.plugin.fileauthentication.exception.PasswordFormatException;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class KdfHashTest {
+
+    @Test
+    public void test_prefixed_entries_are_recognized() throws Exception {
+        assertTrue(KdfHash.isKdfHash("$pbkdf2-sha256$i=1000$c2FsdA$aGFzaGhhc2hoYXNoaGFzaA"));
+        assertTrue(KdfHash.isKdfHash("$scrypt$ln=10,r=8,p=1$c2FsdA$aGFzaGhhc2hoYXNoaGFzaA"));
+        assertTrue(KdfHash.isKdfHash("$2y$10$abc"));
+        assertTrue(KdfHash.isKdfHash("$argon2id$v=19$m=65536,t=3,p=4$c2FsdA$aGFzaGhhc2hoYXNoaGFzaA"));
+
+        assertFalse(KdfHash.isKdfHash("password"));
+        assertFalse(KdfHash.isKdfHash("M7NoPZ11kDRk5s69fMsSsnqvnOuOZmPpyORP2FVdIE4R7qyUJIrokWzSxHLYxh/4MDG8FghfN8dAJh6SEImj9Q==$c2FsdA=="));
+    }
+
+    @Test
+    public void test_parse_pbkdf2() throws Exception {
+        final KdfHash kdfHash = KdfHash.parse("$pbkdf2-sha256$i=1000$c2FsdA$aGFzaGhhc2hoYXNoaGFzaA");
+
+        assertEquals(KdfHash.Type.PBKDF2_SHA256, kdfHash.getType());
+        assertEquals(1000, kdfHash.getCost());
+        assertArrayEquals("salt".getBytes("UTF-8"), kdfHash.getSaltBytes());
+        assertArrayEquals("hashhashhashhash".getBytes("UTF-8"), kdfHash.getHashBytes());
+    }
+
+    @Test
+    public void test_parse_scrypt() throws Exception {
+        final KdfHash kdfHash = KdfHash.parse("$scrypt$ln=14,r=8,p=2$c2FsdA==$aGFzaGhhc2hoYXNoaGFzaA==");
+
+        assertEquals(KdfHash.Type.SCRYPT, kdfHash.getType());
+        assertEquals(16384, kdfHash.getCost());
+        assertEquals(8, kdfHash.getBlockSize());
+        assertEquals(2, kdfHash.getParallelization());
+    }
+
+    @Test
+    public void test_parse_bcrypt() throws Exception {
+        final KdfHash kdfHash = KdfHash.parse("$2a$06$DCq7YPn5Rq63x1Lad4cll.TV4S6ytwfsfvkgY8jIucDrjc8deX1s.");
+
+        assertEquals(KdfHash.Type.BCRYPT, kdfHash.getType());
+        assertEquals(6, kdfHash.getCost());
+        assertEquals(16, kdfHash.getSaltBytes().length);
+        assertEquals(23, kdfHash.getHashBytes().length);
+    }
+
+    @Test(expected = PasswordFormatException.class)
+    public void test_argon2_is_rejected() throws Exception {
+        KdfHash.parse("$argon2id$v=19$m=65536,t=3,p=4$c2FsdA$aGFzaGhhc2hoYXNoaGFzaA");
+    }
+
+    @Test(expected = PasswordFormatException.class)
+    public void test_pbkdf2_without_iterations() throws Exception {
+        KdfHash.parse("$pbkdf2-sha256$c2FsdA$aGFzaGhhc2hoYXNoaGFzaA");
+    }
+
+    @Test(expected = PasswordFormatException.class)
+    public void test_short_hash_is_rejected() throws Exception {
+        KdfHash.parse("$pbkdf2-sha256$i=1000$c2FsdA$aA");
+    }
+
+    @Test(expected = PasswordFormatException.class)
+    public void test_scrypt_with_too_much_memory() throws Exception {
+        KdfHash.parse("$scrypt$ln=24,r=8,p=1$c2FsdA$aGFzaGhhc2hoYXNoaGFzaA");
+    }
+
+    @Test(expected = PasswordFormatException.class)
+    public void test_scrypt_with_block_size_which_overflows_the_memory() throws Exception {
+        KdfHash.parse("$scrypt$ln=30,r=2147483647,p=1$c2FsdA$aGFzaGhhc2hoYXNoaGFzaA");
+    }
+
+    @Test(expected = PasswordFormatException.class)
+    public void test_scrypt_with_too_much_parallelization() throws Exception {
+        KdfHash.parse("$scrypt$ln=14,r=8,p=1000000$c2FsdA$aGFzaGhhc2hoYXNoaGFzaA");
+    }
+
+    @Test(expected = PasswordFormatException.class)
+    public void test_scrypt_with_too_much_work() throws Exception {
+        // 256 MB of memory, but 64 lanes
+        KdfHash.parse("$scrypt$ln=18,r=8,p=64$c2FsdA$aGFzaGhhc2hoYXNoaGFzaA");
+    }
+
+    @Test(expected = PasswordFormatException.class)
+    public void test_bcrypt_with_invalid_cost() throws Exception {
+        KdfHash.parse("$2a$xx$DCq7YPn5Rq63x1Lad4cll.TV4S6ytwfsfvkgY8jIucDrjc8deX1s.");
+    }
+
+    @Test
+    public void test_template_and_hash_give_parsable_entry() throws Exception {
+        final byte[] salt = "0123456789abcdef".getBytes("UTF-8");
+        for (String target : new String[]{"$pbkdf2-sha512$i=1000", "$scrypt$ln=4,r=8,p=1", "$2a$04"}) {
+            final KdfHash template = KdfHash.template(target, salt);
+            final byte[] hash = new byte[64];
+            hash[0] = 42;
+
+            final KdfHash entry = KdfHash.parse(template.withHash(hash));
+
+            assertTrue(entry.hasParameters(target));
+            assertArrayEquals(salt, entry.getSaltBytes());
+            assertEquals(42, entry.getHashBytes()[0]);
+            assertEquals(template.getHashBytes().length, entry.getHashBytes().length);
+        }
+    }
+
+    @Test
+    public void test_has_parameters_compares_whole_parameters() throws Exception {
+        final KdfHash kdfHash = KdfHash.parse("$pbkdf2-sha256$i=1000$c2FsdA$aGFzaGhhc2hoYXNoaGFzaA");
+
+        assertTrue(kdfHash.hasParameters("$pbkdf2-sha256$i=1000"));
+        assertFalse(kdfHash.hasParameters("$pbkdf2-sha256$i=100"));
+        assertFalse(kdfHash.hasParameters("$pbkdf2-sha512$i=1000"));
+    }
+
+    @Test(expected = PasswordFormatException.class)
+    public void test_template_with_unsupported_target() throws Exception {
+        KdfHash.template("$argon2id$v=19$m=65536,t=3,p=4", new byte[16]);
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright 2015 dc-square GmbH
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.hivemq.plugin.fileauthentication.authentication;
+
+import com.hivemq.plugin.fileauthentication.util.HashSaltUtil;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.jasypt.digest.config.SimpleDigesterConfig;
+import org.jasypt.salt.FixedStringSaltGenerator;
+import org.jasypt.util.password.ConfigurablePasswordEncryptor;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class NativeDigestEngineTest {
+
+    private NativeDigestEngine nativeDigestEngine;
+
+    @Before
+    public void setUp() throws Exception {
+        nativeDigestEngine = new NativeDigestEngine(new BouncyCastleProvider());
+    }
+
+    @Test
+    public void test_hash_with_salt_behind() throws Exception {
+        final HashedSaltedPassword hashedSaltedPassword = HashSaltUtil.retrieve(false, "$", "M7NoPZ11kDRk5s69fMsSsnqvnOuOZmPpyORP2FVdIE4R7qyUJIrokWzSxHLYxh/4MDG8FghfN8dAJh6SEImj9Q==$77+977+977+977+9ZBxZJe+/vUbvv71HQu+/ve+/vU3vv73vv73vv70tf++/ve+/vVXGje+/ve+/vVdE77+977+977+977+9GO+/ve+/vRnvv712UEQcBO+/vVjvv73Rhw==");
+
+        assertTrue(nativeDigestEngine.matches("SHA-512", "password", hashedSaltedPassword.getHash(), 1000000, hashedSaltedPassword.getSalt()));
+        assertFalse(nativeDigestEngine.matches("SHA-512", "wrong", hashedSaltedPassword.getHash(), 1000000, hashedSaltedPassword.getSalt()));
+    }
+
+    @Test
+    public void test_hash_with_salt_first() throws Exception {
+        final HashedSaltedPassword hashedSaltedPassword = HashSaltUtil.retrieve(true, "$", "77+9L++/vX9f77+9fmnvv73vv70e77+9OR4377+9UFrvv71tHzY377+92aPvv71gFm/vv73PgUgo77+9Tg/vv73vv73vv70e77+977+9We+/vRPvv70i$A2ZYZMkEkdKxIZcLDd8JmzI2EvXf0CunM1mzzrZ8UE5ZklGSTQWCJgnPwx6Ja5gndH1uFCQ/naXN7uj91hvBOQ==");
+
+        assertTrue(nativeDigestEngine.matches("SHA-512", "password", hashedSaltedPassword.getHash(), 1000000, hashedSaltedPassword.getSalt()));
+        assertFalse(nativeDigestEngine.matches("SHA-512", "wrong", hashedSaltedPassword.getHash(), 1000000, hashedSaltedPassword.getSalt()));
+    }
+
+    @Test
+    public void test_hash_without_salt() throws Exception {
+        final String hash = "wcPX9K84FBCni8IaS9wpmt37YRv5hncjJ7vYCRtJj9gFgMAGESZt8oGvZTBWkog3EIZX3lA7EcnM4/qY4uDpUqzkSj/SISUc";
+
+        assertTrue(nativeDigestEngine.matches("SHA-512", "password", hash, 1000000, null));
+        assertFalse(nativeDigestEngine.matches("SHA-512", "wrong", hash, 1000000, null));
+    }
+
+    @Test
+    public void test_decoded_entry() throws Exception {
+        final HashedSaltedPassword hashedSaltedPassword = HashSaltUtil.retrieve(true, "$", "77+9L++/vX9f77+9fmnvv73vv70e77+9OR4377+9UFrvv71tHzY377+92aPvv71gFm/vv73PgUgo77+9Tg/vv73vv73vv70e77+977+9We+/vRPvv70i$A2ZYZMkEkdKxIZcLDd8JmzI2EvXf0CunM1mzzrZ8UE5ZklGSTQWCJgnPwx6Ja5gndH1uFCQ/naXN7uj91hvBOQ==");
+        final HashedSaltedPassword salted = HashedSaltedPassword.decoded(hashedSaltedPassword.getHash(), hashedSaltedPassword.getSalt());
+        final HashedSaltedPassword unsalted = HashedSaltedPassword.decoded("wcPX9K84FBCni8IaS9wpmt37YRv5hncjJ7vYCRtJj9gFgMAGESZt8oGvZTBWkog3EIZX3lA7EcnM4/qY4uDpUqzkSj/SISUc", null);
+
+        assertTrue(nativeDigestEngine.matches("SHA-512", "password", salted, 1000000));
+        assertFalse(nativeDigestEngine.matches("SHA-512", "wrong", salted, 1000000));
+        assertTrue(nativeDigestEngine.matches("SHA-512", "password", unsalted, 1000000));
+        assertFalse(nativeDigestEngine.matches("SHA-512", "wrong", unsalted, 1000000));
+        assertTrue(nativeDigestEngine.matches("SHA-512", "password", hashedSaltedPassword, 1000000));
+        assertFalse(nativeDigestEngine.matches("SHA-512", "password", HashedSaltedPassword.decoded("not base64!", null), 10));
+    }
+
+    @Test
+    public void test_same_results_as_jasypt() throws Exception {
+        final String[] passwords = {"password", "", "p\u00e4ssw\u00f6rd", "A\u030a", "\uD83D\uDD11key"};
+        final String[] salts = {null, "salt", "s\u00e4lt", "\uFFFD\uFFFDx", ""};
+        final String[] algorithms = {"SHA-256", "SHA-512", "MD5"};
+
+        for (String algorithm : algorithms) {
+            for (String salt : salts) {
+                for (String password : passwords) {
+                    final String hash = getEncryptor(algorithm, 3, salt).encryptPassword(password);
+
+                    assertTrue(algorithm + " " + salt + " " + password,
+                            nativeDigestEngine.matches(algorithm, password, hash, 3, salt));
+                    assertFalse(algorithm + " " + salt + " " + password,
+                            nativeDigestEngine.matches(algorithm, password + "x", hash, 3, salt));
+                    assertEquals(getEncryptor(algorithm, 3, salt).checkPassword(password + "x", hash),
+                            nativeDigestEngine.matches(algorithm, password + "x", hash, 3, salt));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void test_unsupported_format_does_not_match() throws Exception {
+        assertFalse(nativeDigestEngine.matches("SHA-512", "password", "not base64!", 10, null));
+        assertFalse(nativeDigestEngine.matches("SHA-512", "password", "AAAA", 10, null));
+        assertFalse(nativeDigestEngine.matches("SHA-512", "password", "AAAA", 10, "salt"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void test_unknown_algorithm() throws Exception {
+        nativeDigestEngine.matches("UNKNOWN", "password", "AAAA", 10, "salt");
+    }
+
+    private static ConfigurablePasswordEncryptor getEncryptor(final String algorithm, final int iterations, final String salt) {
+        final ConfigurablePasswordEncryptor encryptor = new ConfigurablePasswordEncryptor();
+        final SimpleDigesterConfig config = new SimpleDigesterConfig();
+        config.setProvider(new BouncyCastleProvider());
+        config.setAlgorithm(algorithm);
+        config.setIterations(iterations);
+        if (salt != null) {
+            final FixedStringSaltGenerator saltGenerator = new FixedStringSaltGenerator();
+            saltGenerator.setSalt(salt);
+            config.setSaltGenerator(saltGenerator);
+            config.setSaltSizeBytes(salt.length());
+        }
+        encryptor.setConfig(config);
+        return encryptor;
+    }
+}
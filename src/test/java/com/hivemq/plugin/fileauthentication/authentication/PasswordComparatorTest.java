@@ -16,10 +16,17 @@
 
 package com.hivemq.plugin.fileauthentication.authentication;
 
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
 import com.hivemq.plugin.fileauthentication.util.HashSaltUtil;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.security.Provider;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
@@ -113,6 +120,179 @@ public class PasswordComparatorTest {
 
     }
 
+    @Test
+    public void test_native_engine_validates_password() throws Exception {
+        passwordComparator.selectEngine("native");
+
+        assertTrue(passwordComparator.validateHashedPassword("SHA-512", "password", "wcPX9K84FBCni8IaS9wpmt37YRv5hncjJ7vYCRtJj9gFgMAGESZt8oGvZTBWkog3EIZX3lA7EcnM4/qY4uDpUqzkSj/SISUc", 1000000));
+        assertFalse(passwordComparator.validateHashedPassword("SHA-512", "wrong", "wcPX9K84FBCni8IaS9wpmt37YRv5hncjJ7vYCRtJj9gFgMAGESZt8oGvZTBWkog3EIZX3lA7EcnM4/qY4uDpUqzkSj/SISUc", 1000000));
+    }
+
+    @Test
+    public void test_selected_provider_validates_password() throws Exception {
+        for (String provider : new String[]{"SUN", "auto", "unknown"}) {
+            passwordComparator.selectProvider(provider, "SHA-512");
+
+            assertTrue(passwordComparator.validateHashedPassword("SHA-512", "password", "wcPX9K84FBCni8IaS9wpmt37YRv5hncjJ7vYCRtJj9gFgMAGESZt8oGvZTBWkog3EIZX3lA7EcnM4/qY4uDpUqzkSj/SISUc", 1000000));
+        }
+    }
+
+    @Test
+    public void test_registered_engine_is_selected() throws Exception {
+        final RecordingEngine jasypt = new RecordingEngine();
+        final RecordingEngine custom = new RecordingEngine();
+        passwordComparator = new PasswordComparator(ImmutableMap.<String, VerifierEngine>of("jasypt", jasypt, "custom", custom));
+
+        passwordComparator.validateHashedPassword("SHA-512", "password", "hash", 10);
+        passwordComparator.selectEngine("custom");
+        passwordComparator.validateHashedPassword("SHA-512", "password", "hash", 10);
+
+        assertEquals(1, jasypt.matches);
+        assertEquals(1, custom.matches);
+    }
+
+    @Test
+    public void test_unknown_engine_selects_default() throws Exception {
+        final RecordingEngine jasypt = new RecordingEngine();
+        final RecordingEngine custom = new RecordingEngine();
+        passwordComparator = new PasswordComparator(ImmutableMap.<String, VerifierEngine>of("jasypt", jasypt, "custom", custom));
+
+        passwordComparator.selectEngine("custom");
+        passwordComparator.selectEngine("unknown");
+        passwordComparator.validateHashedPassword("SHA-512", "password", "hash", 10);
+
+        assertEquals(1, jasypt.matches);
+        assertEquals(0, custom.matches);
+    }
+
+    @Test
+    public void test_selected_provider_is_passed_to_all_engines() throws Exception {
+        final RecordingEngine jasypt = new RecordingEngine();
+        final RecordingEngine custom = new RecordingEngine();
+        passwordComparator = new PasswordComparator(ImmutableMap.<String, VerifierEngine>of("jasypt", jasypt, "custom", custom));
+
+        passwordComparator.selectProvider("SUN", "SHA-512");
+
+        assertEquals("SUN", jasypt.provider.getName());
+        assertEquals("SUN", custom.provider.getName());
+    }
+
+    @Test
+    public void test_bouncycastle_is_passed_to_all_engines_by_default() throws Exception {
+        final RecordingEngine jasypt = new RecordingEngine();
+        final RecordingEngine custom = new RecordingEngine();
+        passwordComparator = new PasswordComparator(ImmutableMap.<String, VerifierEngine>of("jasypt", jasypt, "custom", custom));
+
+        passwordComparator.selectProvider("BC", "SHA-512");
+        assertEquals("BC", jasypt.provider.getName());
+        assertEquals("BC", custom.provider.getName());
+
+        passwordComparator.selectProvider("unknown", "SHA-512");
+        assertEquals("BC", custom.provider.getName());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void test_default_engine_is_required() throws Exception {
+        new PasswordComparator(ImmutableMap.<String, VerifierEngine>of("custom", new RecordingEngine()));
+    }
+
+    @Test
+    public void test_validate_pbkdf2_sha256_password() throws Exception {
+        final KdfHash kdfHash = KdfHash.parse("$pbkdf2-sha256$i=1000$c2FsdHNhbHRzYWx0c2FsdA$8nX7hwFEzIB8aPajJTYK8weHQc5Ngz0pFVAKvSu4jQA");
+
+        assertTrue(passwordComparator.validateKdfPassword("password", kdfHash));
+        assertFalse(passwordComparator.validateKdfPassword("wrong", kdfHash));
+    }
+
+    @Test
+    public void test_validate_pbkdf2_sha512_password() throws Exception {
+        final KdfHash kdfHash = KdfHash.parse("$pbkdf2-sha512$i=1000$c2FsdHNhbHRzYWx0c2FsdA==$715rqIr5dXOVPpBhqqsugl037zT5bWJTWYmZtIcK8hBnisKpwfY7kokvwjDrNHqHhF50Pb7MD6HvkJwiDQw4ww==");
+
+        assertTrue(passwordComparator.validateKdfPassword("password", kdfHash));
+        assertFalse(passwordComparator.validateKdfPassword("wrong", kdfHash));
+    }
+
+    @Test
+    public void test_validate_scrypt_password() throws Exception {
+        // test vector of RFC 7914
+        final KdfHash kdfHash = KdfHash.parse("$scrypt$ln=10,r=8,p=16$TmFDbA==$/bq+HJ00cgB4VucZDQHp/nxq18vII3gw53N2Y0s3MWIurzDZLiKjiG/xCSedmDDaxyevuUqD7m2DYMvfoswGQA==");
+
+        assertTrue(passwordComparator.validateKdfPassword("password", kdfHash));
+        assertFalse(passwordComparator.validateKdfPassword("wrong", kdfHash));
+    }
+
+    @Test
+    public void test_validate_bcrypt_password() throws Exception {
+        final KdfHash kdfHash = KdfHash.parse("$2a$06$a0DqbFLfZFPxWUvya0Dqb.E1tEwpajqalta700/ehKH/RBezOsw4G");
+
+        assertTrue(passwordComparator.validateKdfPassword("password", kdfHash));
+        assertFalse(passwordComparator.validateKdfPassword("wrong", kdfHash));
+    }
+
+    @Test
+    public void test_validate_bcrypt_empty_password() throws Exception {
+        final KdfHash kdfHash = KdfHash.parse("$2a$06$DCq7YPn5Rq63x1Lad4cll.TV4S6ytwfsfvkgY8jIucDrjc8deX1s.");
+
+        assertTrue(passwordComparator.validateKdfPassword("", kdfHash));
+        assertFalse(passwordComparator.validateKdfPassword("password", kdfHash));
+    }
+
+    @Test
+    public void test_hash_kdf_password_creates_verifiable_entry() throws Exception {
+        for (String target : new String[]{"$pbkdf2-sha256$i=1000", "$scrypt$ln=4,r=8,p=1", "$2a$04"}) {
+            final String entry = passwordComparator.hashKdfPassword("password", target);
+            final KdfHash kdfHash = KdfHash.parse(entry);
+
+            assertTrue(entry, kdfHash.hasParameters(target));
+            assertTrue(entry, passwordComparator.validateKdfPassword("password", kdfHash));
+            assertFalse(entry, passwordComparator.validateKdfPassword("wrong", kdfHash));
+        }
+    }
+
+    @Test
+    public void test_hash_kdf_password_uses_random_salt() throws Exception {
+        assertFalse(passwordComparator.hashKdfPassword("password", "$2a$04").equals(passwordComparator.hashKdfPassword("password", "$2a$04")));
+    }
+
+    @Test
+    public void test_validate_all_keeps_order_of_mixed_checks() throws Exception {
+        passwordComparator.selectEngine("native");
+        final HashedSaltedPassword hashed = new HashedSaltedPassword("wcPX9K84FBCni8IaS9wpmt37YRv5hncjJ7vYCRtJj9gFgMAGESZt8oGvZTBWkog3EIZX3lA7EcnM4/qY4uDpUqzkSj/SISUc", null);
+        final KdfHash bcrypt = KdfHash.parse("$2a$06$a0DqbFLfZFPxWUvya0Dqb.E1tEwpajqalta700/ehKH/RBezOsw4G");
+        final HashedSaltedPassword plaintext = new HashedSaltedPassword("secret", null);
+
+        final List<PasswordCheck> checks = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            checks.add(new PasswordCheck(hashed, i % 2 == 0 ? "password" : "wrong", "SHA-512", 1000000));
+            checks.add(new PasswordCheck(bcrypt, i % 2 == 0 ? "wrong" : "password", null, 0));
+            checks.add(new PasswordCheck(plaintext, i % 2 == 0 ? "secret" : "wrong", null, 0));
+        }
+
+        final boolean[] results = passwordComparator.validateAll(checks);
+
+        assertEquals(checks.size(), results.length);
+        for (int i = 0; i < checks.size(); i++) {
+            final boolean evenRound = (i / 3) % 2 == 0;
+            final boolean expected = i % 3 == 1 ? !evenRound : evenRound;
+            assertEquals("check " + i, expected, results[i]);
+        }
+    }
+
+    @Test
+    public void test_validate_all_without_checks() throws Exception {
+        assertEquals(0, passwordComparator.validateAll(new ArrayList<PasswordCheck>()).length);
+    }
+
+    @Test
+    public void test_validate_all_after_shutdown() throws Exception {
+        final HashedSaltedPassword plaintext = new HashedSaltedPassword("secret", null);
+        assertTrue(passwordComparator.validateAll(ImmutableList.of(new PasswordCheck(plaintext, "secret", null, 0)))[0]);
+
+        passwordComparator.shutdown();
+
+        assertTrue(passwordComparator.validateAll(ImmutableList.of(new PasswordCheck(plaintext, "secret", null, 0)))[0]);
+    }
+
     @Test
     public void test_validate_correct_plaintext() throws Exception {
         String passwort1 = "p";
@@ -130,4 +310,32 @@ public class PasswordComparatorTest {
         assertFalse(passwordComparator.validatePlaintextPassword(passwort1, passwort2));
 
     }
+
+    /**
+     * Accepts every password, but records the calls.
+     */
+    private static class RecordingEngine implements VerifierEngine {
+
+        private Provider provider;
+        private int matches;
+
+        @Override
+        public void setProvider(final Provider provider) {
+            this.provider = provider;
+        }
+
+        @Override
+        public boolean matches(final String algorithm, final String plainPassword, final String passwordHash,
+                               final int iterations, final String salt) {
+            matches++;
+            return true;
+        }
+
+        @Override
+        public boolean matches(final String algorithm, final String plainPassword, final HashedSaltedPassword entry,
+                               final int iterations) {
+            matches++;
+            return true;
+        }
+    }
 }
@@ -0,0 +1,64 @@
+/*
+ * Copyright 2015 dc-square GmbH
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.hivemq.plugin.fileauthentication.authentication;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+public class PasswordFingerprinterTest {
+
+    private PasswordFingerprinter passwordFingerprinter;
+
+    @Before
+    public void setUp() throws Exception {
+        passwordFingerprinter = new PasswordFingerprinter();
+    }
+
+    @Test
+    public void test_same_password_same_fingerprint() throws Exception {
+        assertTrue(Arrays.equals(passwordFingerprinter.fingerprint("password"), passwordFingerprinter.fingerprint("password")));
+    }
+
+    @Test
+    public void test_different_password_different_fingerprint() throws Exception {
+        assertFalse(Arrays.equals(passwordFingerprinter.fingerprint("password"), passwordFingerprinter.fingerprint("wrong")));
+    }
+
+    @Test
+    public void test_fingerprint_is_keyed() throws Exception {
+        final PasswordFingerprinter otherFingerprinter = new PasswordFingerprinter();
+        assertFalse(Arrays.equals(passwordFingerprinter.fingerprint("password"), otherFingerprinter.fingerprint("password")));
+    }
+
+    @Test
+    public void test_cache_keys_with_same_credentials_are_equal() throws Exception {
+        final CredentialCacheKey key1 = new CredentialCacheKey("user", passwordFingerprinter.fingerprint("password"));
+        final CredentialCacheKey key2 = new CredentialCacheKey("user", passwordFingerprinter.fingerprint("password"));
+        final CredentialCacheKey key3 = new CredentialCacheKey("user", passwordFingerprinter.fingerprint("wrong"));
+
+        assertEquals(key1, key2);
+        assertEquals(key1.hashCode(), key2.hashCode());
+        assertNotEquals(key1, key3);
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright 2015 dc-square GmbH
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.hivemq.plugin.fileauthentication.authentication;
+
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.junit.Test;
+
+import java.security.MessageDigest;
+import java.security.Provider;
+import java.security.Security;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class ProviderSelectorTest {
+
+    private final Provider bouncyCastle = new BouncyCastleProvider();
+
+    @Test
+    public void test_candidates_start_with_reference() throws Exception {
+        final List<Provider> candidates = ProviderSelector.candidates("SHA-512", bouncyCastle, Security.getProviders());
+
+        assertSame(bouncyCastle, candidates.get(0));
+        for (Provider candidate : candidates) {
+            assertTrue(candidate.getService("MessageDigest", "SHA-512") != null);
+        }
+    }
+
+    @Test
+    public void test_candidates_skip_providers_without_algorithm() throws Exception {
+        final List<Provider> candidates = ProviderSelector.candidates("SHA-512", bouncyCastle, new EmptyProvider());
+
+        assertEquals(1, candidates.size());
+    }
+
+    @Test
+    public void test_selects_one_of_the_candidates() throws Exception {
+        final Provider sun = Security.getProvider("SUN");
+
+        final Provider selected = ProviderSelector.select("SHA-512", Arrays.asList(bouncyCastle, sun), 100, 1000);
+
+        assertTrue(selected == bouncyCastle || selected == sun);
+    }
+
+    @Test
+    public void test_provider_with_different_digests_is_not_selected() throws Exception {
+        final Provider selected = ProviderSelector.select("SHA-512", Arrays.asList(bouncyCastle, new ZeroProvider()), 100, 1000);
+
+        assertSame(bouncyCastle, selected);
+    }
+
+    private static class EmptyProvider extends Provider {
+        private EmptyProvider() {
+            super("Empty", 1.0, "Provider without any algorithms");
+        }
+    }
+
+    private static class ZeroProvider extends Provider {
+        private ZeroProvider() {
+            super("Zero", 1.0, "Provider with a fast but wrong SHA-512");
+            put("MessageDigest.SHA-512", ZeroDigest.class.getName());
+        }
+    }
+
+    public static class ZeroDigest extends MessageDigest {
+
+        public ZeroDigest() {
+            super("SHA-512");
+        }
+
+        @Override
+        protected void engineUpdate(final byte input) {
+        }
+
+        @Override
+        protected void engineUpdate(final byte[] input, final int offset, final int len) {
+        }
+
+        @Override
+        protected byte[] engineDigest() {
+            return new byte[64];
+        }
+
+        @Override
+        protected void engineReset() {
+        }
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright 2015 dc-square GmbH
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.hivemq.plugin.fileauthentication.authentication;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SessionTokensTest {
+
+    private long now;
+    private SessionTokens sessionTokens;
+
+    @Before
+    public void setUp() throws Exception {
+        now = TimeUnit.DAYS.toMillis(1);
+        sessionTokens = new SessionTokens() {
+            @Override
+            long currentTimeMillis() {
+                return now;
+            }
+        };
+        sessionTokens.setLifetime(60, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void test_issued_token_is_valid() throws Exception {
+        final String token = sessionTokens.issue("user", "entry", sessionTokens.newExpiry());
+
+        assertTrue(SessionTokens.isToken(token));
+        assertTrue(sessionTokens.verify("user", token, "entry"));
+    }
+
+    @Test
+    public void test_token_is_only_valid_for_user_and_entry() throws Exception {
+        final String token = sessionTokens.issue("user", "entry", sessionTokens.newExpiry());
+
+        assertFalse(sessionTokens.verify("other", token, "entry"));
+        assertFalse(sessionTokens.verify("user", token, "changed"));
+    }
+
+    @Test
+    public void test_token_is_valid_after_key_rotation_until_it_expires() throws Exception {
+        now += 30000;
+        final String token = sessionTokens.issue("user", "entry", sessionTokens.newExpiry());
+
+        now += 45000;
+        assertTrue(sessionTokens.verify("user", token, "entry"));
+
+        now += 15000;
+        assertFalse(sessionTokens.verify("user", token, "entry"));
+    }
+
+    @Test
+    public void test_token_with_changed_expiry_is_invalid() throws Exception {
+        final long expiry = sessionTokens.newExpiry();
+        final String token = sessionTokens.issue("user", "entry", expiry);
+
+        assertFalse(sessionTokens.verify("user", token.replace(Long.toString(expiry), Long.toString(expiry + 1)), "entry"));
+    }
+
+    @Test
+    public void test_token_of_other_instance_is_invalid() throws Exception {
+        final String token = new SessionTokens().issue("user", "entry", sessionTokens.newExpiry());
+
+        assertFalse(sessionTokens.verify("user", token, "entry"));
+    }
+
+    @Test
+    public void test_malformed_tokens_are_invalid() throws Exception {
+        assertFalse(sessionTokens.verify("user", "$session$", "entry"));
+        assertFalse(sessionTokens.verify("user", "$session$x$y$z", "entry"));
+        assertFalse(sessionTokens.verify("user", "$session$1$2$3$4", "entry"));
+    }
+
+    @Test
+    public void test_changed_lifetime_invalidates_tokens() throws Exception {
+        final String token = sessionTokens.issue("user", "entry", sessionTokens.newExpiry());
+
+        sessionTokens.setLifetime(120, TimeUnit.SECONDS);
+
+        assertFalse(sessionTokens.verify("user", token, "entry"));
+    }
+}
@@ -0,0 +1,167 @@
+/*
+ * Copyright 2015 dc-square GmbH
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.hivemq.plugin.fileauthentication.authentication;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class VerificationPoolTest {
+
+    private VerificationPool verificationPool;
+    private ExecutorService callers;
+    private final CountDownLatch release = new CountDownLatch(1);
+
+    @Before
+    public void setUp() throws Exception {
+        verificationPool = new VerificationPool();
+        callers = Executors.newCachedThreadPool();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        release.countDown();
+        callers.shutdownNow();
+    }
+
+    @Test
+    public void test_without_threads_verifies_on_calling_thread() throws Exception {
+        verificationPool.configure(0, 10, 1, TimeUnit.SECONDS);
+        final Thread caller = Thread.currentThread();
+
+        final VerificationResult result = verificationPool.verify(new Callable<VerificationResult>() {
+            @Override
+            public VerificationResult call() {
+                assertSame(caller, Thread.currentThread());
+                return VerificationResult.GRANTED;
+            }
+        });
+
+        assertEquals(VerificationResult.GRANTED, result);
+    }
+
+    @Test
+    public void test_verifies_on_pool_thread() throws Exception {
+        verificationPool.configure(1, 10, 1, TimeUnit.SECONDS);
+
+        final VerificationResult result = verificationPool.verify(new Callable<VerificationResult>() {
+            @Override
+            public VerificationResult call() {
+                assertTrue(Thread.currentThread().getName().startsWith("file-authentication-verification-"));
+                return VerificationResult.WRONG_PASSWORD;
+            }
+        });
+
+        assertEquals(VerificationResult.WRONG_PASSWORD, result);
+    }
+
+    @Test
+    public void test_after_shutdown_verifies_on_calling_thread() throws Exception {
+        verificationPool.configure(1, 10, 1, TimeUnit.SECONDS);
+        verificationPool.shutdown();
+        final Thread caller = Thread.currentThread();
+
+        final VerificationResult result = verificationPool.verify(new Callable<VerificationResult>() {
+            @Override
+            public VerificationResult call() {
+                assertSame(caller, Thread.currentThread());
+                return VerificationResult.GRANTED;
+            }
+        });
+
+        assertEquals(VerificationResult.GRANTED, result);
+    }
+
+    @Test
+    public void test_full_queue_rejects_verification() throws Exception {
+        verificationPool.configure(1, 1, 10, TimeUnit.SECONDS);
+        final CountDownLatch started = new CountDownLatch(1);
+
+        final Future<VerificationResult> running = callers.submit(login(blockingVerification(started)));
+        started.await();
+        final Future<VerificationResult> queued = callers.submit(login(blockingVerification(new CountDownLatch(1))));
+        while (verificationPool.queuedCount() == 0) {
+            Thread.sleep(1);
+        }
+
+        assertEquals(VerificationResult.OVERLOADED, verificationPool.verify(blockingVerification(new CountDownLatch(1))));
+        assertEquals(1, verificationPool.rejectedCount());
+
+        release.countDown();
+        assertEquals(VerificationResult.GRANTED, running.get());
+        assertEquals(VerificationResult.GRANTED, queued.get());
+    }
+
+    @Test
+    public void test_slow_verification_times_out() throws Exception {
+        verificationPool.configure(1, 1, 10, TimeUnit.MILLISECONDS);
+
+        final VerificationResult result = verificationPool.verify(blockingVerification(new CountDownLatch(1)));
+
+        assertEquals(VerificationResult.TIMEOUT, result);
+        assertEquals(1, verificationPool.timeoutCount());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void test_failure_is_passed_to_caller() throws Exception {
+        verificationPool.configure(1, 1, 1, TimeUnit.SECONDS);
+
+        verificationPool.verify(new Callable<VerificationResult>() {
+            @Override
+            public VerificationResult call() {
+                throw new IllegalArgumentException("unsupported algorithm");
+            }
+        });
+    }
+
+    /**
+     * @return a verification, which blocks until the test releases it
+     */
+    private Callable<VerificationResult> blockingVerification(final CountDownLatch started) {
+        return new Callable<VerificationResult>() {
+            @Override
+            public VerificationResult call() throws Exception {
+                started.countDown();
+                release.await();
+                return VerificationResult.GRANTED;
+            }
+        };
+    }
+
+    /**
+     * @return a login, which waits for the given verification on the pool
+     */
+    private Callable<VerificationResult> login(final Callable<VerificationResult> verification) {
+        return new Callable<VerificationResult>() {
+            @Override
+            public VerificationResult call() {
+                return verificationPool.verify(verification);
+            }
+        };
+    }
+}
@@ -0,0 +1,79 @@
+/*
+ * Copyright 2015 dc-square GmbH
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.hivemq.plugin.fileauthentication.authentication;
+
+import com.google.common.collect.ImmutableSet;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class VerifiedPasswordTableTest {
+
+    private VerifiedPasswordTable table;
+    private PasswordFingerprinter passwordFingerprinter;
+
+    @Before
+    public void setUp() throws Exception {
+        table = new VerifiedPasswordTable();
+        table.setMaxAge(1, TimeUnit.HOURS);
+        passwordFingerprinter = new PasswordFingerprinter();
+    }
+
+    @Test
+    public void test_verified_password() throws Exception {
+        table.setVerified("user", passwordFingerprinter.fingerprint("password"));
+
+        assertTrue(table.isVerified("user", passwordFingerprinter.fingerprint("password")));
+        assertFalse(table.isVerified("user", passwordFingerprinter.fingerprint("wrong")));
+        assertFalse(table.isVerified("other", passwordFingerprinter.fingerprint("password")));
+        assertEquals(1, table.hitCount());
+    }
+
+    @Test
+    public void test_one_slot_per_user() throws Exception {
+        table.setVerified("user", passwordFingerprinter.fingerprint("password"));
+        table.setVerified("user", passwordFingerprinter.fingerprint("newPassword"));
+
+        assertEquals(1, table.size());
+        assertFalse(table.isVerified("user", passwordFingerprinter.fingerprint("password")));
+        assertTrue(table.isVerified("user", passwordFingerprinter.fingerprint("newPassword")));
+    }
+
+    @Test
+    public void test_clear_user() throws Exception {
+        table.setVerified("user", passwordFingerprinter.fingerprint("password"));
+        table.setVerified("other", passwordFingerprinter.fingerprint("password"));
+
+        table.clear(ImmutableSet.of("user"));
+
+        assertFalse(table.isVerified("user", passwordFingerprinter.fingerprint("password")));
+        assertTrue(table.isVerified("other", passwordFingerprinter.fingerprint("password")));
+    }
+
+    @Test
+    public void test_expired_slot() throws Exception {
+        table.setMaxAge(0, TimeUnit.SECONDS);
+        table.setVerified("user", passwordFingerprinter.fingerprint("password"));
+
+        assertFalse(table.isVerified("user", passwordFingerprinter.fingerprint("password")));
+    }
+}
@@ -0,0 +1,72 @@
+/*
+ * Copyright 2015 dc-square GmbH
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.hivemq.plugin.fileauthentication.configuration;
+
+import com.hivemq.spi.config.SystemInformation;
+import com.hivemq.spi.services.PluginExecutorService;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import java.io.File;
+import java.io.FileWriter;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Mockito.when;
+
+public class ConfigurationTest {
+
+    @Mock
+    PluginExecutorService pluginExecutorService;
+
+    @Mock
+    SystemInformation systemInformation;
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Before
+    public void setUp() throws Exception {
+        MockitoAnnotations.initMocks(this);
+        when(systemInformation.getConfigFolder()).thenReturn(temporaryFolder.getRoot());
+    }
+
+    @Test
+    public void refresh_ahead_time_within_caching_time_is_kept() throws Exception {
+        final Configuration configuration = createConfiguration("cachingTime.seconds=600\nrefreshAhead.seconds=60\n");
+
+        assertEquals(60, configuration.getRefreshAheadTime());
+    }
+
+    @Test
+    public void refresh_ahead_time_is_limited_to_half_of_caching_time() throws Exception {
+        final Configuration configuration = createConfiguration("cachingTime.seconds=60\nrefreshAhead.seconds=60\n");
+
+        assertEquals(30, configuration.getRefreshAheadTime());
+    }
+
+    private Configuration createConfiguration(final String content) throws Exception {
+        final File file = new File(temporaryFolder.getRoot(), "fileAuthConfiguration.properties");
+        try (FileWriter out = new FileWriter(file, false)) {
+            out.write(content);
+        }
+        return new Configuration(pluginExecutorService, systemInformation);
+    }
+}
@@ -1,9 +1,17 @@
 package com.hivemq.plugin.fileauthentication.configuration;
 
+import com.google.common.base.Charsets;
 import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
 import com.hivemq.plugin.fileauthentication.authentication.FileAuthenticator;
+import com.hivemq.plugin.fileauthentication.authentication.HashedSaltedPassword;
+import com.hivemq.plugin.fileauthentication.authentication.HotUsers;
 import com.hivemq.plugin.fileauthentication.authentication.PasswordComparator;
+import com.hivemq.plugin.fileauthentication.authentication.PasswordFingerprinter;
 import com.hivemq.plugin.fileauthentication.callback.CredentialChangeCallback;
+import com.hivemq.plugin.fileauthentication.exception.PasswordFormatException;
+import com.hivemq.plugin.fileauthentication.metrics.AuthenticationMetrics;
 import com.hivemq.spi.config.SystemInformation;
 import com.hivemq.spi.security.ClientCredentialsData;
 import com.hivemq.spi.services.PluginExecutorService;
@@ -11,6 +19,7 @@ import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.TemporaryFolder;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
 import org.mockito.internal.util.reflection.Whitebox;
@@ -18,11 +27,20 @@ import org.mockito.internal.util.reflection.Whitebox;
 import java.io.File;
 import java.io.FileWriter;
 import java.net.InetAddress;
-import java.util.Properties;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReference;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 
@@ -40,6 +58,12 @@ public class CredentialsConfigurationTest {
     @Mock
     ClientCredentialsData clientCredentialsData;
 
+    @Mock
+    AuthenticationMetrics authenticationMetrics;
+
+    @Mock
+    HotUsers hotUsers;
+
 
     @Rule
     public TemporaryFolder temporaryFolder = new TemporaryFolder();
@@ -67,13 +91,15 @@ public class CredentialsConfigurationTest {
 
             int hashBefore = credentialsConfiguration.hashCode();
 
-            Properties propertiesBefore = (Properties) credentialsConfiguration.getProperties().clone();
+            Map<String, String> valuesBefore = credentialsConfiguration.getValues();
             out.write("testUser2 = testpw");
             out.flush();
             credentialsConfiguration.reload();
             int hashAfter = credentialsConfiguration.hashCode();
             assertTrue(hashBefore != hashAfter);
-            assertFalse(credentialsConfiguration.getProperties().equals(propertiesBefore));
+            assertFalse(credentialsConfiguration.getValues().equals(valuesBefore));
+            assertEquals("testpw", credentialsConfiguration.getUser("testUser2"));
+            assertTrue(credentialsConfiguration.getProperties().isEmpty());
         }
     }
 
@@ -98,7 +124,7 @@ public class CredentialsConfigurationTest {
             when(clientCredentialsData.getInetAddress()).thenReturn(Optional.of(InetAddress.getLoopbackAddress()));
             Whitebox.setInternalState(configuration, "credentialsConfiguration", credentialsConfiguration);
 
-            FileAuthenticator fileAuthenticator = new FileAuthenticator(configuration, new PasswordComparator());
+            FileAuthenticator fileAuthenticator = new FileAuthenticator(configuration, new PasswordComparator(), new PasswordFingerprinter(), pluginExecutorService, authenticationMetrics, hotUsers);
 
             Whitebox.setInternalState(fileAuthenticator, "isHashed", false);//otherwise hashing is active
 
@@ -119,12 +145,227 @@ public class CredentialsConfigurationTest {
     }
 
 
+    @Test
+    public void credentialChange_callback_gets_changed_usernames() throws Exception {
+        File credentialsFile = temporaryFolder.newFile();
+        try (FileWriter out = new FileWriter(credentialsFile, false)) {
+            out.write("unchanged=pw\nchanged=pw\nremoved=pw\n");
+            out.flush();
+        }
+
+        CredentialsConfiguration credentialsConfiguration = new CredentialsConfiguration(pluginExecutorService, credentialsFile.getAbsolutePath(), 1, systemInformation);
+        credentialsConfiguration.init();
+
+        final AtomicReference<Set<String>> changed = new AtomicReference<>();
+        credentialsConfiguration.addCallback(new CredentialChangeCallback() {
+            @Override
+            public void onCredentialChange(Set<String> changedUsernames) {
+                changed.set(changedUsernames);
+            }
+        });
+
+        try (FileWriter out = new FileWriter(credentialsFile, false)) {
+            out.write("unchanged=pw\nchanged=newPw\nadded=pw\n");
+            out.flush();
+        }
+        credentialsConfiguration.reload();
+
+        assertEquals(ImmutableSet.of("changed", "removed", "added"), changed.get());
+    }
+
+    @Test
+    public void credentialChange_callback_not_called_without_changes() throws Exception {
+        File credentialsFile = temporaryFolder.newFile();
+        try (FileWriter out = new FileWriter(credentialsFile, false)) {
+            out.write("user=pw\n");
+            out.flush();
+        }
+
+        CredentialsConfiguration credentialsConfiguration = new CredentialsConfiguration(pluginExecutorService, credentialsFile.getAbsolutePath(), 1, systemInformation);
+        credentialsConfiguration.init();
+
+        final AtomicReference<Set<String>> changed = new AtomicReference<>();
+        credentialsConfiguration.addCallback(new CredentialChangeCallback() {
+            @Override
+            public void onCredentialChange(Set<String> changedUsernames) {
+                changed.set(changedUsernames);
+            }
+        });
+
+        credentialsConfiguration.reload();
+
+        assertNull(changed.get());
+    }
+
+    @Test
+    public void replace_entry_only_changes_line_of_user() throws Exception {
+        File credentialsFile = temporaryFolder.newFile();
+        try (FileWriter out = new FileWriter(credentialsFile, false)) {
+            out.write("# users\nother=pw\nuser : old\n");
+            out.flush();
+        }
+
+        CredentialsConfiguration credentialsConfiguration = new CredentialsConfiguration(pluginExecutorService, credentialsFile.getAbsolutePath(), 1, systemInformation);
+        credentialsConfiguration.init();
+
+        final AtomicReference<Set<String>> changed = new AtomicReference<>();
+        credentialsConfiguration.addCallback(new CredentialChangeCallback() {
+            @Override
+            public void onCredentialChange(Set<String> changedUsernames) {
+                changed.set(changedUsernames);
+            }
+        });
+
+        assertTrue(credentialsConfiguration.replaceEntry("user", "old", "$pbkdf2-sha256$i=1000$c2FsdA$aGFzaGhhc2hoYXNoaGFzaA"));
+        final File journal = new File(credentialsFile.getParentFile(), credentialsFile.getName() + ".journal");
+        assertTrue(journal.length() > 0);
+        assertEquals("old", credentialsConfiguration.getUser("user"));
+
+        assertEquals(1, credentialsConfiguration.flushReplacements());
+
+        assertEquals(ImmutableList.of("# users", "other=pw", "user : $pbkdf2-sha256$i=1000$c2FsdA$aGFzaGhhc2hoYXNoaGFzaA"),
+                Files.readAllLines(credentialsFile.toPath(), Charset.defaultCharset()));
+        assertEquals("$pbkdf2-sha256$i=1000$c2FsdA$aGFzaGhhc2hoYXNoaGFzaA", credentialsConfiguration.getUser("user"));
+        assertEquals(ImmutableSet.of("user"), changed.get());
+        assertEquals(0, journal.length());
+        for (String name : credentialsFile.getParentFile().list()) {
+            assertFalse(name, name.endsWith(".tmp"));
+        }
+    }
+
+    @Test
+    public void replace_entry_writes_queued_entries_together() throws Exception {
+        File credentialsFile = temporaryFolder.newFile();
+        try (FileWriter out = new FileWriter(credentialsFile, false)) {
+            out.write("first=old\nsecond=old\nthird=old\n");
+            out.flush();
+        }
+
+        CredentialsConfiguration credentialsConfiguration = new CredentialsConfiguration(pluginExecutorService, credentialsFile.getAbsolutePath(), 1, systemInformation);
+        credentialsConfiguration.init();
+
+        final AtomicReference<Set<String>> changed = new AtomicReference<>();
+        credentialsConfiguration.addCallback(new CredentialChangeCallback() {
+            @Override
+            public void onCredentialChange(Set<String> changedUsernames) {
+                changed.set(changedUsernames);
+            }
+        });
+
+        assertTrue(credentialsConfiguration.replaceEntry("first", "old", "$2a$12$first"));
+        assertTrue(credentialsConfiguration.replaceEntry("third", "old", "$2a$12$third"));
+        assertFalse(credentialsConfiguration.replaceEntry("third", "old", "$2a$12$again"));
+
+        assertEquals(2, credentialsConfiguration.flushReplacements());
+
+        assertEquals(ImmutableList.of("first=$2a$12$first", "second=old", "third=$2a$12$third"),
+                Files.readAllLines(credentialsFile.toPath(), Charset.defaultCharset()));
+        assertEquals(ImmutableSet.of("first", "third"), changed.get());
+        assertEquals(0, credentialsConfiguration.flushReplacements());
+    }
+
+    @Test
+    public void replace_entry_keeps_edits_made_before_the_write() throws Exception {
+        File credentialsFile = temporaryFolder.newFile();
+        try (FileWriter out = new FileWriter(credentialsFile, false)) {
+            out.write("user=old\nother=old\n");
+            out.flush();
+        }
+
+        CredentialsConfiguration credentialsConfiguration = new CredentialsConfiguration(pluginExecutorService, credentialsFile.getAbsolutePath(), 1, systemInformation);
+        credentialsConfiguration.init();
+
+        assertTrue(credentialsConfiguration.replaceEntry("user", "old", "$2a$12$new"));
+        assertTrue(credentialsConfiguration.replaceEntry("other", "old", "$2a$12$new"));
+        try (FileWriter out = new FileWriter(credentialsFile, false)) {
+            out.write("user=old\nother=edited\nadded=pw\n");
+            out.flush();
+        }
+
+        assertEquals(1, credentialsConfiguration.flushReplacements());
+
+        assertEquals(ImmutableList.of("user=$2a$12$new", "other=edited", "added=pw"),
+                Files.readAllLines(credentialsFile.toPath(), Charset.defaultCharset()));
+        assertEquals("edited", credentialsConfiguration.getUser("other"));
+    }
+
+    @Test
+    public void replace_entry_keeps_changed_entry() throws Exception {
+        File credentialsFile = temporaryFolder.newFile();
+        try (FileWriter out = new FileWriter(credentialsFile, false)) {
+            out.write("user=changed\n");
+            out.flush();
+        }
+
+        CredentialsConfiguration credentialsConfiguration = new CredentialsConfiguration(pluginExecutorService, credentialsFile.getAbsolutePath(), 1, systemInformation);
+        credentialsConfiguration.init();
+
+        assertFalse(credentialsConfiguration.replaceEntry("user", "old", "$2a$12$new"));
+        assertFalse(credentialsConfiguration.replaceEntry("missing", "old", "$2a$12$new"));
+        assertEquals("changed", credentialsConfiguration.getUser("user"));
+    }
+
+    @Test
+    public void journal_is_replayed_on_init() throws Exception {
+        File credentialsFile = temporaryFolder.newFile();
+        try (FileWriter out = new FileWriter(credentialsFile, false)) {
+            out.write("user=old\nchanged=newer\n");
+            out.flush();
+        }
+        try (FileWriter out = new FileWriter(new File(credentialsFile.getParentFile(), credentialsFile.getName() + ".journal"), false)) {
+            out.write("user\told\t$2a$12$new\nchanged\told\t$2a$12$new\n");
+            out.flush();
+        }
+
+        CredentialsConfiguration credentialsConfiguration = new CredentialsConfiguration(pluginExecutorService, credentialsFile.getAbsolutePath(), 1, systemInformation);
+        credentialsConfiguration.init();
+
+        assertEquals("$2a$12$new", credentialsConfiguration.getUser("user"));
+        assertEquals("newer", credentialsConfiguration.getUser("changed"));
+        assertEquals(0, new File(credentialsFile.getParentFile(), credentialsFile.getName() + ".journal").length());
+    }
+
+    @Test
+    public void replace_entry_keeps_line_terminators() throws Exception {
+        File credentialsFile = temporaryFolder.newFile();
+        Files.write(credentialsFile.toPath(), "# users\r\nother=pw\ruser=old\r\nlast=pw".getBytes(Charsets.ISO_8859_1));
+
+        CredentialsConfiguration credentialsConfiguration = new CredentialsConfiguration(pluginExecutorService, credentialsFile.getAbsolutePath(), 1, systemInformation);
+        credentialsConfiguration.init();
+
+        assertTrue(credentialsConfiguration.replaceEntry("user", "old", "$2a$12$new"));
+        assertEquals(1, credentialsConfiguration.flushReplacements());
+
+        assertEquals("# users\r\nother=pw\ruser=$2a$12$new\r\nlast=pw",
+                new String(Files.readAllBytes(credentialsFile.toPath()), Charsets.ISO_8859_1));
+    }
+
+    @Test
+    public void journal_is_escaped() throws Exception {
+        File credentialsFile = temporaryFolder.newFile();
+        Files.write(credentialsFile.toPath(), "us\\u00e9r=o\\tld\n".getBytes(Charsets.ISO_8859_1));
+        final File journal = new File(credentialsFile.getParentFile(), credentialsFile.getName() + ".journal");
+
+        CredentialsConfiguration credentialsConfiguration = new CredentialsConfiguration(pluginExecutorService, credentialsFile.getAbsolutePath(), 1, systemInformation);
+        credentialsConfiguration.init();
+
+        assertTrue(credentialsConfiguration.replaceEntry("us\u00e9r", "o\tld", "$2a$12$new"));
+        assertEquals("us\\u00E9r\to\\tld\t$2a$12$new\n", new String(Files.readAllBytes(journal.toPath()), Charsets.ISO_8859_1));
+
+        // replayed by a new instance, as after a stop before the replacement reached the credential file
+        credentialsConfiguration = new CredentialsConfiguration(pluginExecutorService, credentialsFile.getAbsolutePath(), 1, systemInformation);
+        credentialsConfiguration.init();
+
+        assertEquals("$2a$12$new", credentialsConfiguration.getUser("us\u00e9r"));
+        assertEquals(0, journal.length());
+    }
+
     @Test
     public void add_callback_test_success() throws Exception {
 
         CredentialChangeCallback callback = new CredentialChangeCallback() {
             @Override
-            public void onCredentialChange() {
+            public void onCredentialChange(Set<String> changedUsernames) {
             }
         };
         Boolean ret = credentialsConfiguration.addCallback(callback);
@@ -136,7 +377,7 @@ public class CredentialsConfigurationTest {
 
         CredentialChangeCallback callback = new CredentialChangeCallback() {
             @Override
-            public void onCredentialChange() {
+            public void onCredentialChange(Set<String> changedUsernames) {
 
             }
         };
@@ -152,6 +393,171 @@ public class CredentialsConfigurationTest {
         credentialsConfiguration.addCallback(null);
     }
 
+    @Test
+    public void compiled_entries_follow_reload() throws Exception {
+        File credentialsFile = temporaryFolder.newFile();
+        try (FileWriter out = new FileWriter(credentialsFile, false)) {
+            out.write("user=hash$salt\nremoved=hash$salt\n");
+        }
+        CredentialsConfiguration credentialsConfiguration = new CredentialsConfiguration(pluginExecutorService, credentialsFile.getAbsolutePath(), 1, systemInformation);
+        credentialsConfiguration.init();
+        credentialsConfiguration.setEntryCompiler(new SplittingCompiler());
+
+        assertEquals("salt", credentialsConfiguration.getCompiledEntry("user").getSalt());
+
+        try (FileWriter out = new FileWriter(credentialsFile, false)) {
+            out.write("user=hash$newSalt\nadded=hash$salt\n");
+        }
+        credentialsConfiguration.reload();
+
+        assertEquals("newSalt", credentialsConfiguration.getCompiledEntry("user").getSalt());
+        assertEquals("salt", credentialsConfiguration.getCompiledEntry("added").getSalt());
+        assertNull(credentialsConfiguration.getCompiledEntry("removed"));
+    }
+
+    @Test
+    public void entry_with_wrong_format_reports_line() throws Exception {
+        File credentialsFile = temporaryFolder.newFile();
+        try (FileWriter out = new FileWriter(credentialsFile, false)) {
+            out.write("# users\nuser=hash$salt\nlong=hash\\\n  $salt\nbad=nosalt\n");
+        }
+        CredentialsConfiguration credentialsConfiguration = new CredentialsConfiguration(pluginExecutorService, credentialsFile.getAbsolutePath(), 1, systemInformation);
+        credentialsConfiguration.init();
+        credentialsConfiguration.setEntryCompiler(new SplittingCompiler());
+
+        assertEquals("salt", credentialsConfiguration.getCompiledEntry("long").getSalt());
+        try {
+            credentialsConfiguration.getCompiledEntry("bad");
+            fail();
+        } catch (PasswordFormatException e) {
+            assertTrue(e.getMessage(), e.getMessage().startsWith("Line 5: "));
+        }
+    }
+
+    @Test
+    public void off_heap_credentials_follow_reload() throws Exception {
+        File credentialsFile = temporaryFolder.newFile();
+        try (FileWriter out = new FileWriter(credentialsFile, false)) {
+            out.write("user=hash$salt\nremoved=hash$salt\nbad=nosalt\n");
+        }
+        CredentialsConfiguration credentialsConfiguration = new CredentialsConfiguration(pluginExecutorService, credentialsFile.getAbsolutePath(), 1, systemInformation);
+        credentialsConfiguration.setOffHeap(true);
+        credentialsConfiguration.init();
+        credentialsConfiguration.setEntryCompiler(new SplittingCompiler());
+
+        // the entries are compiled on lookup until the table is built again in the background
+        assertEquals("salt", credentialsConfiguration.getCompiledEntry("user").getSalt());
+        try {
+            credentialsConfiguration.getCompiledEntry("bad");
+            fail();
+        } catch (PasswordFormatException e) {
+            assertEquals("no salt", e.getMessage());
+        }
+        final ArgumentCaptor<Runnable> rebuild = ArgumentCaptor.forClass(Runnable.class);
+        verify(pluginExecutorService).execute(rebuild.capture());
+        rebuild.getValue().run();
+
+        assertEquals("hash$salt", credentialsConfiguration.getUser("user"));
+        assertEquals("salt", credentialsConfiguration.getCompiledEntry("user").getSalt());
+        assertTrue(credentialsConfiguration.getProperties().isEmpty());
+        try {
+            credentialsConfiguration.getCompiledEntry("bad");
+            fail();
+        } catch (PasswordFormatException e) {
+            assertTrue(e.getMessage(), e.getMessage().startsWith("Line 3: "));
+        }
+
+        try (FileWriter out = new FileWriter(credentialsFile, false)) {
+            out.write("user=hash$newSalt\n");
+        }
+        credentialsConfiguration.reload();
+
+        assertEquals("newSalt", credentialsConfiguration.getCompiledEntry("user").getSalt());
+        assertNull(credentialsConfiguration.getCompiledEntry("removed"));
+        assertNull(credentialsConfiguration.getCompiledEntry("bad"));
+    }
+
+    @Test
+    public void off_heap_preloaded_entries_stay_compiled() throws Exception {
+        File credentialsFile = temporaryFolder.newFile();
+        try (FileWriter out = new FileWriter(credentialsFile, false)) {
+            out.write("user=hash$salt\nother=hash$salt\n");
+        }
+        CredentialsConfiguration credentialsConfiguration = new CredentialsConfiguration(pluginExecutorService, credentialsFile.getAbsolutePath(), 1, systemInformation);
+        credentialsConfiguration.setOffHeap(true);
+        credentialsConfiguration.init();
+        credentialsConfiguration.setEntryCompiler(new SplittingCompiler());
+
+        assertEquals(1, credentialsConfiguration.preload(ImmutableList.of("user", "unknown")));
+
+        // the records hold no entries compiled with the current settings, only the preloaded ones are kept
+        assertSame(credentialsConfiguration.getCompiledEntry("user"), credentialsConfiguration.getCompiledEntry("user"));
+        assertNotSame(credentialsConfiguration.getCompiledEntry("other"), credentialsConfiguration.getCompiledEntry("other"));
+
+        try (FileWriter out = new FileWriter(credentialsFile, false)) {
+            out.write("user=hash$newSalt\n");
+        }
+        credentialsConfiguration.reload();
+
+        assertEquals("newSalt", credentialsConfiguration.getCompiledEntry("user").getSalt());
+        assertSame(credentialsConfiguration.getCompiledEntry("user"), credentialsConfiguration.getCompiledEntry("user"));
+    }
+
+    @Test
+    public void compiled_credential_file_is_mapped() throws Exception {
+        File propertiesFile = temporaryFolder.newFile();
+        try (FileWriter out = new FileWriter(propertiesFile, false)) {
+            out.write("user=hash$salt\nremoved=hash$salt\n");
+        }
+        File compiledFile = temporaryFolder.newFile();
+        CredentialFileCompiler.compile(propertiesFile, compiledFile);
+        CredentialsConfiguration credentialsConfiguration = new CredentialsConfiguration(pluginExecutorService, compiledFile.getAbsolutePath(), 1, systemInformation);
+        credentialsConfiguration.init();
+        credentialsConfiguration.setEntryCompiler(new SplittingCompiler());
+
+        final AtomicReference<Set<String>> changed = new AtomicReference<>();
+        credentialsConfiguration.addCallback(new CredentialChangeCallback() {
+            @Override
+            public void onCredentialChange(Set<String> changedUsernames) {
+                changed.set(changedUsernames);
+            }
+        });
+
+        assertEquals("hash$salt", credentialsConfiguration.getUser("user"));
+        assertEquals("salt", credentialsConfiguration.getCompiledEntry("user").getSalt());
+        assertFalse(credentialsConfiguration.replaceEntry("user", "hash$salt", "hash$newSalt"));
+
+        try (FileWriter out = new FileWriter(propertiesFile, false)) {
+            out.write("user=hash$newSalt\n");
+        }
+        CredentialFileCompiler.compile(propertiesFile, compiledFile);
+        credentialsConfiguration.reload();
+
+        assertEquals("newSalt", credentialsConfiguration.getCompiledEntry("user").getSalt());
+        assertNull(credentialsConfiguration.getUser("removed"));
+        assertEquals(ImmutableSet.of("user", "removed"), changed.get());
+    }
+
+    /**
+     * Splits the entries at the first $ into hash and salt.
+     */
+    private static class SplittingCompiler implements EntryCompiler {
+
+        @Override
+        public HashedSaltedPassword compile(final String entry) throws PasswordFormatException {
+            final int separator = entry.indexOf('$');
+            if (separator < 0) {
+                throw new PasswordFormatException("no salt");
+            }
+            return new HashedSaltedPassword(entry.substring(0, separator), entry.substring(separator + 1));
+        }
+
+        @Override
+        public DigestSettings getDigestSettings() {
+            return null;
+        }
+    }
+
     @Test
     public void BadInput_test() throws Exception {
         File credentialsFile = temporaryFolder.newFile();
@@ -0,0 +1,361 @@
+/*
+ * Copyright 2015 dc-square GmbH
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.hivemq.plugin.fileauthentication.configuration;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.hivemq.plugin.fileauthentication.authentication.HashedSaltedPassword;
+import com.hivemq.plugin.fileauthentication.authentication.KdfHash;
+import com.hivemq.plugin.fileauthentication.exception.PasswordFormatException;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class OffHeapCredentialTableTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void test_lookup() {
+        final OffHeapCredentialTable table = OffHeapCredentialTable.copyOf(ImmutableMap.of(
+                "user", "salt$hash", "other", "password", "empty", ""));
+
+        assertEquals(3, table.size());
+        assertEquals("salt$hash", table.get("user"));
+        assertEquals("password", table.get("other"));
+        assertEquals("", table.get("empty"));
+        assertTrue(table.containsKey("user"));
+        assertFalse(table.containsKey("use"));
+        assertNull(table.get("users"));
+        assertNull(table.get(1));
+    }
+
+    @Test
+    public void test_non_ascii_usernames_and_entries() {
+        final OffHeapCredentialTable table = OffHeapCredentialTable.copyOf(ImmutableMap.of(
+                "müller", "pässwörd", "用户", "密码🔑", "", "no name"));
+
+        assertEquals("pässwörd", table.get("müller"));
+        assertEquals("密码🔑", table.get("用户"));
+        assertEquals("no name", table.get(""));
+        assertNull(table.get("muller"));
+    }
+
+    @Test
+    public void test_many_users_with_colliding_hashes() {
+        final Map<String, String> entries = new HashMap<>();
+        for (int i = 0; i < 10_000; i++) {
+            entries.put("user" + i, "entry" + i);
+        }
+        // "Aa" and "BB" have the same hash code
+        entries.put("AaAa", "1");
+        entries.put("BBBB", "2");
+        entries.put("AaBB", "3");
+
+        final OffHeapCredentialTable table = OffHeapCredentialTable.copyOf(entries);
+
+        assertEquals(entries.size(), table.size());
+        assertEquals(entries, table);
+        assertEquals("2", table.get("BBBB"));
+        assertNull(table.get("BBAa"));
+    }
+
+    @Test
+    public void test_compiled_entries_are_read_from_the_records() throws Exception {
+        final String kdfEntry = KdfHash.template("$pbkdf2-sha256$i=1000", "saltsaltsaltsalt".getBytes("UTF-8")).getHash();
+        final OffHeapCredentialTable.Builder builder = new OffHeapCredentialTable.Builder(new DecodingCompiler(), 1);
+        builder.put("user", "sälz$aGFzaA==", 1);
+        builder.put("kdf", kdfEntry, 2);
+        builder.put("bad", "nosalt", 3);
+        builder.put("plain", "$", 4);
+        final OffHeapCredentialTable table = builder.build();
+
+        final HashedSaltedPassword digest = table.getCompiled("user", 1, null);
+        assertArrayEquals("hash".getBytes("UTF-8"), digest.getHashBytes());
+        assertArrayEquals(HashedSaltedPassword.decoded("aGFzaA==", "sälz").getSaltBytes(), digest.getSaltBytes());
+        assertEquals("aGFzaA==", digest.getHash());
+        assertEquals("sälz", digest.getSalt());
+
+        final HashedSaltedPassword kdf = table.getCompiled("kdf", 1, null);
+        assertEquals(KdfHash.Type.PBKDF2_SHA256, ((KdfHash) kdf).getType());
+        assertEquals(1000, ((KdfHash) kdf).getCost());
+        assertArrayEquals("saltsaltsaltsalt".getBytes("UTF-8"), kdf.getSaltBytes());
+        assertEquals(kdfEntry, kdf.getHash());
+
+        assertEquals(0, table.getCompiled("plain", 1, null).getHashBytes().length);
+        assertEquals(ImmutableMap.of("bad", "Line 3: no salt"), table.getErrors());
+        assertNull(table.getCompiled("missing", 1, null));
+    }
+
+    @Test
+    public void test_digest_entries_of_other_settings_are_compiled_on_lookup() throws Exception {
+        final OffHeapCredentialTable.Builder builder = new OffHeapCredentialTable.Builder(new DecodingCompiler(), 1);
+        builder.put("user", "salt$aGFzaA==", 1);
+        final OffHeapCredentialTable table = builder.build();
+
+        assertNull(table.getCompiled("user", 2, null));
+        final HashedSaltedPassword entry = table.getCompiled("user", 2, new EntryCompiler() {
+            @Override
+            public HashedSaltedPassword compile(final String entry) {
+                return new HashedSaltedPassword(entry, null);
+            }
+
+            @Override
+            public DigestSettings getDigestSettings() {
+                return null;
+            }
+        });
+        assertEquals("salt$aGFzaA==", entry.getHash());
+    }
+
+    @Test
+    public void test_later_lines_replace_earlier_lines() throws Exception {
+        final OffHeapCredentialTable.Builder builder = new OffHeapCredentialTable.Builder(new DecodingCompiler(), 1);
+        for (int i = 0; i < 100; i++) {
+            builder.put("user" + i, "salt$aGFzaA==", i + 1);
+        }
+        builder.put("user1", "nosalt", 101);
+        builder.put("user2", "nosalt", 102);
+        builder.put("user2", "newSalt$aGFzaA==", 103);
+        final OffHeapCredentialTable table = builder.build();
+
+        assertEquals(100, table.size());
+        assertEquals("nosalt", table.get("user1"));
+        assertEquals("newSalt", table.getCompiled("user2", 1, null).getSalt());
+        assertEquals(ImmutableMap.of("user1", "Line 101: no salt"), table.getErrors());
+        final Map<String, String> copy = new HashMap<>(table);
+        assertEquals(100, copy.size());
+        assertEquals("newSalt$aGFzaA==", copy.get("user2"));
+    }
+
+    @Test
+    public void test_records_grow_beyond_the_length_of_the_file() throws Exception {
+        final OffHeapCredentialTable.Builder builder = new OffHeapCredentialTable.Builder(new DecodingCompiler(), 1, 10);
+        for (int i = 0; i < 5000; i++) {
+            builder.put("user" + i, "salt" + i + "$aGFzaGhhc2hoYXNoaGFzaA==", i + 1);
+        }
+        final OffHeapCredentialTable table = builder.build();
+
+        assertEquals(5000, table.size());
+        assertEquals("salt4999", table.getCompiled("user4999", 1, null).getSalt());
+        assertEquals("salt0$aGFzaGhhc2hoYXNoaGFzaA==", table.get("user0"));
+    }
+
+    @Test
+    public void test_difference_to_previous_load() {
+        final OffHeapCredentialTable before = OffHeapCredentialTable.copyOf(ImmutableMap.of("a", "1", "b", "2", "müller", "5"));
+        final OffHeapCredentialTable after = OffHeapCredentialTable.copyOf(ImmutableMap.of("b", "3", "c", "4", "müller", "5"));
+
+        assertEquals(ImmutableSet.of("a", "b", "c"), after.changedUsernames(before));
+        assertEquals(ImmutableSet.of("a", "b", "c"), before.changedUsernames(after));
+        assertTrue(after.changedUsernames(after).isEmpty());
+    }
+
+    @Test
+    public void test_difference_to_previous_compiled_file() throws Exception {
+        final Map<String, String> entries = new HashMap<>();
+        for (int i = 0; i < 1000; i++) {
+            entries.put("user" + i, "salt" + i + "$hash" + i);
+        }
+        final File file = temporaryFolder.newFile();
+        OffHeapCredentialTable.copyOf(entries).writeTo(file);
+        final OffHeapCredentialTable before = OffHeapCredentialTable.map(file);
+        entries.put("user1", "changed");
+        entries.remove("user2");
+        entries.put("用户", "added");
+        final OffHeapCredentialTable after = OffHeapCredentialTable.copyOf(entries);
+
+        assertEquals(ImmutableSet.of("user1", "user2", "用户"), after.changedUsernames(before));
+    }
+
+    @Test
+    public void test_empty_table() {
+        final OffHeapCredentialTable table = OffHeapCredentialTable.copyOf(ImmutableMap.<String, String>of());
+
+        assertTrue(table.isEmpty());
+        assertNull(table.get("user"));
+        assertFalse(table.entrySet().iterator().hasNext());
+    }
+
+    @Test
+    public void test_compiled_file_round_trip() throws Exception {
+        final Map<String, String> entries = new HashMap<>();
+        for (int i = 0; i < 1000; i++) {
+            entries.put("user" + i, "salt" + i + "$hash" + i);
+        }
+        entries.put("müller", "pässwörd");
+        final File file = temporaryFolder.newFile();
+        OffHeapCredentialTable.copyOf(entries).writeTo(file);
+
+        assertTrue(OffHeapCredentialTable.isCompiled(file));
+        final OffHeapCredentialTable table = OffHeapCredentialTable.map(file);
+
+        assertEquals(entries, table);
+        assertEquals(OffHeapCredentialTable.NO_GENERATION, table.getGeneration());
+        assertEquals("pässwörd", table.get("müller"));
+        assertNull(table.get("user1000"));
+    }
+
+    @Test
+    public void test_digest_entries_of_compiled_file_are_used_with_the_same_settings() throws Exception {
+        final DigestSettings settings = new DigestSettings(true, true, true, "$");
+        final File propertiesFile = temporaryFolder.newFile();
+        Files.write(propertiesFile.toPath(), "user=c2FsdA==$aGFzaA==\n".getBytes("UTF-8"));
+        final File file = temporaryFolder.newFile();
+        CredentialFileCompiler.compile(propertiesFile, file, settings);
+
+        final OffHeapCredentialTable table = OffHeapCredentialTable.map(file, new DigestSettings(true, true, true, "$"), 3);
+        assertEquals(3, table.getGeneration());
+        final HashedSaltedPassword entry = table.getCompiled("user", 3, null);
+        assertArrayEquals("hash".getBytes("UTF-8"), entry.getHashBytes());
+        assertEquals("salt", entry.getSalt());
+
+        final OffHeapCredentialTable otherSettings = OffHeapCredentialTable.map(file, new DigestSettings(true, true, false, "$"), 3);
+        assertEquals(OffHeapCredentialTable.NO_GENERATION, otherSettings.getGeneration());
+        assertNull(otherSettings.getCompiled("user", 3, null));
+        assertEquals(OffHeapCredentialTable.NO_GENERATION, OffHeapCredentialTable.map(file).getGeneration());
+    }
+
+    @Test
+    public void test_checksum_is_read_from_the_header() throws Exception {
+        final File file = temporaryFolder.newFile();
+        final OffHeapCredentialTable built = OffHeapCredentialTable.copyOf(ImmutableMap.of("user", "salt$hash"));
+        built.writeTo(file);
+        final File otherFile = temporaryFolder.newFile();
+        OffHeapCredentialTable.copyOf(ImmutableMap.of("user", "salt$hash2")).writeTo(otherFile);
+
+        final long checksum = OffHeapCredentialTable.readChecksum(file);
+
+        assertTrue(checksum >= 0);
+        assertEquals(checksum, OffHeapCredentialTable.map(file).getChecksum());
+        assertFalse(checksum == OffHeapCredentialTable.readChecksum(otherFile));
+        assertEquals(OffHeapCredentialTable.UNKNOWN_CHECKSUM, built.getChecksum());
+        assertEquals(OffHeapCredentialTable.UNKNOWN_CHECKSUM, OffHeapCredentialTable.readChecksum(temporaryFolder.newFile()));
+    }
+
+    @Test
+    public void test_properties_file_is_not_compiled() throws Exception {
+        final File file = temporaryFolder.newFile();
+        try (RandomAccessFile out = new RandomAccessFile(file, "rw")) {
+            out.writeBytes("# a long enough comment\nuser=password\n");
+        }
+
+        assertFalse(OffHeapCredentialTable.isCompiled(file));
+    }
+
+    @Test
+    public void test_truncated_compiled_file_is_rejected() throws Exception {
+        final File file = temporaryFolder.newFile();
+        OffHeapCredentialTable.copyOf(ImmutableMap.of("user", "salt$hash")).writeTo(file);
+        try (RandomAccessFile out = new RandomAccessFile(file, "rw")) {
+            out.setLength(file.length() - 1);
+        }
+
+        try {
+            OffHeapCredentialTable.map(file);
+            fail();
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("does not match its length"));
+        }
+    }
+
+    @Test
+    public void test_damaged_compiled_file_is_rejected() throws Exception {
+        final File file = temporaryFolder.newFile();
+        OffHeapCredentialTable.copyOf(ImmutableMap.of("user", "salt$hash")).writeTo(file);
+        try (RandomAccessFile out = new RandomAccessFile(file, "rw")) {
+            out.seek(file.length() - 1);
+            final int last = out.read();
+            out.seek(file.length() - 1);
+            out.write(last ^ 1);
+        }
+
+        try {
+            OffHeapCredentialTable.map(file);
+            fail();
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("checksum"));
+        }
+    }
+
+    @Test
+    public void test_damaged_record_is_an_error_of_its_user() throws Exception {
+        final File file = temporaryFolder.newFile();
+        OffHeapCredentialTable.copyOf(ImmutableMap.of("a", "1", "b", "2")).writeTo(file);
+        final byte[] bytes = Files.readAllBytes(file.toPath());
+        final ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        final int headerLength = 5 * 4 + 8 + 4;
+        final int recordsStart = headerLength + 4 * buffer.getInt(3 * 4);
+        // the entry length of the first record, behind its hash, username length, coder, username and entry hash
+        buffer.putInt(recordsStart + 4 + 4 + 1 + 1 + 4, Integer.MAX_VALUE);
+        buffer.putInt(headerLength - 4, OffHeapCredentialTable.checksum(ByteBuffer.wrap(bytes, 0, headerLength).slice(),
+                ByteBuffer.wrap(bytes, headerLength, recordsStart - headerLength).slice(),
+                ByteBuffer.wrap(bytes, recordsStart, bytes.length - recordsStart).slice()));
+        Files.write(file.toPath(), bytes);
+
+        final OffHeapCredentialTable table = OffHeapCredentialTable.map(file);
+
+        try {
+            table.getCompiled("a", OffHeapCredentialTable.NO_GENERATION, null);
+            fail();
+        } catch (PasswordFormatException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("damaged"));
+        }
+        assertNull(table.get("a"));
+        assertEquals("2", table.get("b"));
+    }
+
+    /**
+     * Splits the entries at the first $ into salt and Base64 encoded hash, if they do not describe their hashing
+     * parameters themselves.
+     */
+    private static class DecodingCompiler implements EntryCompiler {
+
+        @Override
+        public HashedSaltedPassword compile(final String entry) throws PasswordFormatException {
+            if (KdfHash.isKdfHash(entry)) {
+                return KdfHash.parse(entry);
+            }
+            final int separator = entry.indexOf('$');
+            if (separator < 0) {
+                throw new PasswordFormatException("no salt");
+            }
+            return HashedSaltedPassword.decoded(entry.substring(separator + 1), entry.substring(0, separator));
+        }
+
+        @Override
+        public DigestSettings getDigestSettings() {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright 2015 dc-square GmbH
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.hivemq.plugin.fileauthentication.configuration;
+
+import com.google.common.collect.Maps;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class PropertiesLineParserTest {
+
+    private static final String FILE = "# comment\n"
+            + "! comment\n"
+            + "\n"
+            + "   user=salt$hash\n"
+            + "colon:value\n"
+            + "space value with  spaces  \n"
+            + "both = : value\n"
+            + "escaped\\ key\\=x=v\\tal\\u00fcue\\\\\n"
+            + "long=first\\\n"
+            + "     second\\\n"
+            + "# not a comment\n"
+            + "empty=\n"
+            + "keyonly\n"
+            + "user=replaced\r\n"
+            + "windows=line\r"
+            + "last=ends\\";
+
+    @Test
+    public void test_same_values_as_properties() throws Exception {
+        final Properties properties = new Properties();
+        properties.load(new StringReader(FILE));
+
+        final Map<String, String> parsed = new HashMap<>();
+        parse(FILE, parsed, new ArrayList<Integer>());
+
+        assertEquals(Maps.fromProperties(properties), parsed);
+    }
+
+    @Test
+    public void test_lines() throws Exception {
+        final List<Integer> lines = new ArrayList<>();
+        parse(FILE, new HashMap<String, String>(), lines);
+
+        assertEquals(11, lines.size());
+        assertEquals(4, (int) lines.get(0));
+        assertEquals(9, (int) lines.get(5));
+        assertEquals(12, (int) lines.get(6));
+        assertEquals(16, (int) lines.get(10));
+    }
+
+    @Test
+    public void test_malformed_escape_reports_line() throws Exception {
+        try {
+            parse("user=a\nbad=\\u00g0\n", new HashMap<String, String>(), new ArrayList<Integer>());
+            fail();
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().startsWith("Line 2: "));
+        }
+    }
+
+    private static void parse(final String file, final Map<String, String> values, final List<Integer> lines) throws IOException {
+        PropertiesLineParser.parse(new BufferedReader(new StringReader(file)), new PropertiesLineParser.Handler() {
+            @Override
+            public void property(final String key, final String value, final int line) {
+                values.put(key, value);
+                lines.add(line);
+            }
+        });
+    }
+}
@@ -1,11 +1,18 @@
 package com.hivemq.plugin.fileauthentication.configuration;
 
+import com.hivemq.spi.config.SystemInformation;
+import com.hivemq.spi.services.PluginExecutorService;
 import junit.framework.TestCase;
 
+import java.io.File;
 import java.io.FileReader;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.Map;
 
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
 
 /**
  * @author Lukas Brandl
@@ -19,15 +26,86 @@ public class ReloadingPropertiesReaderTest extends TestCase {
         verify(fileReader).close();
     }
 
+    public void test_values_are_replaced_as_a_whole() throws Exception {
+        final TestReloadingPropertiesReader reader = new TestReloadingPropertiesReader();
+        final File file = File.createTempFile("reader", ".properties");
+        file.deleteOnExit();
+
+        Files.write(file.toPath(), "a=1\nb=2\n".getBytes(Charset.defaultCharset()));
+        reader.replaceProperties(new FileReader(file));
+        final Map<String, String> before = reader.getValues();
+
+        Files.write(file.toPath(), "a=3\n".getBytes(Charset.defaultCharset()));
+        reader.replaceProperties(new FileReader(file));
+
+        assertEquals("1", before.get("a"));
+        assertEquals("2", before.get("b"));
+        assertEquals("3", reader.getValues().get("a"));
+        assertNull(reader.getValues().get("b"));
+        assertEquals("3", reader.getProperties().getProperty("a"));
+    }
+
+    public void test_unchanged_file_is_not_parsed_again() throws Exception {
+        final File file = File.createTempFile("reader", ".properties");
+        file.deleteOnExit();
+        Files.write(file.toPath(), "a=1\n".getBytes(Charset.defaultCharset()));
+        final TestReloadingPropertiesReader reader = initReader(file);
+        final Map<String, String> loaded = reader.getValues();
+
+        // modified just now, so the checksum is compared
+        reader.reload();
+        assertSame(loaded, reader.getValues());
+
+        // touched, but the content is the same
+        assertTrue(file.setLastModified(file.lastModified() - 60000));
+        reader.reload();
+        assertSame(loaded, reader.getValues());
+
+        // neither the length nor the modification time changed
+        reader.reload();
+        assertSame(loaded, reader.getValues());
+    }
+
+    public void test_change_with_same_length_and_modification_time_is_reloaded() throws Exception {
+        final File file = File.createTempFile("reader", ".properties");
+        file.deleteOnExit();
+        Files.write(file.toPath(), "a=1\n".getBytes(Charset.defaultCharset()));
+        final TestReloadingPropertiesReader reader = initReader(file);
+        final long lastModified = file.lastModified();
+
+        Files.write(file.toPath(), "a=2\n".getBytes(Charset.defaultCharset()));
+        assertTrue(file.setLastModified(lastModified));
+        reader.reload();
+
+        assertEquals("2", reader.getValues().get("a"));
+    }
+
+    private static TestReloadingPropertiesReader initReader(final File file) {
+        final SystemInformation systemInformation = mock(SystemInformation.class);
+        when(systemInformation.getConfigFolder()).thenReturn(file.getParentFile());
+        final TestReloadingPropertiesReader reader = new TestReloadingPropertiesReader(
+                mock(PluginExecutorService.class), systemInformation, file.getName());
+        reader.init();
+        return reader;
+    }
+
     private static class TestReloadingPropertiesReader extends ReloadingPropertiesReader {
 
+        private final String filename;
+
         public TestReloadingPropertiesReader() {
-            super(null,null);
+            this(null, null, "Test");
+        }
+
+        public TestReloadingPropertiesReader(final PluginExecutorService pluginExecutorService,
+                                             final SystemInformation systemInformation, final String filename) {
+            super(pluginExecutorService, systemInformation);
+            this.filename = filename;
         }
 
         @Override
         public String getFilename() {
-            return "Test";
+            return filename;
         }
 
         @Override
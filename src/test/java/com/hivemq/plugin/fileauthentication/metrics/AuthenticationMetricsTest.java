@@ -0,0 +1,97 @@
+/*
+ * Copyright 2015 dc-square GmbH
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.hivemq.plugin.fileauthentication.metrics;
+
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.base.Supplier;
+import com.google.common.cache.CacheStats;
+import com.hivemq.plugin.fileauthentication.authentication.VerificationResult;
+import com.hivemq.spi.services.MetricService;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Mockito.when;
+import static org.mockito.MockitoAnnotations.initMocks;
+
+public class AuthenticationMetricsTest {
+
+    @Mock
+    MetricService metricService;
+
+    MetricRegistry metricRegistry;
+
+    AuthenticationMetrics authenticationMetrics;
+
+    @Before
+    public void setUp() throws Exception {
+        initMocks(this);
+        metricRegistry = new MetricRegistry();
+        when(metricService.getMetricRegistry()).thenReturn(metricRegistry);
+        authenticationMetrics = new AuthenticationMetrics(metricService);
+    }
+
+    @Test
+    public void test_denied_authentications_are_counted_per_reason() throws Exception {
+        authenticationMetrics.authenticated(VerificationResult.GRANTED, 1000);
+        authenticationMetrics.authenticated(VerificationResult.WRONG_PASSWORD, 1000);
+        authenticationMetrics.authenticated(VerificationResult.WRONG_PASSWORD, 1000);
+        authenticationMetrics.authenticated(VerificationResult.UNKNOWN_USER, 1000);
+
+        assertEquals(1, metricRegistry.getCounters().get(AuthenticationMetrics.GRANTED).getCount());
+        assertEquals(3, metricRegistry.getCounters().get(AuthenticationMetrics.DENIED).getCount());
+        assertEquals(2, metricRegistry.getCounters().get(AuthenticationMetrics.DENIED + ".wrong-password").getCount());
+        assertEquals(1, metricRegistry.getCounters().get(AuthenticationMetrics.DENIED + ".unknown-user").getCount());
+        assertEquals(0, metricRegistry.getCounters().get(AuthenticationMetrics.DENIED + ".no-username").getCount());
+        assertEquals(4, metricRegistry.getTimers().get(AuthenticationMetrics.AUTHENTICATION_TIME).getCount());
+    }
+
+    @Test
+    public void test_cache_stats_are_published() throws Exception {
+        authenticationMetrics.registerCacheStats("positive", new Supplier<CacheStats>() {
+            @Override
+            public CacheStats get() {
+                return new CacheStats(3, 2, 0, 0, 0, 1);
+            }
+        });
+
+        assertEquals(3L, metricRegistry.getGauges().get(AuthenticationMetrics.CACHE + ".positive.hits").getValue());
+        assertEquals(2L, metricRegistry.getGauges().get(AuthenticationMetrics.CACHE + ".positive.misses").getValue());
+        assertEquals(1L, metricRegistry.getGauges().get(AuthenticationMetrics.CACHE + ".positive.evictions").getValue());
+    }
+
+    @Test
+    public void test_metrics_can_be_registered_again() throws Exception {
+        new AuthenticationMetrics(metricService);
+
+        authenticationMetrics.registerGauge(AuthenticationMetrics.VERIFIED_PASSWORDS_SIZE, new Supplier<Integer>() {
+            @Override
+            public Integer get() {
+                return 1;
+            }
+        });
+        authenticationMetrics.registerGauge(AuthenticationMetrics.VERIFIED_PASSWORDS_SIZE, new Supplier<Integer>() {
+            @Override
+            public Integer get() {
+                return 2;
+            }
+        });
+
+        assertEquals(2, metricRegistry.getGauges().get(AuthenticationMetrics.VERIFIED_PASSWORDS_SIZE).getValue());
+    }
+}